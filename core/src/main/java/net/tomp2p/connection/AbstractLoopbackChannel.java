@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import io.netty.channel.AbstractChannel;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The common part of the channels of the {@link LoopbackTransport}. Messages from other channels are queued on the
+ * event loop of this channel and passed to the pipeline when Netty asks to read, like the Netty local channels do.
+ *
+ * @author Thomas Bocek
+ *
+ */
+abstract class AbstractLoopbackChannel extends AbstractChannel {
+
+    // the messages that this channel sent and that did not arrive yet, only used for ordered delivery
+    final Queue<Object> inFlight = new ConcurrentLinkedQueue<Object>();
+
+    // only accessed from the event loop of this channel
+    private final Queue<Object> inboundBuffer = new ArrayDeque<Object>();
+    private boolean readInProgress = false;
+    private long linkFreeNanos = 0;
+
+    private volatile boolean open = true;
+    private volatile InetSocketAddress localAddress;
+
+    AbstractLoopbackChannel(final Channel parent) {
+        super(parent);
+    }
+
+    /**
+     * @return The transport of the event loop, which is only known once this channel is registered
+     */
+    LoopbackTransport transport() {
+        return ((LoopbackTransport.EventLoops) eventLoop().parent()).transport();
+    }
+
+    @Override
+    protected boolean isCompatible(final EventLoop loop) {
+        return loop.parent() instanceof LoopbackTransport.EventLoops;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public InetSocketAddress localAddress() {
+        return (InetSocketAddress) super.localAddress();
+    }
+
+    @Override
+    protected SocketAddress localAddress0() {
+        return localAddress;
+    }
+
+    void localAddress(final InetSocketAddress localAddress) {
+        this.localAddress = localAddress;
+    }
+
+    @Override
+    protected void doBeginRead() throws Exception {
+        if (readInProgress) {
+            return;
+        }
+        if (inboundBuffer.isEmpty()) {
+            readInProgress = true;
+            return;
+        }
+        fireInbound();
+    }
+
+    @Override
+    protected void doClose() throws Exception {
+        open = false;
+        for (;;) {
+            final Object msg = inboundBuffer.poll();
+            if (msg == null) {
+                break;
+            }
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    /**
+     * Queues a message from another channel. This is called on the event loop of this channel.
+     *
+     * @param msg
+     *            The message, which is released if this channel is closed
+     */
+    void received(final Object msg) {
+        if (!open) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        inboundBuffer.add(msg);
+        if (readInProgress) {
+            readInProgress = false;
+            fireInbound();
+        }
+    }
+
+    /**
+     * Calculates when a message sent now arrives. This is called on the event loop of this channel.
+     *
+     * @return The time in nanoseconds until the message arrives
+     */
+    long delayNanos(final int bytes, final long latencyNanos, final long jitterNanos, final long bandwidth,
+            final Random random) {
+        final long now = System.nanoTime();
+        long departure = now;
+        if (bandwidth > 0) {
+            // the message is sent when the previous messages are transmitted
+            departure = Math.max(now, linkFreeNanos) + bytes * 1000000000L / bandwidth;
+            linkFreeNanos = departure;
+        }
+        final long jitter = jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0;
+        return departure + latencyNanos + jitter - now;
+    }
+
+    private void fireInbound() {
+        final ChannelPipeline pipeline = pipeline();
+        for (;;) {
+            final Object msg = inboundBuffer.poll();
+            if (msg == null) {
+                break;
+            }
+            pipeline.fireChannelRead(msg);
+        }
+        pipeline.fireChannelReadComplete();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.message.Message;
+import net.tomp2p.peers.Number160;
+
+/**
+ * Decides in the {@link Dispatcher} if an incoming request is handled or rejected right away. A request is rejected
+ * if its command already has the configured number of requests in progress, or if its sender used up its token
+ * bucket. A rejected request gets an overload reply, see {@link Message#overload()}, so that the sender can try
+ * another peer immediately instead of waiting for a timeout, and does not remove this peer from its peer map.
+ * <p>
+ * Without any limits set, every request is admitted.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class AdmissionControl {
+
+    private static final int COMMANDS = 256;
+
+    private final int[] limits = new int[COMMANDS];
+    private final AtomicIntegerArray inProgress = new AtomicIntegerArray(COMMANDS);
+    private final ConcurrentHashMap<Number160, Bucket> buckets = new ConcurrentHashMap<Number160, Bucket>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private volatile double senderRate = 0;
+    private volatile double senderBurst = 0;
+    private int maxSenders = 10000;
+
+    /**
+     * @param command
+     *            The command, e.g. {@link net.tomp2p.rpc.RPC.Commands#PUT}
+     * @param limit
+     *            The maximum number of requests with this command that are handled at the same time, 0 for no limit
+     * @return This class
+     */
+    public AdmissionControl concurrencyLimit(final int command, final int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit cannot be negative");
+        }
+        limits[command & 0xff] = limit;
+        return this;
+    }
+
+    /**
+     * @param command
+     *            The command
+     * @return The maximum number of requests with this command that are handled at the same time, 0 for no limit
+     */
+    public int concurrencyLimit(final int command) {
+        return limits[command & 0xff];
+    }
+
+    /**
+     * Limits the requests per sender with a token bucket. Each request takes a token, and the tokens are refilled
+     * with the given rate up to the burst size.
+     *
+     * @param rate
+     *            The number of requests per second a sender can send over time, 0 for no limit
+     * @param burst
+     *            The number of requests a sender can send at once
+     * @return This class
+     */
+    public AdmissionControl senderLimit(final double rate, final double burst) {
+        if (rate < 0 || (rate > 0 && burst < 1)) {
+            throw new IllegalArgumentException("The rate cannot be negative and the burst needs to be at least 1");
+        }
+        this.senderBurst = burst;
+        this.senderRate = rate;
+        buckets.clear();
+        return this;
+    }
+
+    /**
+     * @return The number of requests per second a sender can send over time, 0 for no limit
+     */
+    public double senderRate() {
+        return senderRate;
+    }
+
+    /**
+     * @return The number of requests a sender can send at once
+     */
+    public double senderBurst() {
+        return senderBurst;
+    }
+
+    /**
+     * @param maxSenders
+     *            The number of senders with a token bucket, after which the full buckets are removed
+     * @return This class
+     */
+    public AdmissionControl maxSenders(final int maxSenders) {
+        this.maxSenders = maxSenders;
+        return this;
+    }
+
+    /**
+     * @return The number of senders with a token bucket, after which the full buckets are removed
+     */
+    public int maxSenders() {
+        return maxSenders;
+    }
+
+    /**
+     * Admits a request. If the request is admitted, {@link #release(int)} needs to be called once the handler
+     * responded.
+     *
+     * @param message
+     *            The incoming request
+     * @return True if the request can be handled, false if it needs to be rejected
+     */
+    public boolean acquire(final Message message) {
+        if (!takeToken(message.sender().peerId())) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        final int index = message.command() & 0xff;
+        final int limit = limits[index];
+        if (limit == 0) {
+            inProgress.incrementAndGet(index);
+            return true;
+        }
+        for (;;) {
+            final int current = inProgress.get(index);
+            if (current >= limit) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (inProgress.compareAndSet(index, current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Marks an admitted request as done.
+     *
+     * @param command
+     *            The command of the request
+     */
+    public void release(final int command) {
+        inProgress.decrementAndGet(command & 0xff);
+    }
+
+    /**
+     * @param command
+     *            The command
+     * @return The number of admitted requests with this command that did not respond yet
+     */
+    public int inProgress(final int command) {
+        return inProgress.get(command & 0xff);
+    }
+
+    /**
+     * @return The number of rejected requests
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    private boolean takeToken(final Number160 sender) {
+        final double rate = senderRate;
+        if (rate == 0) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        Bucket bucket = buckets.get(sender);
+        if (bucket == null) {
+            if (buckets.size() >= maxSenders) {
+                removeFull(now, rate);
+            }
+            bucket = new Bucket(senderBurst, now);
+            final Bucket existing = buckets.putIfAbsent(sender, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        return bucket.take(now, rate, senderBurst);
+    }
+
+    private void removeFull(final long now, final double rate) {
+        // a full bucket is the same as no bucket, so it can be removed without changing the limit
+        for (Iterator<Bucket> iterator = buckets.values().iterator(); iterator.hasNext();) {
+            if (iterator.next().isFull(now, rate, senderBurst)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static final class Bucket {
+        private double tokens;
+        private long last;
+
+        private Bucket(final double tokens, final long last) {
+            this.tokens = tokens;
+            this.last = last;
+        }
+
+        private synchronized boolean take(final long now, final double rate, final double burst) {
+            refill(now, rate, burst);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        private synchronized boolean isFull(final long now, final double rate, final double burst) {
+            refill(now, rate, burst);
+            return tokens >= burst;
+        }
+
+        private void refill(final long now, final double rate, final double burst) {
+            if (now > last) {
+                tokens = Math.min(burst, tokens + (now - last) * rate / 1000000000d);
+                last = now;
+            }
+        }
+    }
+}
@@ -31,6 +31,8 @@ public class ChannelClientConfiguration {
     private PipelineFilter pipelineFilter;
     private SignatureFactory signatureFactory;
     private Bindings bindingsOutgoing;
+    private Transport transport = new NioTransport();
+    private int coalesceMicros = 0;
 
     /**
      * @return The maximum number of permanent (long-lived) connections
@@ -125,4 +127,42 @@ public class ChannelClientConfiguration {
         this.bindingsOutgoing = bindingsOutgoing;
         return this;
     }
+
+    /**
+     * @return The Netty transport for the client channels
+     */
+    public Transport transport() {
+        return transport;
+    }
+
+    /**
+     * @param transport
+     *            The Netty transport for the client channels, has to match the event loops of the peer
+     * @return This class
+     */
+    public ChannelClientConfiguration transport(final Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * @return The time window in microseconds, in which UDP requests to the same peer are packed into one datagram. 0
+     *         if the requests are not coalesced
+     */
+    public int coalesceMicros() {
+        return coalesceMicros;
+    }
+
+    /**
+     * @param coalesceMicros
+     *            The time window in microseconds, in which UDP requests to the same peer that are sent with the same
+     *            channel creator are packed into one datagram. Peers of older versions decode only the first message
+     *            of such a datagram, so only enable this if all peers can unpack them. 0 to disable, which is the
+     *            default
+     * @return This class
+     */
+    public ChannelClientConfiguration coalesceMicros(final int coalesceMicros) {
+        this.coalesceMicros = coalesceMicros;
+        return this;
+    }
 }
@@ -27,8 +27,6 @@ import io.netty.channel.FixedRecvByteBufAllocator;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.ChannelGroupFuture;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.GlobalEventExecutor;
@@ -144,7 +142,7 @@ public class ChannelCreator {
 			}
 			final Bootstrap b = new Bootstrap();
 			b.group(workerGroup);
-			b.channel(NioDatagramChannel.class);
+			b.channel(channelClientConfiguration.transport().datagramChannel());
 			b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(ConnectionBean.UDP_LIMIT));
 			if (broadcast) {
 				b.option(ChannelOption.SO_BROADCAST, true);
@@ -190,7 +188,7 @@ public class ChannelCreator {
 			}
 			Bootstrap b = new Bootstrap();
 			b.group(workerGroup);
-			b.channel(NioSocketChannel.class);
+			b.channel(channelClientConfiguration.transport().socketChannel());
 			b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionTimeoutMillis);
 			b.option(ChannelOption.TCP_NODELAY, true);
 			b.option(ChannelOption.SO_LINGER, 0);
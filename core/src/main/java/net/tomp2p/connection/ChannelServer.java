@@ -26,14 +26,14 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.FixedRecvByteBufAllocator;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.GenericFutureListener;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -63,8 +63,8 @@ public final class ChannelServer {
 	private final EventLoopGroup bossGroup;
 	private final EventLoopGroup workerGroup;
 
-	private Channel channelUDP;
-	private Channel channelTCP;
+	private final List<Channel> channelsUDP = Collections.synchronizedList(new ArrayList<Channel>());
+	private final List<Channel> channelsTCP = Collections.synchronizedList(new ArrayList<Channel>());
 
 	private final FutureDone<Void> futureServerDone = new FutureDone<Void>();
 
@@ -106,7 +106,20 @@ public final class ChannelServer {
 		
 		this.tcpDropConnectionInboundHandler = new DropConnectionInboundHandler(channelServerConfiguration.maxTCPIncomingConnections());
 		this.udpDropConnectionInboundHandler = new DropConnectionInboundHandler(channelServerConfiguration.maxUDPIncomingConnections());
-		this.udpDecoderHandler = new TomP2PSinglePacketUDP(channelServerConfiguration.signatureFactory());
+		this.udpDecoderHandler = new TomP2PSinglePacketUDP(channelServerConfiguration.signatureFactory(), dispatcher);
+		if (dispatcher != null) {
+			dispatcher.metrics().gauge("channels.open.tcp", new Metrics.Gauge() {
+				@Override
+				public long value() {
+					return tcpDropConnectionInboundHandler.current();
+				}
+			}).gauge("channels.open.udp", new Metrics.Gauge() {
+				@Override
+				public long value() {
+					return udpDropConnectionInboundHandler.current();
+				}
+			});
+		}
 	}
 
 	/**
@@ -169,28 +182,45 @@ public final class ChannelServer {
 	 * @return True if startup was successful
 	 */
 	boolean startupUDP(final InetSocketAddress listenAddresses, final ChannelServerConficuration config) {
-		Bootstrap b = new Bootstrap();
-		b.group(workerGroup);
-		b.channel(NioDatagramChannel.class);
-		b.option(ChannelOption.SO_BROADCAST, true);
-		b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(ConnectionBean.UDP_LIMIT));
+		final Transport transport = config.transport();
+		final ChannelOption<Boolean> reusePort = transport.reusePort();
+		int sockets = Math.max(1, config.udpSockets());
+		if (sockets > 1 && reusePort == null) {
+			LOG.warn("transport {} does not support SO_REUSEPORT, bind only one UDP socket", transport);
+			sockets = 1;
+		}
+		// with SO_REUSEPORT, the kernel distributes the datagrams among the
+		// sockets, and each socket is registered with the next event loop
+		for (int i = 0; i < sockets; i++) {
+			Bootstrap b = new Bootstrap();
+			b.group(workerGroup);
+			b.channel(transport.datagramChannel());
+			b.option(ChannelOption.SO_BROADCAST, true);
+			b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(ConnectionBean.UDP_LIMIT));
+			if (sockets > 1) {
+				b.option(reusePort, true);
+			}
 
-		b.handler(new ChannelInitializer<Channel>() {
-			@Override
-			protected void initChannel(final Channel ch) throws Exception {
-				for (Map.Entry<String, Pair<EventExecutorGroup, ChannelHandler>> entry : handlers(false).entrySet()) {
-					if (!entry.getValue().isEmpty()) {
-						ch.pipeline().addLast(entry.getValue().element0(), entry.getKey(), entry.getValue().element1());
-					} else if (entry.getValue().element1() != null) {
-						ch.pipeline().addLast(entry.getKey(), entry.getValue().element1());
+			b.handler(new ChannelInitializer<Channel>() {
+				@Override
+				protected void initChannel(final Channel ch) throws Exception {
+					for (Map.Entry<String, Pair<EventExecutorGroup, ChannelHandler>> entry : handlers(false).entrySet()) {
+						if (!entry.getValue().isEmpty()) {
+							ch.pipeline().addLast(entry.getValue().element0(), entry.getKey(), entry.getValue().element1());
+						} else if (entry.getValue().element1() != null) {
+							ch.pipeline().addLast(entry.getKey(), entry.getValue().element1());
+						}
 					}
 				}
-			}
-		});
+			});
 
-		ChannelFuture future = b.bind(listenAddresses);
-		channelUDP = future.channel();
-		return handleFuture(future);
+			ChannelFuture future = b.bind(listenAddresses);
+			channelsUDP.add(future.channel());
+			if (!handleFuture(future)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -205,7 +235,7 @@ public final class ChannelServer {
 	boolean startupTCP(final InetSocketAddress listenAddresses, final ChannelServerConficuration config) {
 		ServerBootstrap b = new ServerBootstrap();
 		b.group(bossGroup, workerGroup);
-		b.channel(NioServerSocketChannel.class);
+		b.channel(config.transport().serverSocketChannel());
 		b.childHandler(new ChannelInitializer<Channel>() {
 			@Override
 			protected void initChannel(final Channel ch) throws Exception {
@@ -222,7 +252,7 @@ public final class ChannelServer {
 			}
 		});
 		ChannelFuture future = b.bind(listenAddresses);
-		channelTCP = future.channel();
+		channelsTCP.add(future.channel());
 		return handleFuture(future);
 	}
 
@@ -255,7 +285,7 @@ public final class ChannelServer {
 			        new Pair<EventExecutorGroup, ChannelHandler>(null, timeoutFactory.idleStateHandlerTomP2P()));
 			handlers.put("timeout1", new Pair<EventExecutorGroup, ChannelHandler>(null, timeoutFactory.timeHandler()));
 			handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2PCumulationTCP(
-			        channelServerConfiguration.signatureFactory())));
+			        channelServerConfiguration.signatureFactory(), dispatcher)));
 		} else {
 			// we don't need here a timeout since we receive a packet or
 			// nothing. It is different than with TCP where we
@@ -305,26 +335,25 @@ public final class ChannelServer {
 	 *         worker and boss event loop
 	 */
 	public FutureDone<Void> shutdown() {
-		final int maxListeners = (channelUDP!=null && channelTCP!=null) ? 2 : 1;
-		// we have two things to shut down: UDP and TCP
+		final List<Channel> channels = new ArrayList<Channel>();
+		synchronized (channelsUDP) {
+			channels.addAll(channelsUDP);
+		}
+		synchronized (channelsTCP) {
+			channels.addAll(channelsTCP);
+		}
+		// we have several things to shut down: the UDP sockets and TCP
+		final int maxListeners = channels.size();
 		final AtomicInteger listenerCounter = new AtomicInteger(0);
 		LOG.debug("shutdown servers");
-		if(channelUDP != null) {
-			channelUDP.close().addListener(new GenericFutureListener<ChannelFuture>() {
-				@Override
-				public void operationComplete(final ChannelFuture future) throws Exception {
-					LOG.debug("shutdown TCP server");
-					if(listenerCounter.incrementAndGet()==maxListeners) {
-						futureServerDone.done();
-					}
-				}
-			});
+		if (maxListeners == 0) {
+			futureServerDone.done();
 		}
-		if(channelTCP != null) {
-			channelTCP.close().addListener(new GenericFutureListener<ChannelFuture>() {
+		for (final Channel channel : channels) {
+			channel.close().addListener(new GenericFutureListener<ChannelFuture>() {
 				@Override
 				public void operationComplete(final ChannelFuture future) throws Exception {
-					LOG.debug("shutdown TCP channels");
+					LOG.debug("shutdown server channel {}", channel);
 					if(listenerCounter.incrementAndGet()==maxListeners) {
 						futureServerDone.done();
 					}
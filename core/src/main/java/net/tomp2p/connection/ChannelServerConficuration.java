@@ -50,6 +50,11 @@ public class ChannelServerConficuration implements ConnectionConfiguration {
     
     private int heartBeatMillis = PeerConnection.HEART_BEAT_MILLIS;
 
+    private Transport transport = new NioTransport();
+    private int udpSockets = 1;
+    private int udpDispatcherThreads = 0;
+    private AdmissionControl admissionControl = null;
+
     /**
      * @return True if this peer is behind a firewall and cannot be accessed directly
      */
@@ -266,4 +271,78 @@ public class ChannelServerConficuration implements ConnectionConfiguration {
 	    this.heartBeatMillis = heartBeatMillis;
 	    return this;
     }
+
+    /**
+     * @return The Netty transport for the event loops and the server channels
+     */
+    public Transport transport() {
+        return transport;
+    }
+
+    /**
+     * @param transport
+     *            The Netty transport for the event loops and the server channels
+     * @return This class
+     */
+    public ChannelServerConficuration transport(final Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * @return The number of UDP sockets that are bound to the UDP port
+     */
+    public int udpSockets() {
+        return udpSockets;
+    }
+
+    /**
+     * @param udpSockets
+     *            The number of UDP sockets that are bound to the UDP port with SO_REUSEPORT. Each socket is served by
+     *            its own event loop, so that incoming UDP messages are received on several threads. This needs a
+     *            transport that supports SO_REUSEPORT, otherwise only one socket is bound
+     * @return This class
+     */
+    public ChannelServerConficuration udpSockets(final int udpSockets) {
+        this.udpSockets = udpSockets;
+        return this;
+    }
+
+    /**
+     * @return The number of threads that handle incoming UDP requests, 0 if they are handled on the I/O threads
+     */
+    public int udpDispatcherThreads() {
+        return udpDispatcherThreads;
+    }
+
+    /**
+     * @param udpDispatcherThreads
+     *            The number of threads that handle incoming UDP requests. The datagrams are decoded on the I/O
+     *            threads and the requests are handed to these threads, so that the handlers of one UDP socket run on
+     *            several cores. Set to 0 to handle the requests on the I/O threads
+     * @return This class
+     */
+    public ChannelServerConficuration udpDispatcherThreads(final int udpDispatcherThreads) {
+        this.udpDispatcherThreads = udpDispatcherThreads;
+        return this;
+    }
+
+    /**
+     * @return The admission control of the incoming requests, or null if all requests are handled
+     */
+    public AdmissionControl admissionControl() {
+        return admissionControl;
+    }
+
+    /**
+     * @param admissionControl
+     *            Limits the requests in progress per command and the requests per sender. Requests above the limits
+     *            are rejected with an overload reply, so that the sender asks another peer. Set to null to handle all
+     *            requests
+     * @return This class
+     */
+    public ChannelServerConficuration admissionControl(final AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+        return this;
+    }
 }
@@ -41,6 +41,7 @@ public class ConnectionBean {
     private final Reservation reservation;
     private final ChannelClientConfiguration resourceConfiguration;
     private final ScheduledExecutorService timer;
+    private final Metrics metrics;
 
     /**
      * The connection bean with unmodifiable objects. Once its set you cannot change it. If its required to change, then
@@ -62,10 +63,13 @@ public class ConnectionBean {
      *            The NAT helper tools
      * @param timer
      *            The timer for the discovery process
+     * @param metrics
+     *            The metrics shared by the dispatcher, sender, channel server and reservation
      */
     public ConnectionBean(final int p2pId, final Dispatcher dispatcher, final Sender sender,
             final ChannelServer channelServer, final Reservation reservation,
-            final ChannelClientConfiguration resourceConfiguration, final ScheduledExecutorService timer) {
+            final ChannelClientConfiguration resourceConfiguration, final ScheduledExecutorService timer,
+            final Metrics metrics) {
         this.p2pId = p2pId;
         this.dispatcher = dispatcher;
         this.sender = sender;
@@ -73,6 +77,7 @@ public class ConnectionBean {
         this.reservation = reservation;
         this.resourceConfiguration = resourceConfiguration;
         this.timer = timer;
+        this.metrics = metrics;
     }
 
     /**
@@ -123,4 +128,11 @@ public class ConnectionBean {
     public ScheduledExecutorService timer() {
         return timer;
     }
+
+    /**
+     * @return The metrics of the connections
+     */
+    public Metrics metrics() {
+        return metrics;
+    }
 }
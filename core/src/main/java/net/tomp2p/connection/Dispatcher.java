@@ -15,11 +15,13 @@
  */
 package net.tomp2p.connection;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.DefaultChannelPromise;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.DatagramChannel;
+import io.netty.util.concurrent.EventExecutorGroup;
 
 import java.util.Collection;
 import java.util.Collections;
@@ -27,8 +29,11 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.tomp2p.connection.PeerException.AbortCause;
+import net.tomp2p.message.Decoder;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.peers.Number160;
@@ -52,16 +57,21 @@ import org.slf4j.LoggerFactory;
  * @author Thomas Bocek
  */
 @Sharable
-public class Dispatcher extends SimpleChannelInboundHandler<Message> {
+public class Dispatcher extends SimpleChannelInboundHandler<Message> implements Decoder.FrameFilter {
 
     private static final Logger LOG = LoggerFactory.getLogger(Dispatcher.class);
 
     private final int p2pID;
     private final PeerBean peerBean;
     private final int heartBeatMillis;
+    private final Metrics metrics;
+    private final EventExecutorGroup udpDispatcherGroup;
+    private final AdmissionControl admissionControl;
 
     //copy on write map
     private volatile Map<Number160, Map<Integer, DispatchHandler>> ioHandlers = new HashMap<Number160, Map<Integer, DispatchHandler>>();
+    //copy on write set, the peers for which the received bytes of requests are kept
+    private volatile Set<Number160> framePeers = Collections.emptySet();
 
     /**
      * Constructor.
@@ -72,9 +82,80 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
      *            .
      */
     public Dispatcher(final int p2pID, final PeerBean peerBean, final int heartBeatMillis) {
+        this(p2pID, peerBean, heartBeatMillis, new Metrics());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param p2pID
+     *            the p2p ID the dispatcher is looking for in messages
+     * @param peerBean
+     *            .
+     * @param metrics
+     *            The metrics to count the incoming requests and the handler times
+     */
+    public Dispatcher(final int p2pID, final PeerBean peerBean, final int heartBeatMillis, final Metrics metrics) {
+        this(p2pID, peerBean, heartBeatMillis, metrics, null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param p2pID
+     *            the p2p ID the dispatcher is looking for in messages
+     * @param peerBean
+     *            .
+     * @param metrics
+     *            The metrics to count the incoming requests and the handler times
+     * @param udpDispatcherGroup
+     *            The threads that handle the UDP requests, or null to handle them on the thread that received the
+     *            datagram. The requests are handed to the threads round-robin, as UDP requests are independent of
+     *            each other. This group is not shutdown in this class
+     */
+    public Dispatcher(final int p2pID, final PeerBean peerBean, final int heartBeatMillis, final Metrics metrics,
+            final EventExecutorGroup udpDispatcherGroup) {
+        this(p2pID, peerBean, heartBeatMillis, metrics, udpDispatcherGroup, null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param p2pID
+     *            the p2p ID the dispatcher is looking for in messages
+     * @param peerBean
+     *            .
+     * @param metrics
+     *            The metrics to count the incoming requests and the handler times
+     * @param udpDispatcherGroup
+     *            The threads that handle the UDP requests, or null to handle them on the thread that received the
+     *            datagram. This group is not shutdown in this class
+     * @param admissionControl
+     *            Decides which requests are handled and which are rejected with an overload reply, see
+     *            {@link Message#overload()}, or null to handle all requests
+     */
+    public Dispatcher(final int p2pID, final PeerBean peerBean, final int heartBeatMillis, final Metrics metrics,
+            final EventExecutorGroup udpDispatcherGroup, final AdmissionControl admissionControl) {
         this.p2pID = p2pID;
         this.peerBean = peerBean;
         this.heartBeatMillis = heartBeatMillis;
+        this.metrics = metrics;
+        this.udpDispatcherGroup = udpDispatcherGroup;
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * @return The metrics of the incoming requests
+     */
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The admission control of the incoming requests, or null if all requests are handled
+     */
+    public AdmissionControl admissionControl() {
+        return admissionControl;
     }
 
     /**
@@ -119,12 +200,38 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
         ioHandlers = Collections.unmodifiableMap(copy);
     }
 
+    /**
+     * Keeps the received bytes of requests to the given peer, so that its handler can forward them without encoding
+     * them again, see {@link Message#frame()}. This is used for peers that are reached over a relay. Like the handlers,
+     * this uses copy on write.
+     * 
+     * @param peerId
+     *            The recipient of the requests
+     * @param keepFrames
+     *            True to keep the bytes, false to stop keeping them
+     */
+    public void keepFrames(final Number160 peerId, final boolean keepFrames) {
+        Set<Number160> copy = new HashSet<Number160>(framePeers);
+        if (keepFrames) {
+            copy.add(peerId);
+        } else {
+            copy.remove(peerId);
+        }
+        framePeers = Collections.unmodifiableSet(copy);
+    }
+
+    @Override
+    public boolean keepFrame(final Message header) {
+        return header.isRequest() && framePeers.contains(header.recipient().peerId());
+    }
+
     @Override
     protected void channelRead0(final ChannelHandlerContext ctx, final Message message) throws Exception {
         LOG.debug("received request {} from channel {}", message, ctx.channel());
         if (message.version() != p2pID) {
             LOG.error("Wrong version. We are looking for {} but we got {}, received: {}", p2pID,
                     message.version(), message);
+            releaseFrame(message);
             ctx.close();
             synchronized (peerBean.peerStatusListeners()) {
             	for (PeerStatusListener peerStatusListener : peerBean.peerStatusListeners()) {
@@ -139,10 +246,64 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
             return;
         }
 
-        Responder responder = new DirectResponder(ctx, message);
+        final boolean isUdp = ctx.channel() instanceof DatagramChannel;
+        if (isUdp && udpDispatcherGroup != null) {
+            try {
+                udpDispatcherGroup.next().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            dispatch(ctx, message, true);
+                        } catch (Throwable t) {
+                            LOG.error("Error in UDP dispatching", t);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Dispatcher threads are shutdown, drop {}", message);
+                releaseFrame(message);
+            }
+        } else {
+            dispatch(ctx, message, isUdp);
+        }
+    }
+
+    private void dispatch(final ChannelHandlerContext ctx, final Message message, final boolean isUdp) {
+        try {
+            dispatch0(ctx, message, isUdp);
+        } finally {
+            // a handler that forwards the bytes took them already
+            releaseFrame(message);
+        }
+    }
+
+    private static void releaseFrame(final Message message) {
+        final ByteBuf frame = message.frame();
+        if (frame != null) {
+            message.frame(null);
+            frame.release();
+        }
+    }
+
+    private void dispatch0(final ChannelHandlerContext ctx, final Message message, final boolean isUdp) {
+        final Metrics.Inbound inbound = metrics.inbound(message.command());
+        inbound.request();
         final DispatchHandler myHandler = associatedHandler(message);
+        if (myHandler != null && admissionControl != null && !admissionControl.acquire(message)) {
+            // reply right away, so that the sender tries another peer instead of waiting for a timeout
+            LOG.debug("overloaded, reject {}", message);
+            final Responder responder = new DirectResponder(ctx, message, inbound, false);
+            if (message.isFireAndForget() && isUdp) {
+                responder.responseFireAndForget();
+            } else {
+                responder.response(DispatchHandler.createResponseMessage(message, Type.DENIED,
+                        peerBean.serverPeerAddress()).overload());
+            }
+            return;
+        }
+        final Responder responder = new DirectResponder(ctx, message, inbound, myHandler != null
+                && admissionControl != null);
         if (myHandler != null) {
-            boolean isUdp = ctx.channel() instanceof DatagramChannel;
             boolean isRelay = message.sender().isRelayed();
             if(isRelay && !message.peerSocketAddresses().isEmpty()) {
             	PeerAddress sender = message.sender().changePeerSocketAddresses(message.peerSocketAddresses());
@@ -169,8 +330,7 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
             	}
         	}
         	
-            Message responseMessage = DispatchHandler.createResponseMessage(message, Type.UNKNOWN_ID, peerBean.serverPeerAddress());
-            response(ctx, responseMessage);
+            responder.failed(Type.UNKNOWN_ID, "no handler");
         }
     }
     
@@ -185,9 +345,22 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
     public class DirectResponder implements Responder {
         final ChannelHandlerContext ctx;
         final Message requestMessage;
-        DirectResponder(final ChannelHandlerContext ctx, final Message requestMessage) {
+        final Metrics.Inbound inbound;
+        final long start = System.nanoTime();
+        // set if the request holds a slot of the admission control, which is released with the first response
+        final AtomicBoolean admitted;
+        DirectResponder(final ChannelHandlerContext ctx, final Message requestMessage, final Metrics.Inbound inbound,
+                final boolean admitted) {
             this.ctx = ctx;
             this.requestMessage = requestMessage;
+            this.inbound = inbound;
+            this.admitted = new AtomicBoolean(admitted);
+        }
+
+        private void release() {
+            if (admitted.compareAndSet(true, false)) {
+                admissionControl.release(requestMessage.command());
+            }
         }
         
         @Override
@@ -199,18 +372,23 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
         	if(responseMessage.sender().isRelayed()) {
         		responseMessage.peerSocketAddresses(responseMessage.sender().peerSocketAddresses());
     		}
-        	
+        	release();
+        	inbound.response(responseMessage.type(), System.nanoTime() - start);
             Dispatcher.this.response(ctx, responseMessage);
         }
         
         @Override
         public void failed(Message.Type type, String reason) {
             Message responseMessage = DispatchHandler.createResponseMessage(requestMessage, type, peerBean.serverPeerAddress());
+            release();
+            inbound.response(type, System.nanoTime() - start);
             Dispatcher.this.response(ctx, responseMessage);
         }
         
         @Override
 		public void responseFireAndForget() {
+            release();
+            inbound.response(null, System.nanoTime() - start);
             LOG.debug("The reply handler was a fire-and-forget handler, "
                     + "we don't send any message back! {}", requestMessage);    
            if (!(ctx.channel() instanceof DatagramChannel)) {
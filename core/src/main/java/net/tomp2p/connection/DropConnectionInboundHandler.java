@@ -28,6 +28,13 @@ public class DropConnectionInboundHandler extends ChannelInboundHandlerAdapter {
 		this.limit = limit;
 	}
 
+	/**
+	 * @return The number of channels that are currently open
+	 */
+	public int current() {
+		return counter.get();
+	}
+
 	@Override
 	public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
 		int current = -1;
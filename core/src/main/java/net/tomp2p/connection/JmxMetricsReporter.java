@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the metrics of a peer as an MXBean with the name net.tomp2p:type=Metrics,name=&lt;name&gt; in the
+ * platform MBean server. The values are read when a JMX client asks for them, so this reporter has no thread of its
+ * own.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class JmxMetricsReporter implements MetricsReporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JmxMetricsReporter.class);
+
+    private final MBeanServer mBeanServer;
+    private ObjectName objectName;
+
+    public JmxMetricsReporter() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * @param mBeanServer
+     *            The MBean server to register the metrics with
+     */
+    public JmxMetricsReporter(final MBeanServer mBeanServer) {
+        this.mBeanServer = mBeanServer;
+    }
+
+    @Override
+    public synchronized void start(final String name, final Metrics metrics) {
+        try {
+            final ObjectName objectName = new ObjectName("net.tomp2p:type=Metrics,name=" + ObjectName.quote(name));
+            mBeanServer.registerMBean(new MetricsMXBean() {
+                @Override
+                public Map<String, Long> getValues() {
+                    return metrics.values();
+                }
+            }, objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            // e.g. several peers with the same name, the metrics are still collected
+            LOG.warn("cannot register metrics for {}: {}", name, e.toString());
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            mBeanServer.unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOG.debug("cannot unregister metrics {}: {}", objectName, e.toString());
+        }
+        objectName = null;
+    }
+
+    /**
+     * @return The name the metrics are registered with, or null if they are not registered
+     */
+    public synchronized ObjectName objectName() {
+        return objectName;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.DefaultChannelConfig;
+import io.netty.channel.MessageSizeEstimator;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.socket.DatagramChannelConfig;
+import io.netty.channel.socket.ServerSocketChannelConfig;
+import io.netty.channel.socket.SocketChannelConfig;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The configuration of the channels of the {@link LoopbackTransport}. There are no sockets, so the socket options are
+ * stored, but have no effect. As the options are accepted, setting them does not log a warning.
+ *
+ * @author Thomas Bocek
+ *
+ */
+class LoopbackChannelConfig extends DefaultChannelConfig implements DatagramChannelConfig, SocketChannelConfig,
+        ServerSocketChannelConfig {
+
+    private final Map<ChannelOption<?>, Object> socketOptions = new ConcurrentHashMap<ChannelOption<?>, Object>();
+
+    LoopbackChannelConfig(final Channel channel) {
+        super(channel);
+    }
+
+    @Override
+    public <T> boolean setOption(final ChannelOption<T> option, final T value) {
+        if (super.setOption(option, value)) {
+            return true;
+        }
+        validate(option, value);
+        socketOptions.put(option, value);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T getOption(final ChannelOption<T> option) {
+        final Object value = socketOptions.get(option);
+        if (value != null) {
+            return (T) value;
+        }
+        return super.getOption(option);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(final ChannelOption<T> option, final T defaultValue) {
+        final Object value = socketOptions.get(option);
+        return value == null ? defaultValue : (T) value;
+    }
+
+    private <T> LoopbackChannelConfig set(final ChannelOption<T> option, final T value) {
+        socketOptions.put(option, value);
+        return this;
+    }
+
+    @Override
+    public int getSendBufferSize() {
+        return get(ChannelOption.SO_SNDBUF, 0);
+    }
+
+    @Override
+    public LoopbackChannelConfig setSendBufferSize(final int sendBufferSize) {
+        return set(ChannelOption.SO_SNDBUF, sendBufferSize);
+    }
+
+    @Override
+    public int getReceiveBufferSize() {
+        return get(ChannelOption.SO_RCVBUF, 0);
+    }
+
+    @Override
+    public LoopbackChannelConfig setReceiveBufferSize(final int receiveBufferSize) {
+        return set(ChannelOption.SO_RCVBUF, receiveBufferSize);
+    }
+
+    @Override
+    public int getTrafficClass() {
+        return get(ChannelOption.IP_TOS, 0);
+    }
+
+    @Override
+    public LoopbackChannelConfig setTrafficClass(final int trafficClass) {
+        return set(ChannelOption.IP_TOS, trafficClass);
+    }
+
+    @Override
+    public boolean isReuseAddress() {
+        return get(ChannelOption.SO_REUSEADDR, false);
+    }
+
+    @Override
+    public LoopbackChannelConfig setReuseAddress(final boolean reuseAddress) {
+        return set(ChannelOption.SO_REUSEADDR, reuseAddress);
+    }
+
+    @Override
+    public boolean isBroadcast() {
+        return get(ChannelOption.SO_BROADCAST, false);
+    }
+
+    @Override
+    public LoopbackChannelConfig setBroadcast(final boolean broadcast) {
+        return set(ChannelOption.SO_BROADCAST, broadcast);
+    }
+
+    @Override
+    public boolean isLoopbackModeDisabled() {
+        return get(ChannelOption.IP_MULTICAST_LOOP_DISABLED, false);
+    }
+
+    @Override
+    public LoopbackChannelConfig setLoopbackModeDisabled(final boolean loopbackModeDisabled) {
+        return set(ChannelOption.IP_MULTICAST_LOOP_DISABLED, loopbackModeDisabled);
+    }
+
+    @Override
+    public int getTimeToLive() {
+        return get(ChannelOption.IP_MULTICAST_TTL, 1);
+    }
+
+    @Override
+    public LoopbackChannelConfig setTimeToLive(final int ttl) {
+        return set(ChannelOption.IP_MULTICAST_TTL, ttl);
+    }
+
+    @Override
+    public InetAddress getInterface() {
+        return get(ChannelOption.IP_MULTICAST_ADDR, null);
+    }
+
+    @Override
+    public LoopbackChannelConfig setInterface(final InetAddress interfaceAddress) {
+        return set(ChannelOption.IP_MULTICAST_ADDR, interfaceAddress);
+    }
+
+    @Override
+    public NetworkInterface getNetworkInterface() {
+        return get(ChannelOption.IP_MULTICAST_IF, null);
+    }
+
+    @Override
+    public LoopbackChannelConfig setNetworkInterface(final NetworkInterface networkInterface) {
+        return set(ChannelOption.IP_MULTICAST_IF, networkInterface);
+    }
+
+    @Override
+    public boolean isTcpNoDelay() {
+        return get(ChannelOption.TCP_NODELAY, true);
+    }
+
+    @Override
+    public LoopbackChannelConfig setTcpNoDelay(final boolean tcpNoDelay) {
+        return set(ChannelOption.TCP_NODELAY, tcpNoDelay);
+    }
+
+    @Override
+    public int getSoLinger() {
+        return get(ChannelOption.SO_LINGER, -1);
+    }
+
+    @Override
+    public LoopbackChannelConfig setSoLinger(final int soLinger) {
+        return set(ChannelOption.SO_LINGER, soLinger);
+    }
+
+    @Override
+    public boolean isKeepAlive() {
+        return get(ChannelOption.SO_KEEPALIVE, false);
+    }
+
+    @Override
+    public LoopbackChannelConfig setKeepAlive(final boolean keepAlive) {
+        return set(ChannelOption.SO_KEEPALIVE, keepAlive);
+    }
+
+    @Override
+    public boolean isAllowHalfClosure() {
+        return get(ChannelOption.ALLOW_HALF_CLOSURE, false);
+    }
+
+    @Override
+    public LoopbackChannelConfig setAllowHalfClosure(final boolean allowHalfClosure) {
+        return set(ChannelOption.ALLOW_HALF_CLOSURE, allowHalfClosure);
+    }
+
+    @Override
+    public int getBacklog() {
+        return get(ChannelOption.SO_BACKLOG, 0);
+    }
+
+    @Override
+    public LoopbackChannelConfig setBacklog(final int backlog) {
+        return set(ChannelOption.SO_BACKLOG, backlog);
+    }
+
+    @Override
+    public LoopbackChannelConfig setPerformancePreferences(final int connectionTime, final int latency,
+            final int bandwidth) {
+        return this;
+    }
+
+    @Override
+    public LoopbackChannelConfig setConnectTimeoutMillis(final int connectTimeoutMillis) {
+        super.setConnectTimeoutMillis(connectTimeoutMillis);
+        return this;
+    }
+
+    @Override
+    public LoopbackChannelConfig setMaxMessagesPerRead(final int maxMessagesPerRead) {
+        super.setMaxMessagesPerRead(maxMessagesPerRead);
+        return this;
+    }
+
+    @Override
+    public LoopbackChannelConfig setWriteSpinCount(final int writeSpinCount) {
+        super.setWriteSpinCount(writeSpinCount);
+        return this;
+    }
+
+    @Override
+    public LoopbackChannelConfig setAllocator(final ByteBufAllocator allocator) {
+        super.setAllocator(allocator);
+        return this;
+    }
+
+    @Override
+    public LoopbackChannelConfig setRecvByteBufAllocator(final RecvByteBufAllocator allocator) {
+        super.setRecvByteBufAllocator(allocator);
+        return this;
+    }
+
+    @Override
+    public LoopbackChannelConfig setAutoRead(final boolean autoRead) {
+        super.setAutoRead(autoRead);
+        return this;
+    }
+
+    @Override
+    public LoopbackChannelConfig setWriteBufferHighWaterMark(final int writeBufferHighWaterMark) {
+        super.setWriteBufferHighWaterMark(writeBufferHighWaterMark);
+        return this;
+    }
+
+    @Override
+    public LoopbackChannelConfig setWriteBufferLowWaterMark(final int writeBufferLowWaterMark) {
+        super.setWriteBufferLowWaterMark(writeBufferLowWaterMark);
+        return this;
+    }
+
+    @Override
+    public LoopbackChannelConfig setMessageSizeEstimator(final MessageSizeEstimator estimator) {
+        super.setMessageSizeEstimator(estimator);
+        return this;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelMetadata;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramChannelConfig;
+import io.netty.channel.socket.DatagramPacket;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+
+/**
+ * The UDP channel of the {@link LoopbackTransport}. Datagrams are sent to the channel that is bound to the recipient
+ * address, connected UDP and multicast are not supported.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class LoopbackDatagramChannel extends AbstractLoopbackChannel implements DatagramChannel {
+
+    private static final ChannelMetadata METADATA = new ChannelMetadata(true);
+
+    private final LoopbackChannelConfig config = new LoopbackChannelConfig(this);
+
+    /**
+     * Creates a new channel, this is called by Netty.
+     */
+    public LoopbackDatagramChannel() {
+        super(null);
+    }
+
+    @Override
+    public ChannelMetadata metadata() {
+        return METADATA;
+    }
+
+    @Override
+    public DatagramChannelConfig config() {
+        return config;
+    }
+
+    @Override
+    public boolean isActive() {
+        return isOpen() && localAddress0() != null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return false;
+    }
+
+    @Override
+    public InetSocketAddress remoteAddress() {
+        return null;
+    }
+
+    @Override
+    protected SocketAddress remoteAddress0() {
+        return null;
+    }
+
+    @Override
+    protected AbstractUnsafe newUnsafe() {
+        return new AbstractUnsafe() {
+            @Override
+            public void connect(final SocketAddress remoteAddress, final SocketAddress localAddress,
+                    final ChannelPromise promise) {
+                promise.setFailure(new UnsupportedOperationException("connected UDP is not supported"));
+            }
+        };
+    }
+
+    @Override
+    protected void doBind(final SocketAddress localAddress) throws Exception {
+        localAddress(transport().bind(this, (InetSocketAddress) localAddress));
+    }
+
+    @Override
+    protected void doDisconnect() throws Exception {
+        // never connected
+    }
+
+    @Override
+    protected void doClose() throws Exception {
+        super.doClose();
+        final InetSocketAddress localAddress = (InetSocketAddress) localAddress0();
+        if (localAddress != null) {
+            transport().unbind(this, localAddress);
+        }
+    }
+
+    @Override
+    protected void doWrite(final ChannelOutboundBuffer in) throws Exception {
+        for (;;) {
+            final Object msg = in.current();
+            if (msg == null) {
+                break;
+            }
+            if (msg instanceof DatagramPacket) {
+                transport().send(this, (DatagramPacket) msg);
+                in.remove();
+            } else {
+                in.remove(new UnsupportedOperationException("unsupported message type: " + msg.getClass()));
+            }
+        }
+    }
+
+    @Override
+    public ChannelFuture joinGroup(final InetAddress multicastAddress) {
+        return joinGroup(multicastAddress, newPromise());
+    }
+
+    @Override
+    public ChannelFuture joinGroup(final InetAddress multicastAddress, final ChannelPromise future) {
+        return multicast(future);
+    }
+
+    @Override
+    public ChannelFuture joinGroup(final InetSocketAddress multicastAddress, final NetworkInterface networkInterface) {
+        return joinGroup(multicastAddress, networkInterface, newPromise());
+    }
+
+    @Override
+    public ChannelFuture joinGroup(final InetSocketAddress multicastAddress, final NetworkInterface networkInterface,
+            final ChannelPromise future) {
+        return multicast(future);
+    }
+
+    @Override
+    public ChannelFuture joinGroup(final InetAddress multicastAddress, final NetworkInterface networkInterface,
+            final InetAddress source) {
+        return joinGroup(multicastAddress, networkInterface, source, newPromise());
+    }
+
+    @Override
+    public ChannelFuture joinGroup(final InetAddress multicastAddress, final NetworkInterface networkInterface,
+            final InetAddress source, final ChannelPromise future) {
+        return multicast(future);
+    }
+
+    @Override
+    public ChannelFuture leaveGroup(final InetAddress multicastAddress) {
+        return leaveGroup(multicastAddress, newPromise());
+    }
+
+    @Override
+    public ChannelFuture leaveGroup(final InetAddress multicastAddress, final ChannelPromise future) {
+        return multicast(future);
+    }
+
+    @Override
+    public ChannelFuture leaveGroup(final InetSocketAddress multicastAddress, final NetworkInterface networkInterface) {
+        return leaveGroup(multicastAddress, networkInterface, newPromise());
+    }
+
+    @Override
+    public ChannelFuture leaveGroup(final InetSocketAddress multicastAddress,
+            final NetworkInterface networkInterface, final ChannelPromise future) {
+        return multicast(future);
+    }
+
+    @Override
+    public ChannelFuture leaveGroup(final InetAddress multicastAddress, final NetworkInterface networkInterface,
+            final InetAddress source) {
+        return leaveGroup(multicastAddress, networkInterface, source, newPromise());
+    }
+
+    @Override
+    public ChannelFuture leaveGroup(final InetAddress multicastAddress, final NetworkInterface networkInterface,
+            final InetAddress source, final ChannelPromise future) {
+        return multicast(future);
+    }
+
+    @Override
+    public ChannelFuture block(final InetAddress multicastAddress, final NetworkInterface networkInterface,
+            final InetAddress sourceToBlock) {
+        return block(multicastAddress, networkInterface, sourceToBlock, newPromise());
+    }
+
+    @Override
+    public ChannelFuture block(final InetAddress multicastAddress, final NetworkInterface networkInterface,
+            final InetAddress sourceToBlock, final ChannelPromise future) {
+        return multicast(future);
+    }
+
+    @Override
+    public ChannelFuture block(final InetAddress multicastAddress, final InetAddress sourceToBlock) {
+        return block(multicastAddress, sourceToBlock, newPromise());
+    }
+
+    @Override
+    public ChannelFuture block(final InetAddress multicastAddress, final InetAddress sourceToBlock,
+            final ChannelPromise future) {
+        return multicast(future);
+    }
+
+    private static ChannelFuture multicast(final ChannelPromise future) {
+        return future.setFailure(new UnsupportedOperationException("multicast is not supported"));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import io.netty.channel.ChannelMetadata;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.ServerSocketChannelConfig;
+
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The TCP server channel of the {@link LoopbackTransport}. An accepted connection is passed to the pipeline as a
+ * {@link LoopbackSocketChannel}, which Netty registers with the child event loop group.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class LoopbackServerSocketChannel extends AbstractLoopbackChannel implements ServerSocketChannel {
+
+    private static final ChannelMetadata METADATA = new ChannelMetadata(false);
+
+    private final LoopbackChannelConfig config = new LoopbackChannelConfig(this);
+
+    /**
+     * Creates a new channel, this is called by Netty.
+     */
+    public LoopbackServerSocketChannel() {
+        super(null);
+    }
+
+    @Override
+    public ChannelMetadata metadata() {
+        return METADATA;
+    }
+
+    @Override
+    public ServerSocketChannelConfig config() {
+        return config;
+    }
+
+    @Override
+    public boolean isActive() {
+        return isOpen() && localAddress0() != null;
+    }
+
+    @Override
+    public InetSocketAddress remoteAddress() {
+        return null;
+    }
+
+    @Override
+    protected SocketAddress remoteAddress0() {
+        return null;
+    }
+
+    @Override
+    protected AbstractUnsafe newUnsafe() {
+        return new AbstractUnsafe() {
+            @Override
+            public void connect(final SocketAddress remoteAddress, final SocketAddress localAddress,
+                    final ChannelPromise promise) {
+                promise.setFailure(new UnsupportedOperationException());
+            }
+        };
+    }
+
+    @Override
+    protected void doBind(final SocketAddress localAddress) throws Exception {
+        localAddress(transport().bind(this, (InetSocketAddress) localAddress));
+    }
+
+    @Override
+    protected void doDisconnect() throws Exception {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void doClose() throws Exception {
+        super.doClose();
+        final InetSocketAddress localAddress = (InetSocketAddress) localAddress0();
+        if (localAddress != null) {
+            transport().unbind(this, localAddress);
+        }
+    }
+
+    @Override
+    protected void doWrite(final ChannelOutboundBuffer in) throws Exception {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Accepts a connection. This is called on the event loop of the client.
+     *
+     * @param client
+     *            The client that connects
+     * @param serverAddress
+     *            The address the client connected to
+     * @return The accepted channel, which is registered later
+     */
+    LoopbackSocketChannel serve(final LoopbackSocketChannel client, final InetSocketAddress serverAddress) {
+        final LoopbackSocketChannel child = new LoopbackSocketChannel(this, client, serverAddress,
+                client.localAddress());
+        final Runnable accept = new Runnable() {
+            @Override
+            public void run() {
+                if (isOpen()) {
+                    // the server bootstrap registers the child when it is read from the pipeline
+                    received(child);
+                } else {
+                    client.refused(new ConnectException("Connection refused: " + serverAddress));
+                }
+            }
+        };
+        try {
+            eventLoop().execute(accept);
+        } catch (RejectedExecutionException e) {
+            client.refused(new ConnectException("Connection refused: " + serverAddress));
+        }
+        return child;
+    }
+}
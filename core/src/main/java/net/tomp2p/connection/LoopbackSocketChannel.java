@@ -0,0 +1,298 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelMetadata;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannelConfig;
+
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ConnectionPendingException;
+import java.nio.channels.NotYetConnectedException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The TCP channel of the {@link LoopbackTransport}. A connection consists of two of these channels, the client and
+ * the channel that the server accepted. The bytes written to one channel are read from the other, in the same order.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class LoopbackSocketChannel extends AbstractLoopbackChannel implements io.netty.channel.socket.SocketChannel {
+
+    private static final ChannelMetadata METADATA = new ChannelMetadata(false);
+
+    // sent to the other channel after the data when this channel is closed
+    private static final Object CLOSE = new Object();
+
+    private static final int OPEN = 0;
+    private static final int CONNECTED = 1;
+    private static final int CLOSED = 2;
+
+    private final LoopbackChannelConfig config = new LoopbackChannelConfig(this);
+
+    private volatile int state = OPEN;
+    private volatile LoopbackSocketChannel peer;
+    private volatile InetSocketAddress remoteAddress;
+    private ChannelPromise connectPromise;
+
+    /**
+     * Creates a new client channel, this is called by Netty.
+     */
+    public LoopbackSocketChannel() {
+        super(null);
+    }
+
+    /**
+     * Creates the channel of an accepted connection.
+     */
+    LoopbackSocketChannel(final LoopbackServerSocketChannel parent, final LoopbackSocketChannel peer,
+            final InetSocketAddress localAddress, final InetSocketAddress remoteAddress) {
+        super(parent);
+        this.peer = peer;
+        this.remoteAddress = remoteAddress;
+        localAddress(localAddress);
+    }
+
+    @Override
+    public ServerSocketChannel parent() {
+        return (ServerSocketChannel) super.parent();
+    }
+
+    @Override
+    public ChannelMetadata metadata() {
+        return METADATA;
+    }
+
+    @Override
+    public SocketChannelConfig config() {
+        return config;
+    }
+
+    @Override
+    public boolean isActive() {
+        return state == CONNECTED;
+    }
+
+    @Override
+    public InetSocketAddress remoteAddress() {
+        return (InetSocketAddress) super.remoteAddress();
+    }
+
+    @Override
+    protected SocketAddress remoteAddress0() {
+        return remoteAddress;
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return state == CLOSED;
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return state == CLOSED;
+    }
+
+    @Override
+    public ChannelFuture shutdownOutput() {
+        return shutdownOutput(newPromise());
+    }
+
+    @Override
+    public ChannelFuture shutdownOutput(final ChannelPromise future) {
+        return future.setFailure(new UnsupportedOperationException("half closed connections are not supported"));
+    }
+
+    @Override
+    protected AbstractUnsafe newUnsafe() {
+        return new LoopbackUnsafe();
+    }
+
+    @Override
+    protected void doRegister() throws Exception {
+        final LoopbackSocketChannel peer = this.peer;
+        if (peer != null && parent() != null) {
+            // an accepted channel is connected once it is registered, the client is notified on its event loop
+            state = CONNECTED;
+            try {
+                peer.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        peer.connected(LoopbackSocketChannel.this);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                state = CLOSED;
+            }
+        }
+    }
+
+    @Override
+    protected void doBind(final SocketAddress localAddress) throws Exception {
+        // the address is set when connecting
+        localAddress((InetSocketAddress) localAddress);
+    }
+
+    @Override
+    protected void doDisconnect() throws Exception {
+        doClose();
+    }
+
+    @Override
+    protected void doClose() throws Exception {
+        if (state == CLOSED && !isOpen()) {
+            return;
+        }
+        final boolean wasConnected = state == CONNECTED;
+        state = CLOSED;
+        super.doClose();
+        if (connectPromise != null) {
+            connectPromise.tryFailure(new ClosedChannelException());
+            connectPromise = null;
+        }
+        final LoopbackSocketChannel peer = this.peer;
+        if (wasConnected && peer != null) {
+            // the other side closes after it received all data
+            transport().deliver(this, peer, CLOSE, 0, true);
+        }
+    }
+
+    @Override
+    protected void doWrite(final ChannelOutboundBuffer in) throws Exception {
+        for (;;) {
+            final Object msg = in.current();
+            if (msg == null) {
+                break;
+            }
+            if (state == OPEN) {
+                throw new NotYetConnectedException();
+            } else if (state == CLOSED) {
+                throw new ClosedChannelException();
+            }
+            if (msg instanceof ByteBuf) {
+                final ByteBuf buf = (ByteBuf) msg;
+                final int bytes = buf.readableBytes();
+                // the retain is for the other channel, the outbound buffer releases the message once
+                transport().deliver(this, peer, buf.retain(), bytes, true);
+                in.remove();
+            } else {
+                in.remove(new UnsupportedOperationException("unsupported message type: " + msg.getClass()));
+            }
+        }
+    }
+
+    @Override
+    void received(final Object msg) {
+        if (msg == CLOSE) {
+            if (isOpen()) {
+                unsafe().close(unsafe().voidPromise());
+            }
+            return;
+        }
+        super.received(msg);
+    }
+
+    /**
+     * The server accepted and registered the connection. This is called on the event loop of the client.
+     */
+    private void connected(final LoopbackSocketChannel child) {
+        final ChannelPromise promise = connectPromise;
+        connectPromise = null;
+        if (promise == null || !isOpen()) {
+            child.closeFromPeer();
+            return;
+        }
+        state = CONNECTED;
+        final boolean promiseSet = promise.trySuccess();
+        pipeline().fireChannelActive();
+        if (!promiseSet) {
+            unsafe().close(unsafe().voidPromise());
+        }
+    }
+
+    /**
+     * The server did not accept the connection. This can be called from any thread.
+     */
+    void refused(final ConnectException cause) {
+        try {
+            eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    final ChannelPromise promise = connectPromise;
+                    connectPromise = null;
+                    if (promise != null) {
+                        promise.tryFailure(cause);
+                    }
+                    unsafe().close(unsafe().voidPromise());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the event loops are shut down, the channel is closed anyway
+        }
+    }
+
+    private void closeFromPeer() {
+        try {
+            eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    received(CLOSE);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the event loops are shut down, the channel is closed anyway
+        }
+    }
+
+    private final class LoopbackUnsafe extends AbstractUnsafe {
+        @Override
+        public void connect(final SocketAddress remoteAddress, final SocketAddress localAddress,
+                final ChannelPromise promise) {
+            if (!promise.setUncancellable() || !ensureOpen(promise)) {
+                return;
+            }
+            if (state == CONNECTED) {
+                promise.setFailure(new AlreadyConnectedException());
+                return;
+            }
+            if (connectPromise != null) {
+                promise.setFailure(new ConnectionPendingException());
+                return;
+            }
+            final InetSocketAddress serverAddress = (InetSocketAddress) remoteAddress;
+            final LoopbackServerSocketChannel server = transport().server(serverAddress);
+            if (server == null) {
+                promise.setFailure(new ConnectException("Connection refused: " + serverAddress));
+                close(voidPromise());
+                return;
+            }
+            connectPromise = promise;
+            LoopbackSocketChannel.this.localAddress(transport().connectAddress((InetSocketAddress) localAddress,
+                    serverAddress));
+            LoopbackSocketChannel.this.remoteAddress = serverAddress;
+            peer = server.serve(LoopbackSocketChannel.this, serverAddress);
+        }
+    }
+}
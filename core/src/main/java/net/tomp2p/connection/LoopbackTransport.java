@@ -0,0 +1,392 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory transport to simulate many peers in one JVM. The channels of this transport do not open sockets, a
+ * datagram or a TCP segment is handed to the event loop of the receiving channel. Peers find each other by their
+ * socket address, so every peer that uses the same instance of this transport needs its own port. All these peers
+ * share one event loop group, a peer does not start its own threads for the channels.
+ * <p>
+ * The network can be made worse with a latency, a jitter, a loss rate for UDP and a bandwidth. The bandwidth limits
+ * each channel, the data that is sent over one channel is delayed until the previous data was transmitted. TCP data
+ * is never lost and is never reordered. Connections are established without a delay.
+ * <p>
+ * Use the same instance with {@link net.tomp2p.p2p.PeerBuilder#transport(Transport)} for all peers of a simulation
+ * and shut it down after the peers.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class LoopbackTransport implements Transport {
+
+    private static final int FIRST_EPHEMERAL_PORT = 49152;
+    private static final int LAST_PORT = 65535;
+    private static final InetAddress BROADCAST = broadcast();
+
+    private final ConcurrentHashMap<InetSocketAddress, LoopbackDatagramChannel> datagramChannels = new ConcurrentHashMap<InetSocketAddress, LoopbackDatagramChannel>();
+    private final ConcurrentHashMap<InetSocketAddress, LoopbackServerSocketChannel> serverChannels = new ConcurrentHashMap<InetSocketAddress, LoopbackServerSocketChannel>();
+    private final AtomicInteger nextEphemeralPort = new AtomicInteger(FIRST_EPHEMERAL_PORT);
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final EventLoops eventLoops;
+
+    private volatile long latencyNanos = 0;
+    private volatile long jitterNanos = 0;
+    private volatile double loss = 0;
+    private volatile long bandwidth = 0;
+    private volatile Random random = new Random();
+
+    /**
+     * Creates a loopback transport with as many threads as Netty uses by default.
+     */
+    public LoopbackTransport() {
+        this(0);
+    }
+
+    /**
+     * @param threads
+     *            The number of threads for all the peers that use this transport, 0 for the Netty default
+     */
+    public LoopbackTransport(final int threads) {
+        this.eventLoops = new EventLoops(threads, new DefaultThreadFactory(ConnectionBean.THREAD_NAME
+                + "loopback - "), this);
+    }
+
+    /**
+     * @param latencyMillis
+     *            The time it takes for a datagram or a TCP segment to arrive
+     * @return This class
+     */
+    public LoopbackTransport latency(final int latencyMillis) {
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        return this;
+    }
+
+    /**
+     * @param jitterMillis
+     *            The maximum random time that is added to the latency
+     * @return This class
+     */
+    public LoopbackTransport jitter(final int jitterMillis) {
+        this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+        return this;
+    }
+
+    /**
+     * @param loss
+     *            The probability between 0 and 1 that a datagram is lost
+     * @return This class
+     */
+    public LoopbackTransport loss(final double loss) {
+        if (loss < 0 || loss > 1) {
+            throw new IllegalArgumentException("The loss needs to be between 0 and 1");
+        }
+        this.loss = loss;
+        return this;
+    }
+
+    /**
+     * @param bytesPerSecond
+     *            The bandwidth of each channel, 0 for no limit
+     * @return This class
+     */
+    public LoopbackTransport bandwidth(final long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("The bandwidth cannot be negative");
+        }
+        this.bandwidth = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @param random
+     *            The random generator for the loss and the jitter, set a seeded generator for repeatable
+     *            simulations
+     * @return This class
+     */
+    public LoopbackTransport random(final Random random) {
+        this.random = random;
+        return this;
+    }
+
+    /**
+     * @return The number of datagrams and TCP segments that were handed to a channel
+     */
+    public long delivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return The number of datagrams that were lost, including the ones without a channel on the recipient address
+     */
+    public long lost() {
+        return lost.get();
+    }
+
+    /**
+     * Shuts down the event loops of this transport. Shutting down a peer does not shut down the shared event loops,
+     * this needs to be called once all peers are shut down.
+     *
+     * @return The future that is done when the threads are terminated
+     */
+    public Future<?> shutdown() {
+        return eventLoops.shutdownShared();
+    }
+
+    @Override
+    public EventLoopGroup eventLoopGroup(final int threads, final ThreadFactory threadFactory) {
+        // all peers share the event loops, so that thousands of peers do not start thousands of threads
+        return eventLoops;
+    }
+
+    @Override
+    public Class<? extends DatagramChannel> datagramChannel() {
+        return LoopbackDatagramChannel.class;
+    }
+
+    @Override
+    public Class<? extends SocketChannel> socketChannel() {
+        return LoopbackSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends ServerSocketChannel> serverSocketChannel() {
+        return LoopbackServerSocketChannel.class;
+    }
+
+    @Override
+    public ChannelOption<Boolean> reusePort() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "loopback";
+    }
+
+    InetSocketAddress bind(final LoopbackDatagramChannel channel, final InetSocketAddress localAddress)
+            throws BindException {
+        return bind(datagramChannels, channel, localAddress);
+    }
+
+    void unbind(final LoopbackDatagramChannel channel, final InetSocketAddress localAddress) {
+        datagramChannels.remove(localAddress, channel);
+    }
+
+    InetSocketAddress bind(final LoopbackServerSocketChannel channel, final InetSocketAddress localAddress)
+            throws BindException {
+        return bind(serverChannels, channel, localAddress);
+    }
+
+    void unbind(final LoopbackServerSocketChannel channel, final InetSocketAddress localAddress) {
+        serverChannels.remove(localAddress, channel);
+    }
+
+    /**
+     * @return The server channel that listens on the address, or null if the connection is refused
+     */
+    LoopbackServerSocketChannel server(final InetSocketAddress remoteAddress) {
+        return lookup(serverChannels, remoteAddress);
+    }
+
+    /**
+     * @return The address of an outgoing TCP connection, with a new ephemeral port
+     */
+    InetSocketAddress connectAddress(final InetSocketAddress localAddress, final InetSocketAddress remoteAddress) {
+        final int port = localAddress == null || localAddress.getPort() == 0 ? ephemeralPort() : localAddress
+                .getPort();
+        return source(new InetSocketAddress(localAddress == null ? null : localAddress.getAddress(), port),
+                remoteAddress);
+    }
+
+    /**
+     * Sends a datagram to the channel that is bound to the recipient address. This is called on the event loop of
+     * the sender.
+     */
+    void send(final LoopbackDatagramChannel from, final DatagramPacket packet) {
+        final InetSocketAddress recipient = packet.recipient();
+        // like the kernel, the sender is the address of the channel and not the one in the packet
+        final InetSocketAddress sender = source(from.localAddress(), recipient);
+        final ByteBuf content = packet.content();
+        if (BROADCAST.equals(recipient.getAddress())) {
+            for (LoopbackDatagramChannel to : datagramChannels.values()) {
+                if (to != from && to.localAddress().getPort() == recipient.getPort()) {
+                    send(from, to, content, sender);
+                }
+            }
+            return;
+        }
+        final LoopbackDatagramChannel to = lookup(datagramChannels, recipient);
+        if (to == null) {
+            lost.incrementAndGet();
+            return;
+        }
+        send(from, to, content, sender);
+    }
+
+    private void send(final LoopbackDatagramChannel from, final LoopbackDatagramChannel to, final ByteBuf content,
+            final InetSocketAddress sender) {
+        if (loss > 0 && random.nextDouble() < loss) {
+            lost.incrementAndGet();
+            return;
+        }
+        // a duplicate has its own reader index, the retain is for the receiver, which releases the datagram
+        final DatagramPacket packet = new DatagramPacket(content.duplicate().retain(), to.localAddress(), sender);
+        deliver(from, to, packet, content.readableBytes(), false);
+    }
+
+    /**
+     * Hands a message to the receiving channel after the latency and the transmission time of the sending channel.
+     * This is called on the event loop of the sender, the message is released if the receiver is gone.
+     *
+     * @param ordered
+     *            True if the message cannot overtake earlier messages of the sending channel
+     */
+    void deliver(final AbstractLoopbackChannel from, final AbstractLoopbackChannel to, final Object msg,
+            final int bytes, final boolean ordered) {
+        final long delayNanos = from.delayNanos(bytes, latencyNanos, jitterNanos, bandwidth, random);
+        if (ordered) {
+            // every task delivers the oldest message in flight, so messages arrive in order even if a later task
+            // runs first because of the jitter
+            from.inFlight.add(msg);
+        }
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                delivered.incrementAndGet();
+                to.received(ordered ? from.inFlight.poll() : msg);
+            }
+        };
+        try {
+            if (delayNanos > 0) {
+                to.eventLoop().schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+            } else {
+                to.eventLoop().execute(task);
+            }
+        } catch (RejectedExecutionException e) {
+            if (!ordered || from.inFlight.remove(msg)) {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+
+    private <C> InetSocketAddress bind(final ConcurrentHashMap<InetSocketAddress, C> channels, final C channel,
+            final InetSocketAddress localAddress) throws BindException {
+        if (localAddress.getPort() != 0) {
+            if (channels.putIfAbsent(localAddress, channel) != null) {
+                throw new BindException("Address already in use: " + localAddress);
+            }
+            return localAddress;
+        }
+        for (int i = FIRST_EPHEMERAL_PORT; i <= LAST_PORT; i++) {
+            final InetSocketAddress address = new InetSocketAddress(localAddress.getAddress(), ephemeralPort());
+            if (channels.putIfAbsent(address, channel) == null) {
+                return address;
+            }
+        }
+        throw new BindException("No ephemeral port left for " + localAddress);
+    }
+
+    private int ephemeralPort() {
+        for (;;) {
+            final int port = nextEphemeralPort.getAndIncrement();
+            if (port <= LAST_PORT) {
+                return port;
+            }
+            nextEphemeralPort.compareAndSet(port + 1, FIRST_EPHEMERAL_PORT);
+        }
+    }
+
+    private static <C> C lookup(final ConcurrentHashMap<InetSocketAddress, C> channels, final InetSocketAddress address) {
+        final C channel = channels.get(address);
+        if (channel != null) {
+            return channel;
+        }
+        // a channel that is bound to the wildcard address receives on all addresses
+        return channels.get(new InetSocketAddress(address.getPort()));
+    }
+
+    /**
+     * @return The address a channel bound to the wildcard address sends from, which is the address of the recipient
+     *         as all peers run on this host
+     */
+    private static InetSocketAddress source(final InetSocketAddress localAddress, final InetSocketAddress recipient) {
+        if (localAddress.getAddress() == null || localAddress.getAddress().isAnyLocalAddress()) {
+            return new InetSocketAddress(recipient.getAddress(), localAddress.getPort());
+        }
+        return localAddress;
+    }
+
+    private static InetAddress broadcast() {
+        try {
+            return InetAddress.getByAddress(new byte[] { (byte) 255, (byte) 255, (byte) 255, (byte) 255 });
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The event loops that all peers of a loopback transport share. The peers shut down their event loop groups, so
+     * this group ignores a shutdown and is only shut down with {@link LoopbackTransport#shutdown()}.
+     */
+    static final class EventLoops extends LocalEventLoopGroup {
+
+        private final LoopbackTransport transport;
+
+        private EventLoops(final int threads, final ThreadFactory threadFactory, final LoopbackTransport transport) {
+            super(threads, threadFactory);
+            this.transport = transport;
+        }
+
+        LoopbackTransport transport() {
+            return transport;
+        }
+
+        @Override
+        public Future<?> shutdownGracefully(final long quietPeriod, final long timeout, final TimeUnit unit) {
+            return GlobalEventExecutor.INSTANCE.newSucceededFuture(null);
+        }
+
+        private Future<?> shutdownShared() {
+            return super.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.connection.PeerException.AbortCause;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.CompByteBufAllocator;
+import net.tomp2p.message.Encoder;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.TomP2PSinglePacketUDP;
+import net.tomp2p.peers.PeerStatusListener;
+import net.tomp2p.storage.AlternativeCompositeByteBuf;
+import net.tomp2p.utils.Pair;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packs the UDP requests that are sent to the same peer within a short time window into one datagram. The requests of
+ * a window share one channel, thus the replies arrive on that channel and are matched to the requests by their message
+ * id. Each request still has its own handler, future and timeout, so a lost or failed reply only affects its request.
+ * The other side unpacks the datagram in {@link TomP2PSinglePacketUDP}, which decodes messages until the datagram is
+ * empty. Only direct requests that expect a reply are coalesced, see
+ * {@link ChannelClientConfiguration#coalesceMicros(int)}.
+ * <p>
+ * Only the requests that are sent with the same {@link ChannelCreator}, e.g. the requests of one operation, share a
+ * datagram. The channel is created by that channel creator, so it uses one of its UDP permits and is closed when the
+ * channel creator shuts down.
+ * <p>
+ * Peers of older versions decode only the first message of a datagram and drop the rest, so the requests behind it
+ * time out. Coalescing is therefore disabled by default and must only be enabled if all peers unpack coalesced
+ * datagrams.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class MessageCoalescer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageCoalescer.class);
+
+    private final EventLoopGroup workerGroup;
+    private final ChannelClientConfiguration channelClientConfiguration;
+    private final List<PeerStatusListener> peerStatusListeners;
+    private final TomP2PSinglePacketUDP decoder;
+    private final CompByteBufAllocator alloc = new CompByteBufAllocator();
+
+    // the requests that wait for the time window to pass, per channel creator and recipient
+    private final Map<Pair<ChannelCreator, InetSocketAddress>, List<Request>> batches =
+            new HashMap<Pair<ChannelCreator, InetSocketAddress>, List<Request>>();
+
+    /**
+     * @param workerGroup
+     *            The event loops for the channels and the time windows
+     * @param channelClientConfiguration
+     *            The configuration with the time window, the transport and the signature factory
+     * @param peerStatusListeners
+     *            The listeners that get notified when a request times out
+     */
+    public MessageCoalescer(final EventLoopGroup workerGroup,
+            final ChannelClientConfiguration channelClientConfiguration,
+            final List<PeerStatusListener> peerStatusListeners) {
+        this.workerGroup = workerGroup;
+        this.channelClientConfiguration = channelClientConfiguration;
+        this.peerStatusListeners = peerStatusListeners;
+        this.decoder = new TomP2PSinglePacketUDP(channelClientConfiguration.signatureFactory());
+    }
+
+    /**
+     * Queues a request. The first request for a recipient and channel creator opens the time window, at the end of the
+     * window all queued requests for this recipient and channel creator are sent.
+     *
+     * @param handler
+     *            The handler to deal with the reply message
+     * @param futureResponse
+     *            The future to set the response
+     * @param message
+     *            The message to send
+     * @param channelCreator
+     *            The channel creator of the caller, which creates the channel for the time window
+     * @param idleUDPSeconds
+     *            The time to wait for the reply until we fail
+     * @param outbound
+     *            The metrics to count a timeout, or null
+     */
+    public void send(final SimpleChannelInboundHandler<Message> handler, final FutureResponse futureResponse,
+            final Message message, final ChannelCreator channelCreator, final int idleUDPSeconds,
+            final Metrics.Outbound outbound) {
+        final Pair<ChannelCreator, InetSocketAddress> key = new Pair<ChannelCreator, InetSocketAddress>(
+                channelCreator, message.recipient().createSocketUDP());
+        final Request request = new Request(handler, futureResponse, message, idleUDPSeconds, outbound);
+        synchronized (batches) {
+            List<Request> batch = batches.get(key);
+            if (batch != null) {
+                batch.add(request);
+                return;
+            }
+            batch = new ArrayList<Request>();
+            batch.add(request);
+            batches.put(key, batch);
+        }
+        try {
+            workerGroup.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush(key);
+                }
+            }, channelClientConfiguration.coalesceMicros(), TimeUnit.MICROSECONDS);
+        } catch (RejectedExecutionException e) {
+            for (Request queued : take(key)) {
+                queued.futureResponse.failed("Cannot send the request, we are shutting down");
+            }
+        }
+    }
+
+    private List<Request> take(final Pair<ChannelCreator, InetSocketAddress> key) {
+        synchronized (batches) {
+            return batches.remove(key);
+        }
+    }
+
+    /**
+     * Creates the channel for the requests of a time window with the channel creator of the caller and sends them.
+     *
+     * @param key
+     *            The channel creator and the recipient of the requests
+     */
+    private void flush(final Pair<ChannelCreator, InetSocketAddress> key) {
+        final InetSocketAddress recipient = key.element1();
+        final List<Request> batch = take(key);
+        final BatchHandler batchHandler = new BatchHandler();
+        final Map<String, Pair<EventExecutorGroup, ChannelHandler>> handlers =
+                new LinkedHashMap<String, Pair<EventExecutorGroup, ChannelHandler>>(4);
+        handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, decoder));
+        handlers.put("guard", new Pair<EventExecutorGroup, ChannelHandler>(null, batchHandler.guard));
+        // not named "handler", the batch handler relies on being called from the event loop of the channel
+        handlers.put("batch", new Pair<EventExecutorGroup, ChannelHandler>(null, batchHandler));
+        final ChannelFuture channelFuture;
+        try {
+            channelFuture = key.element0().createUDP(false, handlers, batch.get(0).futureResponse);
+        } catch (RuntimeException e) {
+            LOG.warn("Cannot create the channel for the coalesced requests", e);
+            for (Request request : batch) {
+                request.futureResponse.failed("Cannot create the channel", e);
+            }
+            return;
+        }
+        if (channelFuture == null) {
+            for (Request request : batch) {
+                request.futureResponse.failed("Channel creation failed, the channel creator is shut down");
+            }
+            return;
+        }
+        channelFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    batchHandler.send(future.channel(), recipient, batch);
+                } else {
+                    LOG.debug("Channel creation failed", future.cause());
+                    for (Request request : batch) {
+                        request.futureResponse.failed("Channel creation failed " + future.channel() + "/"
+                                + future.cause());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Encodes a message into its own buffer, as the signature covers the bytes of one message only.
+     */
+    private ByteBuf encode(final Encoder encoder, final Message message) throws Exception {
+        final AlternativeCompositeByteBuf buf = alloc.compBuffer();
+        try {
+            encoder.write(buf, message);
+            message.done(true);
+            return buf;
+        } catch (Exception e) {
+            buf.release();
+            throw e;
+        } finally {
+            encoder.reset();
+        }
+    }
+
+    /**
+     * A request that waits for its time window or for its reply.
+     */
+    private static class Request {
+        private final SimpleChannelInboundHandler<Message> handler;
+        private final FutureResponse futureResponse;
+        private final Message message;
+        private final int idleUDPSeconds;
+        private final Metrics.Outbound outbound;
+        private ScheduledFuture<?> timeout;
+
+        private Request(final SimpleChannelInboundHandler<Message> handler, final FutureResponse futureResponse,
+                final Message message, final int idleUDPSeconds, final Metrics.Outbound outbound) {
+            this.handler = handler;
+            this.futureResponse = futureResponse;
+            this.message = message;
+            this.idleUDPSeconds = idleUDPSeconds;
+            this.outbound = outbound;
+        }
+    }
+
+    /**
+     * Sends the requests of one time window and hands each reply to the handler of its request. All methods are
+     * called from the event loop of the channel.
+     */
+    private class BatchHandler extends SimpleChannelInboundHandler<Message> {
+
+        private final Map<Integer, Request> pending = new HashMap<Integer, Request>();
+        private Request current = null;
+
+        /**
+         * The handler of a request closes the channel once it got its reply. This guard sets the response of that
+         * request instead and closes the channel only if no other request waits for a reply.
+         */
+        private final ChannelOutboundHandlerAdapter guard = new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void close(final ChannelHandlerContext ctx, final ChannelPromise promise) throws Exception {
+                final Request request = current;
+                if (request != null) {
+                    current = null;
+                    done(request);
+                    request.futureResponse.responseNow();
+                    if (!pending.isEmpty()) {
+                        promise.setSuccess();
+                        return;
+                    }
+                }
+                ctx.close(promise);
+            }
+        };
+
+        private void send(final Channel channel, final InetSocketAddress recipient, final List<Request> batch) {
+            final Encoder encoder = new Encoder(channelClientConfiguration.signatureFactory());
+            ByteBuf datagram = null;
+            List<Request> requests = null;
+            for (final Request request : batch) {
+                // may have been canceled in the meantime
+                if (request.futureResponse.isCompleted()) {
+                    continue;
+                }
+                final ByteBuf buf;
+                try {
+                    buf = encode(encoder, request.message);
+                } catch (Exception e) {
+                    LOG.warn("Cannot encode the request {}", request.message, e);
+                    request.futureResponse.failed("Cannot encode the request", e);
+                    continue;
+                }
+                if (datagram != null && datagram.readableBytes() + buf.readableBytes() > ConnectionBean.UDP_LIMIT) {
+                    write(channel, datagram, recipient, requests);
+                    datagram = null;
+                }
+                if (datagram == null) {
+                    datagram = channel.alloc().buffer(ConnectionBean.UDP_LIMIT);
+                    requests = new ArrayList<Request>();
+                }
+                datagram.writeBytes(buf);
+                buf.release();
+                requests.add(request);
+                pending.put(request.message.messageId(), request);
+                request.timeout = channel.eventLoop().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timeout(channel, request);
+                    }
+                }, request.idleUDPSeconds, TimeUnit.SECONDS);
+            }
+            if (datagram != null) {
+                write(channel, datagram, recipient, requests);
+            }
+            channel.flush();
+            closeIfDone(channel);
+        }
+
+        private void write(final Channel channel, final ByteBuf datagram, final InetSocketAddress recipient,
+                final List<Request> requests) {
+            final InetSocketAddress sender = requests.get(0).message.sender().createSocketUDP();
+            LOG.debug("Send {} coalesced UDP messages to {}", requests.size(), recipient);
+            channel.write(new DatagramPacket(datagram, recipient, sender)).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(final ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        LOG.warn("Failed to write the coalesced requests {}", requests, future.cause());
+                        for (Request request : requests) {
+                            if (done(request)) {
+                                request.futureResponse.failed("Failed to write the request", future.cause());
+                            }
+                        }
+                        closeIfDone(future.channel());
+                    }
+                }
+            });
+        }
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final Message responseMessage)
+                throws Exception {
+            if (responseMessage.isRequest()) {
+                LOG.debug("Ignore request on a coalescing channel {}", responseMessage);
+                return;
+            }
+            final Request request = pending.get(responseMessage.messageId());
+            if (request == null) {
+                LOG.debug("No request waits for the reply {}", responseMessage);
+                return;
+            }
+            current = request;
+            try {
+                request.handler.channelRead(ctx, responseMessage);
+            } finally {
+                current = null;
+            }
+            // the handler may have set the response without closing the channel
+            if (request.futureResponse.isCompleted() && done(request)) {
+                closeIfDone(ctx.channel());
+            }
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+            // we do not know which request the broken reply belongs to, its timeout will fail it
+            LOG.warn("Error in a coalescing channel", cause);
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+            for (Request request : new ArrayList<Request>(pending.values())) {
+                done(request);
+                request.futureResponse.failed("Channel closed " + ctx.channel());
+            }
+            ctx.fireChannelInactive();
+        }
+
+        private void timeout(final Channel channel, final Request request) {
+            if (!done(request)) {
+                return;
+            }
+            LOG.warn("timeout for the coalesced request {}", request.message);
+            if (request.outbound != null) {
+                request.outbound.timeout();
+            }
+            request.futureResponse.failed("channel is idle");
+            if (peerStatusListeners != null) {
+                synchronized (peerStatusListeners) {
+                    for (PeerStatusListener peerStatusListener : peerStatusListeners) {
+                        peerStatusListener.peerFailed(request.message.recipient(), new PeerException(
+                                AbortCause.TIMEOUT, "timeout!"));
+                    }
+                }
+            }
+            closeIfDone(channel);
+        }
+
+        /**
+         * @return True if the request was still waiting for its reply
+         */
+        private boolean done(final Request request) {
+            if (pending.remove(request.message.messageId()) == null) {
+                return false;
+            }
+            if (request.timeout != null) {
+                request.timeout.cancel(false);
+            }
+            return true;
+        }
+
+        private void closeIfDone(final Channel channel) {
+            if (pending.isEmpty()) {
+                channel.close();
+            }
+        }
+    }
+}
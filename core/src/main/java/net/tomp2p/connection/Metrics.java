@@ -0,0 +1,271 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.tomp2p.message.Message;
+import net.tomp2p.rpc.RPC;
+import net.tomp2p.utils.Histogram;
+
+/**
+ * The metrics of a master peer and its slaves, since they share the dispatcher, the sender, the reservation and the
+ * channel server. The {@link Dispatcher} counts the incoming requests per command, the time until the handler
+ * responded and the response types. The {@link Sender} records the round trip time per command and transport, the
+ * timeouts and all failures. The {@link Reservation} records how long a channel creator had to wait for its
+ * permits and the {@link ChannelServer} adds the open channels as gauges. All counters are lock-free, the per command
+ * metrics are created the first time a command is seen. The values are published with a {@link MetricsReporter}.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class Metrics {
+
+    private static final int COMMANDS = 256;
+
+    private final AtomicReferenceArray<Inbound> inbound = new AtomicReferenceArray<Inbound>(COMMANDS);
+    private final AtomicReferenceArray<Outbound> outboundUDP = new AtomicReferenceArray<Outbound>(COMMANDS);
+    private final AtomicReferenceArray<Outbound> outboundTCP = new AtomicReferenceArray<Outbound>(COMMANDS);
+    private final Histogram reservationWait = new Histogram();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    /**
+     * A value that is read when the metrics are reported, such as the number of open channels.
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    /**
+     * @param command
+     *            The command of the request
+     * @return The metrics of the incoming requests with this command
+     */
+    public Inbound inbound(final int command) {
+        final int index = command & 0xff;
+        Inbound metrics = inbound.get(index);
+        if (metrics == null) {
+            inbound.compareAndSet(index, null, new Inbound());
+            metrics = inbound.get(index);
+        }
+        return metrics;
+    }
+
+    /**
+     * @param command
+     *            The command of the request
+     * @param udp
+     *            True if the request was sent with UDP
+     * @return The metrics of the outgoing requests with this command and transport
+     */
+    public Outbound outbound(final int command, final boolean udp) {
+        final AtomicReferenceArray<Outbound> array = udp ? outboundUDP : outboundTCP;
+        final int index = command & 0xff;
+        Outbound metrics = array.get(index);
+        if (metrics == null) {
+            array.compareAndSet(index, null, new Outbound());
+            metrics = array.get(index);
+        }
+        return metrics;
+    }
+
+    /**
+     * @param nanos
+     *            The time a channel creator waited for its permits
+     */
+    public void reservationWait(final long nanos) {
+        reservationWait.record(nanos);
+    }
+
+    public Histogram reservationWait() {
+        return reservationWait;
+    }
+
+    /**
+     * @param name
+     *            The name of the gauge, an existing gauge with this name is replaced
+     * @param gauge
+     *            The gauge to read when reporting
+     * @return This class
+     */
+    public Metrics gauge(final String name, final Gauge gauge) {
+        gauges.put(name, gauge);
+        return this;
+    }
+
+    /**
+     * Reads all metrics into a flat map. The histograms are reported with their count, mean, 50th, 99th percentile
+     * and maximum in microseconds.
+     *
+     * @return The metric names mapped to their values, sorted by name
+     */
+    public SortedMap<String, Long> values() {
+        final SortedMap<String, Long> values = new TreeMap<String, Long>();
+        for (int i = 0; i < COMMANDS; i++) {
+            final Inbound in = inbound.get(i);
+            if (in != null) {
+                final String prefix = "in." + commandName(i);
+                values.put(prefix + ".count", in.requests.get());
+                put(values, prefix + ".handler", in.handlerTime);
+                final Message.Type[] types = Message.Type.values();
+                for (int j = 0; j < types.length; j++) {
+                    final long count = in.responses.get(j);
+                    if (count > 0) {
+                        values.put(prefix + ".response." + types[j], count);
+                    }
+                }
+            }
+            put(values, "out.udp." + commandName(i), outboundUDP.get(i));
+            put(values, "out.tcp." + commandName(i), outboundTCP.get(i));
+        }
+        put(values, "reservation.wait", reservationWait);
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().value());
+        }
+        return values;
+    }
+
+    private static void put(final Map<String, Long> values, final String prefix, final Outbound out) {
+        if (out == null) {
+            return;
+        }
+        values.put(prefix + ".count", out.requests.get());
+        values.put(prefix + ".timeouts", out.timeouts.get());
+        values.put(prefix + ".failures", out.failures.get());
+        put(values, prefix + ".rtt", out.roundTripTime);
+    }
+
+    private static void put(final Map<String, Long> values, final String prefix, final Histogram histogram) {
+        final Histogram.Snapshot snapshot = histogram.snapshot();
+        values.put(prefix + ".count", snapshot.count());
+        values.put(prefix + ".mean.us", snapshot.mean() / 1000);
+        values.put(prefix + ".p50.us", snapshot.percentile(50) / 1000);
+        values.put(prefix + ".p99.us", snapshot.percentile(99) / 1000);
+        values.put(prefix + ".max.us", snapshot.max() / 1000);
+    }
+
+    private static String commandName(final int command) {
+        final RPC.Commands[] commands = RPC.Commands.values();
+        return command < commands.length ? commands[command].name() : "CMD" + command;
+    }
+
+    /**
+     * The metrics of the incoming requests of one command.
+     */
+    public static final class Inbound {
+        private final AtomicLong requests = new AtomicLong();
+        private final Histogram handlerTime = new Histogram();
+        private final AtomicLongArray responses = new AtomicLongArray(Message.Type.values().length);
+
+        /**
+         * Counts an incoming request.
+         */
+        public void request() {
+            requests.incrementAndGet();
+        }
+
+        /**
+         * @param type
+         *            The type of the response, or null if no response was sent
+         * @param nanos
+         *            The time from receiving the request until the handler responded
+         */
+        public void response(final Message.Type type, final long nanos) {
+            handlerTime.record(nanos);
+            if (type != null) {
+                responses.incrementAndGet(type.ordinal());
+            }
+        }
+
+        public long requests() {
+            return requests.get();
+        }
+
+        public Histogram handlerTime() {
+            return handlerTime;
+        }
+
+        /**
+         * @param type
+         *            The response type
+         * @return The number of responses with this type
+         */
+        public long responses(final Message.Type type) {
+            return responses.get(type.ordinal());
+        }
+    }
+
+    /**
+     * The metrics of the outgoing requests of one command and transport.
+     */
+    public static final class Outbound {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final Histogram roundTripTime = new Histogram();
+
+        /**
+         * Counts an outgoing request.
+         */
+        public void request() {
+            requests.incrementAndGet();
+        }
+
+        /**
+         * @param nanos
+         *            The time from sending the request until the reply arrived
+         */
+        public void response(final long nanos) {
+            roundTripTime.record(nanos);
+        }
+
+        /**
+         * Counts a request that was not answered in time.
+         */
+        public void timeout() {
+            timeouts.incrementAndGet();
+        }
+
+        /**
+         * Counts a failed request, timeouts included.
+         */
+        public void failure() {
+            failures.incrementAndGet();
+        }
+
+        public long requests() {
+            return requests.get();
+        }
+
+        public long timeouts() {
+            return timeouts.get();
+        }
+
+        public long failures() {
+            return failures.get();
+        }
+
+        public Histogram roundTripTime() {
+            return roundTripTime;
+        }
+    }
+}
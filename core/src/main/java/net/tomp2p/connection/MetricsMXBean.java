@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import java.util.Map;
+
+/**
+ * The management interface the {@link JmxMetricsReporter} registers for each peer.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return The values of {@link Metrics#values()}
+     */
+    Map<String, Long> getValues();
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+/**
+ * Publishes the {@link Metrics} of a peer. The reporter is set with
+ * {@link net.tomp2p.p2p.PeerBuilder#metricsReporter(MetricsReporter)}, started when the master peer is created and
+ * stopped when it shuts down. The default is the {@link JmxMetricsReporter}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface MetricsReporter {
+
+    /**
+     * @param name
+     *            A name that identifies the peer in this JVM
+     * @param metrics
+     *            The metrics to publish
+     */
+    void start(String name, Metrics metrics);
+
+    /**
+     * Stops publishing the metrics.
+     */
+    void stop();
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Netty native epoll transport for Linux. It creates less garbage than NIO, has a lower latency and supports
+ * SO_REUSEPORT, so that several UDP sockets can receive on the same port. The native transport is an optional
+ * dependency (netty-transport-native-epoll with the same version as Netty), thus the classes are loaded with
+ * reflection. If the classes or the native library are missing, or if we are not on Linux, this transport falls back
+ * to NIO.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class NativeTransport extends NioTransport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NativeTransport.class);
+
+    private static final String PACKAGE = "io.netty.channel.epoll.";
+
+    private static final Throwable UNAVAILABILITY_CAUSE;
+    private static final Class<? extends EventLoopGroup> EVENT_LOOP_GROUP;
+    private static final Class<? extends DatagramChannel> DATAGRAM_CHANNEL;
+    private static final Class<? extends SocketChannel> SOCKET_CHANNEL;
+    private static final Class<? extends ServerSocketChannel> SERVER_SOCKET_CHANNEL;
+    private static final ChannelOption<Boolean> REUSE_PORT;
+
+    static {
+        Throwable cause = null;
+        Class<? extends EventLoopGroup> eventLoopGroup = null;
+        Class<? extends DatagramChannel> datagramChannel = null;
+        Class<? extends SocketChannel> socketChannel = null;
+        Class<? extends ServerSocketChannel> serverSocketChannel = null;
+        ChannelOption<Boolean> reusePort = null;
+        try {
+            if (!System.getProperty("os.name", "").toLowerCase().startsWith("linux")) {
+                throw new UnsupportedOperationException("epoll is only available on Linux");
+            }
+            // loading this class loads the native library
+            Class.forName(PACKAGE + "Native", true, NativeTransport.class.getClassLoader());
+            eventLoopGroup = load("EpollEventLoopGroup").asSubclass(EventLoopGroup.class);
+            datagramChannel = load("EpollDatagramChannel").asSubclass(DatagramChannel.class);
+            socketChannel = load("EpollSocketChannel").asSubclass(SocketChannel.class);
+            serverSocketChannel = load("EpollServerSocketChannel").asSubclass(ServerSocketChannel.class);
+            reusePort = reusePort(load("EpollChannelOption"));
+        } catch (Throwable t) {
+            cause = t;
+        }
+        UNAVAILABILITY_CAUSE = cause;
+        EVENT_LOOP_GROUP = eventLoopGroup;
+        DATAGRAM_CHANNEL = datagramChannel;
+        SOCKET_CHANNEL = socketChannel;
+        SERVER_SOCKET_CHANNEL = serverSocketChannel;
+        REUSE_PORT = reusePort;
+    }
+
+    /**
+     * Creates the native transport, or a NIO transport if the native transport is not available.
+     */
+    public NativeTransport() {
+        if (!isAvailable()) {
+            LOG.warn("native transport not available, falling back to NIO: {}", UNAVAILABILITY_CAUSE.toString());
+        }
+    }
+
+    /**
+     * @return True if the native epoll transport can be used on this system
+     */
+    public static boolean isAvailable() {
+        return UNAVAILABILITY_CAUSE == null;
+    }
+
+    /**
+     * @return The reason why the native transport cannot be used, or null if it is available
+     */
+    public static Throwable unavailabilityCause() {
+        return UNAVAILABILITY_CAUSE;
+    }
+
+    @Override
+    public EventLoopGroup eventLoopGroup(final int threads, final ThreadFactory threadFactory) {
+        if (!isAvailable()) {
+            return super.eventLoopGroup(threads, threadFactory);
+        }
+        try {
+            return EVENT_LOOP_GROUP.getConstructor(int.class, ThreadFactory.class).newInstance(threads,
+                    threadFactory);
+        } catch (Exception e) {
+            throw new IllegalStateException("cannot create the epoll event loop group", e);
+        }
+    }
+
+    @Override
+    public Class<? extends DatagramChannel> datagramChannel() {
+        return isAvailable() ? DATAGRAM_CHANNEL : super.datagramChannel();
+    }
+
+    @Override
+    public Class<? extends SocketChannel> socketChannel() {
+        return isAvailable() ? SOCKET_CHANNEL : super.socketChannel();
+    }
+
+    @Override
+    public Class<? extends ServerSocketChannel> serverSocketChannel() {
+        return isAvailable() ? SERVER_SOCKET_CHANNEL : super.serverSocketChannel();
+    }
+
+    @Override
+    public ChannelOption<Boolean> reusePort() {
+        return isAvailable() ? REUSE_PORT : super.reusePort();
+    }
+
+    @Override
+    public String toString() {
+        return isAvailable() ? "epoll" : super.toString();
+    }
+
+    private static Class<?> load(final String name) throws ClassNotFoundException {
+        return Class.forName(PACKAGE + name, true, NativeTransport.class.getClassLoader());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ChannelOption<Boolean> reusePort(final Class<?> epollChannelOption) {
+        try {
+            return (ChannelOption<Boolean>) epollChannelOption.getField("SO_REUSEPORT").get(null);
+        } catch (Exception e) {
+            // older versions of the native transport
+            return null;
+        }
+    }
+}
@@ -26,6 +26,7 @@ import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.rpc.BloomfilterFactory;
 import net.tomp2p.storage.DigestStorage;
 import net.tomp2p.storage.DigestTracker;
+import net.tomp2p.utils.Serializer;
 
 /**
  * A bean that holds non-sharable (unique for each peer) configuration settings for the peer. The sharable
@@ -42,7 +43,9 @@ public class PeerBean {
     private BloomfilterFactory bloomfilterFactory;
     private MaintenanceTask maintenanceTask;
     private DigestStorage digestStorage;
+    private DigestStorage cachedDigestStorage;
     private DigestTracker digestTracker;
+    private Serializer serializer;
     
 
     /**
@@ -167,6 +170,24 @@ public class PeerBean {
     public DigestStorage digestStorage() {
         return digestStorage;
     }
+
+    /**
+     * @param cachedDigestStorage
+     *            The digest storage that also reports cached copies. It is only asked for get routing, all other
+     *            routing uses {@link #digestStorage()}.
+     * @return This class
+     */
+    public PeerBean cachedDigestStorage(DigestStorage cachedDigestStorage) {
+        this.cachedDigestStorage = cachedDigestStorage;
+        return this;
+    }
+
+    /**
+     * @return The digest storage that also reports cached copies, or null if this peer does not cache
+     */
+    public DigestStorage cachedDigestStorage() {
+        return cachedDigestStorage;
+    }
     
     public PeerBean digestTracker(DigestTracker digestTracker) {
         this.digestTracker = digestTracker;
@@ -176,4 +197,16 @@ public class PeerBean {
     public DigestTracker digestTracker() {
         return digestTracker;
     }
+    
+    public PeerBean serializer(Serializer serializer) {
+        this.serializer = serializer;
+        return this;
+    }
+    
+    /**
+     * @return The serializer for the objects stored in data, set by the peer builder
+     */
+    public Serializer serializer() {
+        return serializer;
+    }
 }
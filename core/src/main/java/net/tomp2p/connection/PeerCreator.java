@@ -17,8 +17,9 @@
 package net.tomp2p.connection;
 
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
 import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 
@@ -60,6 +61,9 @@ public class PeerCreator {
 
 	private final EventLoopGroup bossGroup;
 
+	// may be null if the UDP requests are handled on the worker threads
+	private final EventExecutorGroup udpDispatcherGroup;
+
 	private final boolean master;
 
 
@@ -95,10 +99,20 @@ public class PeerCreator {
 		LOG.info("Visible address to other peers: {}", self);
 		
 		//start server
-		workerGroup = new NioEventLoopGroup(0, new DefaultThreadFactory(ConnectionBean.THREAD_NAME
+		final Transport transport = channelServerConficuration.transport();
+		LOG.debug("Using the {} transport", transport);
+		workerGroup = transport.eventLoopGroup(0, new DefaultThreadFactory(ConnectionBean.THREAD_NAME
 		        + "worker-client/server - "));
-		bossGroup = new NioEventLoopGroup(2, new DefaultThreadFactory(ConnectionBean.THREAD_NAME + "boss - "));
-		Dispatcher dispatcher = new Dispatcher(p2pId, peerBean, channelServerConficuration.heartBeatMillis());
+		bossGroup = transport.eventLoopGroup(2, new DefaultThreadFactory(ConnectionBean.THREAD_NAME + "boss - "));
+		if (channelServerConficuration.udpDispatcherThreads() > 0) {
+			udpDispatcherGroup = new DefaultEventExecutorGroup(channelServerConficuration.udpDispatcherThreads(),
+			        new DefaultThreadFactory(ConnectionBean.THREAD_NAME + "dispatcher-udp - "));
+		} else {
+			udpDispatcherGroup = null;
+		}
+		final Metrics metrics = new Metrics();
+		Dispatcher dispatcher = new Dispatcher(p2pId, peerBean, channelServerConficuration.heartBeatMillis(), metrics,
+		        udpDispatcherGroup, channelServerConficuration.admissionControl());
 		final ChannelServer channelServer = new ChannelServer(bossGroup, workerGroup, channelServerConficuration,
 		        dispatcher, peerBean.peerStatusListeners());
 		if(!channelServer.startup()) {
@@ -107,10 +121,15 @@ public class PeerCreator {
 		}
 		
 		//connection bean
-		Sender sender = new Sender(peerId, peerBean.peerStatusListeners(), channelClientConfiguration, dispatcher);
-		Reservation reservation = new Reservation(workerGroup, channelClientConfiguration);
+		Sender sender = new Sender(peerId, peerBean.peerStatusListeners(), channelClientConfiguration, dispatcher,
+		        metrics);
+		if (channelClientConfiguration.coalesceMicros() > 0) {
+			sender.messageCoalescer(new MessageCoalescer(workerGroup, channelClientConfiguration,
+			        peerBean.peerStatusListeners()));
+		}
+		Reservation reservation = new Reservation(workerGroup, channelClientConfiguration, metrics);
 		connectionBean = new ConnectionBean(p2pId, dispatcher, sender, channelServer, reservation,
-		        channelClientConfiguration, timer);
+		        channelClientConfiguration, timer, metrics);
 		this.master = true;
 	}
 
@@ -128,6 +147,7 @@ public class PeerCreator {
 		parent.childConnections.add(this);
 		this.workerGroup = parent.workerGroup;
 		this.bossGroup = parent.bossGroup;
+		this.udpDispatcherGroup = parent.udpDispatcherGroup;
 		this.connectionBean = parent.connectionBean;
 		this.peerBean = new PeerBean(keyPair);
 		PeerAddress self = parent.peerBean().serverPeerAddress().changePeerId(peerId);
@@ -180,6 +200,9 @@ public class PeerCreator {
 	
 	@SuppressWarnings({ "unchecked", "rawtypes" })
     private void shutdownNetty() {
+		if (udpDispatcherGroup != null) {
+			udpDispatcherGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+		}
 		workerGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).addListener(new GenericFutureListener() {
 			@Override
 			public void operationComplete(final Future future) throws Exception {
@@ -256,7 +256,7 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
         }
 
         // We got a good answer, let's mark the sender as alive
-		if (responseMessage.isOk() || responseMessage.isNotOk()) {
+		if (responseMessage.isOk() || responseMessage.isNotOk() || responseMessage.isOverload()) {
 			synchronized (peerBean.peerStatusListeners()) {
 				for (PeerStatusListener peerStatusListener : peerBean.peerStatusListeners()) {
 					if(responseMessage.sender().isRelayed() && !responseMessage.peerSocketAddresses().isEmpty()) {
@@ -55,6 +55,7 @@ public class Reservation {
 	private final Semaphore semaphorePermanentTCP;
 
 	private final ChannelClientConfiguration channelClientConfiguration;
+	private final Metrics metrics;
 
 	private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
 	// single thread
@@ -85,7 +86,24 @@ public class Reservation {
 	 *            permanent TCP connections
 	 */
 	public Reservation(final EventLoopGroup workerGroup, final ChannelClientConfiguration channelClientConfiguration) {
+		this(workerGroup, channelClientConfiguration, new Metrics());
+	}
 
+	/**
+	 * Creates a new reservation class with the 3 permits.
+	 * 
+	 * @param workerGroup
+	 *            The worker group for both UDP and TCP channels. This will not
+	 *            be shutdown in this class, you need to shutdown it outside.
+	 * @param channelClientConfiguration
+	 *            Sets maxPermitsUDP, maxPermitsTCP and maxPermitsPermanentTCP
+	 * @param metrics
+	 *            The metrics to record how long a reservation waited for its
+	 *            permits
+	 */
+	public Reservation(final EventLoopGroup workerGroup, final ChannelClientConfiguration channelClientConfiguration,
+	        final Metrics metrics) {
+		this.metrics = metrics;
 		this.workerGroup = workerGroup;
 		this.maxPermitsUDP = channelClientConfiguration.maxPermitsUDP();
 		this.maxPermitsTCP = channelClientConfiguration.maxPermitsTCP();
@@ -333,6 +351,7 @@ public class Reservation {
 		private final FutureDone<Void> futureChannelCreationShutdown;
 		private final int permitsUDP;
 		private final int permitsTCP;
+		private final long start = System.nanoTime();
 
 		/**
 		 * Creates a reservation that returns a {@link ChannelCreator} in a
@@ -387,6 +406,7 @@ public class Reservation {
 			} finally {
 				read.unlock();
 			}
+			metrics.reservationWait(System.nanoTime() - start);
 			futureChannelCreator.reserved(channelCreator);
 		}
 
@@ -408,6 +428,7 @@ public class Reservation {
 		private final FutureChannelCreator futureChannelCreator;
 		private final FutureDone<Void> futureChannelCreationShutdown;
 		private final int permitsPermanentTCP;
+		private final long start = System.nanoTime();
 
 		/**
 		 * Creates a reservation that returns a {@link ChannelCreator} in a
@@ -452,6 +473,7 @@ public class Reservation {
 			} finally {
 				read.unlock();
 			}
+			metrics.reservationWait(System.nanoTime() - start);
 			futureChannelCreator.reserved(channelCreator);
 		}
 
@@ -69,8 +69,10 @@ public class Sender {
 	private final ChannelClientConfiguration channelClientConfiguration;
 	private final Dispatcher dispatcher;
 	private final Random random;
+	private final Metrics metrics;
 
 	private PingBuilderFactory pingBuilderFactory;
+	private MessageCoalescer messageCoalescer;
 
 	/**
 	 * Creates a new sender with the listeners for offline peers.
@@ -83,10 +85,27 @@ public class Sender {
 	 */
 	public Sender(final Number160 peerId, final List<PeerStatusListener> peerStatusListeners,
 	        final ChannelClientConfiguration channelClientConfiguration, Dispatcher dispatcher) {
+		this(peerId, peerStatusListeners, channelClientConfiguration, dispatcher, dispatcher.metrics());
+	}
+
+	/**
+	 * Creates a new sender with the listeners for offline peers.
+	 * 
+	 * @param peerStatusListeners
+	 *            The listener for offline peers
+	 * @param channelClientConfiguration
+	 *            The configuration used to get the signature factory
+	 * @param dispatcher
+	 * @param metrics
+	 *            The metrics to record the round trip times, timeouts and failures
+	 */
+	public Sender(final Number160 peerId, final List<PeerStatusListener> peerStatusListeners,
+	        final ChannelClientConfiguration channelClientConfiguration, Dispatcher dispatcher, final Metrics metrics) {
 		this.peerStatusListeners = peerStatusListeners;
 		this.channelClientConfiguration = channelClientConfiguration;
 		this.dispatcher = dispatcher;
 		this.random = new Random(peerId.hashCode());
+		this.metrics = metrics;
 	}
 
 	public ChannelClientConfiguration channelClientConfiguration() {
@@ -102,6 +121,23 @@ public class Sender {
 		return this;
 	}
 
+	/**
+	 * @return The coalescer that packs UDP requests to the same peer into one datagram, or null if disabled
+	 */
+	public MessageCoalescer messageCoalescer() {
+		return messageCoalescer;
+	}
+
+	/**
+	 * @param messageCoalescer
+	 *            The coalescer that packs UDP requests to the same peer into one datagram, or null to disable
+	 * @return This class
+	 */
+	public Sender messageCoalescer(MessageCoalescer messageCoalescer) {
+		this.messageCoalescer = messageCoalescer;
+		return this;
+	}
+
 	/**
 	 * Send a message via TCP.
 	 * 
@@ -126,6 +162,7 @@ public class Sender {
 			return;
 		}
 		removePeerIfFailed(futureResponse, message);
+		final Metrics.Outbound outbound = recordMetrics(futureResponse, message, false, handler == null);
 		//we need to set the neighbors if we use relays
 		if(message.sender().isRelayed() && !message.sender().peerSocketAddresses().isEmpty()) {
 			message.peerSocketAddresses(message.sender().peerSocketAddresses());
@@ -137,7 +174,8 @@ public class Sender {
 			channelFuture = sendTCPPeerConnection(peerConnection, handler, channelCreator, futureResponse);
 			afterConnect(futureResponse, message, channelFuture, handler == null);
 		} else if (channelCreator != null) {
-			final TimeoutFactory timeoutHandler = createTimeoutHandler(futureResponse, idleTCPSeconds, handler == null);
+			final TimeoutFactory timeoutHandler = createTimeoutHandler(futureResponse, idleTCPSeconds, handler == null,
+			        outbound);
 			InetSocketAddress recipient = null;
 			if (message.recipient().isRelayed()) {
 				handleRelay(handler, futureResponse, message, channelCreator, idleTCPSeconds, connectTimeoutMillis,
@@ -370,6 +408,7 @@ public class Sender {
 			return;
 		}
 		removePeerIfFailed(futureResponse, message);
+		final Metrics.Outbound outbound = recordMetrics(futureResponse, message, true, handler == null);
 
 		if (message.sender().isRelayed()) {
 			message.peerSocketAddresses(message.sender().peerSocketAddresses());
@@ -377,6 +416,12 @@ public class Sender {
 
 		boolean isFireAndForget = handler == null;
 
+		// requests sent directly can share a datagram with other requests to this peer
+		if (messageCoalescer != null && !isFireAndForget && !broadcast && !message.recipient().isRelayed()) {
+			messageCoalescer.send(handler, futureResponse, message, channelCreator, idleUDPSeconds, outbound);
+			return;
+		}
+
 		final Map<String, Pair<EventExecutorGroup, ChannelHandler>> handlers;
 		if (isFireAndForget) {
 			final int nrTCPHandlers = 3; // 2 / 0.75
@@ -384,7 +429,8 @@ public class Sender {
 		} else {
 			final int nrTCPHandlers = 7; // 5 / 0.75
 			handlers = new LinkedHashMap<String, Pair<EventExecutorGroup, ChannelHandler>>(nrTCPHandlers);
-			final TimeoutFactory timeoutHandler = createTimeoutHandler(futureResponse, idleUDPSeconds, isFireAndForget);
+			final TimeoutFactory timeoutHandler = createTimeoutHandler(futureResponse, idleUDPSeconds, isFireAndForget,
+			        outbound);
 			handlers.put("timeout0",
 			        new Pair<EventExecutorGroup, ChannelHandler>(null, timeoutHandler.idleStateHandlerTomP2P()));
 			handlers.put("timeout1", new Pair<EventExecutorGroup, ChannelHandler>(null, timeoutHandler.timeHandler()));
@@ -435,11 +481,14 @@ public class Sender {
 	 *            The timeout
 	 * @param fireAndForget
 	 *            True, if we don't expect a message
+	 * @param outbound
+	 *            The metrics to count a timeout
 	 * @return The timeout creator that will create timeout handlers
 	 */
 	private TimeoutFactory createTimeoutHandler(final FutureResponse futureResponse, final int idleMillis,
-	        final boolean fireAndForget) {
-		return fireAndForget ? null : new TimeoutFactory(futureResponse, idleMillis, peerStatusListeners, "Sender");
+	        final boolean fireAndForget, final Metrics.Outbound outbound) {
+		return fireAndForget ? null : new TimeoutFactory(futureResponse, idleMillis, peerStatusListeners, "Sender",
+		        outbound);
 	}
 
 	/**
@@ -577,11 +626,38 @@ public class Sender {
 		};
 	}
 
+	/**
+	 * Counts the request and records the round trip time once the reply arrived, or the failure.
+	 * 
+	 * @return The metrics of the command and transport
+	 */
+	private Metrics.Outbound recordMetrics(final FutureResponse futureResponse, final Message message, final boolean udp,
+	        final boolean fireAndForget) {
+		final Metrics.Outbound outbound = metrics.outbound(message.command(), udp);
+		outbound.request();
+		if (fireAndForget) {
+			return outbound;
+		}
+		final long start = System.nanoTime();
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				if (future.isSuccess()) {
+					outbound.response(System.nanoTime() - start);
+				} else {
+					outbound.failure();
+				}
+			}
+		});
+		return outbound;
+	}
+
 	private void removePeerIfFailed(final FutureResponse futureResponse, final Message message) {
 		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
 			@Override
 			public void operationComplete(FutureResponse future) throws Exception {
-				if (future.isFailed()) {
+				// an overloaded peer replied, so it is alive
+				if (future.isFailed() && !future.isOverload()) {
 					if (message.recipient().isRelayed()) {
 						// TODO: make the relay go away if failed
 					} else {
@@ -49,6 +49,7 @@ public class TimeoutFactory {
 	private final int timeoutSeconds;
 	private final List<PeerStatusListener> peerStatusListeners;
 	private final String name;
+	private final Metrics.Outbound outbound;
 
 	/**
 	 * @param futureResponse
@@ -60,10 +61,26 @@ public class TimeoutFactory {
 	 */
 	public TimeoutFactory(final FutureResponse futureResponse, final int timeoutSeconds,
 	        final List<PeerStatusListener> peerStatusListeners, final String name) {
+		this(futureResponse, timeoutSeconds, peerStatusListeners, name, null);
+	}
+
+	/**
+	 * @param futureResponse
+	 *            The future that will be called if a timeout occured
+	 * @param timeoutSeconds
+	 *            The time for a timeout
+	 * @param peerStatusListeners
+	 *            The listeners that get notified when a timeout happend
+	 * @param outbound
+	 *            The metrics to count the timeout of the request, or null
+	 */
+	public TimeoutFactory(final FutureResponse futureResponse, final int timeoutSeconds,
+	        final List<PeerStatusListener> peerStatusListeners, final String name, final Metrics.Outbound outbound) {
 		this.futureResponse = futureResponse;
 		this.timeoutSeconds = timeoutSeconds;
 		this.peerStatusListeners = peerStatusListeners;
 		this.name = name;
+		this.outbound = outbound;
 	}
 
 	/**
@@ -77,7 +94,7 @@ public class TimeoutFactory {
 	 * @return Two handlers, one default Netty that will call the second handler
 	 */
 	public ChannelHandler timeHandler() {
-		return new TimeHandler(futureResponse, peerStatusListeners, name);
+		return new TimeHandler(futureResponse, peerStatusListeners, name, outbound);
 	}
 
 	public static void removeTimeout(ChannelHandlerContext ctx) {
@@ -100,6 +117,7 @@ public class TimeoutFactory {
 		private final FutureResponse futureResponse;
 		private final List<PeerStatusListener> peerStatusListeners;
 		private final String name;
+		private final Metrics.Outbound outbound;
 
 		/**
 		 * @param futureResponse
@@ -108,12 +126,15 @@ public class TimeoutFactory {
 		 *            will be set
 		 * @param peerStatusListeners
 		 *            The listeners that get notified when a timeout happend
+		 * @param outbound
+		 *            The metrics to count the timeout, or null
 		 */
 		public TimeHandler(final FutureResponse futureResponse, final List<PeerStatusListener> peerStatusListeners,
-		        final String name) {
+		        final String name, final Metrics.Outbound outbound) {
 			this.futureResponse = futureResponse;
 			this.peerStatusListeners = peerStatusListeners;
 			this.name = name;
+			this.outbound = outbound;
 		}
 
 		@Override
@@ -123,6 +144,9 @@ public class TimeoutFactory {
 				final PeerAddress recipient;
 				if (futureResponse != null) {
 					LOG.warn("Request status is {}", futureResponse.request());
+					if (outbound != null) {
+						outbound.timeout();
+					}
 					ctx.channel().close().addListener(new GenericFutureListener<ChannelFuture>() {
 						@Override
 						public void operationComplete(final ChannelFuture future) throws Exception {
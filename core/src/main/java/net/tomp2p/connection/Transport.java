@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.connection;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The Netty transport that is used for the event loops and the channels of a peer. The {@link PeerCreator} creates
+ * the event loops, the {@link ChannelServer} binds the server channels and the {@link ChannelCreator} creates the
+ * client channels with the classes of this transport. The default is {@link NioTransport}, on Linux the
+ * {@link NativeTransport} can be used.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public interface Transport {
+
+    /**
+     * @param threads
+     *            The number of threads, 0 for the Netty default
+     * @param threadFactory
+     *            The factory for the threads of the event loops
+     * @return A new event loop group that can run the channels of this transport
+     */
+    EventLoopGroup eventLoopGroup(int threads, ThreadFactory threadFactory);
+
+    /**
+     * @return The channel class for UDP
+     */
+    Class<? extends DatagramChannel> datagramChannel();
+
+    /**
+     * @return The channel class for outgoing TCP connections
+     */
+    Class<? extends SocketChannel> socketChannel();
+
+    /**
+     * @return The channel class to accept TCP connections
+     */
+    Class<? extends ServerSocketChannel> serverSocketChannel();
+
+    /**
+     * @return The SO_REUSEPORT option, which lets several sockets bind to the same port, or null if this transport
+     *         does not support it
+     */
+    ChannelOption<Boolean> reusePort();
+}
@@ -206,6 +206,16 @@ public class FutureResponse extends BaseFutureImpl<FutureResponse> {
         }
     }
 
+    /**
+     * @return True if the other peer rejected the request because it is overloaded. Such a peer is alive, the request
+     *         can be sent to another peer
+     */
+    public boolean isOverload() {
+        synchronized (lock) {
+            return responseMessage != null && responseMessage.isOverload();
+        }
+    }
+
     /**
      * The future response always keeps a reference to the request.
      * 
@@ -9,6 +9,12 @@ import net.tomp2p.storage.Data;
 import net.tomp2p.utils.Utils;
 
 public class DataMap {
+    /**
+     * Set in the encoded size if the content hash of each entry follows its key. This is only sent in replies with meta
+     * values to requests with {@link Message#isHashes()}.
+     */
+    public static final int HASHES_FLAG = 0x80000000;
+
     private final Map<Number640, Data> dataMap;
     private final Map<Number160, Data> dataMapConvert;
     private final Number160 locationKey;
@@ -1,6 +1,7 @@
 package net.tomp2p.message;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.util.Attribute;
@@ -70,6 +71,8 @@ public class Decoder {
 	private DataMap dataMap = null;
 	private Data data = null;
 	private Number640 key = null;
+	private boolean dataMapHashes = false;
+	private Number160 dataHash = null;
 
 	private int keyMap640KeysSize = -1;
 	private KeyMap640Keys keyMap640Keys = null;
@@ -86,10 +89,33 @@ public class Decoder {
 
 	private Content lastContent = null;
 
+	// the received bytes of the current message, only if the frame filter asks for them
+	private List<ByteBuf> frame = null;
+	private boolean frameDone = false;
+
 	private final SignatureFactory signatureFactory;
+	private final FrameFilter frameFilter;
+
+	/**
+	 * Decides, based on the header, if the bytes of a message are kept as they were received, so that the message can
+	 * be forwarded without encoding it again.
+	 */
+	public interface FrameFilter {
+		/**
+		 * @param header
+		 *            The message with only the header decoded
+		 * @return True if the received bytes of this message should be attached with {@link Message#frame(ByteBuf)}
+		 */
+		boolean keepFrame(Message header);
+	}
 
 	public Decoder(SignatureFactory signatureFactory) {
+		this(signatureFactory, null);
+	}
+
+	public Decoder(SignatureFactory signatureFactory, FrameFilter frameFilter) {
 		this.signatureFactory = signatureFactory;
+		this.frameFilter = frameFilter;
 	}
 
 	public boolean decode(ChannelHandlerContext ctx, final ByteBuf buf, InetSocketAddress recipient,
@@ -113,6 +139,9 @@ public class Decoder {
 					if (message.isFireAndForget() && message.isUdp()) {
 						TimeoutFactory.removeTimeout(ctx);
 					}
+					if (frameFilter != null && frameFilter.keepFrame(message)) {
+						frame = new ArrayList<ByteBuf>(1);
+					}
 				} else {
 					return false;
 				}
@@ -123,7 +152,11 @@ public class Decoder {
 			final int len = readerAfter - readerBefore;
 			if(len > 0) {
 				verifySignature(buf, readerBefore, len, donePayload);
+				if (frame != null) {
+					keepFrame(buf, readerBefore, len);
+				}
 			}
+			frameDone = donePayload;
 			// see https://github.com/netty/netty/issues/1976
 			buf.discardSomeReadBytes();
 			return donePayload;
@@ -160,6 +193,22 @@ public class Decoder {
 		}
 	}
 
+	/**
+	 * Keeps the bytes that were just decoded, before the buffer discards them. Like {@link DataBuffer}, this takes
+	 * slices of the received buffers and does not copy.
+	 */
+	private void keepFrame(final ByteBuf buf, final int index, final int length) {
+		if (buf instanceof AlternativeCompositeByteBuf) {
+			for (final ByteBuf decom : ((AlternativeCompositeByteBuf) buf).decompose(index, length)) {
+				// this is already a slice
+				frame.add(decom.retain());
+			}
+		} else {
+			frame.add(buf.slice(index, length));
+			buf.retain();
+		}
+	}
+
 	public boolean decodeHeader(final ByteBuf buf, InetSocketAddress recipient, final InetSocketAddress sender) {
 		// we don't have the header yet, we need the full header first
 		if (message == null) {
@@ -326,7 +375,9 @@ public class Decoder {
 					return false;
 				}
 				if (mapsSize == -1) {
-					mapsSize = buf.readInt();
+					final int size = buf.readInt();
+					dataMapHashes = (size & DataMap.HASHES_FLAG) != 0;
+					mapsSize = size & ~DataMap.HASHES_FLAG;
 				}
 				if (dataMap == null) {
 					dataMap = new DataMap(new HashMap<Number640, Data>(2 * mapsSize));
@@ -340,11 +391,13 @@ public class Decoder {
 					}
 					data = null;
 					key = null;
+					dataHash = null;
 				}
 				for (int i = dataMap.size(); i < mapsSize; i++) {
 					if (key == null) {
 						if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE
-								+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
+								+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE
+								+ (dataMapHashes ? Number160.BYTE_ARRAY_SIZE : 0)) {
 							return false;
 						}
 						byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
@@ -357,11 +410,20 @@ public class Decoder {
 						buf.readBytes(me3);
 						Number160 versionKey = new Number160(me3);
 						key = new Number640(locationKey, domainKey, contentKey, versionKey);
+						if (dataMapHashes) {
+							buf.readBytes(me3);
+							dataHash = new Number160(me3);
+						}
 					}
 					data = Data.decodeHeader(buf, signatureFactory);
 					if (data == null) {
 						return false;
 					}
+					// a hash is only used if the payload was left out, otherwise the hash of the payload we
+					// received is computed when needed, as we cannot trust the sender
+					if (dataHash != null && data.length() == 0) {
+						data.hash(dataHash);
+					}
 					dataMap.dataMap().put(key, data);
 
 					if (!data.decodeBuffer(buf)) {
@@ -377,12 +439,14 @@ public class Decoder {
 					}
 					data = null;
 					key = null;
+					dataHash = null;
 				}
 
 				message.setDataMap(dataMap);
 				lastContent = contentTypes.poll();
 				mapsSize = -1;
 				dataMap = null;
+				dataMapHashes = false;
 				break;
 			case MAP_KEY640_KEYS:
 				if (keyMap640KeysSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
@@ -592,21 +656,56 @@ public class Decoder {
 	public Message prepareFinish() {
 		Message ret = message;
 		message.setDone();
+		if (frame != null && frameDone) {
+			message.frame(Unpooled.wrappedBuffer(frame.toArray(new ByteBuf[frame.size()])));
+			frame = null;
+		}
+		clear();
+		return ret;
+	}
+
+	/**
+	 * Discards a partially decoded message, e.g., after a decoding error, so that this decoder can be used for the
+	 * next message.
+	 */
+	public void reset() {
+		clear();
+		lastContent = null;
+	}
+
+	private void clear() {
 		contentTypes.clear();
+		if (frame != null) {
+			// the message was not complete, we cannot forward it as it is
+			for (ByteBuf buf : frame) {
+				buf.release();
+			}
+			frame = null;
+		}
+		frameDone = false;
 		//
 		message = null;
 		neighborSize = -1;
 		neighborSet = null;
+		peerSocketAddressSize = -1;
+		peerSocketAddresses = null;
 		keyCollectionSize = -1;
 		keyCollection = null;
 		mapsSize = -1;
 		dataMap = null;
 		data = null;
+		key = null;
+		dataMapHashes = false;
+		dataHash = null;
 		keyMap640KeysSize = -1;
 		keyMap640Keys = null;
+		keyMapByteSize = -1;
+		keyMapByte = null;
 		bufferSize = -1;
 		buffer = null;
-		return ret;
+		trackerDataSize = -1;
+		trackerData = null;
+		currentTrackerData = null;
 	}
 
 	public Message message() {
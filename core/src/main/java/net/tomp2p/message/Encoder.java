@@ -131,14 +131,19 @@ public class Encoder {
                 break;
             case MAP_KEY640_DATA:
                 DataMap dataMap = message.dataMap(next.number());
-                
-                buf.writeInt(dataMap.size());
+                // meta values leave out the payload, so the requester cannot hash it. Only a requester that asked
+                // for the hashes can decode them, older peers read the flag as a negative size
+                final boolean withHashes = !message.isRequest() && message.isHashes() && dataMap.isConvertMeta();
+                buf.writeInt(withHashes ? dataMap.size() | DataMap.HASHES_FLAG : dataMap.size());
                 if (dataMap.isConvert()) {
                     for (Entry<Number160, Data> entry : dataMap.dataMapConvert().entrySet()) {
                     	buf.writeBytes(dataMap.locationKey().toByteArray());
                         buf.writeBytes(dataMap.domainKey().toByteArray());
                         buf.writeBytes(entry.getKey().toByteArray());
                         buf.writeBytes(dataMap.versionKey().toByteArray());
+                        if (withHashes) {
+                            buf.writeBytes(entry.getValue().hash().toByteArray());
+                        }
                         encodeData(buf, entry.getValue(), dataMap.isConvertMeta(), !message.isRequest());
                     }
                 } else {
@@ -147,6 +152,9 @@ public class Encoder {
                         buf.writeBytes(entry.getKey().domainKey().toByteArray());
                         buf.writeBytes(entry.getKey().contentKey().toByteArray());
                         buf.writeBytes(entry.getKey().versionKey().toByteArray());
+                        if (withHashes) {
+                            buf.writeBytes(entry.getValue().hash().toByteArray());
+                        }
                         encodeData(buf, entry.getValue(), dataMap.isConvertMeta(), !message.isRequest());
                     }
                 }
@@ -15,6 +15,8 @@
  */
 package net.tomp2p.message;
 
+import io.netty.buffer.ByteBuf;
+
 import java.net.InetSocketAddress;
 import java.security.KeyPair;
 import java.security.PrivateKey;
@@ -48,6 +50,12 @@ public class Message {
 
     public static final int CONTENT_TYPE_LENGTH = 8;
 
+    /**
+     * The integer that marks a {@link Type#DENIED} reply as an overload reply. Older peers fail to decode a type they
+     * do not know, so the overload is sent as a denial with this marker. Older peers treat it as a denial.
+     */
+    public static final int OVERLOAD_MARKER = 0x4f564c44;
+
     /**
      * 8 x 4 bit.
      */
@@ -85,6 +93,8 @@ public class Message {
         // REQUEST_1 for TASK is submit new task
         // REQUEST_2 for TASK is status
         // REQUEST_3 for TASK is send back result
+        // A peer that is alive, but too busy to handle the request, replies
+        // with DENIED and the OVERLOAD_MARKER, see overload()
         REQUEST_1, REQUEST_2, REQUEST_3, REQUEST_4, REQUEST_FF_1, REQUEST_FF_2, OK, 
         PARTIALLY_OK, NOT_FOUND, DENIED, UNKNOWN_ID, EXCEPTION, CANCEL, USER1, USER2
     };
@@ -146,6 +156,7 @@ public class Message {
     private transient boolean sign = false;
     private transient boolean content = false;
     private transient boolean verified = false;
+    private transient ByteBuf frame = null;
 
     /**
      * Creates message with a random ID.
@@ -445,7 +456,30 @@ public class Message {
      * @return True if the message arrived, but data was not found or access was denied
      */
     public boolean isNotOk() {
-        return type == Type.NOT_FOUND || type == Type.DENIED;
+        return (type == Type.NOT_FOUND || type == Type.DENIED) && !isOverload();
+    }
+
+    /**
+     * @return True if the message arrived, but the peer was too busy to handle it. The request can be repeated later
+     *         or sent to another peer
+     */
+    public boolean isOverload() {
+        return type == Type.DENIED && integerList != null && !integerList.isEmpty()
+                && integerList.get(0) == OVERLOAD_MARKER;
+    }
+
+    /**
+     * Marks this reply as an overload reply. The reply is sent as {@link Type#DENIED} with {@link #OVERLOAD_MARKER} as
+     * the first integer, so that older peers can decode it.
+     * 
+     * @return This class
+     */
+    public Message overload() {
+        type(Type.DENIED);
+        if (integerList != null && !integerList.isEmpty()) {
+            throw new IllegalStateException("the overload marker must be the first integer of the reply");
+        }
+        return intValue(OVERLOAD_MARKER);
     }
 
     /**
@@ -521,6 +555,51 @@ public class Message {
         return (options & 2) > 0;
     }
 
+    /**
+     * @param hashes
+     *            True if the requester can decode content hashes in the data maps of the reply. Older peers ignore
+     *            this option and never send hashes.
+     * @return This class
+     */
+    public Message hashes(final boolean hashes) {
+        if (hashes) {
+            options |= 4;
+        } else {
+            options &= ~4;
+        }
+        return this;
+    }
+
+    /**
+     * @return True if the requester asked for content hashes in the data maps of the reply
+     */
+    public boolean isHashes() {
+        return (options & 4) > 0;
+    }
+
+    /**
+     * @param cachedDigests
+     *            True if a neighbor request for a digest may be answered with cached copies. This is only set for
+     *            get, as cached copies must never count as direct hits for put, remove, or digest. Older peers ignore
+     *            this option.
+     * @return This class
+     */
+    public Message cachedDigests(final boolean cachedDigests) {
+        if (cachedDigests) {
+            options |= 8;
+        } else {
+            options &= ~8;
+        }
+        return this;
+    }
+
+    /**
+     * @return True if the requester accepts cached copies in the digest of a neighbor request
+     */
+    public boolean isCachedDigests() {
+        return (options & 8) > 0;
+    }
+
     // Header data ends here *********************************** static payload starts now
 
     public Message key(final Number160 key) {
@@ -973,6 +1052,24 @@ public class Message {
     public boolean isUdp() {
         return udp;
     }
+
+    /**
+     * @param frame
+     *            The bytes of this message as they were received, only kept for messages that are forwarded as they
+     *            are. Whoever takes the frame needs to set it to null and release it.
+     * @return This class
+     */
+    public Message frame(final ByteBuf frame) {
+        this.frame = frame;
+        return this;
+    }
+
+    /**
+     * @return The bytes of this message as they were received, or null if they were not kept
+     */
+    public ByteBuf frame() {
+        return frame;
+    }
     
     public Message verified(boolean verified) {
     	this.verified = verified;
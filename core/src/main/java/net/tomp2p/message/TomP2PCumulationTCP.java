@@ -23,7 +23,11 @@ public class TomP2PCumulationTCP extends ChannelInboundHandlerAdapter {
 	private int lastId = 0;
 
 	public TomP2PCumulationTCP(final SignatureFactory signatureFactory) {
-		decoder = new Decoder(signatureFactory);
+		this(signatureFactory, null);
+	}
+
+	public TomP2PCumulationTCP(final SignatureFactory signatureFactory, final Decoder.FrameFilter frameFilter) {
+		decoder = new Decoder(signatureFactory, frameFilter);
 	}
 
 	@Override
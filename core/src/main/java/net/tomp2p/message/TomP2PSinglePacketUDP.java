@@ -13,15 +13,34 @@ import net.tomp2p.connection.SignatureFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Decodes one datagram into messages. Usually a datagram carries one message, but a sender may pack several messages
+ * into one datagram, see {@link net.tomp2p.connection.MessageCoalescer}. This handler is shared among the UDP
+ * channels, but each thread has its own decoder that is reused for every datagram, as a datagram is always decoded
+ * completely on the thread that received it.
+ */
 @Sharable
 public class TomP2PSinglePacketUDP extends ChannelInboundHandlerAdapter {
 
     private static final Logger LOG = LoggerFactory.getLogger(TomP2PSinglePacketUDP.class);
 
     private final SignatureFactory signatureFactory;
+    private final Decoder.FrameFilter frameFilter;
+
+    private final ThreadLocal<Decoder> decoders = new ThreadLocal<Decoder>() {
+        @Override
+        protected Decoder initialValue() {
+            return new Decoder(signatureFactory, frameFilter);
+        }
+    };
     
     public TomP2PSinglePacketUDP(final SignatureFactory signatureFactory) {
+        this(signatureFactory, null);
+    }
+
+    public TomP2PSinglePacketUDP(final SignatureFactory signatureFactory, final Decoder.FrameFilter frameFilter) {
         this.signatureFactory = signatureFactory;
+        this.frameFilter = frameFilter;
     }
 
     @Override
@@ -37,16 +56,22 @@ public class TomP2PSinglePacketUDP extends ChannelInboundHandlerAdapter {
         final InetSocketAddress sender = d.sender();
         final InetSocketAddress recipient = d.recipient();
 
+        final Decoder decoder = decoders.get();
         try {
-            Decoder decoder = new Decoder(signatureFactory);
-            boolean finished = decoder.decode(ctx, buf, recipient, sender);
-            if (finished) {
-                ctx.fireChannelRead(decoder.prepareFinish());
-            } else {
-                LOG.warn("did not get the complete packet!");
-            }
+            // a datagram may carry several coalesced messages
+            do {
+                boolean finished = decoder.decode(ctx, buf, recipient, sender);
+                if (finished) {
+                    ctx.fireChannelRead(decoder.prepareFinish());
+                } else {
+                    LOG.warn("did not get the complete packet!");
+                    decoder.reset();
+                    break;
+                }
+            } while (buf.isReadable());
         } catch (Throwable t) {
         	LOG.error("Error in UDP decoding", t);
+        	decoder.reset();
             throw t;
         } finally {
             buf.release();
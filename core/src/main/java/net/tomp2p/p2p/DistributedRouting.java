@@ -17,6 +17,7 @@ package net.tomp2p.p2p;
 
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Random;
 import java.util.SortedMap;
@@ -38,9 +39,12 @@ import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerStatatistic;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.rpc.NeighborRPC;
+import net.tomp2p.storage.DigestStorage;
 import net.tomp2p.utils.Pair;
+import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -122,6 +126,212 @@ public class DistributedRouting {
         return futureDone;
     }
     
+    /**
+     * Bootstraps by filling the bags of the peer map in parallel. The lookup for our own ID runs together with lookups
+     * for random IDs in the farthest bags. Once our own ID is found, we know the closest bag that can be filled, and a
+     * lookup for a random ID in every bag up to the farthest is issued, at most parallelLookups at a time. Bags that
+     * are already full are skipped.
+     *
+     * @param peerAddresses
+     *            The peers to bootstrap to
+     * @param routingBuilder
+     *            All relevant information for the routing process, copied for each lookup
+     * @param parallelLookups
+     *            The number of lookups at the same time, the channel creator needs routingBuilder.parallel() UDP
+     *            permits for each
+     * @param coverage
+     *            The fraction of the bags that need to be looked up before the first future is done
+     * @param cc
+     *            The channel creator
+     * @return The first future is done once our own ID is found and the coverage is reached, the second future is
+     *         done once all bags have been looked up
+     */
+    public Pair<FutureDone<Void>, FutureDone<Void>> bootstrapParallel(final Collection<PeerAddress> peerAddresses,
+            final RoutingBuilder routingBuilder, final int parallelLookups, final double coverage,
+            final ChannelCreator cc) {
+        LOG.debug("parallel bootstrap to {}", peerAddresses);
+        final BagLookups bagLookups = new BagLookups(peerAddresses, routingBuilder, parallelLookups, coverage, cc);
+        bagLookups.start();
+        return new Pair<FutureDone<Void>, FutureDone<Void>>(bagLookups.futureCoverage, bagLookups.futureAll);
+    }
+
+    /**
+     * Creates a random ID in the given bag, i.e., an ID that differs in the highest bit bag from our ID.
+     *
+     * @param self
+     *            Our ID
+     * @param bag
+     *            The bag number, 0 is the closest, 159 the farthest
+     * @param rnd
+     *            The random number generator
+     * @return The random ID in the bag
+     */
+    static Number160 randomInBag(final Number160 self, final int bag, final Random rnd) {
+        final byte[] distance = new byte[Number160.BYTE_ARRAY_SIZE];
+        final int index = distance.length - 1 - (bag / 8);
+        final byte[] random = new byte[distance.length - index];
+        rnd.nextBytes(random);
+        System.arraycopy(random, 0, distance, index, random.length);
+        final int bit = 1 << (bag % 8);
+        distance[index] = (byte) ((distance[index] & (bit - 1)) | bit);
+        return self.xor(new Number160(distance));
+    }
+
+    /**
+     * The state of a parallel bootstrap. The routings complete on different threads, thus it is synchronized.
+     */
+    private class BagLookups {
+        private final Collection<PeerAddress> peerAddresses;
+        private final RoutingBuilder template;
+        private final int parallelLookups;
+        private final double coverage;
+        private final ChannelCreator cc;
+        private final Number160 self = peerBean.serverPeerAddress().peerId();
+        private final FutureDone<Void> futureCoverage = new FutureDone<Void>();
+        private final FutureDone<Void> futureAll = new FutureDone<Void>();
+
+        // guarded by this
+        private int nextBag = Number160.BITS - 1;
+        private int closestBag = -1;
+        private int running = 0;
+        private int covered = 0;
+        private boolean selfDone = false;
+        private FutureRouting selfFailed = null;
+
+        private BagLookups(final Collection<PeerAddress> peerAddresses, final RoutingBuilder template,
+                final int parallelLookups, final double coverage, final ChannelCreator cc) {
+            this.peerAddresses = peerAddresses;
+            this.template = template;
+            this.parallelLookups = parallelLookups;
+            this.coverage = coverage;
+            this.cc = cc;
+        }
+
+        private void start() {
+            synchronized (this) {
+                running++;
+            }
+            final FutureRouting futureRouting = routing(peerAddresses, lookup(self), Type.REQUEST_1, cc);
+            futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                @Override
+                public void operationComplete(final FutureRouting future) throws Exception {
+                    if (!future.isSuccess()) {
+                        // no new lookups, the futures fail once the running lookups no longer use the channels
+                        synchronized (BagLookups.this) {
+                            running--;
+                            selfFailed = future;
+                        }
+                        next();
+                        return;
+                    }
+                    final NavigableSet<PeerAddress> closest = peerBean.peerMap().closePeers(1);
+                    synchronized (BagLookups.this) {
+                        running--;
+                        selfDone = true;
+                        closestBag = closest.isEmpty() ? Number160.BITS - 1 : classMember(closest.first());
+                        // lookups that were issued to bags closer than the closest peer do not count
+                        covered = Math.min(covered, Number160.BITS - closestBag);
+                    }
+                    next();
+                }
+            });
+            next();
+        }
+
+        /**
+         * Issues lookups until parallelLookups are running, and completes the futures. The futures only fail once no
+         * lookup is running, since the channel creator is released when they complete.
+         */
+        private void next() {
+            while (true) {
+                final int bag;
+                FutureRouting failed = null;
+                synchronized (this) {
+                    if (futureAll.isCompleted()) {
+                        return;
+                    }
+                    if (selfFailed != null) {
+                        if (running > 0) {
+                            return;
+                        }
+                        failed = selfFailed;
+                        bag = -4;
+                    } else if (selfDone && !futureCoverage.isCompleted()
+                            && covered >= Math.ceil(coverage * (Number160.BITS - closestBag))) {
+                        bag = -2;
+                    } else if (selfDone && nextBag < closestBag && running == 0) {
+                        bag = -3;
+                    } else if (running >= parallelLookups || nextBag < Math.max(0, closestBag)) {
+                        return;
+                    } else {
+                        bag = nextBag--;
+                        if (isFull(bag)) {
+                            covered++;
+                            continue;
+                        }
+                        running++;
+                    }
+                }
+                if (bag == -4) {
+                    LOG.debug("bootstrap failed, the lookup for our own ID failed");
+                    futureCoverage.failed(failed);
+                    futureAll.failed(failed);
+                    return;
+                } else if (bag == -2) {
+                    LOG.debug("bootstrap coverage reached");
+                    futureCoverage.done();
+                } else if (bag == -3) {
+                    LOG.debug("all bags looked up");
+                    futureCoverage.done();
+                    futureAll.done();
+                    return;
+                } else {
+                    lookupBag(bag);
+                }
+            }
+        }
+
+        private void lookupBag(final int bag) {
+            final Number160 locationKey = randomInBag(self, bag, rnd);
+            final FutureRouting futureRouting = routing(peerAddresses, lookup(locationKey), Type.REQUEST_1, cc);
+            futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                @Override
+                public void operationComplete(final FutureRouting future) throws Exception {
+                    synchronized (BagLookups.this) {
+                        running--;
+                        if (!selfDone || bag >= closestBag) {
+                            covered++;
+                        }
+                    }
+                    next();
+                }
+            });
+        }
+
+        private boolean isFull(final int bag) {
+            final Map<Number160, PeerStatatistic> map = peerBean.peerMap().peerMapVerified().get(bag);
+            return map.size() >= peerBean.peerMap().bagSizeVerified();
+        }
+
+        private int classMember(final PeerAddress peerAddress) {
+            return self.xor(peerAddress.peerId()).bitLength() - 1;
+        }
+
+        private RoutingBuilder lookup(final Number160 locationKey) {
+            final RoutingBuilder routingBuilder = new RoutingBuilder();
+            routingBuilder.parallel(template.parallel());
+            routingBuilder.setMaxNoNewInfo(template.maxNoNewInfo());
+            routingBuilder.maxDirectHits(template.maxDirectHits());
+            routingBuilder.maxFailures(template.maxFailures());
+            routingBuilder.maxSuccess(template.maxSuccess());
+            routingBuilder.forceRoutingOnlyToSelf(template.isForceRoutingOnlyToSelf());
+            routingBuilder.forceTCP(template.isForceTCP());
+            routingBuilder.bootstrap(true);
+            routingBuilder.locationKey(locationKey);
+            return routingBuilder;
+        }
+    }
+
     public FutureRouting quit(final RoutingBuilder routingBuilder, final ChannelCreator cc) {
     	Collection<PeerAddress> startPeers = peerBean.peerMap().closePeers(routingBuilder.locationKey(),
                 routingBuilder.parallel() * 2);
@@ -194,8 +404,11 @@ public class DistributedRouting {
         queueToAsk.addAll(peerAddresses);
         alreadyAsked.add(peerBean.serverPeerAddress());
         potentialHits.add(peerBean.serverPeerAddress());
+        // cached copies are only direct hits for get
+        final DigestStorage digestStorage = routingBuilder.isCachedDigests()
+                && peerBean.cachedDigestStorage() != null ? peerBean.cachedDigestStorage() : peerBean.digestStorage();
         // domainkey can be null if we bootstrap
-        if (type == Type.REQUEST_2 && routingBuilder.domainKey() != null && !randomSearch && peerBean.digestStorage() !=null) {
+        if (type == Type.REQUEST_2 && routingBuilder.domainKey() != null && !randomSearch && digestStorage !=null) {
             final Number640 from;
             final Number640 to;
             if (routingBuilder.from()!=null && routingBuilder.to()!=null) {
@@ -217,7 +430,7 @@ public class DistributedRouting {
                 to = new Number640(routingBuilder.locationKey(), routingBuilder.domainKey(),
                         routingBuilder.contentKey(), Number160.MAX_VALUE);
             }
-            DigestInfo digestBean = peerBean.digestStorage().digest(from, to, -1, true);
+            DigestInfo digestBean = digestStorage.digest(from, to, -1, true);
             if (digestBean.size() > 0) {
                 directHits.put(peerBean.serverPeerAddress(), digestBean);
             }
@@ -325,7 +538,8 @@ public class DistributedRouting {
                     	}
                     }
                     routingMechanism.futureResponse(i, neighbors.closeNeighbors(next,
-                            routingBuilder.searchValues(), type, channelCreator, routingBuilder));
+                            routingBuilder.searchValues(), type, routingBuilder.isCachedDigests(), channelCreator,
+                            routingBuilder));
                     LOG.debug("get close neighbors: {} on {}", next, i);
                 }
             } else if (routingMechanism.futureResponse(i) != null) {
@@ -367,8 +581,13 @@ public class DistributedRouting {
                     // if it failed but the failed is the closest one, its good to try again, since the peer might just
                     // be busy
                     LOG.debug("routing error {}", future.failedReason());
-                    finished = routingMechanism.evaluateFailed();
-                    routingMechanism.stopCreatingNewFutures(finished);
+                    if (Utils.isOverload(future.completed())) {
+                        // overloaded peers are alive, ask the next peers without counting a failure
+                        finished = false;
+                    } else {
+                        finished = routingMechanism.evaluateFailed();
+                        routingMechanism.stopCreatingNewFutures(finished);
+                    }
                 }
                 if (finished) {
                     LOG.debug("finished routing, direct hits: {} potential: {}",
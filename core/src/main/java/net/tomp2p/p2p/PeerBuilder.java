@@ -19,6 +19,7 @@ package net.tomp2p.p2p;
 import io.netty.channel.ChannelHandler;
 import io.netty.util.concurrent.EventExecutorGroup;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.KeyPair;
 import java.security.PublicKey;
@@ -28,21 +29,29 @@ import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.connection.Bindings;
 import net.tomp2p.connection.ChannelClientConfiguration;
 import net.tomp2p.connection.ChannelServerConficuration;
 import net.tomp2p.connection.ConnectionBean;
 import net.tomp2p.connection.DSASignatureFactory;
+import net.tomp2p.connection.JmxMetricsReporter;
+import net.tomp2p.connection.MetricsReporter;
 import net.tomp2p.connection.PeerBean;
 import net.tomp2p.connection.PeerCreator;
 import net.tomp2p.connection.PingBuilderFactory;
 import net.tomp2p.connection.PipelineFilter;
 import net.tomp2p.connection.Ports;
+import net.tomp2p.connection.Transport;
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.p2p.builder.PingBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerMapConfiguration;
+import net.tomp2p.peers.PeerMapSnapshot;
 import net.tomp2p.rpc.BloomfilterFactory;
 import net.tomp2p.rpc.BroadcastRPC;
 import net.tomp2p.rpc.DefaultBloomfilterFactory;
@@ -50,7 +59,9 @@ import net.tomp2p.rpc.DirectDataRPC;
 import net.tomp2p.rpc.NeighborRPC;
 import net.tomp2p.rpc.PingRPC;
 import net.tomp2p.rpc.QuitRPC;
+import net.tomp2p.utils.JavaSerializer;
 import net.tomp2p.utils.Pair;
+import net.tomp2p.utils.Serializer;
 import net.tomp2p.utils.Utils;
 
 /**
@@ -109,6 +120,12 @@ public class PeerBuilder {
 	private BloomfilterFactory bloomfilterFactory;
 	private ScheduledExecutorService scheduledExecutorService = null;
 	private MaintenanceTask maintenanceTask = null;
+	private File peerMapSnapshot = null;
+	private int peerMapSnapshotIntervalMillis = 60 * 1000;
+	private long peerMapMaxAgeMillis = 10 * 60 * 1000;
+	private Serializer serializer = null;
+	private MetricsReporter metricsReporter = null;
+	private Transport transport = null;
 	private Random random = null;
 	private List<PeerInit> toInitialize = new ArrayList<PeerInit>(1);
 
@@ -188,6 +205,10 @@ public class PeerBuilder {
 			externalBindings = new Bindings();
 		}
 		channelClientConfiguration.bindingsOutgoing(externalBindings);
+		if (transport != null) {
+			channelServerConfiguration.transport(transport);
+			channelClientConfiguration.transport(transport);
+		}
 		if (peerMap == null) {
 			peerMap = new PeerMap(new PeerMapConfiguration(peerId));
 			
@@ -215,6 +236,11 @@ public class PeerBuilder {
 		peerBean.peerMap(peerMap);
 		peerBean.keyPair(keyPair);
 
+		if (serializer == null) {
+			serializer = JavaSerializer.INSTANCE;
+		}
+		peerBean.serializer(serializer);
+
 		if (bloomfilterFactory == null) {
 			peerBean.bloomfilterFactory(new DefaultBloomfilterFactory());
 		}
@@ -266,6 +292,38 @@ public class PeerBuilder {
 		}
 		peerBean.maintenanceTask(maintenanceTask);
 
+		if (masterPeer == null) {
+			// slaves share the connections and the metrics of the master
+			if (metricsReporter == null) {
+				metricsReporter = new JmxMetricsReporter();
+			}
+			metricsReporter.start(peerId + ":" + channelServerConfiguration.ports().tcpPort(),
+			        connectionBean.metrics());
+			peer.addShutdownListener(new Shutdown() {
+				@Override
+				public BaseFuture shutdown() {
+					metricsReporter.stop();
+					return new FutureDone<Void>().done();
+				}
+			});
+		}
+
+		if (peerMapSnapshot != null) {
+			// warm restart: route with the peers of the previous run, maintenance re-verifies them
+			final PeerMapSnapshot snapshot = new PeerMapSnapshot(peerMap, peerMapSnapshot, peerMapMaxAgeMillis);
+			snapshot.load();
+			final ScheduledFuture<?> scheduledFuture = connectionBean.timer().scheduleAtFixedRate(snapshot,
+			        peerMapSnapshotIntervalMillis, peerMapSnapshotIntervalMillis, TimeUnit.MILLISECONDS);
+			peer.addShutdownListener(new Shutdown() {
+				@Override
+				public BaseFuture shutdown() {
+					scheduledFuture.cancel(false);
+					snapshot.run();
+					return new FutureDone<Void>().done();
+				}
+			});
+		}
+
 
 		// set the ping builder for the heart beat
 		connectionBean.sender().pingBuilderFactory(new PingBuilderFactory() {			
@@ -461,6 +519,92 @@ public class PeerBuilder {
 		return this;
 	}
 
+	public File peerMapSnapshot() {
+		return peerMapSnapshot;
+	}
+
+	/**
+	 * @param peerMapSnapshot
+	 *            The file where the verified peers are stored periodically and on shutdown. If the file exists on
+	 *            startup, the peer map is filled with these peers, so that the peer can route before bootstrapping
+	 * @return This class
+	 */
+	public PeerBuilder peerMapSnapshot(File peerMapSnapshot) {
+		this.peerMapSnapshot = peerMapSnapshot;
+		return this;
+	}
+
+	public int peerMapSnapshotIntervalMillis() {
+		return peerMapSnapshotIntervalMillis;
+	}
+
+	public PeerBuilder peerMapSnapshotIntervalMillis(int peerMapSnapshotIntervalMillis) {
+		this.peerMapSnapshotIntervalMillis = peerMapSnapshotIntervalMillis;
+		return this;
+	}
+
+	public long peerMapMaxAgeMillis() {
+		return peerMapMaxAgeMillis;
+	}
+
+	/**
+	 * @param peerMapMaxAgeMillis
+	 *            Restored peers that have not been seen online for this time are not used for routing until they are
+	 *            verified again. Default is 10 minutes
+	 * @return This class
+	 */
+	public PeerBuilder peerMapMaxAgeMillis(long peerMapMaxAgeMillis) {
+		this.peerMapMaxAgeMillis = peerMapMaxAgeMillis;
+		return this;
+	}
+
+	public Serializer serializer() {
+		return serializer;
+	}
+
+	/**
+	 * @param serializer
+	 *            The serializer for objects stored in {@link net.tomp2p.storage.Data}. All peers that store and read
+	 *            the same values need to use the same serializer. Default is Java serialization
+	 * @return This class
+	 */
+	public PeerBuilder serializer(Serializer serializer) {
+		this.serializer = serializer;
+		return this;
+	}
+
+	public MetricsReporter metricsReporter() {
+		return metricsReporter;
+	}
+
+	/**
+	 * @param metricsReporter
+	 *            Publishes the metrics of the connections, such as the requests per command and their latencies.
+	 *            Only used for a master peer. Default is JMX
+	 * @return This class
+	 */
+	public PeerBuilder metricsReporter(MetricsReporter metricsReporter) {
+		this.metricsReporter = metricsReporter;
+		return this;
+	}
+
+	public Transport transport() {
+		return transport;
+	}
+
+	/**
+	 * @param transport
+	 *            The Netty transport for the event loops and channels, e.g.,
+	 *            {@link net.tomp2p.connection.NativeTransport} for epoll on Linux, which falls back to NIO if not
+	 *            available, or {@link net.tomp2p.connection.LoopbackTransport} to simulate many peers in memory.
+	 *            Only used for a master peer. Default is NIO
+	 * @return This class
+	 */
+	public PeerBuilder transport(Transport transport) {
+		this.transport = transport;
+		return this;
+	}
+
 	public Random random() {
 		return random;
 	}
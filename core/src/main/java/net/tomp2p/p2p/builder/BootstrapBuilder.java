@@ -82,6 +82,12 @@ public class BootstrapBuilder {
 
     private boolean broadcast = false;
 
+    private int parallelLookups = 0;
+
+    private double coverage = 0.75;
+
+    private FutureDone<Void> futureBackground;
+
     public BootstrapBuilder(Peer peer) {
         this.peer = peer;
     }
@@ -194,6 +200,50 @@ public class BootstrapBuilder {
         return this;
     }
 
+    public int parallelLookups() {
+        return parallelLookups;
+    }
+
+    /**
+     * Bootstrap by filling the bags of the peer map in parallel instead of two sequential lookups. The lookup for our
+     * own ID runs together with lookups for random IDs in each bag, and the bootstrap is done once the
+     * {@link #coverage(double)} is reached. The remaining bags are filled in the background, see
+     * {@link #futureBackground()}.
+     * 
+     * @param parallelLookups
+     *            The number of lookups at the same time, 0 to use the sequential bootstrap
+     * @return this instance
+     */
+    public BootstrapBuilder parallelLookups(int parallelLookups) {
+        this.parallelLookups = parallelLookups;
+        return this;
+    }
+
+    public double coverage() {
+        return coverage;
+    }
+
+    /**
+     * @param coverage
+     *            The fraction of the fillable bags that need to be looked up before the parallel bootstrap is done
+     * @return this instance
+     */
+    public BootstrapBuilder coverage(double coverage) {
+        if (coverage < 0 || coverage > 1) {
+            throw new IllegalArgumentException("coverage needs to be between 0 and 1");
+        }
+        this.coverage = coverage;
+        return this;
+    }
+
+    /**
+     * @return The future that is done once all bags have been looked up by the parallel bootstrap, or null if the
+     *         sequential bootstrap is used. Only available after {@link #start()}.
+     */
+    public FutureDone<Void> futureBackground() {
+        return futureBackground;
+    }
+
     public FutureBootstrap start() {
         if (peer.isShutdown()) {
             return FUTURE_BOOTSTRAP_SHUTDOWN;
@@ -202,7 +252,23 @@ public class BootstrapBuilder {
         if (routingConfiguration == null) {
             routingConfiguration = new RoutingConfiguration(8, 10, 2);
         }
-        //
+        if (parallelLookups > 0) {
+            futureBackground = new FutureDone<Void>();
+            final FutureBootstrap futureBootstrap = start0();
+            futureBootstrap.addListener(new BaseFutureAdapter<FutureBootstrap>() {
+                @Override
+                public void operationComplete(final FutureBootstrap future) throws Exception {
+                    if (future.isFailed()) {
+                        futureBackground.failed(future);
+                    }
+                }
+            });
+            return futureBootstrap;
+        }
+        return start0();
+    }
+
+    private FutureBootstrap start0() {
         if (broadcast) {
             return broadcast0();
         }
@@ -222,6 +288,9 @@ public class BootstrapBuilder {
     }
 
     private FutureBootstrap bootstrap() {
+        if (parallelLookups > 0) {
+            return bootstrapParallel();
+        }
         final FutureWrappedBootstrap<FutureDone<Pair<FutureRouting,FutureRouting>>> result = new FutureWrappedBootstrap<FutureDone<Pair<FutureRouting,FutureRouting>>>();
         result.bootstrapTo(bootstrapTo);
         int conn = routingConfiguration.parallel();
@@ -243,6 +312,40 @@ public class BootstrapBuilder {
         return result;
     }
 
+    private FutureBootstrap bootstrapParallel() {
+        final FutureWrappedBootstrap<FutureDone<Void>> result = new FutureWrappedBootstrap<FutureDone<Void>>();
+        result.bootstrapTo(bootstrapTo);
+        // the channels are needed until the background lookups are finished
+        int conn = routingConfiguration.parallel() * parallelLookups;
+        FutureChannelCreator fcc = peer.connectionBean().reservation().create(conn, 0);
+        Utils.addReleaseListener(fcc, futureBackground);
+        fcc.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator futureChannelCreator) throws Exception {
+                if (futureChannelCreator.isSuccess()) {
+                    RoutingBuilder routingBuilder = createBuilder(routingConfiguration, forceRoutingOnlyToSelf);
+                    Pair<FutureDone<Void>, FutureDone<Void>> futures = peer.distributedRouting().bootstrapParallel(
+                            bootstrapTo, routingBuilder, parallelLookups, coverage,
+                            futureChannelCreator.channelCreator());
+                    result.waitFor(futures.element0());
+                    futures.element1().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+                        @Override
+                        public void operationComplete(final FutureDone<Void> future) throws Exception {
+                            if (future.isSuccess()) {
+                                futureBackground.done();
+                            } else {
+                                futureBackground.failed(future);
+                            }
+                        }
+                    });
+                } else {
+                    result.failed(futureChannelCreator);
+                }
+            }
+        });
+        return result;
+    }
+
     static RoutingBuilder createBuilder(RoutingConfiguration routingConfiguration, boolean forceRoutingOnlyToSelf) {
         RoutingBuilder routingBuilder = new RoutingBuilder();
         routingBuilder.parallel(routingConfiguration.parallel());
@@ -35,6 +35,7 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
     private boolean isBootstrap;
     private boolean isForceRoutingOnlyToSelf;
     private boolean isRoutingToOthers;
+    private boolean isCachedDigests;
 
     public Number160 locationKey() {
         return locationKey;
@@ -148,6 +149,20 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
         return isRoutingToOthers;
     }
 
+    /**
+     * @param isCachedDigests
+     *            True if peers may report cached copies as direct hits, this is only correct for get
+     * @return This class
+     */
+    public RoutingBuilder cachedDigests(boolean isCachedDigests) {
+        this.isCachedDigests = isCachedDigests;
+        return this;
+    }
+
+    public boolean isCachedDigests() {
+        return isCachedDigests;
+    }
+
     public Number160 contentKey() {
         return contentKey;
     }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.peers;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One bag of the {@link PeerMap}. Writers synchronize on the bag, copy the current content, apply their change and
+ * publish the copy as an immutable snapshot. Readers only read the volatile snapshot and never lock, so routing, the
+ * maintenance and the relays can iterate over a bag while peers are added or removed. A bag holds only a few peers,
+ * thus copying on every write is cheap compared to locking on every read. Compound operations, e.g., check the size
+ * and then insert, still synchronize on the bag as before.
+ * <p>
+ * Like the {@link net.tomp2p.utils.CacheMap} that was used for the overflow bags, the oldest inserted peer is evicted
+ * if the bag has more than maxEntries peers. The collections returned by this map are views of one snapshot and
+ * cannot be modified.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class PeerBag extends AbstractMap<Number160, PeerStatatistic> {
+
+    private final int maxEntries;
+
+    private volatile Map<Number160, PeerStatatistic> snapshot = Collections.emptyMap();
+
+    /**
+     * Creates an empty bag.
+     *
+     * @param maxEntries
+     *            The number of peers in this bag until the oldest gets evicted
+     */
+    public PeerBag(final int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return The current immutable content of this bag
+     */
+    public Map<Number160, PeerStatatistic> snapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public int size() {
+        return snapshot.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return snapshot.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return snapshot.containsKey(key);
+    }
+
+    @Override
+    public PeerStatatistic get(final Object key) {
+        return snapshot.get(key);
+    }
+
+    @Override
+    public Set<Number160> keySet() {
+        return snapshot.keySet();
+    }
+
+    @Override
+    public Collection<PeerStatatistic> values() {
+        return snapshot.values();
+    }
+
+    @Override
+    public Set<Map.Entry<Number160, PeerStatatistic>> entrySet() {
+        return snapshot.entrySet();
+    }
+
+    @Override
+    public synchronized PeerStatatistic put(final Number160 key, final PeerStatatistic value) {
+        final LinkedHashMap<Number160, PeerStatatistic> copy = new LinkedHashMap<Number160, PeerStatatistic>(
+                snapshot);
+        final PeerStatatistic old = copy.put(key, value);
+        if (copy.size() > maxEntries) {
+            final Iterator<Number160> iterator = copy.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        publish(copy);
+        return old;
+    }
+
+    @Override
+    public synchronized PeerStatatistic remove(final Object key) {
+        if (!snapshot.containsKey(key)) {
+            return null;
+        }
+        final LinkedHashMap<Number160, PeerStatatistic> copy = new LinkedHashMap<Number160, PeerStatatistic>(
+                snapshot);
+        final PeerStatatistic old = copy.remove(key);
+        publish(copy);
+        return old;
+    }
+
+    @Override
+    public synchronized void clear() {
+        publish(Collections.<Number160, PeerStatatistic> emptyMap());
+    }
+
+    private void publish(final Map<Number160, PeerStatatistic> copy) {
+        snapshot = copy.isEmpty() ? Collections.<Number160, PeerStatatistic> emptyMap() : Collections
+                .unmodifiableMap(copy);
+    }
+}
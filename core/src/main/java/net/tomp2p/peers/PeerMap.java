@@ -19,7 +19,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
@@ -29,7 +28,6 @@ import java.util.TreeSet;
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.PeerException;
 import net.tomp2p.connection.PeerException.AbortCause;
-import net.tomp2p.utils.CacheMap;
 import net.tomp2p.utils.ConcurrentCacheMap;
 
 import org.slf4j.Logger;
@@ -91,8 +89,8 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         this.bagSizeOverflow = peerMapConfiguration.bagSizeOverflow();
         this.offlineCount = peerMapConfiguration.offlineCount();
         this.peerFilters = peerMapConfiguration.peerFilters();
-        this.peerMapVerified = initFixedMap(bagSizeVerified, false);
-        this.peerMapOverflow = initFixedMap(bagSizeOverflow, true);
+        this.peerMapVerified = initFixedMap(bagSizeVerified);
+        this.peerMapOverflow = initFixedMap(bagSizeOverflow);
         // bagSizeVerified * Number160.BITS should be enough
         this.offlineMap = new ConcurrentCacheMap<Number160, PeerAddress>(
                 peerMapConfiguration.offlineTimeout(), bagSizeVerified * Number160.BITS);
@@ -110,27 +108,17 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * 
      * @param bagSize
      *            The bag size
-     * @param caching
-     *            If a caching map should be created
      * @return The list of bags containing an unmodifiable map
      */
-    private List<Map<Number160, PeerStatatistic>> initFixedMap(final int bagSize, final boolean caching) {
+    private List<Map<Number160, PeerStatatistic>> initFixedMap(final int bagSize) {
         List<Map<Number160, PeerStatatistic>> tmp = new ArrayList<Map<Number160, PeerStatatistic>>();
         for (int i = 0; i < Number160.BITS; i++) {
-            // I made some experiments here and concurrent sets are not
-            // necessary, as we divide similar to segments aNonBlockingHashSets
-            // in a concurrent map. In a full network, we have 160 segments, for
-            // smaller we see around 3-4 segments, growing with the number of
-            // peers. bags closer to 0 will see more read than write, and bags
-            // closer to 160 will see more writes than reads.
-            //
-            // We also only allocate memory for the bags far away, as they are likely to be filled first.
-            if (caching) {
-                tmp.add(new CacheMap<Number160, PeerStatatistic>(bagSize, true));
-            } else {
-                final int memAlloc = Math.max(0, bagSize - (Number160.BITS - i));
-                tmp.add(new HashMap<Number160, PeerStatatistic>(memAlloc));
-            }
+            // In a full network, we have 160 segments, for smaller we see
+            // around 3-4 segments, growing with the number of peers. Bags
+            // closer to 0 will see more read than write, and bags closer to
+            // 160 will see more writes than reads. Since every lookup reads
+            // several bags, the bags are copy-on-write and readers never lock.
+            tmp.add(new PeerBag(bagSize));
         }
         return Collections.unmodifiableList(tmp);
     }
@@ -216,9 +204,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     public int size() {
         int size = 0;
         for (Map<Number160, PeerStatatistic> map : peerMapVerified) {
-            synchronized (map) {
-                size += map.size();
-            }
+            size += map.size();
         }
         return size;
     }
@@ -418,9 +404,77 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         return false;
     }
 
+    /**
+     * Adds the peers of a previous run, e.g., from a {@link PeerMapSnapshot}. Peers that have been seen online within
+     * maxAgeMillis go into the verified map, so that routing can use them right away. Older peers, and recent peers
+     * whose verified bag is full, go into the non-verified map. Restored peers never evict a peer, so a peer that does
+     * not fit into its bag is skipped. Since the last seen time is restored as well, the maintenance task re-verifies
+     * these peers. This method is thread-safe.
+     *
+     * @param peerStatatistics
+     *            The peers with their statistics
+     * @param maxAgeMillis
+     *            The time since a peer was last seen online until it is not used for routing anymore
+     * @return The number of peers added
+     */
+    public int restore(final Collection<PeerStatatistic> peerStatatistics, final long maxAgeMillis) {
+        final long now = System.currentTimeMillis();
+        int restored = 0;
+        for (PeerStatatistic peerStatatistic : peerStatatistics) {
+            final PeerAddress remotePeer = peerStatatistic.peerAddress();
+            if (remotePeer.peerId().isZero() || self().equals(remotePeer.peerId()) || reject(remotePeer)
+                    || isPeerRemovedTemporarly(remotePeer) || contains(remotePeer)) {
+                continue;
+            }
+            final int classMember = classMember(remotePeer.peerId());
+            boolean verified = false;
+            if (now - peerStatatistic.lastSeenOnline() <= maxAgeMillis) {
+                verified = insertIfRoom(peerMapVerified.get(classMember), bagSizeVerified, peerStatatistic);
+            }
+            if (verified) {
+                final Map<Number160, PeerStatatistic> mapOverflow = peerMapOverflow.get(classMember);
+                synchronized (mapOverflow) {
+                    mapOverflow.remove(remotePeer.peerId());
+                }
+            }
+            final boolean inserted = verified
+                    || insertIfRoom(peerMapOverflow.get(classMember), bagSizeOverflow, peerStatatistic);
+            if (inserted) {
+                notifyInsert(remotePeer, verified);
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    private static boolean insertIfRoom(final Map<Number160, PeerStatatistic> map, final int bagSize,
+            final PeerStatatistic peerStatatistic) {
+        synchronized (map) {
+            final Number160 peerId = peerStatatistic.peerAddress().peerId();
+            if (map.containsKey(peerId) || map.size() >= bagSize) {
+                return false;
+            }
+            map.put(peerId, peerStatatistic);
+            return true;
+        }
+    }
+
+    /**
+     * Returns a copy of the statistics of all peers in the verified map, e.g., to store in a {@link PeerMapSnapshot}.
+     *
+     * @return The statistics of all verified peers
+     */
+    public List<PeerStatatistic> snapshot() {
+        List<PeerStatatistic> all = new ArrayList<PeerStatatistic>();
+        for (Map<Number160, PeerStatatistic> map : peerMapVerified) {
+            all.addAll(map.values());
+        }
+        return all;
+    }
+
     /**
      * Checks if a peer address in either in the verified map.
-     * 
+     *
      * @param peerAddress
      *            The peer address to check
      * @return True, if the peer address is either in the verified map
@@ -431,10 +485,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
             // -1 means we searched for ourself and we never are our neighbor
             return false;
         }
-        final Map<Number160, PeerStatatistic> tmp = peerMapVerified.get(classMember);
-        synchronized (tmp) {
-            return tmp.containsKey(peerAddress.peerId());
-        }
+        return peerMapVerified.get(classMember).containsKey(peerAddress.peerId());
     }
 
     /**
@@ -450,10 +501,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
             // -1 means we searched for ourself and we never are our neighbor
             return false;
         }
-        final Map<Number160, PeerStatatistic> tmp = peerMapOverflow.get(classMember);
-        synchronized (tmp) {
-            return tmp.containsKey(peerAddress.peerId());
-        }
+        return peerMapOverflow.get(classMember).containsKey(peerAddress.peerId());
     }
     
     /**
@@ -476,41 +524,55 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return A sorted set with close peers first in this set. Use set.first() to get the closest peer
      */
     public NavigableSet<PeerAddress> closePeers(final Number160 id, final int atLeast) {
-    	return closePeers(self(), id, atLeast, peerMapVerified);
+        return closePeers(self(), id, atLeast, peerMapVerified);
     }
 
-    public static NavigableSet<PeerAddress> closePeers(final Number160 self, final Number160 other, final int atLeast, List<Map<Number160, PeerStatatistic>> peerMap) {
+    /**
+     * Returns close peers to a given key. The bags are visited in the order of their distance to the key, starting
+     * with the bag of the key, and only the peers that are needed are sorted. The bags are read without locking.
+     * 
+     * @param self
+     *            The peer that owns the bags
+     * @param other
+     *            The key that should be close to the keys in the map
+     * @param atLeast
+     *            The number we want to find at least
+     * @param peerMap
+     *            The bags of the peer map
+     * @return A sorted set with close peers first in this set
+     */
+    public static NavigableSet<PeerAddress> closePeers(final Number160 self, final Number160 other,
+            final int atLeast, final List<Map<Number160, PeerStatatistic>> peerMap) {
         final NavigableSet<PeerAddress> set = new TreeSet<PeerAddress>(createComparator(other));
         final int classMember = classMember(self, other);
         // special treatment, as we can start iterating from 0
         if (classMember == -1) {
             for (int j = 0; j < Number160.BITS; j++) {
-                final Map<Number160, PeerStatatistic> tmp = peerMap.get(j);
-                if (fillSet(atLeast, set, tmp)) {
+                if (fillSet(atLeast, set, peerMap.get(j))) {
                     return set;
                 }
             }
             return set;
         }
 
-        Map<Number160, PeerStatatistic> tmp = peerMap.get(classMember);
-        if (fillSet(atLeast, set, tmp)) {
+        // the peers in the bag of the key are the closest ones
+        if (fillSet(atLeast, set, peerMap.get(classMember))) {
             return set;
         }
 
-        // in this case we have to go over all the bags that are smaller
+        // the peers in all smaller bags have the same highest distance bit to the key, we need all of them
         boolean last = false;
         for (int i = 0; i < classMember; i++) {
-            tmp = peerMap.get(i);
-            last = fillSet(atLeast, set, tmp);
+            last = fillSet(atLeast, set, peerMap.get(i));
         }
         if (last) {
             return set;
         }
-        // in this case we have to go over all the bags that are larger
+        // every larger bag is further away than the previous one, so we can stop once we have enough
         for (int i = classMember + 1; i < Number160.BITS; i++) {
-            tmp = peerMap.get(i);
-            fillSet(atLeast, set, tmp);
+            if (fillSet(atLeast, set, peerMap.get(i))) {
+                return set;
+            }
         }
         return set;
     }
@@ -521,13 +583,11 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         sb.append(self()).append("\n");
         for (int i = 0; i < Number160.BITS; i++) {
             final Map<Number160, PeerStatatistic> tmp = peerMapVerified.get(i);
-            synchronized (tmp) {
-                if (tmp.size() > 0) {
-                    sb.append("class:").append(i).append("->\n");
-                    for (final PeerStatatistic node : tmp.values()) {
-                        sb.append("node:").append(node.peerAddress()).append(",");
+            if (tmp.size() > 0) {
+                sb.append("class:").append(i).append("->\n");
+                for (final PeerStatatistic node : tmp.values()) {
+                    sb.append("node:").append(node.peerAddress()).append(",");
 
-                    }
                 }
             }
         }
@@ -551,10 +611,8 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     public List<PeerAddress> all() {
         List<PeerAddress> all = new ArrayList<PeerAddress>();
         for (Map<Number160, PeerStatatistic> map : peerMapVerified) {
-            synchronized (map) {
-                for (PeerStatatistic peerStatatistic : map.values()) {
-                    all.add(peerStatatistic.peerAddress());
-                }
+            for (PeerStatatistic peerStatatistic : map.values()) {
+                all.add(peerStatatistic.peerAddress());
             }
         }
         return all;
@@ -576,10 +634,8 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     public List<PeerAddress> allOverflow() {
         List<PeerAddress> all = new ArrayList<PeerAddress>();
         for (Map<Number160, PeerStatatistic> map : peerMapOverflow) {
-            synchronized (map) {
-                for (PeerStatatistic peerStatatistic : map.values()) {
-                    all.add(peerStatatistic.peerAddress());
-                }
+            for (PeerStatatistic peerStatatistic : map.values()) {
+                all.add(peerStatatistic.peerAddress());
             }
         }
         return all;
@@ -744,12 +800,10 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     private static boolean updatePeerStatistic(final PeerAddress remotePeer,
             final Map<Number160, PeerStatatistic> tmp, final int maxFail) {
         if (tmp != null) {
-            synchronized (tmp) {
-                PeerStatatistic peerStatatistic = tmp.get(remotePeer.peerId());
-                if (peerStatatistic != null) {
-                    if (peerStatatistic.failed() >= maxFail) {
-                        return true;
-                    }
+            PeerStatatistic peerStatatistic = tmp.get(remotePeer.peerId());
+            if (peerStatatistic != null) {
+                if (peerStatatistic.failed() >= maxFail) {
+                    return true;
                 }
             }
         }
@@ -798,10 +852,8 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      */
     private static boolean fillSet(final int atLeast, final SortedSet<PeerAddress> set,
             final Map<Number160, PeerStatatistic> tmp) {
-        synchronized (tmp) {
-            for (final PeerStatatistic peerStatatistic : tmp.values()) {
-                set.add(peerStatatistic.peerAddress());
-            }
+        for (final PeerStatatistic peerStatatistic : tmp.values()) {
+            set.add(peerStatatistic.peerAddress());
         }
         return set.size() >= atLeast;
     }
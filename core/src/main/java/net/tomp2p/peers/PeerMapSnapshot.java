@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.peers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the verified peers of a {@link PeerMap} with their statistics in a compact binary file and restores them on
+ * startup. A restarted peer can then route with the peers it knew before, instead of starting with an empty map. The
+ * restored peers are re-verified by the maintenance task. As a {@link Runnable}, it stores the snapshot and can be
+ * scheduled periodically.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class PeerMapSnapshot implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PeerMapSnapshot.class);
+    // "TP2P"
+    private static final int MAGIC = 0x54503250;
+    private static final int VERSION = 1;
+
+    private final PeerMap peerMap;
+    private final File file;
+    private final long maxAgeMillis;
+
+    /**
+     * Creates a snapshot for the peer map.
+     *
+     * @param peerMap
+     *            The peer map to store and restore
+     * @param file
+     *            The file where the snapshot is stored
+     * @param maxAgeMillis
+     *            Restored peers that have not been seen online for this time are not used for routing until they are
+     *            verified again
+     */
+    public PeerMapSnapshot(final PeerMap peerMap, final File file, final long maxAgeMillis) {
+        this.peerMap = peerMap;
+        this.file = file;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Stores the verified peers. The snapshot is written to a temporary file first and then moved, so a crash while
+     * writing does not destroy the previous snapshot.
+     *
+     * @return The number of peers stored
+     * @throws IOException
+     *             If the file cannot be written
+     */
+    public int save() throws IOException {
+        final List<PeerStatatistic> peerStatatistics = peerMap.snapshot();
+        final File tmp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            encode(peerStatatistics, out);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        LOG.debug("stored {} peers in {}", peerStatatistics.size(), file);
+        return peerStatatistics.size();
+    }
+
+    /**
+     * Restores the peers into the peer map. A missing or corrupt snapshot is ignored, since the peer can still
+     * bootstrap.
+     *
+     * @return The number of peers added to the peer map
+     */
+    public int load() {
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                final int restored = peerMap.restore(decode(in), maxAgeMillis);
+                LOG.debug("restored {} peers from {}", restored, file);
+                return restored;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("cannot restore peer map from {}", file, e);
+            return 0;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            save();
+        } catch (IOException e) {
+            LOG.warn("cannot store peer map in {}", file, e);
+        }
+    }
+
+    /**
+     * Encodes the peer statistics: magic number, version and number of peers, then for each peer the length of the
+     * peer address, the peer address, the created time, the last seen time and the number of successful checks.
+     *
+     * @param peerStatatistics
+     *            The peers to encode
+     * @param out
+     *            The output
+     * @throws IOException
+     *             If the output cannot be written
+     */
+    public static void encode(final Collection<PeerStatatistic> peerStatatistics, final DataOutput out)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(peerStatatistics.size());
+        for (PeerStatatistic peerStatatistic : peerStatatistics) {
+            final byte[] peerAddress = peerStatatistic.peerAddress().toByteArray();
+            out.writeShort(peerAddress.length);
+            out.write(peerAddress);
+            out.writeLong(peerStatatistic.created());
+            out.writeLong(peerStatatistic.lastSeenOnline());
+            out.writeInt(peerStatatistic.successfullyCheckedCounter());
+        }
+    }
+
+    /**
+     * Decodes the peer statistics encoded with {@link #encode(Collection, DataOutput)}.
+     *
+     * @param in
+     *            The input
+     * @return The peer statistics
+     * @throws IOException
+     *             If the input cannot be read or is not a snapshot
+     */
+    public static List<PeerStatatistic> decode(final DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a peer map snapshot");
+        }
+        final int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unknown peer map snapshot version " + version);
+        }
+        final int size = in.readInt();
+        final List<PeerStatatistic> peerStatatistics = new ArrayList<PeerStatatistic>(size);
+        for (int i = 0; i < size; i++) {
+            final byte[] peerAddress = new byte[in.readUnsignedShort()];
+            in.readFully(peerAddress);
+            final long created = in.readLong();
+            final long lastSeenOnline = in.readLong();
+            final int successfullyChecked = in.readInt();
+            peerStatatistics.add(new PeerStatatistic(new PeerAddress(peerAddress), created, lastSeenOnline,
+                    successfullyChecked));
+        }
+        return peerStatatistics;
+    }
+}
@@ -31,7 +31,7 @@ public class PeerStatatistic implements Serializable {
 
 	private final AtomicLong lastSeenOnline = new AtomicLong(0);
 
-    private final long created = System.currentTimeMillis();
+    private final long created;
 
     private final AtomicInteger successfullyChecked = new AtomicInteger(0);
 
@@ -39,7 +39,7 @@ public class PeerStatatistic implements Serializable {
     
     private final Number160 peerId;
 
-    private PeerAddress peerAddress;
+    private volatile PeerAddress peerAddress;
 
     /**
      * Constructor. Sets the peer address
@@ -48,11 +48,35 @@ public class PeerStatatistic implements Serializable {
      *            The peer address that belongs to this statistics
      */
     public PeerStatatistic(final PeerAddress peerAddress) {
+        this(peerAddress, System.currentTimeMillis());
+    }
+
+    /**
+     * Constructor for statistics restored from a {@link PeerMapSnapshot}.
+     * 
+     * @param peerAddress
+     *            The peer address that belongs to this statistics
+     * @param created
+     *            The time when this peer was first seen
+     * @param lastSeenOnline
+     *            The time when this peer was last seen online
+     * @param successfullyChecked
+     *            The number of times the peer has been successfully checked
+     */
+    PeerStatatistic(final PeerAddress peerAddress, final long created, final long lastSeenOnline,
+            final int successfullyChecked) {
+        this(peerAddress, created);
+        this.lastSeenOnline.set(lastSeenOnline);
+        this.successfullyChecked.set(successfullyChecked);
+    }
+
+    private PeerStatatistic(final PeerAddress peerAddress, final long created) {
         if (peerAddress == null) {
             throw new IllegalArgumentException("PeerAddress cannot be null");
         }
         this.peerId = peerAddress.peerId();
         this.peerAddress = peerAddress;
+        this.created = created;
     }
 
     /**
@@ -125,6 +125,7 @@ public abstract class DispatchHandler {
         replyMessage.version(requestMessage.version());
         replyMessage.messageId(requestMessage.messageId());
         replyMessage.udp(requestMessage.isUdp());
+        replyMessage.hashes(requestMessage.isHashes());
         return replyMessage;
     }
 
@@ -41,6 +41,7 @@ import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerStatusListener;
+import net.tomp2p.storage.DigestStorage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -102,10 +103,26 @@ public class NeighborRPC extends DispatchHandler {
      */
     public FutureResponse closeNeighbors(final PeerAddress remotePeer, final SearchValues searchValues,
             final Type type, final ChannelCreator channelCreator, final ConnectionConfiguration configuration) {
+        return closeNeighbors(remotePeer, searchValues, type, false, channelCreator, configuration);
+    }
+
+    /**
+     * Requests close neighbors from the remote peer, see
+     * {@link #closeNeighbors(PeerAddress, SearchValues, Type, ChannelCreator, ConnectionConfiguration)}.
+     * 
+     * @param cachedDigests
+     *            True if the remote peer may report cached copies in the digest of a REQUEST_2, which is only
+     *            correct for get
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse closeNeighbors(final PeerAddress remotePeer, final SearchValues searchValues,
+            final Type type, final boolean cachedDigests, final ChannelCreator channelCreator,
+            final ConnectionConfiguration configuration) {
         Message message = createMessage(remotePeer, RPC.Commands.NEIGHBOR.getNr(), type);
         if (!message.isRequest()) {
             throw new IllegalArgumentException("The type must be a request");
         }
+        message.cachedDigests(cachedDigests && type == Type.REQUEST_2);
         
         message.key(searchValues.locationKey());
         message.key(searchValues.domainKey() == null ? Number160.ZERO : searchValues.domainKey());
@@ -204,7 +221,11 @@ public class NeighborRPC extends DispatchHandler {
         if (isDigest) {
             if (message.type() == Type.REQUEST_2) {
                 final DigestInfo digestInfo;
-                if (peerBean().digestStorage() == null) {
+                // cached copies are only direct hits for get, the requester announces this
+                final DigestStorage digestStorage = message.isCachedDigests()
+                        && peerBean().cachedDigestStorage() != null ? peerBean().cachedDigestStorage() : peerBean()
+                        .digestStorage();
+                if (digestStorage == null) {
                 	//no storage to search
                 	digestInfo = new DigestInfo();
                 }
@@ -212,21 +233,21 @@ public class NeighborRPC extends DispatchHandler {
                 	Number320 locationAndDomainKey = new Number320(locationKey, domainKey);
                     Number640 from = new Number640(locationAndDomainKey, contentKey, Number160.ZERO);
                     Number640 to = new Number640(locationAndDomainKey, contentKey, Number160.MAX_VALUE);
-                    digestInfo = peerBean().digestStorage().digest(from, to, -1, true);
+                    digestInfo = digestStorage.digest(from, to, -1, true);
                 } else if ((keyBloomFilter != null || contentBloomFilter != null)  && locationKey!=null && domainKey!=null) {
                 	Number320 locationAndDomainKey = new Number320(locationKey, domainKey);
-                    digestInfo = peerBean().digestStorage().digest(locationAndDomainKey, keyBloomFilter,
+                    digestInfo = digestStorage.digest(locationAndDomainKey, keyBloomFilter,
                             contentBloomFilter, -1, true, true);
                 } else if (keyCollection!=null && keyCollection.keys().size() == 2) {
                 	Iterator<Number640> iterator = keyCollection.keys().iterator();
                 	Number640 from = iterator.next();
                 	Number640 to = iterator.next();
-                	digestInfo = peerBean().digestStorage().digest(from, to, -1, true);
+                	digestInfo = digestStorage.digest(from, to, -1, true);
                 } else if (locationKey!=null && domainKey!=null){
                 	Number320 locationAndDomainKey = new Number320(locationKey, domainKey);
                     Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
                     Number640 to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
-                    digestInfo = peerBean().digestStorage().digest(from, to, -1, true);
+                    digestInfo = digestStorage.digest(from, to, -1, true);
                 } else {
                 	LOG.warn("did not search for anything");
                 	digestInfo = new DigestInfo();
@@ -24,7 +24,11 @@ public class RPC {
 		SYNC_INFO(),
 		PUT_CONFIRM(),
 		GET_LATEST(),
-		GET_LATEST_WITH_DIGEST();
+		GET_LATEST_WITH_DIGEST(),
+		ANTI_ENTROPY(),
+		GET_HASHES(),
+		PUT_CACHE(),
+		LEASE_INVALIDATE();
 	
 	public byte getNr() {
 		return (byte) ordinal();
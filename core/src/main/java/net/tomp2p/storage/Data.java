@@ -33,6 +33,8 @@ import net.tomp2p.connection.SignatureFactory;
 import net.tomp2p.message.SignatureCodec;
 import net.tomp2p.p2p.PeerBuilder;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.utils.JavaSerializer;
+import net.tomp2p.utils.Serializer;
 import net.tomp2p.utils.Utils;
 
 /**
@@ -81,6 +83,8 @@ public class Data {
 	// never serialized over the network in this object
 	private long validFromMillis;
 	private SignatureFactory signatureFactory;
+	private Serializer serializer;
+	// the content hash, computed once or restored from disk or the wire
 	private Number160 hash;
 	private boolean meta;
 	
@@ -146,7 +150,22 @@ public class Data {
 	}
 
 	public Data(final Object object) throws IOException {
-		this(Utils.encodeJavaObject(object));
+		this(object, JavaSerializer.INSTANCE);
+	}
+
+	/**
+	 * Creates a data object from an object. The serializer is remembered and used for {@link #object()}.
+	 * 
+	 * @param object
+	 *            The object to encode
+	 * @param serializer
+	 *            The serializer that encodes the object
+	 * @throws IOException
+	 *             If the object cannot be encoded
+	 */
+	public Data(final Object object, final Serializer serializer) throws IOException {
+		this(serializer.encode(object));
+		this.serializer = serializer;
 	}
 
 	public Data(final byte[] buffer) {
@@ -476,7 +495,11 @@ public class Data {
 	}
 
 	public Object object() throws ClassNotFoundException, IOException {
-		return Utils.decodeJavaObject(buffer);
+		return object(serializer());
+	}
+
+	public Object object(final Serializer serializer) throws ClassNotFoundException, IOException {
+		return serializer.decode(buffer.toByteBuf());
 	}
 
 	public long validFromMillis() {
@@ -607,6 +630,26 @@ public class Data {
 		return this;
 	}
 
+	public Serializer serializer() {
+		if (serializer == null) {
+			return JavaSerializer.INSTANCE;
+		} else {
+			return serializer;
+		}
+	}
+
+	/**
+	 * Sets the serializer used by {@link #object()}. Like the signature factory, it is never sent over the network.
+	 * 
+	 * @param serializer
+	 *            The serializer
+	 * @return This class
+	 */
+	public Data serializer(Serializer serializer) {
+		this.serializer = serializer;
+		return this;
+	}
+
 	public boolean isProtectedEntry() {
 		return protectedEntry;
 	}
@@ -753,6 +796,8 @@ public class Data {
 		data.privateKey = privateKey;
 		data.validFromMillis = validFromMillis;
 		data.prepareFlag = prepareFlag;
+		data.serializer = serializer;
+		data.hash = hash;
 		return data;
 	}
 	
@@ -773,6 +818,8 @@ public class Data {
 		data.privateKey = privateKey;
 		data.validFromMillis = validFromMillis;
 		data.prepareFlag = prepareFlag;
+		data.serializer = serializer;
+		data.hash = hash;
 		return data;
 	}
 
@@ -906,4 +953,24 @@ public class Data {
 		return hash;
 	}
 
+	/**
+	 * @return True if the content hash is known and {@link #hash()} does not need to read the payload
+	 */
+	public boolean hasHash() {
+		return hash != null;
+	}
+
+	/**
+	 * Sets the content hash that has been computed before, e.g., when it was stored to disk or sent over the network.
+	 * The hash is not verified. For meta data, this is the hash of the content that has been left out.
+	 * 
+	 * @param hash
+	 *            The SHA-1 hash of the payload
+	 * @return This class
+	 */
+	public Data hash(Number160 hash) {
+		this.hash = hash;
+		return this;
+	}
+
 }
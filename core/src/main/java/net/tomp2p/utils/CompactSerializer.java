@@ -0,0 +1,302 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.utils;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+/**
+ * A binary serializer without reflection for the common value types: null, boolean, byte, short, char, int, long,
+ * float, double, String, byte[], {@link Number160}, {@link Number640}, and lists, sets and maps of those. Each value
+ * starts with a one byte tag, ints and longs are written as zig-zag varints, and lengths as varints. Lists are decoded
+ * as {@link ArrayList}, sets as {@link LinkedHashSet} and maps as {@link LinkedHashMap}, sorted sets and maps with
+ * natural ordering as {@link TreeSet} and {@link TreeMap}. Any other object is embedded with Java serialization.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class CompactSerializer implements Serializer {
+
+    public static final CompactSerializer INSTANCE = new CompactSerializer();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int NULL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int BYTE = 3;
+    private static final int SHORT = 4;
+    private static final int CHAR = 5;
+    private static final int INT = 6;
+    private static final int LONG = 7;
+    private static final int FLOAT = 8;
+    private static final int DOUBLE = 9;
+    private static final int STRING = 10;
+    private static final int BYTES = 11;
+    private static final int NUMBER160 = 12;
+    private static final int NUMBER640 = 13;
+    private static final int LIST = 14;
+    private static final int SET = 15;
+    private static final int SORTED_SET = 16;
+    private static final int MAP = 17;
+    private static final int SORTED_MAP = 18;
+    private static final int JAVA = 19;
+
+    @Override
+    public byte[] encode(final Object object) throws IOException {
+        final ByteBuf buf = Unpooled.buffer();
+        write(buf, object);
+        final byte[] me = new byte[buf.readableBytes()];
+        buf.readBytes(me);
+        return me;
+    }
+
+    @Override
+    public Object decode(final ByteBuf buf) throws ClassNotFoundException, IOException {
+        try {
+            return read(buf);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("truncated value", e);
+        }
+    }
+
+    private static void write(final ByteBuf buf, final Object object) throws IOException {
+        if (object == null) {
+            buf.writeByte(NULL);
+        } else if (object instanceof Boolean) {
+            buf.writeByte((Boolean) object ? TRUE : FALSE);
+        } else if (object instanceof Byte) {
+            buf.writeByte(BYTE);
+            buf.writeByte((Byte) object);
+        } else if (object instanceof Short) {
+            buf.writeByte(SHORT);
+            buf.writeShort((Short) object);
+        } else if (object instanceof Character) {
+            buf.writeByte(CHAR);
+            buf.writeChar((Character) object);
+        } else if (object instanceof Integer) {
+            buf.writeByte(INT);
+            writeVarLong(buf, zigZag((Integer) object));
+        } else if (object instanceof Long) {
+            buf.writeByte(LONG);
+            writeVarLong(buf, zigZag((Long) object));
+        } else if (object instanceof Float) {
+            buf.writeByte(FLOAT);
+            buf.writeFloat((Float) object);
+        } else if (object instanceof Double) {
+            buf.writeByte(DOUBLE);
+            buf.writeDouble((Double) object);
+        } else if (object instanceof String) {
+            buf.writeByte(STRING);
+            writeBytes(buf, ((String) object).getBytes(UTF8));
+        } else if (object instanceof byte[]) {
+            buf.writeByte(BYTES);
+            writeBytes(buf, (byte[]) object);
+        } else if (object.getClass() == Number160.class) {
+            buf.writeByte(NUMBER160);
+            buf.writeBytes(((Number160) object).toByteArray());
+        } else if (object.getClass() == Number640.class) {
+            final Number640 number640 = (Number640) object;
+            buf.writeByte(NUMBER640);
+            buf.writeBytes(number640.locationKey().toByteArray());
+            buf.writeBytes(number640.domainKey().toByteArray());
+            buf.writeBytes(number640.contentKey().toByteArray());
+            buf.writeBytes(number640.versionKey().toByteArray());
+        } else if (object instanceof List) {
+            buf.writeByte(LIST);
+            writeCollection(buf, (List<?>) object);
+        } else if (object instanceof SortedSet && ((SortedSet<?>) object).comparator() == null) {
+            buf.writeByte(SORTED_SET);
+            writeCollection(buf, (SortedSet<?>) object);
+        } else if (object instanceof Set && !(object instanceof SortedSet)) {
+            buf.writeByte(SET);
+            writeCollection(buf, (Set<?>) object);
+        } else if (object instanceof SortedMap && ((SortedMap<?, ?>) object).comparator() == null) {
+            buf.writeByte(SORTED_MAP);
+            writeMap(buf, (SortedMap<?, ?>) object);
+        } else if (object instanceof Map && !(object instanceof SortedMap)) {
+            buf.writeByte(MAP);
+            writeMap(buf, (Map<?, ?>) object);
+        } else {
+            buf.writeByte(JAVA);
+            writeBytes(buf, Utils.encodeJavaObject(object));
+        }
+    }
+
+    private static void writeCollection(final ByteBuf buf, final Collection<?> collection) throws IOException {
+        writeVarLong(buf, collection.size());
+        for (Object object : collection) {
+            write(buf, object);
+        }
+    }
+
+    private static void writeMap(final ByteBuf buf, final Map<?, ?> map) throws IOException {
+        writeVarLong(buf, map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            write(buf, entry.getKey());
+            write(buf, entry.getValue());
+        }
+    }
+
+    private static void writeBytes(final ByteBuf buf, final byte[] me) {
+        writeVarLong(buf, me.length);
+        buf.writeBytes(me);
+    }
+
+    private static Object read(final ByteBuf buf) throws ClassNotFoundException, IOException {
+        final int tag = buf.readUnsignedByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case BYTE:
+            return buf.readByte();
+        case SHORT:
+            return buf.readShort();
+        case CHAR:
+            return buf.readChar();
+        case INT:
+            return (int) unZigZag(readVarLong(buf));
+        case LONG:
+            return unZigZag(readVarLong(buf));
+        case FLOAT:
+            return buf.readFloat();
+        case DOUBLE:
+            return buf.readDouble();
+        case STRING:
+            final int length = readLength(buf);
+            final String string = buf.toString(buf.readerIndex(), length, UTF8);
+            buf.skipBytes(length);
+            return string;
+        case BYTES:
+            return readBytes(buf);
+        case NUMBER160:
+            return readNumber160(buf);
+        case NUMBER640:
+            return new Number640(readNumber160(buf), readNumber160(buf), readNumber160(buf), readNumber160(buf));
+        case LIST:
+            final int listSize = readLength(buf);
+            return readCollection(buf, listSize, new ArrayList<Object>(listSize));
+        case SET:
+            final int setSize = readLength(buf);
+            return readCollection(buf, setSize, new LinkedHashSet<Object>(capacity(setSize)));
+        case SORTED_SET:
+            return readCollection(buf, readLength(buf), new TreeSet<Object>());
+        case MAP:
+            final int mapSize = readLength(buf);
+            return readMap(buf, mapSize, new LinkedHashMap<Object, Object>(capacity(mapSize)));
+        case SORTED_MAP:
+            return readMap(buf, readLength(buf), new TreeMap<Object, Object>());
+        case JAVA:
+            return Utils.decodeJavaObject(buf.readSlice(readLength(buf)));
+        default:
+            throw new IOException("unknown tag " + tag);
+        }
+    }
+
+    private static Collection<Object> readCollection(final ByteBuf buf, final int size,
+            final Collection<Object> collection) throws ClassNotFoundException, IOException {
+        for (int i = 0; i < size; i++) {
+            collection.add(read(buf));
+        }
+        return collection;
+    }
+
+    private static Map<Object, Object> readMap(final ByteBuf buf, final int size, final Map<Object, Object> map)
+            throws ClassNotFoundException, IOException {
+        for (int i = 0; i < size; i++) {
+            final Object key = read(buf);
+            map.put(key, read(buf));
+        }
+        return map;
+    }
+
+    private static Number160 readNumber160(final ByteBuf buf) {
+        final byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+        buf.readBytes(me);
+        return new Number160(me);
+    }
+
+    private static byte[] readBytes(final ByteBuf buf) throws IOException {
+        final byte[] me = new byte[readLength(buf)];
+        buf.readBytes(me);
+        return me;
+    }
+
+    /**
+     * Reads a length and checks it against the remaining bytes, so that a corrupt length does not allocate a huge
+     * array. Every element takes at least one byte.
+     */
+    private static int readLength(final ByteBuf buf) throws IOException {
+        final long length = readVarLong(buf);
+        if (length < 0 || length > buf.readableBytes()) {
+            throw new IOException("invalid length " + length);
+        }
+        return (int) length;
+    }
+
+    private static int capacity(final int size) {
+        return Math.max((int) (size / .75f) + 1, 16);
+    }
+
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(final ByteBuf buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.writeByte((int) value);
+    }
+
+    private static long readVarLong(final ByteBuf buf) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = buf.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("varint too long");
+    }
+}
@@ -15,27 +15,29 @@
  */
 package net.tomp2p.utils;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /**
- * A map with expiration and more or less LRU. Since the maps are separated in segments, the LRU is done for each
- * segment. A segment is chosen based on the hash of the key. If one segments is more loaded than another, then an entry
- * of the loaded segment may get evicted before an entry used least recently from an other segment. The expiration is
- * done best effort. There is no thread checking for timed out entries since the cache has a fixed size. Once an entry
- * times out, it remains in the map until it either is accessed or evicted. A test showed that for the default entry
- * size of 1024, this map has a size of 967 if 1024 items are inserted. This is due to the segmentation and hashing.
- * 
+ * A map with expiration and approximate LRU. The map is split into segments, the number of segments grows with the
+ * number of cores. Each segment is a {@link ConcurrentHashMap}, so reads never lock. A read only sets a reference bit
+ * on the entry instead of reordering a list. If the map is full, the entry to evict is chosen with the clock algorithm
+ * in the segment of the new key: a hand moves over the entries of the segment, clears the reference bits, and evicts
+ * the first entry that was not used since the hand passed it the last time. Only the hand of a segment is guarded by a
+ * lock. The capacity is for the whole map, not per segment. The expiration is done best effort. Expired entries are
+ * never returned, they are removed when they are accessed, when the hand passes them, and in batches when a segment
+ * is written to and its last sweep is older than a quarter of the time to live. There is no thread checking for timed
+ * out entries.
+ *
  * @author Thomas Bocek
  * @param <K>
  *            the type of the key
@@ -43,12 +45,12 @@ import org.slf4j.LoggerFactory;
  *            the type of the value
  */
 public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
-    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrentCacheMap.class);
 
     /**
-     * Number of segments that can be accessed concurrently.
+     * Number of segments that can be accessed concurrently, the next power of two of twice the number of cores.
      */
-    public static final int SEGMENT_NR = 16;
+    public static final int SEGMENT_NR = Integer.highestOneBit(Math.max(1,
+            Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
 
     /**
      * Max. number of entries that the map can hold until the least recently used gets replaced
@@ -60,26 +62,32 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
      */
     public static final int DEFAULT_TIME_TO_LIVE = 60;
 
-    private final CacheMap<K, ExpiringObject>[] segments;
+    private static final int MIN_SWEEP_INTERVAL_MILLIS = 100;
+
+    private final Segment[] segments;
+
+    private final long timeToLiveMillis;
+
+    private final long sweepIntervalMillis;
 
-    private final int timeToLiveSeconds;
+    private final int maxEntries;
 
     private final boolean refreshTimeout;
 
+    private final AtomicInteger size = new AtomicInteger();
+
     private final AtomicInteger removedCounter = new AtomicInteger();
 
     /**
-     * Creates a new instance of ConcurrentCacheMap using the supplied values and a {@link CacheMap} for the internal
-     * data structure.
+     * Creates a new instance of ConcurrentCacheMap with a time to live of 60 seconds and 1024 entries.
      */
     public ConcurrentCacheMap() {
         this(DEFAULT_TIME_TO_LIVE, MAX_ENTRIES, true);
     }
 
     /**
-     * Creates a new instance of ConcurrentCacheMap using the supplied values and a {@link CacheMap} for the internal
-     * data structure.
-     * 
+     * Creates a new instance of ConcurrentCacheMap using the supplied values.
+     *
      * @param timeToLive
      *            The time-to-live value (seconds)
      * @param maxEntries
@@ -90,9 +98,8 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
     }
 
     /**
-     * Creates a new instance of ConcurrentCacheMap using the supplied values and a {@link CacheMap} for the internal
-     * data structure.
-     * 
+     * Creates a new instance of ConcurrentCacheMap using the supplied values.
+     *
      * @param timeToLiveSeconds
      *            The time-to-live value (seconds)
      * @param maxEntries
@@ -102,145 +109,109 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
      */
     @SuppressWarnings("unchecked")
     public ConcurrentCacheMap(final int timeToLiveSeconds, final int maxEntries, final boolean refreshTimeout) {
-        this.segments = new CacheMap[SEGMENT_NR];
-        final int maxEntriesPerSegment = maxEntries / SEGMENT_NR;
+        this.segments = new ConcurrentCacheMap.Segment[SEGMENT_NR];
         for (int i = 0; i < SEGMENT_NR; i++) {
-            // set the cachemap to true, since it should behave as a regular map
-            segments[i] = new CacheMap<K, ExpiringObject>(maxEntriesPerSegment, true);
+            segments[i] = new Segment(i);
         }
-        this.timeToLiveSeconds = timeToLiveSeconds;
+        this.timeToLiveMillis = TimeUnit.MILLISECONDS.convert(timeToLiveSeconds, TimeUnit.SECONDS);
+        this.sweepIntervalMillis = Math.max(timeToLiveMillis / 4, MIN_SWEEP_INTERVAL_MILLIS);
+        this.maxEntries = maxEntries;
         this.refreshTimeout = refreshTimeout;
     }
 
     /**
      * Returns the segment based on the key.
-     * 
+     *
      * @param key
      *            The key where the hash code identifies the segment
-     * @return The cache map that corresponds to this segment
+     * @return The segment of this key
      */
-    private CacheMap<K, ExpiringObject> segment(final Object key) {
-        return segments[(key.hashCode() & Integer.MAX_VALUE) % SEGMENT_NR];
+    private Segment segment(final Object key) {
+        final int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENT_NR - 1)];
     }
 
     @Override
     public V put(final K key, final V value) {
-        final ExpiringObject newValue = new ExpiringObject(value, System.currentTimeMillis());
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.put(key, newValue);
-        }
-        if (oldValue == null || oldValue.isExpired()) {
+        final long now = System.currentTimeMillis();
+        final Segment segment = segment(key);
+        final ExpiringObject oldValue = segment.map.put(key, new ExpiringObject(value, now));
+        if (oldValue == null) {
+            added(segment, now);
             return null;
         }
-        return oldValue.getValue();
+        written(segment, now);
+        return oldValue.isExpired(now) ? null : oldValue.value;
     }
 
     @Override
     /**
-     * This does not reset the timer!
+     * This does not reset the timer, unless refreshTimeout is set!
      */
     public V putIfAbsent(final K key, final V value) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject newValue = new ExpiringObject(value, System.currentTimeMillis());
-        ExpiringObject oldValue = null;
-        synchronized (segment) {
-            if (!segment.containsKey(key)) {
-                oldValue = segment.put(key, newValue);
-            } else {
-                oldValue = segment.get(key);
-                if (oldValue.isExpired()) {
-                    segment.put(key, newValue);
-                } else if (refreshTimeout) {
-                    oldValue = new ExpiringObject(oldValue.getValue(), System.currentTimeMillis());
-                    segment.put(key, oldValue);
+        final long now = System.currentTimeMillis();
+        final Segment segment = segment(key);
+        final ExpiringObject newValue = new ExpiringObject(value, now);
+        while (true) {
+            final ExpiringObject oldValue = segment.map.putIfAbsent(key, newValue);
+            if (oldValue == null) {
+                added(segment, now);
+                return null;
+            }
+            if (oldValue.isExpired(now)) {
+                if (segment.map.replace(key, oldValue, newValue)) {
+                    removedCounter.incrementAndGet();
+                    written(segment, now);
+                    return null;
                 }
+                // changed in the meantime, try again
+                continue;
             }
+            if (refreshTimeout) {
+                oldValue.lastAccessTime = now;
+            }
+            oldValue.touch();
+            return oldValue.value;
         }
-        if (oldValue == null || oldValue.isExpired()) {
-            return null;
-        }
-        return oldValue.getValue();
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public V get(final Object key) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-        }
-        if (oldValue != null) {
-            if (expire(segment, (K) key, oldValue)) {
-                return null;
-            } else {
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("get: " + key + ";" + oldValue.getValue());
-                }
-                return oldValue.getValue();
-            }
-        }
-        if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("get not found: " + key);
-        }
-        return null;
+        final ExpiringObject value = live(key);
+        return value == null ? null : value.value;
     }
 
     @Override
     public V remove(final Object key) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.remove(key);
-        }
-        if (oldValue == null || oldValue.isExpired()) {
+        final Segment segment = segment(key);
+        final ExpiringObject oldValue = segment.map.remove(key);
+        if (oldValue == null) {
             return null;
         }
-        return oldValue.getValue();
+        size.decrementAndGet();
+        return oldValue.isExpired(System.currentTimeMillis()) ? null : oldValue.value;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public boolean remove(final Object key, final Object value) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        boolean removed = false;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-            if (oldValue != null && oldValue.equals(value) && !oldValue.isExpired()) {
-                removed = segment.remove(key) != null;
-            }
+        final ExpiringObject oldValue = live(key);
+        if (oldValue != null && oldValue.value.equals(value)) {
+            return remove(segment(key), key, oldValue);
         }
-        if (oldValue != null) {
-            expire(segment, (K) key, oldValue);
-        }
-        return removed;
+        return false;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public boolean containsKey(final Object key) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-        }
-        if (oldValue != null) {
-            if (!expire(segment, (K) key, oldValue)) {
-                return true;
-            }
-        }
-        return false;
+        return live(key) != null;
     }
 
     @Override
     public boolean containsValue(final Object value) {
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                if (segment.containsValue(value)) {
+        final long now = System.currentTimeMillis();
+        for (final Segment segment : segments) {
+            for (final ExpiringObject expiringObject : segment.map.values()) {
+                if (!expiringObject.isExpired(now) && expiringObject.value.equals(value)) {
                     return true;
                 }
             }
@@ -249,62 +220,55 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
     }
 
     @Override
-    public int size() {
-        int size = 0;
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                size += segment.size();
+    public boolean replace(final K key, final V oldValue, final V newValue) {
+        final ExpiringObject current = live(key);
+        if (current != null && current.value.equals(oldValue)) {
+            final long now = System.currentTimeMillis();
+            final Segment segment = segment(key);
+            if (segment.map.replace(key, current, new ExpiringObject(newValue, now))) {
+                written(segment, now);
+                return true;
             }
         }
-        return size;
+        return false;
     }
 
     @Override
-    public boolean isEmpty() {
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                if (!segment.isEmpty()) {
-                    return false;
-                }
+    public V replace(final K key, final V value) {
+        while (true) {
+            final ExpiringObject current = live(key);
+            if (current == null) {
+                return null;
+            }
+            final long now = System.currentTimeMillis();
+            final Segment segment = segment(key);
+            if (segment.map.replace(key, current, new ExpiringObject(value, now))) {
+                written(segment, now);
+                return current.value;
             }
         }
-        return true;
     }
 
     @Override
-    public void clear() {
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                segment.clear();
-            }
-        }
+    public int size() {
+        expire();
+        return Math.max(0, size.get());
     }
 
     @Override
-    public int hashCode() {
-        int hashCode = 0;
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                // as seen in AbstractMap
-                hashCode += segment.hashCode();
-            }
-        }
-        return hashCode;
+    public boolean isEmpty() {
+        return size() == 0;
     }
 
     @Override
-    public Set<K> keySet() {
-        final Set<K> retVal = new HashSet<K>();
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                retVal.addAll(segment.keySet());
+    public void clear() {
+        for (final Segment segment : segments) {
+            for (final K key : segment.map.keySet()) {
+                if (segment.map.remove(key) != null) {
+                    size.decrementAndGet();
+                }
             }
         }
-        return retVal;
     }
 
     @Override
@@ -314,61 +278,51 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
         }
     }
 
+    /**
+     * @return A copy of the keys that are not expired
+     */
+    @Override
+    public Set<K> keySet() {
+        final long now = System.currentTimeMillis();
+        final Set<K> retVal = new HashSet<K>();
+        for (final Segment segment : segments) {
+            for (final Map.Entry<K, ExpiringObject> entry : segment.map.entrySet()) {
+                if (!entry.getValue().isExpired(now)) {
+                    retVal.add(entry.getKey());
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return A copy of the values that are not expired
+     */
     @Override
     public Collection<V> values() {
+        final long now = System.currentTimeMillis();
         final Collection<V> retVal = new ArrayList<V>();
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                final Iterator<ExpiringObject> iterator = segment.values().iterator();
-                while (iterator.hasNext()) {
-                    final ExpiringObject expiringObject = iterator.next();
-                    if (expiringObject.isExpired()) {
-                        iterator.remove();
-                        if (LOGGER.isDebugEnabled()) {
-                            LOGGER.debug("remove in entrySet " + expiringObject.getValue());
-                        }
-                        removedCounter.incrementAndGet();
-                    } else {
-                        retVal.add(expiringObject.getValue());
-                    }
+        for (final Segment segment : segments) {
+            for (final ExpiringObject expiringObject : segment.map.values()) {
+                if (!expiringObject.isExpired(now)) {
+                    retVal.add(expiringObject.value);
                 }
             }
         }
         return retVal;
     }
 
+    /**
+     * @return A copy of the entries that are not expired, the entries cannot be modified
+     */
     @Override
     public Set<Map.Entry<K, V>> entrySet() {
+        final long now = System.currentTimeMillis();
         final Set<Map.Entry<K, V>> retVal = new HashSet<Map.Entry<K, V>>();
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                final Iterator<Map.Entry<K, ExpiringObject>> iterator = segment.entrySet().iterator();
-                while (iterator.hasNext()) {
-                    final Map.Entry<K, ExpiringObject> entry = iterator.next();
-                    if (entry.getValue().isExpired()) {
-                        iterator.remove();
-                        if (LOGGER.isDebugEnabled()) {
-                            LOGGER.debug("remove in entrySet " + entry.getValue().getValue());
-                        }
-                        removedCounter.incrementAndGet();
-                    } else {
-                        retVal.add(new Map.Entry<K, V>() {
-                            @Override
-                            public K getKey() {
-                                return entry.getKey();
-                            }
-
-                            @Override
-                            public V getValue() {
-                                return entry.getValue().getValue();
-                            }
-
-                            @Override
-                            public V setValue(final V value) {
-                                throw new UnsupportedOperationException("not supported");
-                            }
-                        });
-                    }
+        for (final Segment segment : segments) {
+            for (final Map.Entry<K, ExpiringObject> entry : segment.map.entrySet()) {
+                if (!entry.getValue().isExpired(now)) {
+                    retVal.add(new AbstractMap.SimpleImmutableEntry<K, V>(entry.getKey(), entry.getValue().value));
                 }
             }
         }
@@ -376,113 +330,190 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
     }
 
     @Override
-    public boolean replace(final K key, final V oldValue, final V newValue) {
-        final ExpiringObject oldValue2 = new ExpiringObject(oldValue, 0L);
-        final ExpiringObject newValue2 = new ExpiringObject(newValue, System.currentTimeMillis());
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue3;
-        boolean replaced = false;
-        synchronized (segment) {
-            oldValue3 = segment.get(key);
-            if (oldValue3 != null && !oldValue3.isExpired() && oldValue2.equals(oldValue3.getValue())) {
-                segment.put(key, newValue2);
-                replaced = true;
-            }
+    public boolean equals(final Object obj) {
+        if (obj == this) {
+            return true;
         }
-        if (oldValue3 != null) {
-            expire(segment, key, oldValue3);
+        if (!(obj instanceof Map)) {
+            return false;
         }
-        return replaced;
+        return entrySet().equals(((Map<?, ?>) obj).entrySet());
     }
 
     @Override
-    public V replace(final K key, final V value) {
-        final ExpiringObject newValue = new ExpiringObject(value, System.currentTimeMillis());
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-            if (oldValue != null && !oldValue.isExpired()) {
-                segment.put(key, newValue);
-            }
-        }
-        if (oldValue == null) {
-            return null;
+    public int hashCode() {
+        // as seen in AbstractMap
+        int hashCode = 0;
+        for (final Map.Entry<K, V> entry : entrySet()) {
+            hashCode += entry.hashCode();
         }
-        if (expire(segment, key, oldValue)) {
-            return null;
+        return hashCode;
+    }
+
+    /**
+     * Removes all expired entries.
+     *
+     * @return The number of removed entries
+     */
+    public int expire() {
+        final long now = System.currentTimeMillis();
+        int removed = 0;
+        for (final Segment segment : segments) {
+            removed += sweep(segment, now);
         }
-        return oldValue.getValue();
+        return removed;
     }
 
     /**
-     * Expires a key in a segment. If a key value pair is expired, it will get removed.
-     * 
-     * @param segment
-     *            The segment
+     * @return The number of expired objects
+     */
+    public int expiredCounter() {
+        return removedCounter.get();
+    }
+
+    /**
+     * Looks up an entry without locking. An expired entry is removed.
+     *
      * @param key
      *            The key
-     * @param value
-     *            The value
-     * @return True if expired, otherwise false.
+     * @return The entry or null if there is none or it expired
      */
-    private boolean expire(final CacheMap<K, ExpiringObject> segment, final K key, final ExpiringObject value) {
-        if (value.isExpired()) {
-            synchronized (segment) {
-                final ExpiringObject tmp = segment.get(key);
-                if (tmp != null && tmp.equals(value)) {
-                    segment.remove(key);
-                    if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("remove in expire " + value.getValue());
-                    }
-                    removedCounter.incrementAndGet();
-                }
+    private ExpiringObject live(final Object key) {
+        final Segment segment = segment(key);
+        final ExpiringObject value = segment.map.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (value.isExpired(System.currentTimeMillis())) {
+            if (remove(segment, key, value)) {
+                removedCounter.incrementAndGet();
             }
+            return null;
+        }
+        value.touch();
+        return value;
+    }
+
+    private boolean remove(final Segment segment, final Object key, final ExpiringObject value) {
+        // the entries do not override equals, so only this entry is removed
+        if (segment.map.remove(key, value)) {
+            size.decrementAndGet();
             return true;
         }
         return false;
     }
 
     /**
-     * Fast expiration. Since the ExpiringObject is ordered the for loop can break early if a object is not expired.
-     * 
-     * @param segment
-     *            The segment
+     * Called after a new key was added. Evicts an entry if the map is full.
+     */
+    private void added(final Segment segment, final long now) {
+        written(segment, now);
+        if (size.incrementAndGet() <= maxEntries) {
+            return;
+        }
+        // start with the segment of the new key, the other segments only if all entries of this one were used
+        final int start = segment.index;
+        for (int i = 0; i < SEGMENT_NR; i++) {
+            if (evict(segments[(start + i) & (SEGMENT_NR - 1)], now, false)) {
+                return;
+            }
+        }
+        evict(segment, now, true);
+    }
+
+    /**
+     * Called after a segment was written to, removes the expired entries in a batch from time to time.
+     */
+    private void written(final Segment segment, final long now) {
+        if (now >= segment.nextSweep) {
+            sweep(segment, now);
+        }
+    }
+
+    private int sweep(final Segment segment, final long now) {
+        segment.nextSweep = now + sweepIntervalMillis;
+        int removed = 0;
+        for (final Map.Entry<K, ExpiringObject> entry : segment.map.entrySet()) {
+            if (entry.getValue().isExpired(now) && remove(segment, entry.getKey(), entry.getValue())) {
+                removed++;
+            }
+        }
+        removedCounter.addAndGet(removed);
+        return removed;
+    }
+
+    /**
+     * Moves the clock hand of the segment until an expired entry or an entry that was not used since the last round
+     * is found and removes it.
+     *
+     * @param force
+     *            If false, the hand goes once around the segment, if true twice, so that an entry is removed even if
+     *            all of them were used
+     * @return True if an entry was removed
      */
-    private void expireSegment(final CacheMap<K, ExpiringObject> segment) {
-        final Iterator<ExpiringObject> iterator = segment.values().iterator();
-        while (iterator.hasNext()) {
-            final ExpiringObject expiringObject = iterator.next();
-            if (expiringObject.isExpired()) {
-                iterator.remove();
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("remove in expireAll " + expiringObject.getValue());
+    private boolean evict(final Segment segment, final long now, final boolean force) {
+        synchronized (segment) {
+            int steps = force ? 2 * segment.map.size() + 1 : segment.map.size();
+            while (steps > 0) {
+                if (segment.hand == null || !segment.hand.hasNext()) {
+                    segment.hand = segment.map.entrySet().iterator();
+                    if (!segment.hand.hasNext()) {
+                        return false;
+                    }
+                }
+                final Map.Entry<K, ExpiringObject> entry = segment.hand.next();
+                final ExpiringObject value = entry.getValue();
+                if (segment.map.get(entry.getKey()) != value) {
+                    // the hand is weakly consistent, entries removed since it was created are skipped
+                    continue;
+                }
+                steps--;
+                final boolean expired = value.isExpired(now);
+                if (expired || !value.referenced) {
+                    if (remove(segment, entry.getKey(), value)) {
+                        if (expired) {
+                            removedCounter.incrementAndGet();
+                        }
+                        return true;
+                    }
+                } else {
+                    value.referenced = false;
                 }
-                removedCounter.incrementAndGet();
-            } else {
-                break;
             }
+            return false;
         }
     }
 
     /**
-     * @return The number of expired objects
+     * A part of the map. The hand is guarded by the segment.
      */
-    public int expiredCounter() {
-        return removedCounter.get();
+    private final class Segment {
+        // we are already segmented, one lock per map is enough for the writes
+        private final ConcurrentHashMap<K, ExpiringObject> map = new ConcurrentHashMap<K, ExpiringObject>(16,
+                0.75f, 1);
+        private final int index;
+        private Iterator<Map.Entry<K, ExpiringObject>> hand;
+        private volatile long nextSweep;
+
+        private Segment(final int index) {
+            this.index = index;
+        }
     }
 
     /**
-     * An object that also holds expriation information.
+     * An object that also holds expriation information and the reference bit for the clock. The object does not
+     * override equals, so that an entry is only replaced or removed if it has not changed in the meantime.
      */
-    private class ExpiringObject {
+    private final class ExpiringObject {
         private final V value;
 
-        private final long lastAccessTime;
+        private volatile long lastAccessTime;
+
+        private volatile boolean referenced = true;
 
         /**
          * Creates a new expiring object with the given time of access.
-         * 
+         *
          * @param value
          *            The value that is wrapped in this class
          * @param lastAccessTime
@@ -497,33 +528,21 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
         }
 
         /**
+         * @param now
+         *            The current time
          * @return If entry is expired
          */
-        public boolean isExpired() {
-            return System.currentTimeMillis() >= lastAccessTime + 
-            		(TimeUnit.MILLISECONDS.convert(timeToLiveSeconds, TimeUnit.SECONDS));
+        boolean isExpired(final long now) {
+            return now >= lastAccessTime + timeToLiveMillis;
         }
 
         /**
-         * @return The wrapped value
+         * Marks the entry as used. Only writes if the bit is not set yet, to not dirty the cache line on every read.
          */
-        public V getValue() {
-            return value;
-        }
-
-        @Override
-        public boolean equals(final Object obj) {
-            if (!(obj instanceof ConcurrentCacheMap.ExpiringObject)) {
-                return false;
+        void touch() {
+            if (!referenced) {
+                referenced = true;
             }
-            @SuppressWarnings("unchecked")
-            final ExpiringObject exp = (ExpiringObject) obj;
-            return value.equals(exp.value);
-        }
-
-        @Override
-        public int hashCode() {
-            return value.hashCode();
         }
     }
 }
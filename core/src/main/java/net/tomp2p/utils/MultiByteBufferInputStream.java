@@ -51,6 +51,9 @@ public class MultiByteBufferInputStream extends InputStream {
     @Override
     public int read(final byte[] b, final int off, final int len) throws IOException {
         int len2 = channelBuffer.readableBytes();
+        if (len2 == 0 && len > 0) {
+            return -1;
+        }
         int read = Math.min(len, len2);
         channelBuffer.readBytes(b, off, read);
         return read;
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.utils;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * Converts the objects stored in {@link net.tomp2p.storage.Data} to bytes and back. The serializer is set on the peer
+ * with {@link net.tomp2p.p2p.PeerBuilder#serializer(Serializer)} and all peers storing and reading the same values need
+ * to use the same serializer. Implementations are shared among threads and must be thread-safe.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface Serializer {
+
+    /**
+     * @param object
+     *            The object to encode
+     * @return The encoded object
+     * @throws IOException
+     *             If the object cannot be encoded
+     */
+    byte[] encode(Object object) throws IOException;
+
+    /**
+     * @param buf
+     *            The buffer with the encoded object, starting from the reader index. The reader index is moved.
+     * @return The decoded object
+     * @throws ClassNotFoundException
+     *             If the class of the object is not known
+     * @throws IOException
+     *             If the buffer cannot be decoded
+     */
+    Object decode(ByteBuf buf) throws ClassNotFoundException, IOException;
+}
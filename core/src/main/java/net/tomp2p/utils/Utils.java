@@ -28,7 +28,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.SequenceInputStream;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -49,7 +48,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
-import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
@@ -59,6 +57,7 @@ import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.message.TrackerData;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number480;
@@ -296,43 +295,13 @@ public class Utils {
         return obj;
     }
 
-    public static synchronized Object decodeJavaObject(DataBuffer dataBuffer) throws ClassNotFoundException, IOException {
-        
-        List<ByteBuffer> buffers = dataBuffer.shallowCopy().bufferList();
-        int count = buffers.size();
-        Vector<InputStream> is = new Vector<InputStream>(count);
-        for (ByteBuffer byteBuffer : buffers) {
-            is.add(createInputStream(byteBuffer));
-        }
-        SequenceInputStream sis = new SequenceInputStream(is.elements());
-        ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(sis));
-        //TODO: investigate this issue
-        /*ObjectInputStream ois = null;
-        try {
-         ois = new ObjectInputStream(new BufferedInputStream(sis));
-        } catch (Throwable t) {
-            for (ByteBuffer byteBuffer : buffers) {
-                byteBuffer.rewind();
-                int read  = byteBuffer.capacity();
-                byteBuffer.limit(read);
-                byte me[] = new byte[read];
-                byteBuffer.get(me);
-                System.err.println("wrong array1 ("+System.identityHashCode(byteBuffer)+"): "+Arrays.toString(me));
-                
-                if(dataBuffer.test!=null) {
-                dataBuffer.test.readerIndex(0);
-                dataBuffer.test.writerIndex(dataBuffer.test.capacity());
-                me = new byte[dataBuffer.test.readableBytes()];
-                dataBuffer.test.readBytes(me);
-                System.err.println("wrong array2 ("+System.identityHashCode(byteBuffer)+"): "+Arrays.toString(me));
-                }
-                
-            }
-            t.printStackTrace();
-        }*/
-        Object obj = ois.readObject();
-        ois.close();
-        return obj;
+    /**
+     * @deprecated Use {@link JavaSerializer#decode(ByteBuf)} or {@link #decodeJavaObject(ByteBuf)}, this method no
+     *             longer synchronizes and only delegates.
+     */
+    @Deprecated
+    public static Object decodeJavaObject(DataBuffer dataBuffer) throws ClassNotFoundException, IOException {
+        return decodeJavaObject(dataBuffer.toByteBuf());
     }
 
     public static InputStream createInputStream(final ByteBuffer buf) {
@@ -828,6 +797,27 @@ public class Utils {
     	});
     }
 
+    /**
+     * Checks if the failed requests only failed because the other peers were overloaded. In that case, the peers are
+     * alive and the requests can be sent to other peers without counting a failure.
+     * 
+     * @param responses
+     *            The completed requests
+     * @return True if at least one request failed and all failed requests were rejected with an overload reply
+     */
+    public static boolean isOverload(final Collection<FutureResponse> responses) {
+        boolean overload = false;
+        for (FutureResponse futureResponse : responses) {
+            if (futureResponse.isFailed()) {
+                if (!futureResponse.isOverload()) {
+                    return false;
+                }
+                overload = true;
+            }
+        }
+        return overload;
+    }
+
     /**
      * Compares if two sets have the exact same elements.
      * 
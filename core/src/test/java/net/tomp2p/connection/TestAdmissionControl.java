@@ -0,0 +1,73 @@
+package net.tomp2p.connection;
+
+import net.tomp2p.futures.FuturePing;
+import net.tomp2p.message.Message;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.RPC;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestAdmissionControl {
+
+    @Test
+    public void testConcurrencyLimit() {
+        AdmissionControl admissionControl = new AdmissionControl().concurrencyLimit(RPC.Commands.PUT.getNr(), 2);
+        Message put = new Message().command(RPC.Commands.PUT.getNr()).sender(new PeerAddress(new Number160(1)));
+        Message get = new Message().command(RPC.Commands.GET.getNr()).sender(new PeerAddress(new Number160(1)));
+        Assert.assertTrue(admissionControl.acquire(put));
+        Assert.assertTrue(admissionControl.acquire(put));
+        Assert.assertFalse(admissionControl.acquire(put));
+        // other commands have no limit
+        Assert.assertTrue(admissionControl.acquire(get));
+        admissionControl.release(RPC.Commands.PUT.getNr());
+        Assert.assertTrue(admissionControl.acquire(put));
+        Assert.assertEquals(2, admissionControl.inProgress(RPC.Commands.PUT.getNr()));
+        Assert.assertEquals(1, admissionControl.rejected());
+    }
+
+    @Test
+    public void testSenderLimit() {
+        AdmissionControl admissionControl = new AdmissionControl().senderLimit(0.001, 2);
+        Message message1 = new Message().command(RPC.Commands.GET.getNr()).sender(new PeerAddress(new Number160(1)));
+        Message message2 = new Message().command(RPC.Commands.GET.getNr()).sender(new PeerAddress(new Number160(2)));
+        Assert.assertTrue(admissionControl.acquire(message1));
+        Assert.assertTrue(admissionControl.acquire(message1));
+        Assert.assertFalse(admissionControl.acquire(message1));
+        // each sender has its own bucket
+        Assert.assertTrue(admissionControl.acquire(message2));
+    }
+
+    @Test
+    public void testOverloadReply() throws Exception {
+        Peer master = null;
+        Peer slave = null;
+        try {
+            ChannelServerConficuration conf = PeerBuilder.createDefaultChannelServerConfiguration()
+                    .ports(new Ports(4001, 4001)).admissionControl(new AdmissionControl().senderLimit(0.001, 2));
+            master = new PeerBuilder(new Number160("0x9876")).channelServerConfiguration(conf).start();
+            slave = new PeerBuilder(new Number160("0x1234")).ports(4002).start();
+            for (int i = 0; i < 5; i++) {
+                FuturePing futurePing = slave.ping().peerAddress(master.peerAddress()).start();
+                futurePing.awaitUninterruptibly();
+                Assert.assertEquals(i < 2, futurePing.isSuccess());
+            }
+            // the master replied right away and is still known to be alive
+            Assert.assertTrue(slave.peerBean().peerMap().contains(master.peerAddress()));
+            Assert.assertEquals(3, master.connectionBean().metrics().inbound(RPC.Commands.PING.getNr())
+                    .responses(Message.Type.DENIED));
+            Assert.assertEquals(3, conf.admissionControl().rejected());
+            Assert.assertEquals(0, conf.admissionControl().inProgress(RPC.Commands.PING.getNr()));
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+            if (slave != null) {
+                slave.shutdown().await();
+            }
+        }
+    }
+}
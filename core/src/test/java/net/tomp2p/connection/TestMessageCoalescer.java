@@ -0,0 +1,142 @@
+package net.tomp2p.connection;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FuturePing;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.rpc.RPC;
+import net.tomp2p.utils.Pair;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMessageCoalescer {
+
+    @Test
+    public void testCoalescing() throws Exception {
+        Peer master = null;
+        Peer slave = null;
+        ChannelCreator cc = null;
+        try {
+            final AtomicInteger datagrams = new AtomicInteger();
+            ChannelServerConficuration csc = PeerBuilder.createDefaultChannelServerConfiguration()
+                    .ports(new Ports(4001, 4001)).pipelineFilter(new CountingPipelineFilter(datagrams));
+            master = new PeerBuilder(new Number160("0x9876")).channelServerConfiguration(csc).start();
+            ChannelClientConfiguration ccc = PeerBuilder.createDefaultChannelClientConfiguration().coalesceMicros(
+                    50000);
+            slave = new PeerBuilder(new Number160("0x1234")).ports(4002).channelClientConfiguration(ccc).start();
+            Assert.assertNotNull(slave.connectionBean().sender().messageCoalescer());
+
+            // only the requests of one channel creator share a datagram
+            FutureChannelCreator fcc = slave.connectionBean().reservation().create(20, 0);
+            fcc.awaitUninterruptibly();
+            cc = fcc.channelCreator();
+            final List<FutureResponse> futures = new ArrayList<FutureResponse>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(slave.pingRPC().pingUDP(master.peerAddress(), cc, new DefaultConnectionConfiguration()));
+            }
+            for (FutureResponse futureResponse : futures) {
+                futureResponse.awaitUninterruptibly();
+                Assert.assertTrue(futureResponse.failedReason(), futureResponse.isSuccess());
+            }
+            Assert.assertEquals(20, master.connectionBean().metrics().inbound(RPC.Commands.PING.getNr())
+                    .responses(Message.Type.OK));
+            // the pings were packed into fewer datagrams
+            Assert.assertTrue("datagrams: " + datagrams.get(), datagrams.get() < 20);
+        } finally {
+            if (cc != null) {
+                cc.shutdown().await();
+            }
+            if (master != null) {
+                master.shutdown().await();
+            }
+            if (slave != null) {
+                slave.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        Peer slave = null;
+        try {
+            ChannelClientConfiguration ccc = PeerBuilder.createDefaultChannelClientConfiguration().coalesceMicros(
+                    50000);
+            slave = new PeerBuilder(new Number160("0x1234")).ports(4002).channelClientConfiguration(ccc).start();
+            // nobody listens on this port
+            final List<FuturePing> futures = new ArrayList<FuturePing>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(slave.ping().inetAddress(InetAddress.getByName("127.0.0.1")).port(4003).start());
+            }
+            for (FuturePing futurePing : futures) {
+                futurePing.awaitUninterruptibly();
+                Assert.assertFalse(futurePing.isSuccess());
+            }
+            Assert.assertEquals(3L, slave.connectionBean().metrics().outbound(RPC.Commands.PING.getNr(), true)
+                    .timeouts());
+        } finally {
+            if (slave != null) {
+                slave.shutdown().await();
+            }
+        }
+    }
+
+    /**
+     * Counts the datagrams that arrive at the server.
+     */
+    private static class CountingPipelineFilter implements PipelineFilter {
+        private final AtomicInteger datagrams;
+
+        private CountingPipelineFilter(final AtomicInteger datagrams) {
+            this.datagrams = datagrams;
+        }
+
+        @Override
+        public Map<String, Pair<EventExecutorGroup, ChannelHandler>> filter(
+                final Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers, final boolean tcp,
+                final boolean client) {
+            if (tcp) {
+                return channelHandlers;
+            }
+            final Map<String, Pair<EventExecutorGroup, ChannelHandler>> filtered =
+                    new LinkedHashMap<String, Pair<EventExecutorGroup, ChannelHandler>>();
+            filtered.put("counter", new Pair<EventExecutorGroup, ChannelHandler>(null, new Counter(datagrams)));
+            filtered.putAll(channelHandlers);
+            return filtered;
+        }
+    }
+
+    @Sharable
+    private static class Counter extends ChannelInboundHandlerAdapter {
+        private final AtomicInteger datagrams;
+
+        private Counter(final AtomicInteger datagrams) {
+            this.datagrams = datagrams;
+        }
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+            if (msg instanceof DatagramPacket) {
+                datagrams.incrementAndGet();
+            }
+            ctx.fireChannelRead(msg);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package net.tomp2p.connection;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.tomp2p.futures.FuturePing;
+import net.tomp2p.message.Message;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.rpc.RPC;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMetrics {
+
+    @Test
+    public void testPing() throws Exception {
+        Peer master = null;
+        Peer slave = null;
+        try {
+            master = new PeerBuilder(new Number160("0x9876")).ports(4001).start();
+            slave = new PeerBuilder(new Number160("0x1234")).ports(4002).start();
+            for (int i = 0; i < 10; i++) {
+                FuturePing futurePing = slave.ping().peerAddress(master.peerAddress()).start();
+                futurePing.awaitUninterruptibly();
+                Assert.assertTrue(futurePing.isSuccess());
+            }
+            FuturePing futurePing = slave.ping().peerAddress(master.peerAddress()).tcpPing().start();
+            futurePing.awaitUninterruptibly();
+            Assert.assertTrue(futurePing.isSuccess());
+
+            Metrics.Outbound outbound = slave.connectionBean().metrics()
+                    .outbound(RPC.Commands.PING.getNr(), true);
+            Assert.assertEquals(10, outbound.requests());
+            Assert.assertEquals(10, outbound.roundTripTime().count());
+            Assert.assertEquals(0, outbound.failures());
+            Assert.assertEquals(1, slave.connectionBean().metrics().outbound(RPC.Commands.PING.getNr(), false)
+                    .roundTripTime().count());
+
+            Metrics.Inbound inbound = master.connectionBean().metrics().inbound(RPC.Commands.PING.getNr());
+            Assert.assertEquals(11, inbound.requests());
+            Assert.assertEquals(11, inbound.responses(Message.Type.OK));
+
+            // the metrics are published with JMX by default
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("net.tomp2p:type=Metrics,name="
+                    + ObjectName.quote(master.peerID() + ":4001"));
+            Map<String, Long> values = slave.connectionBean().metrics().values();
+            Assert.assertEquals(Long.valueOf(10), values.get("out.udp.PING.rtt.count"));
+            Assert.assertNotNull(mBeanServer.getAttribute(objectName, "Values"));
+            Assert.assertTrue(master.connectionBean().metrics().values().containsKey("channels.open.tcp"));
+            master.shutdown().awaitUninterruptibly();
+            Assert.assertFalse(mBeanServer.isRegistered(objectName));
+            master = null;
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+            if (slave != null) {
+                slave.shutdown().await();
+            }
+        }
+    }
+}
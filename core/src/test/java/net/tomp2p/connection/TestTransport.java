@@ -0,0 +1,212 @@
+package net.tomp2p.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.tomp2p.futures.FuturePing;
+import net.tomp2p.message.Message;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.rpc.RPC;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class TestTransport {
+
+    @Test
+    public void testNativeTransport() throws Exception {
+        Peer master = null;
+        Peer slave = null;
+        try {
+            // falls back to NIO and one UDP socket if epoll is not available
+            ChannelServerConficuration conf = PeerBuilder.createDefaultChannelServerConfiguration()
+                    .ports(new Ports(4001, 4001)).udpSockets(2);
+            Transport transport = new NativeTransport();
+            Assert.assertEquals(NativeTransport.isAvailable() ? "epoll" : "nio", transport.toString());
+            Assert.assertEquals(NativeTransport.isAvailable(), transport.reusePort() != null);
+            master = new PeerBuilder(new Number160("0x9876")).channelServerConfiguration(conf)
+                    .transport(transport).start();
+            slave = new PeerBuilder(new Number160("0x1234")).ports(4002).transport(transport).start();
+            for (int i = 0; i < 10; i++) {
+                FuturePing futurePing = slave.ping().peerAddress(master.peerAddress()).start();
+                futurePing.awaitUninterruptibly();
+                Assert.assertTrue(futurePing.isSuccess());
+            }
+            FuturePing futurePing = slave.ping().peerAddress(master.peerAddress()).tcpPing().start();
+            futurePing.awaitUninterruptibly();
+            Assert.assertTrue(futurePing.isSuccess());
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+            if (slave != null) {
+                slave.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testUdpDispatcherThreads() throws Exception {
+        Peer master = null;
+        final List<Peer> slaves = new ArrayList<Peer>();
+        try {
+            ChannelServerConficuration conf = PeerBuilder.createDefaultChannelServerConfiguration()
+                    .ports(new Ports(4001, 4001)).udpSockets(2).udpDispatcherThreads(4);
+            master = new PeerBuilder(new Number160("0x9876")).channelServerConfiguration(conf)
+                    .transport(new NativeTransport()).start();
+            for (int i = 0; i < 4; i++) {
+                slaves.add(new PeerBuilder(new Number160(i + 1)).ports(4002 + i).start());
+            }
+            final List<FuturePing> futures = new ArrayList<FuturePing>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(slaves.get(i % slaves.size()).ping().peerAddress(master.peerAddress()).start());
+            }
+            for (FuturePing futurePing : futures) {
+                futurePing.awaitUninterruptibly();
+                Assert.assertTrue(futurePing.isSuccess());
+            }
+            // the requests were handled on the dispatcher threads
+            Assert.assertEquals(100, master.connectionBean().metrics().inbound(RPC.Commands.PING.getNr())
+                    .responses(Message.Type.OK));
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+            for (Peer slave : slaves) {
+                slave.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testLoopbackTransport() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport(4);
+        final List<Peer> peers = new ArrayList<Peer>();
+        try {
+            // the ports are only in memory, many peers do not use any socket or additional thread for channels
+            for (int i = 0; i < 100; i++) {
+                peers.add(new PeerBuilder(new Number160(i + 1)).ports(4001 + i).transport(transport).start());
+            }
+            final Peer master = peers.get(0);
+            final List<FuturePing> futures = new ArrayList<FuturePing>();
+            for (int i = 1; i < peers.size(); i++) {
+                futures.add(peers.get(i).ping().peerAddress(master.peerAddress()).start());
+            }
+            for (int i = 1; i < 10; i++) {
+                futures.add(peers.get(i).ping().peerAddress(master.peerAddress()).tcpPing().start());
+            }
+            for (FuturePing futurePing : futures) {
+                futurePing.awaitUninterruptibly();
+                Assert.assertTrue(futurePing.isSuccess());
+            }
+            Assert.assertTrue(transport.delivered() > 0);
+        } finally {
+            for (Peer peer : peers) {
+                peer.shutdown().await();
+            }
+            transport.shutdown().awaitUninterruptibly();
+        }
+    }
+
+    @Test
+    public void testLoopbackLatencyAndLoss() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport(2).latency(50);
+        Peer master = null;
+        Peer slave = null;
+        try {
+            master = new PeerBuilder(new Number160("0x9876")).ports(4001).transport(transport).start();
+            slave = new PeerBuilder(new Number160("0x1234")).ports(4002).transport(transport).start();
+            long start = System.currentTimeMillis();
+            FuturePing futurePing = slave.ping().peerAddress(master.peerAddress()).start();
+            futurePing.awaitUninterruptibly();
+            Assert.assertTrue(futurePing.isSuccess());
+            // request and reply
+            Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+            start = System.currentTimeMillis();
+            futurePing = slave.ping().peerAddress(master.peerAddress()).tcpPing().start();
+            futurePing.awaitUninterruptibly();
+            Assert.assertTrue(futurePing.isSuccess());
+            Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+
+            // TCP is not lossy
+            transport.loss(1);
+            futurePing = slave.ping().peerAddress(master.peerAddress()).start();
+            futurePing.awaitUninterruptibly();
+            Assert.assertFalse(futurePing.isSuccess());
+            Assert.assertTrue(transport.lost() > 0);
+            futurePing = slave.ping().peerAddress(master.peerAddress()).tcpPing().start();
+            futurePing.awaitUninterruptibly();
+            Assert.assertTrue(futurePing.isSuccess());
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+            if (slave != null) {
+                slave.shutdown().await();
+            }
+            transport.shutdown().awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * Compares the UDP pings per second of NIO with the native transport. Run on Linux with
+     * netty-transport-native-epoll on the classpath.
+     */
+    @Ignore
+    @Test
+    public void testBenchmark() throws Exception {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < 2; i++) {
+            benchmark(new NioTransport(), 1, 0);
+            benchmark(new NioTransport(), 1, cores);
+            benchmark(new NativeTransport(), 1, 0);
+            benchmark(new NativeTransport(), cores, 0);
+            benchmark(new NativeTransport(), cores, cores);
+        }
+    }
+
+    private static void benchmark(final Transport transport, final int udpSockets, final int dispatcherThreads)
+            throws Exception {
+        final int rounds = 500;
+        final int parallel = 50;
+        Peer master = null;
+        final List<Peer> slaves = new ArrayList<Peer>();
+        try {
+            ChannelServerConficuration conf = PeerBuilder.createDefaultChannelServerConfiguration()
+                    .ports(new Ports(4001, 4001)).udpSockets(udpSockets).udpDispatcherThreads(dispatcherThreads);
+            master = new PeerBuilder(new Number160("0x9876")).channelServerConfiguration(conf)
+                    .transport(transport).start();
+            // several senders, so that the datagrams come from different ports
+            for (int i = 0; i < 4; i++) {
+                slaves.add(new PeerBuilder(new Number160(i + 1)).ports(4002 + i).transport(transport).start());
+            }
+            final long start = System.nanoTime();
+            int failed = 0;
+            for (int i = 0; i < rounds; i++) {
+                final List<FuturePing> futures = new ArrayList<FuturePing>(parallel);
+                for (int j = 0; j < parallel; j++) {
+                    futures.add(slaves.get(j % slaves.size()).ping().peerAddress(master.peerAddress()).start());
+                }
+                for (FuturePing futurePing : futures) {
+                    if (!futurePing.awaitUninterruptibly().isSuccess()) {
+                        failed++;
+                    }
+                }
+            }
+            final long nanos = System.nanoTime() - start;
+            System.err.println(transport + " with " + udpSockets + " UDP sockets and " + dispatcherThreads
+                    + " dispatcher threads: "
+                    + (rounds * parallel * 1000000000L / nanos) + " pings/s, failed: " + failed);
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+            for (Peer slave : slaves) {
+                slave.shutdown().await();
+            }
+        }
+    }
+}
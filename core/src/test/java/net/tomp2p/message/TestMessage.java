@@ -374,6 +374,52 @@ public class TestMessage {
 		compareMessage(m1, m2);
 	}
 
+	@Test
+	public void testEncodeDecodeHashes() throws Exception {
+		Random rnd = new Random(42l);
+		Map<Number640, Data> dataMap = new HashMap<Number640, Data>();
+		Data data1 = new Data(new byte[] { 1, 2, 3 });
+		Data data2 = new Data(new byte[] { 4, 5, 6 });
+		dataMap.put(new Number640(rnd), data1);
+		dataMap.put(new Number640(rnd), data2);
+		// requests do not carry hashes
+		Message m1 = Utils2.createDummyMessage();
+		m1.hashes(true);
+		m1.setDataMap(new DataMap(dataMap, true));
+		Message m2 = encodeDecode(m1);
+		Assert.assertTrue(m2.isHashes());
+		for (Data data : m2.dataMap(0).dataMap().values()) {
+			Assert.assertFalse(data.hasHash());
+		}
+		// replies only carry the hashes if the requester asked for them
+		m1 = Utils2.createDummyMessage();
+		m1.type(Message.Type.OK);
+		m1.setDataMap(new DataMap(dataMap, true));
+		m2 = encodeDecode(m1);
+		for (Data data : m2.dataMap(0).dataMap().values()) {
+			Assert.assertFalse(data.hasHash());
+		}
+		// meta values leave out the payload, the hashes are sent instead
+		m1.hashes(true);
+		m2 = encodeDecode(m1);
+		for (Map.Entry<Number640, Data> entry : m2.dataMap(0).dataMap().entrySet()) {
+			Assert.assertEquals(0, entry.getValue().length());
+			Assert.assertTrue(entry.getValue().hasHash());
+			Assert.assertEquals(dataMap.get(entry.getKey()).hash(), entry.getValue().hash());
+		}
+		// with the payload, the hashes are not sent and the requester hashes what it received
+		m1 = Utils2.createDummyMessage();
+		m1.type(Message.Type.OK);
+		m1.hashes(true);
+		m1.setDataMap(new DataMap(dataMap));
+		m2 = encodeDecode(m1);
+		compareMessage(m1, m2);
+		for (Map.Entry<Number640, Data> entry : m2.dataMap(0).dataMap().entrySet()) {
+			Assert.assertFalse(entry.getValue().hasHash());
+			Assert.assertEquals(dataMap.get(entry.getKey()).hash(), entry.getValue().hash());
+		}
+	}
+
 	@Test
 	public void testEncodeDecode480Set() throws Exception { // encode
 		Message m1 = Utils2.createDummyMessage();
@@ -10,6 +10,7 @@ import net.tomp2p.Utils2;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.FutureBootstrap;
 import net.tomp2p.futures.FutureDiscover;
+import net.tomp2p.p2p.builder.BootstrapBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 
@@ -66,6 +67,27 @@ public class TestBootstrap {
         }
     }
 
+    @Test
+    public void testBootstrapParallelFail() throws Exception {
+        final Random rnd = new Random(42);
+        Peer master = null;
+        try {
+            master = new PeerBuilder(new Number160(rnd)).ports(4001).start();
+            PeerAddress pa = new PeerAddress(new Number160(rnd), "127.0.0.1", 3000, 3000);
+            BootstrapBuilder bootstrapBuilder = master.bootstrap().peerAddress(pa).parallelLookups(8);
+            FutureBootstrap fb = bootstrapBuilder.start();
+            fb.awaitUninterruptibly();
+            Assert.assertEquals(false, fb.isSuccess());
+            // the background future fails only after the lookups for the bags are done
+            bootstrapBuilder.futureBackground().awaitUninterruptibly();
+            Assert.assertEquals(false, bootstrapBuilder.futureBackground().isSuccess());
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testBootstrap() throws Exception {
         final Random rnd = new Random(42);
@@ -238,4 +260,57 @@ public class TestBootstrap {
             }
         }
     }
+
+    @Test
+    public void testRandomInBag() {
+        final Random rnd = new Random(42);
+        final Number160 self = new Number160(rnd);
+        for (int bag = 0; bag < Number160.BITS; bag++) {
+            Number160 id = DistributedRouting.randomInBag(self, bag, rnd);
+            Assert.assertEquals(bag, self.xor(id).bitLength() - 1);
+        }
+    }
+
+    @Test
+    public void testBootstrapParallel() throws Exception {
+        final Random rnd = new Random(42);
+        Peer master = null;
+        try {
+            // setup
+            Peer[] peers = Utils2.createNodes(200, rnd, 4001);
+            master = peers[0];
+            Peer[] network = new Peer[peers.length - 1];
+            System.arraycopy(peers, 0, network, 0, network.length);
+            Utils2.perfectRouting(network);
+            Peer joining = peers[peers.length - 1];
+            // compare with the sequential bootstrap
+            Peer sequential = new PeerBuilder(new Number160(rnd)).masterPeer(master).start();
+            long start = System.currentTimeMillis();
+            FutureBootstrap fb = sequential.bootstrap().peerAddress(master.peerAddress()).start();
+            fb.awaitUninterruptibly();
+            System.err.println("sequential after " + (System.currentTimeMillis() - start) + "ms with "
+                    + sequential.peerBean().peerMap().size() + " peers");
+            Assert.assertEquals(true, fb.isSuccess());
+            // do testing
+            BootstrapBuilder bootstrapBuilder = joining.bootstrap().peerAddress(master.peerAddress())
+                    .parallelLookups(8).coverage(0.5);
+            start = System.currentTimeMillis();
+            fb = bootstrapBuilder.start();
+            fb.awaitUninterruptibly();
+            long coverage = System.currentTimeMillis() - start;
+            Assert.assertEquals(true, fb.isSuccess());
+            int known = joining.peerBean().peerMap().size();
+            Assert.assertTrue(known > 0);
+            bootstrapBuilder.futureBackground().awaitUninterruptibly();
+            long all = System.currentTimeMillis() - start;
+            Assert.assertEquals(true, bootstrapBuilder.futureBackground().isSuccess());
+            Assert.assertTrue(joining.peerBean().peerMap().size() >= known);
+            System.err.println("coverage after " + coverage + "ms with " + known + " peers, all bags after " + all
+                    + "ms with " + joining.peerBean().peerMap().size() + " peers");
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
 }
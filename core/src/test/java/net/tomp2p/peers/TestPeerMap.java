@@ -16,10 +16,15 @@
 
 package net.tomp2p.peers;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NavigableSet;
@@ -34,6 +39,7 @@ import net.tomp2p.connection.PeerException.AbortCause;
 import net.tomp2p.utils.Utils;
 
 import org.junit.Assert;
+import org.junit.Ignore;
 import org.junit.Test;
 
 public class TestPeerMap {
@@ -502,6 +508,184 @@ public class TestPeerMap {
         }
     }
 
+    @Test
+    public void testClosePeersOutward() throws UnknownHostException {
+        PeerMap peerMap = closePeersMap(500, new Random(42));
+        Random rnd = new Random(43);
+        for (int i = 0; i < 200; i++) {
+            Number160 key = i == 0 ? ID : new Number160(rnd);
+            int atLeast = 1 + rnd.nextInt(20);
+            // all peers sorted by their distance to the key
+            List<PeerAddress> all = peerMap.all();
+            Collections.sort(all, PeerMap.createComparator(key));
+            NavigableSet<PeerAddress> close = peerMap.closePeers(key, atLeast);
+            Assert.assertTrue(close.size() >= atLeast);
+            Assert.assertEquals(all.subList(0, atLeast), new ArrayList<PeerAddress>(close).subList(0, atLeast));
+        }
+    }
+
+    /**
+     * Measures closePeers for random keys on a full peer map, once while the map is stable and once while peers are
+     * added and removed between the lookups.
+     */
+    @Ignore
+    @Test
+    public void testClosePeersBenchmark() throws UnknownHostException {
+        final Random rnd = new Random(42);
+        final PeerMap peerMap = closePeersMap(5000, rnd);
+        final int rounds = 200000;
+        long sum = 0;
+        for (int warmup = 0; warmup < 3; warmup++) {
+            for (int churn = 0; churn < 2; churn++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    if (churn == 1) {
+                        PeerAddress peerAddress = Utils2.createAddress(new Number160(rnd));
+                        peerMap.peerFound(peerAddress, null, null);
+                        peerMap.peerFailed(peerAddress, new PeerException(AbortCause.SHUTDOWN, "shutdown"));
+                    }
+                    sum += peerMap.closePeers(new Number160(rnd), 20).size();
+                }
+                long millis = Math.max((System.nanoTime() - start) / 1000000, 1);
+                System.err.println("closePeers " + (churn == 1 ? "with churn: " : "stable: ")
+                        + (rounds * 1000L / millis) + " lookups/s for " + peerMap.size() + " peers");
+            }
+        }
+        Assert.assertTrue(sum > 0);
+    }
+
+    private static PeerMap closePeersMap(final int nr, final Random rnd) throws UnknownHostException {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.bagSizeVerified(10).bagSizeOverflow(10);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.maintenance(new DefaultMaintenance(0, new int[] {}));
+        PeerMap peerMap = new PeerMap(conf);
+        for (int i = 0; i < nr; i++) {
+            peerMap.peerFound(Utils2.createAddress(new Number160(rnd)), null, null);
+        }
+        return peerMap;
+    }
+
+    @Test
+    public void testPeerBag() throws InterruptedException {
+        final PeerBag peerBag = new PeerBag(5);
+        final Random rnd = new Random(42);
+        final AtomicInteger errors = new AtomicInteger();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100000; i++) {
+                    Number160 peerId = new Number160(rnd.nextInt(10) + 1);
+                    if (rnd.nextBoolean()) {
+                        peerBag.put(peerId, new PeerStatatistic(new PeerAddress(peerId)));
+                    } else {
+                        peerBag.remove(peerId);
+                    }
+                }
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            try {
+                int size = 0;
+                for (PeerStatatistic peerStatatistic : peerBag.values()) {
+                    Assert.assertNotNull(peerStatatistic.peerAddress());
+                    size++;
+                }
+                Assert.assertTrue(size <= 5);
+            } catch (Throwable t) {
+                t.printStackTrace();
+                errors.incrementAndGet();
+            }
+        }
+        writer.join();
+        Assert.assertEquals(0, errors.get());
+        // the oldest inserted peer is evicted
+        peerBag.clear();
+        for (int i = 1; i <= 6; i++) {
+            peerBag.put(new Number160(i), new PeerStatatistic(new PeerAddress(new Number160(i))));
+        }
+        Assert.assertEquals(5, peerBag.size());
+        Assert.assertFalse(peerBag.containsKey(new Number160(1)));
+    }
+
+
+    @Test
+    public void testSnapshot() throws IOException {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.bagSizeVerified(10).bagSizeOverflow(10);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.maintenance(new DefaultMaintenance(0, new int[] {}));
+        PeerMap peerMap = new PeerMap(conf);
+        Random rnd = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            peerMap.peerFound(Utils2.createAddress(new Number160(rnd)), null, null);
+        }
+        // one peer that has been seen long ago
+        PeerAddress stale = Utils2.createAddress(new Number160(rnd));
+        List<PeerStatatistic> snapshot = peerMap.snapshot();
+        snapshot.add(new PeerStatatistic(stale, 0, System.currentTimeMillis() - 60 * 60 * 1000, 5));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PeerMapSnapshot.encode(snapshot, new DataOutputStream(out));
+        List<PeerStatatistic> decoded = PeerMapSnapshot.decode(new DataInputStream(new ByteArrayInputStream(
+                out.toByteArray())));
+        Assert.assertEquals(snapshot.size(), decoded.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            Assert.assertEquals(snapshot.get(i).peerAddress(), decoded.get(i).peerAddress());
+            Assert.assertEquals(snapshot.get(i).created(), decoded.get(i).created());
+            Assert.assertEquals(snapshot.get(i).lastSeenOnline(), decoded.get(i).lastSeenOnline());
+            Assert.assertEquals(snapshot.get(i).successfullyCheckedCounter(), decoded.get(i)
+                    .successfullyCheckedCounter());
+        }
+
+        PeerMap restored = new PeerMap(conf);
+        Assert.assertEquals(snapshot.size(), restored.restore(decoded, 10 * 60 * 1000));
+        Assert.assertEquals(peerMap.all().size(), restored.size());
+        // the stale peer is not used for routing until it is verified again
+        Assert.assertFalse(restored.contains(stale));
+        Assert.assertTrue(restored.containsOverflow(stale));
+        Number160 key = new Number160(rnd);
+        Assert.assertEquals(peerMap.closePeers(key, 5), restored.closePeers(key, 5));
+        // restoring again does not add anything
+        Assert.assertEquals(0, restored.restore(decoded, 10 * 60 * 1000));
+    }
+
+    @Test
+    public void testRestoreBagLimits() {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.bagSizeVerified(2).bagSizeOverflow(3);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.maintenance(new DefaultMaintenance(0, new int[] {}));
+        PeerMap peerMap = new PeerMap(conf);
+        List<PeerStatatistic> recent = new ArrayList<PeerStatatistic>();
+        List<PeerStatatistic> stale = new ArrayList<PeerStatatistic>();
+        final long now = System.currentTimeMillis();
+        for (int i = 1; i <= 4; i++) {
+            recent.add(new PeerStatatistic(new PeerAddress(farthest(i)), 0, now, 1));
+            stale.add(new PeerStatatistic(new PeerAddress(farthest(i + 100)), 0, 0, 1));
+        }
+        // a peer found before the restore is not evicted
+        PeerAddress found = new PeerAddress(farthest(1000));
+        peerMap.peerFound(found, found, null);
+        Assert.assertTrue(peerMap.containsOverflow(found));
+
+        // two recent peers fit into the verified bag, the other two into the overflow bag with the found peer
+        Assert.assertEquals(4, peerMap.restore(recent, 10 * 60 * 1000));
+        Assert.assertEquals(2, peerMap.size());
+        Assert.assertEquals(3, peerMap.allOverflow().size());
+        // the overflow bag is full
+        Assert.assertEquals(0, peerMap.restore(stale, 10 * 60 * 1000));
+        Assert.assertTrue(peerMap.containsOverflow(found));
+    }
+
+    /**
+     * @return A peer ID in the farthest bag from ID, as the highest bit differs
+     */
+    private static Number160 farthest(int nr) {
+        return new Number160(String.format("0x8%039x", nr));
+    }
+
     private void testClose(int round) throws UnknownHostException {
         Random rnd = new Random(round);
         for (int j = 0; j < 1000; j++) {
@@ -1,11 +1,21 @@
 package net.tomp2p.utils;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import junit.framework.Assert;
 
+import org.junit.Ignore;
 import org.junit.Test;
 
 public class TestCache {
@@ -137,4 +147,112 @@ public class TestCache {
         // putIfAbsent will refresh test0
         Assert.assertEquals("test0", val);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testEviction() {
+        ConcurrentCacheMap<Integer, Integer> test = new ConcurrentCacheMap<Integer, Integer>(60, 100);
+        int misses = 0;
+        for (int i = 10; i < 2000; i++) {
+            // the hot keys are used all the time and should mostly stay once they are in. If all entries were used
+            // since the clock hand passed them, the hand evicts the next entry, which may be a hot one
+            for (int j = 0; j < 10; j++) {
+                if (test.get(j) == null) {
+                    test.put(j, j);
+                    if (i >= 1000) {
+                        misses++;
+                    }
+                }
+            }
+            test.put(i, i);
+            Assert.assertTrue(test.size() <= 100);
+        }
+        // 10'000 lookups of hot keys after the warmup
+        Assert.assertTrue("misses: " + misses, misses < 10);
+        Assert.assertEquals(100, test.size());
+        Assert.assertEquals(100, test.keySet().size());
+    }
+
+    @Test
+    public void testConcurrentMap() {
+        ConcurrentCacheMap<String, String> test = new ConcurrentCacheMap<String, String>(60, 1024);
+        Assert.assertNull(test.putIfAbsent("a", "1"));
+        Assert.assertEquals("1", test.putIfAbsent("a", "2"));
+        Assert.assertFalse(test.remove("a", "2"));
+        Assert.assertFalse(test.replace("a", "2", "3"));
+        Assert.assertTrue(test.replace("a", "1", "3"));
+        Assert.assertEquals("3", test.replace("a", "4"));
+        Assert.assertNull(test.replace("b", "4"));
+        Assert.assertTrue(test.containsKey("a"));
+        Assert.assertTrue(test.containsValue("4"));
+        Map<String, String> expected = Collections.singletonMap("a", "4");
+        Assert.assertEquals(expected, test);
+        Assert.assertEquals(expected.hashCode(), test.hashCode());
+        Assert.assertTrue(test.remove("a", "4"));
+        Assert.assertTrue(test.isEmpty());
+        Assert.assertNull(test.remove("a"));
+    }
+
+    @Test
+    public void testExpireBatch() throws InterruptedException {
+        ConcurrentCacheMap<Integer, Integer> test = new ConcurrentCacheMap<Integer, Integer>(1, 1024);
+        for (int i = 0; i < 500; i++) {
+            test.put(i, i);
+        }
+        Thread.sleep(1100);
+        Assert.assertEquals(500, test.expire());
+        Assert.assertEquals(0, test.size());
+        Assert.assertEquals(500, test.expiredCounter());
+    }
+
+    /**
+     * Reads and writes a full cache from all cores, but at least 4 threads, 90% reads. {@link SegmentedCacheMap} is the
+     * implementation before the reads became lock-free.
+     */
+    @Ignore
+    @Test
+    public void testBenchmark() throws Exception {
+        final int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        final int rounds = 1000000;
+        final int maxEntries = 1024;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int warmup = 0; warmup < 3; warmup++) {
+                @SuppressWarnings("unchecked")
+                Map<Integer, Integer>[] maps = new Map[] {
+                        new SegmentedCacheMap<Integer, Integer>(60, maxEntries),
+                        new ConcurrentCacheMap<Integer, Integer>(60, maxEntries) };
+                for (final Map<Integer, Integer> map : maps) {
+                    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                    long start = System.nanoTime();
+                    for (int t = 0; t < threads; t++) {
+                        final Random rnd = new Random(t);
+                        futures.add(executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                for (int i = 0; i < rounds; i++) {
+                                    // a skewed key space twice the size of the cache
+                                    int key = Math.min(rnd.nextInt(maxEntries * 2), rnd.nextInt(maxEntries * 2));
+                                    if (rnd.nextInt(10) == 0) {
+                                        map.put(key, i);
+                                    } else {
+                                        map.get(key);
+                                    }
+                                }
+                                return null;
+                            }
+                        }));
+                    }
+                    for (Future<Void> future : futures) {
+                        future.get();
+                    }
+                    long millis = (System.nanoTime() - start) / 1000000;
+                    System.err.println(map.getClass().getSimpleName() + ": "
+                            + (threads * (long) rounds * 1000L / Math.max(millis, 1)) + " ops/s with " + threads
+                            + " threads");
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
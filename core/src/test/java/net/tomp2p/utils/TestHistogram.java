@@ -0,0 +1,45 @@
+package net.tomp2p.utils;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestHistogram {
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.snapshot().percentile(50));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.count());
+        Assert.assertEquals(1000000, snapshot.max());
+        Assert.assertEquals(500500, snapshot.mean());
+        // the buckets have a relative error of 1/16
+        assertAbout(500000, snapshot.percentile(50));
+        assertAbout(990000, snapshot.percentile(99));
+        Assert.assertEquals(1000000, snapshot.percentile(100));
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        Random rnd = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long value = rnd.nextLong() >>> (1 + rnd.nextInt(63));
+            int index = Histogram.index(value);
+            Assert.assertTrue(value <= Histogram.highestValue(index));
+            if (index > 0) {
+                Assert.assertTrue(value > Histogram.highestValue(index - 1));
+            }
+        }
+        Assert.assertEquals(Long.MAX_VALUE, Histogram.highestValue(Histogram.index(Long.MAX_VALUE)));
+    }
+
+    private static void assertAbout(long expected, long actual) {
+        Assert.assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(expected - actual) <= expected / 16);
+    }
+}
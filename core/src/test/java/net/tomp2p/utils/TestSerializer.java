@@ -0,0 +1,162 @@
+package net.tomp2p.utils;
+
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.DataBuffer;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class TestSerializer {
+
+    @Test
+    public void testCompactRoundTrip() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("a", 1);
+        map.put("b", Arrays.asList(-1L, Long.MAX_VALUE, Long.MIN_VALUE, Integer.MIN_VALUE));
+        map.put("c", null);
+        Set<Object> set = new LinkedHashSet<Object>();
+        set.add("x");
+        set.add(new Number160(42));
+        TreeMap<String, Integer> treeMap = new TreeMap<String, Integer>();
+        treeMap.put("z", 1);
+        treeMap.put("a", 2);
+        Object[] values = new Object[] { null, true, false, (byte) -3, (short) 300, 'c', 0, -1, 123456789,
+                Long.MIN_VALUE, 1.5f, Math.PI, "", "hällo", new Number160(5),
+                new Number640(new Number160(1), new Number160(2), new Number160(3), new Number160(4)), map, set,
+                treeMap, new java.util.Date(1000) };
+        for (Object value : values) {
+            byte[] me = CompactSerializer.INSTANCE.encode(value);
+            Assert.assertEquals(value, CompactSerializer.INSTANCE.decode(Unpooled.wrappedBuffer(me)));
+        }
+        byte[] me = new byte[] { 1, 2, 3 };
+        Assert.assertArrayEquals(me,
+                (byte[]) CompactSerializer.INSTANCE.decode(Unpooled.wrappedBuffer(CompactSerializer.INSTANCE
+                        .encode(me))));
+        Object decoded = CompactSerializer.INSTANCE.decode(Unpooled.wrappedBuffer(CompactSerializer.INSTANCE
+                .encode(treeMap)));
+        Assert.assertTrue(decoded instanceof TreeMap);
+    }
+
+    @Test
+    public void testCompactSize() throws Exception {
+        Assert.assertEquals(2, CompactSerializer.INSTANCE.encode(5).length);
+        Assert.assertEquals(7, CompactSerializer.INSTANCE.encode("hallo").length);
+        Assert.assertTrue(JavaSerializer.INSTANCE.encode("hallo").length > 7);
+    }
+
+    @Test
+    public void testCorrupt() throws Exception {
+        byte[] me = CompactSerializer.INSTANCE.encode("hallo");
+        try {
+            CompactSerializer.INSTANCE.decode(Unpooled.wrappedBuffer(me, 0, me.length - 1));
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            CompactSerializer.INSTANCE.decode(Unpooled.wrappedBuffer(new byte[] { 99 }));
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testData() throws Exception {
+        List<String> list = new ArrayList<String>();
+        list.add("hallo");
+        list.add("test");
+        Data data = new Data(list, CompactSerializer.INSTANCE);
+        Assert.assertEquals(list, data.object());
+        Assert.assertEquals(list, data.duplicate().object());
+        // the data is split over several buffers when it is received
+        byte[] me = data.toBytes();
+        DataBuffer dataBuffer = new DataBuffer(me, 0, 3);
+        dataBuffer.add(new DataBuffer(me, 3, me.length - 3));
+        Data received = new Data(dataBuffer);
+        Assert.assertEquals(list, received.object(CompactSerializer.INSTANCE));
+        Assert.assertEquals(list, new Data(list).object());
+        Assert.assertEquals(list, received.serializer(CompactSerializer.INSTANCE).object());
+    }
+
+    /**
+     * Decodes the same values on several threads. The synchronized Java serializer shows the cost of the global lock
+     * that was used to decode data.
+     */
+    @Ignore
+    @Test
+    public void testBenchmark() throws Exception {
+        final Map<String, Object> value = new HashMap<String, Object>();
+        for (int i = 0; i < 10; i++) {
+            value.put("key" + i, Arrays.asList(i, (long) i * 1000, "value" + i));
+        }
+        final Serializer synchronizedJava = new Serializer() {
+            @Override
+            public byte[] encode(Object object) throws IOException {
+                return JavaSerializer.INSTANCE.encode(object);
+            }
+
+            @Override
+            public synchronized Object decode(io.netty.buffer.ByteBuf buf) throws ClassNotFoundException,
+                    IOException {
+                return JavaSerializer.INSTANCE.decode(buf);
+            }
+        };
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final int rounds = 50000;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int warmup = 0; warmup < 2; warmup++) {
+                for (Serializer serializer : new Serializer[] { synchronizedJava, JavaSerializer.INSTANCE,
+                        CompactSerializer.INSTANCE }) {
+                    final Data data = new Data(value, serializer);
+                    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                    long start = System.nanoTime();
+                    for (int t = 0; t < threads; t++) {
+                        futures.add(executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                for (int i = 0; i < rounds; i++) {
+                                    data.object();
+                                }
+                                return null;
+                            }
+                        }));
+                    }
+                    for (Future<Void> future : futures) {
+                        future.get();
+                    }
+                    long millis = (System.nanoTime() - start) / 1000000;
+                    System.err.println((serializer == synchronizedJava ? "synchronized java" : serializer
+                            .getClass().getSimpleName())
+                            + ": "
+                            + data.length()
+                            + " bytes, "
+                            + (threads * rounds * 1000L / Math.max(millis, 1))
+                            + " decodes/s with " + threads + " threads");
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -59,7 +59,7 @@ public class AddBuilder extends DHTBuilder<AddBuilder> {
     }
 
     public AddBuilder object(Object object) throws IOException {
-        return data(new Data(object));
+        return data(encode(object));
     }
 
     public boolean isList() {
@@ -90,6 +90,10 @@ public class AddBuilder extends DHTBuilder<AddBuilder> {
             return FUTURE_SHUTDOWN;
         }
         preBuild("add-builder");
+        if (peer.nearCache() != null) {
+            // read your own writes, the notification of the responsible peers may arrive later
+            peer.nearCache().invalidate(locationKey);
+        }
         if (dataSet == null) {
             dataSet = new ArrayList<Data>(1);
         }
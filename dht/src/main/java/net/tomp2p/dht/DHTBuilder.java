@@ -16,6 +16,7 @@
 
 package net.tomp2p.dht;
 
+import java.io.IOException;
 import java.security.KeyPair;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -30,6 +31,8 @@ import net.tomp2p.p2p.builder.RoutingBuilder;
 import net.tomp2p.p2p.builder.SignatureBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerFilter;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Serializer;
 
 /**
  * Every DHT builder has those methods in common.
@@ -69,6 +72,10 @@ public abstract class DHTBuilder<K extends DHTBuilder<K>> extends DefaultConnect
     
     private Collection<PeerFilter> peerFilters;
 
+    private Serializer serializer = null;
+    // objects are encoded when they are added, a serializer set afterwards would not be used for them
+    private boolean objectEncoded = false;
+
     private K self;
 
     public DHTBuilder(PeerDHT peer, Number160 locationKey) {
@@ -277,6 +284,48 @@ public abstract class DHTBuilder<K extends DHTBuilder<K>> extends DefaultConnect
     	return peerFilters;
     }
 
+    /**
+     * @return The serializer for objects, by default the serializer of the peer
+     */
+    public Serializer serializer() {
+        if (serializer == null) {
+            return peer.serializer();
+        }
+        return serializer;
+    }
+
+    /**
+     * Set the serializer that encodes objects put with this builder and decodes the received data. Objects are
+     * encoded when they are added, so the serializer needs to be set before.
+     * 
+     * @param serializer
+     *            The serializer
+     * @return This class
+     * @throws IllegalStateException
+     *             If an object has already been encoded with another serializer
+     */
+    public K serializer(final Serializer serializer) {
+        if (objectEncoded) {
+            throw new IllegalStateException("Set the serializer before adding objects, they are already encoded.");
+        }
+        this.serializer = serializer;
+        return self;
+    }
+
+    /**
+     * Encodes an object with the serializer of this builder.
+     * 
+     * @param object
+     *            The object to encode
+     * @return The data with the encoded object
+     * @throws IOException
+     *             If the object cannot be encoded
+     */
+    protected Data encode(final Object object) throws IOException {
+        objectEncoded = true;
+        return new Data(object, serializer());
+    }
+
     protected void preBuild(String name) {
         if (domainKey == null) {
             domainKey = Number160.ZERO;
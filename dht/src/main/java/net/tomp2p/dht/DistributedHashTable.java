@@ -23,7 +23,9 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.SortedSet;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
@@ -37,6 +39,7 @@ import net.tomp2p.futures.FutureRouting;
 import net.tomp2p.message.KeyMap640Keys;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.p2p.DistributedRouting;
+import net.tomp2p.p2p.EvaluatingSchemeDHT;
 import net.tomp2p.p2p.RequestP2PConfiguration;
 import net.tomp2p.p2p.VotingSchemeDHT;
 import net.tomp2p.p2p.builder.BasicBuilder;
@@ -59,6 +62,8 @@ import org.slf4j.LoggerFactory;
 
 public class DistributedHashTable {
     private static final Logger logger = LoggerFactory.getLogger(DistributedHashTable.class);
+    // the number of peers on the routing path that get a copy of a hot entry
+    private static final int CACHE_PEERS = 2;
     
     public static final int REASON_CANCEL = 254;
     public static final int REASON_UNKOWN = 255;
@@ -306,6 +311,9 @@ public class DistributedHashTable {
 
         final FutureGet futureDHT = new FutureGet(builder, builder.requestP2PConfiguration()
                 .minimumResults(), new VotingSchemeDHT());
+        // the hashes are voted on by majority, so other evaluation schemes need the data of all peers
+        final boolean hashRead = builder.isHashRead() && !builder.isGetLatest()
+                && isMajorityVoting(builder.evaluationScheme());
 
         builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
@@ -314,6 +322,8 @@ public class DistributedHashTable {
                 	
                 	final RoutingBuilder routingBuilder = createBuilder(builder);
                 	fillRoutingBuilder(builder, routingBuilder);
+                	// only a get can be answered by cached copies
+                	routingBuilder.cachedDigests(true);
                 	final FutureRouting futureRouting = routing.route(routingBuilder, builder.isFastGet()? Type.REQUEST_2 : Type.REQUEST_1, future.channelCreator());
 
                     futureDHT.futureRouting(futureRouting);
@@ -338,11 +348,26 @@ public class DistributedHashTable {
                                         future.channelCreator(), new OperationMapper<FutureGet>() {
                                             Map<PeerAddress, Map<Number640, Data>> rawData = new HashMap<PeerAddress, Map<Number640, Data>>();
                                             Map<PeerAddress, DigestResult> rawDigest = new HashMap<PeerAddress, DigestResult>();
+                                            Map<PeerAddress, Map<Number640, Number160>> rawHashes = new HashMap<PeerAddress, Map<Number640, Number160>>();
+                                            // with hash reads, only the first (closest) peer sends the data
+                                            boolean dataRequested = false;
+                                            Map<PeerAddress, Long> leases = new HashMap<PeerAddress, Long>();
+                                            // entries that a responsible peer reported as hot
+                                            Map<Number640, Data> hotData = null;
+                                            int hotTTLSeconds = 0;
 
                                             @Override
                                             public FutureResponse create(ChannelCreator channelCreator,
                                                     PeerAddress address) {
-												if (builder.isGetLatest()) {
+												if (hashRead) {
+													synchronized (this) {
+														if (dataRequested) {
+															return storeRCP.getHashes(address, builder, channelCreator);
+														}
+														dataRequested = true;
+													}
+													return storeRCP.get(address, builder, channelCreator);
+												} else if (builder.isGetLatest()) {
 													if (builder.isWithDigest()) {
 														return storeRCP.getLatest(address, builder,
 																channelCreator, RPC.Commands.GET_LATEST_WITH_DIGEST);
@@ -358,19 +383,42 @@ public class DistributedHashTable {
 
                                             @Override
                                             public void response(FutureGet futureDHT) {
-
-                                                futureDHT.receivedData(rawData, rawDigest);
-
+                                                if (builder.isRequestLease()) {
+                                                    futureDHT.leases(leases);
+                                                }
+                                                if (hotData != null) {
+                                                    cacheOnPath(builder, futureDHT, futureDHT.futureRouting(), rawData.keySet(),
+                                                            hotData, hotTTLSeconds, future.channelCreator());
+                                                }
+                                                if (hashRead) {
+                                                    hashReadResponse(builder, futureDHT, future.channelCreator(),
+                                                            rawData, rawHashes, rawDigest);
+                                                } else {
+                                                    futureDHT.receivedData(rawData, rawDigest);
+                                                }
                                             }
 
                                             @Override
                                             public void interMediateResponse(FutureResponse future) {
                                                 // the future tells us that the communication was successful, which is
                                                 // ok for digest
-                                                if (future.isSuccess()) {
+                                                if (future.isSuccess() && future.request().command() == RPC.Commands.GET_HASHES.getNr()) {
+                                                    rawHashes.put(future.request().recipient(), contentHashes(future
+                                                            .responseMessage().keyMap640Keys(0)));
+                                                    logger.debug("set hashes from {}", future.request().recipient());
+                                                } else if (future.isSuccess()) {
 
 													rawData.put(future.request().recipient(), future
 															.responseMessage().dataMap(0).dataMap());
+													Long lease = future.responseMessage().longAt(0);
+													if (lease != null) {
+														leases.put(future.request().recipient(), lease);
+													}
+													Integer ttlSeconds = future.responseMessage().intAt(0);
+													if (ttlSeconds != null && ttlSeconds > 0) {
+														hotData = future.responseMessage().dataMap(0).dataMap();
+														hotTTLSeconds = ttlSeconds;
+													}
 													
 													KeyMap640Keys keyMaps = future.responseMessage()
 															.keyMap640Keys(0);
@@ -652,8 +700,9 @@ public class DistributedHashTable {
                     operation.interMediateResponse(futureResponse);
                 }
                 // we are finished if forkjoin says so or we got too many
-                // failures
-                if (future.isSuccess() || nrFailure.incrementAndGet() > maxFailure) {
+                // failures. Overloaded peers do not count as failures, the next peers are asked instead
+                if (future.isSuccess()
+                        || (!Utils.isOverload(future.completed()) && nrFailure.incrementAndGet() > maxFailure)) {
                     if (cancelOnFinish) {
                         cancel(futures);
                     }
@@ -666,6 +715,205 @@ public class DistributedHashTable {
         });
     }
     
+    /**
+     * Completes a get() with hash reads. The peers vote with the content hashes, the data of the closest peer counts
+     * as the hashes of that data. If the data of the closest peer does not match the majority or if it did not reply,
+     * the data is fetched once from a peer that voted with the majority.
+     * 
+     * @param builder
+     *            The get builder
+     * @param futureDHT
+     *            The future to complete
+     * @param channelCreator
+     *            The channel creator for the additional request, which is released once the future completes
+     * @param rawData
+     *            The data from the peers that sent data
+     * @param rawHashes
+     *            The content hashes from the peers that sent hashes only
+     * @param rawDigest
+     *            The digest results, not used for hash reads
+     */
+    private void hashReadResponse(final GetBuilder builder, final FutureGet futureDHT,
+            final ChannelCreator channelCreator, final Map<PeerAddress, Map<Number640, Data>> rawData,
+            final Map<PeerAddress, Map<Number640, Number160>> rawHashes,
+            final Map<PeerAddress, DigestResult> rawDigest) {
+        final Map<Number640, Number160> majority = voteHashes(rawData, rawHashes);
+        final Map<Number640, Data> found = findData(majority, rawData);
+        if (found.size() < majority.size()) {
+            final PeerAddress peerAddress = findMajorityPeer(majority, rawHashes);
+            if (peerAddress != null) {
+                logger.debug("data does not match the majority, fetch it from {}", peerAddress);
+                final FutureResponse futureResponse = storeRCP.get(peerAddress, builder, channelCreator);
+                futureDHT.addRequests(futureResponse);
+                futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                    @Override
+                    public void operationComplete(final FutureResponse future) throws Exception {
+                        if (future.isSuccess()) {
+                            rawHashes.remove(peerAddress);
+                            rawData.put(peerAddress, future.responseMessage().dataMap(0).dataMap());
+                        }
+                        futureDHT.receivedData(
+                                expandHashes(voteHashes(rawData, rawHashes), rawData, rawHashes), rawDigest);
+                    }
+                });
+                return;
+            }
+        }
+        futureDHT.receivedData(expandHashes(majority, rawData, rawHashes), rawDigest);
+    }
+
+    /**
+     * Stores copies of hot entries on the closest peers of the routing path that did not reply with the entries.
+     * Later lookups for the same key pass these peers and, with fast get, find the copies before they reach the
+     * responsible peers.
+     */
+    private void cacheOnPath(final GetBuilder builder, final FutureGet futureDHT, final FutureRouting futureRouting,
+            final Set<PeerAddress> responded, final Map<Number640, Data> hotData, final int ttlSeconds,
+            final ChannelCreator channelCreator) {
+        final SortedSet<PeerAddress> routingPath = futureRouting.routingPath();
+        // the peers on the path only accept copies signed by the owner of the domain
+        final Map<Number640, Data> owned = HotKeyCache.owned(hotData);
+        if (routingPath == null || owned.isEmpty()) {
+            return;
+        }
+        final PeerAddress self = storeRCP.peerBean().serverPeerAddress();
+        int counter = 0;
+        for (PeerAddress peerAddress : routingPath) {
+            if (counter >= CACHE_PEERS) {
+                break;
+            }
+            if (peerAddress.equals(self) || responded.contains(peerAddress)
+                    || futureRouting.directHitsDigest().containsKey(peerAddress)) {
+                continue;
+            }
+            logger.debug("cache hot entries on {}", peerAddress);
+            futureDHT.addRequests(storeRCP.putCache(peerAddress, owned, ttlSeconds, builder, channelCreator));
+            counter++;
+        }
+    }
+
+    private static Map<Number640, Number160> contentHashes(final KeyMap640Keys keyMap) {
+        final Map<Number640, Number160> hashes = new HashMap<Number640, Number160>();
+        if (keyMap != null && keyMap.keysMap() != null) {
+            for (Map.Entry<Number640, Collection<Number160>> entry : keyMap.keysMap().entrySet()) {
+                if (!entry.getValue().isEmpty()) {
+                    hashes.put(entry.getKey(), entry.getValue().iterator().next());
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * @return True if the scheme is the majority voting of {@link VotingSchemeDHT}, which {@link #voteHashes(Map, Map)}
+     *         implements for hashes. A subclass may evaluate differently.
+     */
+    private static boolean isMajorityVoting(final EvaluatingSchemeDHT evaluationScheme) {
+        return evaluationScheme == null || evaluationScheme.getClass() == VotingSchemeDHT.class;
+    }
+
+    /**
+     * @return The content hash per key that the majority of the peers agrees on, the same majority as in
+     *         {@link VotingSchemeDHT#evaluate2(Map)}. Only used if {@link #isMajorityVoting(EvaluatingSchemeDHT)}.
+     */
+    private static Map<Number640, Number160> voteHashes(final Map<PeerAddress, Map<Number640, Data>> rawData,
+            final Map<PeerAddress, Map<Number640, Number160>> rawHashes) {
+        final Map<Number640, Map<Number160, Integer>> counter = new HashMap<Number640, Map<Number160, Integer>>();
+        for (Map<Number640, Data> dataMap : rawData.values()) {
+            for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+                count(counter, entry.getKey(), entry.getValue().hash());
+            }
+        }
+        for (Map<Number640, Number160> hashes : rawHashes.values()) {
+            for (Map.Entry<Number640, Number160> entry : hashes.entrySet()) {
+                count(counter, entry.getKey(), entry.getValue());
+            }
+        }
+        final int majority = (rawData.size() + rawHashes.size() + 1) / 2;
+        final Map<Number640, Number160> result = new HashMap<Number640, Number160>();
+        for (Map.Entry<Number640, Map<Number160, Integer>> entry : counter.entrySet()) {
+            for (Map.Entry<Number160, Integer> entry2 : entry.getValue().entrySet()) {
+                if (entry2.getValue() >= majority) {
+                    result.put(entry.getKey(), entry2.getKey());
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void count(final Map<Number640, Map<Number160, Integer>> counter, final Number640 key,
+            final Number160 hash) {
+        Map<Number160, Integer> hashCounter = counter.get(key);
+        if (hashCounter == null) {
+            hashCounter = new HashMap<Number160, Integer>();
+            counter.put(key, hashCounter);
+        }
+        final Integer c = hashCounter.get(hash);
+        hashCounter.put(hash, c == null ? 1 : c + 1);
+    }
+
+    /**
+     * @return The data we have received that matches the majority
+     */
+    private static Map<Number640, Data> findData(final Map<Number640, Number160> majority,
+            final Map<PeerAddress, Map<Number640, Data>> rawData) {
+        final Map<Number640, Data> found = new HashMap<Number640, Data>();
+        for (Map<Number640, Data> dataMap : rawData.values()) {
+            for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+                if (entry.getValue().hash().equals(majority.get(entry.getKey()))) {
+                    found.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return The peer that sent hashes and agrees with the majority on most keys, or null if no such peer exists
+     */
+    private static PeerAddress findMajorityPeer(final Map<Number640, Number160> majority,
+            final Map<PeerAddress, Map<Number640, Number160>> rawHashes) {
+        PeerAddress best = null;
+        int bestCount = 0;
+        for (Map.Entry<PeerAddress, Map<Number640, Number160>> entry : rawHashes.entrySet()) {
+            int c = 0;
+            for (Map.Entry<Number640, Number160> entry2 : entry.getValue().entrySet()) {
+                if (entry2.getValue().equals(majority.get(entry2.getKey()))) {
+                    c++;
+                }
+            }
+            if (c > bestCount) {
+                best = entry.getKey();
+                bestCount = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Replaces the hashes of each peer with the data we have received for these hashes, so that the raw data has an
+     * entry for each peer and the evaluation scheme sees the same votes as with full reads. Hashes we have no data for
+     * are dropped.
+     */
+    private static Map<PeerAddress, Map<Number640, Data>> expandHashes(final Map<Number640, Number160> majority,
+            final Map<PeerAddress, Map<Number640, Data>> rawData,
+            final Map<PeerAddress, Map<Number640, Number160>> rawHashes) {
+        final Map<Number640, Data> found = findData(majority, rawData);
+        final Map<PeerAddress, Map<Number640, Data>> result = new HashMap<PeerAddress, Map<Number640, Data>>(rawData);
+        for (Map.Entry<PeerAddress, Map<Number640, Number160>> entry : rawHashes.entrySet()) {
+            final Map<Number640, Data> dataMap = new HashMap<Number640, Data>();
+            for (Map.Entry<Number640, Number160> entry2 : entry.getValue().entrySet()) {
+                final Data data = found.get(entry2.getKey());
+                if (data != null && data.hash().equals(entry2.getValue())) {
+                    dataMap.put(entry2.getKey(), data);
+                }
+            }
+            result.put(entry.getKey(), dataMap);
+        }
+        return result;
+    }
+
     private static RoutingBuilder createBuilder(BasicBuilder<?> builder) {
     	RoutingBuilder routingBuilder = builder.createBuilder(builder.requestP2PConfiguration(),
                 builder.routingConfiguration());
@@ -23,6 +23,7 @@ import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.DigestResult;
 import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Serializer;
 
 /**
  * The future object for put() operations including routing.
@@ -42,6 +43,8 @@ public class FutureGet extends FutureDHT<FutureGet> {
     private Map<PeerAddress, Map<Number640, Data>> rawData;
     // Digest results
     private Map<PeerAddress, DigestResult> rawDigest;
+    // Leases granted for the near cache
+    private Map<PeerAddress, Long> leases;
 
     // Flag indicating if the minimum operations for put have been reached.
     private boolean minReached;
@@ -77,6 +80,17 @@ public class FutureGet extends FutureDHT<FutureGet> {
      *            The hashes of the content stored with information from which peer it has been received.
      */
     public void receivedData(final Map<PeerAddress, Map<Number640, Data>> rawData, final Map<PeerAddress, DigestResult> rawDigest) {
+        if (builder() != null) {
+            // data().object() decodes with the serializer of the request
+            final Serializer serializer = builder().serializer();
+            for (Map<Number640, Data> dataMap : rawData.values()) {
+                for (Data data : dataMap.values()) {
+                    if (data != null) {
+                        data.serializer(serializer);
+                    }
+                }
+            }
+        }
         synchronized (lock) {
             if (!completedAndNotify()) {
                 return;
@@ -91,6 +105,28 @@ public class FutureGet extends FutureDHT<FutureGet> {
         notifyListeners();
     }
 
+    /**
+     * Sets the leases that the peers granted. This needs to be called before the data is set.
+     * 
+     * @param leases
+     *            The duration of the lease in milliseconds per peer
+     */
+    void leases(final Map<PeerAddress, Long> leases) {
+        synchronized (lock) {
+            this.leases = leases;
+        }
+    }
+
+    /**
+     * @return The duration of the leases in milliseconds that the peers granted for the near cache, or null if no
+     *         lease was requested
+     */
+    public Map<PeerAddress, Long> leases() {
+        synchronized (lock) {
+            return leases;
+        }
+    }
+
     /**
      * Returns the raw data from the get operation.
      * 
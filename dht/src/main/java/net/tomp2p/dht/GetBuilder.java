@@ -67,6 +67,12 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
     
     private boolean fastGet = true;
 
+    private boolean hashRead = false;
+
+    private boolean bypassNearCache = false;
+
+    private boolean requestLease = false;
+
     static {
         NUMBER_ZERO_CONTENT_KEYS.add(Number160.ZERO);
     }
@@ -286,6 +292,66 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
         return this;
     }
 
+    /**
+     * @return True if only the closest peer sends the data and the other peers send the content hashes to vote on
+     */
+    public boolean isHashRead() {
+        return hashRead;
+    }
+
+    /**
+     * @param hashRead
+     *            Set to true if only the closest peer should send the data and the other peers only the content
+     *            hashes. The data is fetched from a second peer only if the data of the closest peer does not match
+     *            the majority. This does not apply to getLatest(), and it is ignored if the evaluation scheme is not
+     *            the majority voting of {@link net.tomp2p.p2p.VotingSchemeDHT}
+     * @return This class
+     */
+    public GetBuilder hashRead(boolean hashRead) {
+        this.hashRead = hashRead;
+        return this;
+    }
+
+    public GetBuilder hashRead() {
+        this.hashRead = true;
+        return this;
+    }
+
+    /**
+     * @return True if this get ignores the near cache of the peer
+     */
+    public boolean isBypassNearCache() {
+        return bypassNearCache;
+    }
+
+    /**
+     * @param bypassNearCache
+     *            Set to true if this get should always ask the responsible peers, even if the peer has a near cache.
+     *            The result is not cached either
+     * @return This class
+     */
+    public GetBuilder bypassNearCache(boolean bypassNearCache) {
+        this.bypassNearCache = bypassNearCache;
+        return this;
+    }
+
+    public GetBuilder bypassNearCache() {
+        this.bypassNearCache = true;
+        return this;
+    }
+
+    /**
+     * @return True if the responsible peers should grant a lease, set by the near cache
+     */
+    boolean isRequestLease() {
+        return requestLease;
+    }
+
+    GetBuilder requestLease(boolean requestLease) {
+        this.requestLease = requestLease;
+        return this;
+    }
+
     public FutureGet start() {
         if (peer.peer().isShutdown()) {
             return FUTURE_SHUTDOWN;
@@ -311,6 +377,9 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
 				throw new IllegalArgumentException("Content key must be set.");
 			}
 		}
+        if (peer.nearCache() != null && !bypassNearCache) {
+            return peer.nearCache().get(this, peer.distributedHashTable());
+        }
         return peer.distributedHashTable().get(this);
     }
 }
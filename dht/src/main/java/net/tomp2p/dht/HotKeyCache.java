@@ -0,0 +1,290 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.rpc.DigestInfo;
+import net.tomp2p.rpc.SimpleBloomFilter;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.DigestStorage;
+import net.tomp2p.utils.Utils;
+
+/**
+ * Keeps copies of hot entries for a short time on peers along the lookup path. The responsible peers detect hot
+ * location keys and grant a time to live for the copies, the requester then stores the copies on the closest peers
+ * that it asked during routing. The cache is separate from the storage, so copies are never replicated and are never
+ * reported as responsibility.
+ * <p>
+ * A peer on the lookup path is not responsible for the key and does not know if the domain is protected, so any
+ * requester could otherwise place a forged copy there. Only copies that are signed by the owner of the domain are
+ * cached, which means that the domain key is the hash of the public key of the signature. The caller has to verify the
+ * signature before it calls {@link #put(Number640, Data, int)}. Entries of other domains are always read from the
+ * responsible peers.
+ * <p>
+ * This class is also the cached digest storage of the peer, which is only asked for get routing. If the storage has
+ * no entries for a lookup, the cached copies are reported, so that routing with fast get finds them as direct hits and
+ * can stop before it reaches the responsible peers. Put, remove, and digest never see the cached copies, as they have
+ * to reach the responsible peers.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class HotKeyCache implements DigestStorage {
+
+	private final ConcurrentSkipListMap<Number640, Entry> cache = new ConcurrentSkipListMap<Number640, Entry>();
+	private final StorageLayer storageLayer;
+	private final int maxEntries;
+	private final int maxTTLSeconds;
+	private final AtomicLong served = new AtomicLong();
+
+	/**
+	 * @param storageLayer
+	 *            The storage layer, which is asked first for digests
+	 * @param maxEntries
+	 *            The maximum number of cached copies, further copies are rejected until others expire
+	 * @param maxTTLSeconds
+	 *            The maximum time to live of a copy, independent of what the responsible peer granted
+	 */
+	public HotKeyCache(final StorageLayer storageLayer, final int maxEntries, final int maxTTLSeconds) {
+		if (maxEntries <= 0 || maxTTLSeconds <= 0) {
+			throw new IllegalArgumentException("Max entries and max TTL need to be larger than 0");
+		}
+		this.storageLayer = storageLayer;
+		this.maxEntries = maxEntries;
+		this.maxTTLSeconds = maxTTLSeconds;
+	}
+
+	/**
+	 * @param key
+	 *            The key of the entry
+	 * @param data
+	 *            The entry
+	 * @return True if the entry is signed by the owner of its domain, only such entries are cached. The signature itself
+	 *         is not verified here.
+	 */
+	public static boolean isOwned(final Number640 key, final Data data) {
+		if (!data.isSigned() || data.publicKey() == null || data.publicKey().getEncoded() == null) {
+			return false;
+		}
+		return key.domainKey().equals(Utils.makeSHAHash(data.publicKey().getEncoded()));
+	}
+
+	/**
+	 * @param dataMap
+	 *            The entries
+	 * @return The entries that are signed by the owner of their domain
+	 */
+	public static Map<Number640, Data> owned(final Map<Number640, Data> dataMap) {
+		final Map<Number640, Data> owned = new TreeMap<Number640, Data>();
+		for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+			if (isOwned(entry.getKey(), entry.getValue())) {
+				owned.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return owned;
+	}
+
+	/**
+	 * Caches a copy. A copy is rejected if the cache has a newer version of the same entry, this is the case if the
+	 * version of the copy is in the based on set of a cached version. Cached versions that are in the based on set of
+	 * the copy are outdated and removed.
+	 *
+	 * @param key
+	 *            The key of the entry
+	 * @param data
+	 *            The copy
+	 * @param ttlSeconds
+	 *            The time to live that the responsible peer granted
+	 * @return True if the copy was cached
+	 */
+	public boolean put(final Number640 key, final Data data, final int ttlSeconds) {
+		if (ttlSeconds <= 0 || !isOwned(key, data)) {
+			return false;
+		}
+		final long now = System.currentTimeMillis();
+		final long expiration = Math.min(now + Math.min(ttlSeconds, maxTTLSeconds) * 1000L, data.expirationMillis());
+		if (expiration <= now) {
+			return false;
+		}
+		synchronized (cache) {
+			final ConcurrentNavigableMap<Number640, Entry> versions = cache.subMap(key.minVersionKey(), true,
+			        key.maxVersionKey(), true);
+			for (Iterator<Map.Entry<Number640, Entry>> iterator = versions.entrySet().iterator(); iterator.hasNext();) {
+				final Map.Entry<Number640, Entry> version = iterator.next();
+				if (version.getValue().data.basedOnSet().contains(key.versionKey())) {
+					return false;
+				}
+				if (data.basedOnSet().contains(version.getKey().versionKey())) {
+					iterator.remove();
+				}
+			}
+			if (!cache.containsKey(key) && cache.size() >= maxEntries) {
+				purge(now);
+				if (cache.size() >= maxEntries) {
+					return false;
+				}
+			}
+			cache.put(key, new Entry(data, expiration));
+			return true;
+		}
+	}
+
+	/**
+	 * @return The copies in the range that did not expire yet
+	 */
+	public NavigableMap<Number640, Data> get(final Number640 from, final Number640 to, final int limit,
+	        final boolean ascending) {
+		return served(live(from, to, limit, ascending));
+	}
+
+	/**
+	 * @return The copies of the keys that did not expire yet
+	 */
+	public Map<Number640, Data> get(final Collection<Number640> keys) {
+		return served(live(keys));
+	}
+
+	/**
+	 * @return The number of cached copies, including the ones that expired but were not removed yet
+	 */
+	public int size() {
+		return cache.size();
+	}
+
+	/**
+	 * @return The number of requests that were answered with cached copies
+	 */
+	public long served() {
+		return served.get();
+	}
+
+	private NavigableMap<Number640, Data> live(final Number640 from, final Number640 to, final int limit,
+	        final boolean ascending) {
+		final ConcurrentNavigableMap<Number640, Entry> range = ascending ? cache.subMap(from, true, to, true) : cache
+		        .subMap(from, true, to, true).descendingMap();
+		final NavigableMap<Number640, Data> result = new TreeMap<Number640, Data>();
+		final long now = System.currentTimeMillis();
+		for (Map.Entry<Number640, Entry> entry : range.entrySet()) {
+			if (limit >= 0 && result.size() >= limit) {
+				break;
+			}
+			if (entry.getValue().expiration > now) {
+				result.put(entry.getKey(), entry.getValue().data);
+			} else {
+				cache.remove(entry.getKey(), entry.getValue());
+			}
+		}
+		return result;
+	}
+
+	private Map<Number640, Data> live(final Collection<Number640> keys) {
+		final Map<Number640, Data> result = new TreeMap<Number640, Data>();
+		final long now = System.currentTimeMillis();
+		for (Number640 key : keys) {
+			final Entry entry = cache.get(key);
+			if (entry != null && entry.expiration > now) {
+				result.put(key, entry.data);
+			}
+		}
+		return result;
+	}
+
+	private <K extends Map<Number640, Data>> K served(final K result) {
+		if (!result.isEmpty()) {
+			served.incrementAndGet();
+		}
+		return result;
+	}
+
+	@Override
+	public DigestInfo digest(final Number640 from, final Number640 to, final int limit, final boolean ascending) {
+		final DigestInfo digestInfo = storageLayer.digest(from, to, limit, ascending);
+		if (digestInfo.size() > 0) {
+			return digestInfo;
+		}
+		return digest(live(from, to, limit, ascending));
+	}
+
+	@Override
+	public DigestInfo digest(final Number320 locationAndDomainKey, final SimpleBloomFilter<Number160> keyBloomFilter,
+	        final SimpleBloomFilter<Number160> contentBloomFilter, final int limit, final boolean ascending,
+	        final boolean isBloomFilterAnd) {
+		final DigestInfo digestInfo = storageLayer.digest(locationAndDomainKey, keyBloomFilter, contentBloomFilter,
+		        limit, ascending, isBloomFilterAnd);
+		if (digestInfo.size() > 0) {
+			return digestInfo;
+		}
+		final Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
+		final Number640 to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+		final DigestInfo cached = new DigestInfo();
+		for (Map.Entry<Number640, Data> entry : live(from, to, limit, ascending).entrySet()) {
+			final boolean keyMatch = keyBloomFilter == null
+			        || keyBloomFilter.contains(entry.getKey().contentKey()) == isBloomFilterAnd;
+			final boolean contentMatch = contentBloomFilter == null
+			        || contentBloomFilter.contains(entry.getValue().hash()) == isBloomFilterAnd;
+			if (keyMatch && contentMatch) {
+				cached.put(entry.getKey(), entry.getValue().basedOnSet());
+			}
+		}
+		return cached;
+	}
+
+	@Override
+	public DigestInfo digest(final Collection<Number640> number640s) {
+		final DigestInfo digestInfo = storageLayer.digest(number640s);
+		if (digestInfo.size() > 0) {
+			return digestInfo;
+		}
+		return digest(live(number640s));
+	}
+
+	private static DigestInfo digest(final Map<Number640, Data> entries) {
+		final DigestInfo digestInfo = new DigestInfo();
+		for (Map.Entry<Number640, Data> entry : entries.entrySet()) {
+			digestInfo.put(entry.getKey(), entry.getValue().basedOnSet());
+		}
+		return digestInfo;
+	}
+
+	private void purge(final long now) {
+		for (Map.Entry<Number640, Entry> entry : cache.entrySet()) {
+			if (entry.getValue().expiration <= now) {
+				cache.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private static final class Entry {
+		private final Data data;
+		private final long expiration;
+
+		private Entry(final Data data, final long expiration) {
+			this.data = data;
+			this.expiration = expiration;
+		}
+	}
+}
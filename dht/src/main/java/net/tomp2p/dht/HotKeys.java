@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import net.tomp2p.peers.Number160;
+
+/**
+ * Detects frequently requested location keys with a count-min sketch. The sketch uses a fixed amount of memory,
+ * independent of the number of keys, and never underestimates a count. To forget keys that are no longer requested,
+ * all counters are halved after each window of requests.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class HotKeys {
+
+	private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+	private final int[][] counters;
+	private final int width;
+	private final int threshold;
+	private final int window;
+
+	private int requests = 0;
+	private long observed = 0;
+
+	/**
+	 * @param threshold
+	 *            The number of requests within a window after which a location key is hot
+	 * @param width
+	 *            The number of counters per row, a larger width reduces the overestimation
+	 * @param window
+	 *            The number of requests after which all counters are halved
+	 */
+	public HotKeys(final int threshold, final int width, final int window) {
+		if (threshold <= 0 || width <= 0 || window <= 0) {
+			throw new IllegalArgumentException("Threshold, width, and window need to be larger than 0");
+		}
+		this.counters = new int[SEEDS.length][width];
+		this.width = width;
+		this.threshold = threshold;
+		this.window = window;
+	}
+
+	/**
+	 * Creates a sketch with 1024 counters per row and a window of 10000 requests.
+	 *
+	 * @param threshold
+	 *            The number of requests within a window after which a location key is hot
+	 */
+	public HotKeys(final int threshold) {
+		this(threshold, 1024, 10000);
+	}
+
+	/**
+	 * Counts a request for the location key.
+	 *
+	 * @param locationKey
+	 *            The requested location key
+	 * @return True if the location key is hot
+	 */
+	public synchronized boolean hit(final Number160 locationKey) {
+		observed++;
+		if (++requests >= window) {
+			decay();
+		}
+		final int estimate = estimate(locationKey) + 1;
+		// conservative update, only the counters that are below the new estimate are raised
+		for (int i = 0; i < SEEDS.length; i++) {
+			final int index = index(locationKey, i);
+			if (counters[i][index] < estimate) {
+				counters[i][index] = estimate;
+			}
+		}
+		return estimate >= threshold;
+	}
+
+	/**
+	 * @param locationKey
+	 *            The location key
+	 * @return True if the location key is hot, without counting a request
+	 */
+	public synchronized boolean isHot(final Number160 locationKey) {
+		return estimate(locationKey) >= threshold;
+	}
+
+	/**
+	 * @return The number of requests counted since this sketch was created
+	 */
+	public synchronized long observed() {
+		return observed;
+	}
+
+	private int estimate(final Number160 locationKey) {
+		int min = Integer.MAX_VALUE;
+		for (int i = 0; i < SEEDS.length; i++) {
+			min = Math.min(min, counters[i][index(locationKey, i)]);
+		}
+		return min;
+	}
+
+	private void decay() {
+		requests = 0;
+		for (int[] row : counters) {
+			for (int i = 0; i < width; i++) {
+				row[i] >>>= 1;
+			}
+		}
+	}
+
+	private int index(final Number160 locationKey, final int row) {
+		// murmur3 finalizer, so that similar keys end up in different counters
+		int h = locationKey.hashCode() ^ SEEDS[row];
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return (h & Integer.MAX_VALUE) % width;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.PeerAddress;
+
+/**
+ * The leases that a responsible peer granted to peers with a {@link NearCache}. A lease is granted per location and
+ * domain key. When the key changes, the leaseholders are notified and the leases end.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class Leases {
+
+	private final Map<Number320, Map<PeerAddress, Long>> leases = new ConcurrentHashMap<Number320, Map<PeerAddress, Long>>();
+	private final long leaseMillis;
+	private final int maxHolders;
+
+	/**
+	 * @param leaseSeconds
+	 *            The duration of a lease
+	 * @param maxHolders
+	 *            The maximum number of leaseholders per location and domain key, further requests get no lease
+	 */
+	public Leases(final int leaseSeconds, final int maxHolders) {
+		if (leaseSeconds <= 0 || maxHolders <= 0) {
+			throw new IllegalArgumentException("Lease duration and max holders need to be larger than 0");
+		}
+		this.leaseMillis = leaseSeconds * 1000L;
+		this.maxHolders = maxHolders;
+	}
+
+	/**
+	 * Creates leases with at most 1000 leaseholders per location and domain key.
+	 *
+	 * @param leaseSeconds
+	 *            The duration of a lease
+	 */
+	public Leases(final int leaseSeconds) {
+		this(leaseSeconds, 1000);
+	}
+
+	/**
+	 * Removes the expired leases periodically.
+	 *
+	 * @param timer
+	 *            The timer of the peer
+	 */
+	public void start(final ScheduledExecutorService timer) {
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				removeExpired();
+			}
+		}, leaseMillis, leaseMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Grants or renews a lease.
+	 *
+	 * @param locationAndDomainKey
+	 *            The key that the leaseholder caches
+	 * @param holder
+	 *            The leaseholder
+	 * @return The duration of the lease in milliseconds, or 0 if no lease was granted
+	 */
+	public long grant(final Number320 locationAndDomainKey, final PeerAddress holder) {
+		final long now = System.currentTimeMillis();
+		synchronized (leases) {
+			Map<PeerAddress, Long> holders = leases.get(locationAndDomainKey);
+			if (holders == null) {
+				holders = new ConcurrentHashMap<PeerAddress, Long>();
+				leases.put(locationAndDomainKey, holders);
+			}
+			if (!holders.containsKey(holder) && holders.size() >= maxHolders) {
+				removeExpired(holders, now);
+				if (holders.size() >= maxHolders) {
+					return 0;
+				}
+			}
+			holders.put(holder, now + leaseMillis);
+			return leaseMillis;
+		}
+	}
+
+	/**
+	 * Ends all leases of a key.
+	 *
+	 * @param locationAndDomainKey
+	 *            The key that changed
+	 * @return The leaseholders with a valid lease, which need to be notified
+	 */
+	public Collection<PeerAddress> revoke(final Number320 locationAndDomainKey) {
+		final Map<PeerAddress, Long> holders;
+		synchronized (leases) {
+			holders = leases.remove(locationAndDomainKey);
+		}
+		if (holders == null) {
+			return Collections.emptyList();
+		}
+		removeExpired(holders, System.currentTimeMillis());
+		return new ArrayList<PeerAddress>(holders.keySet());
+	}
+
+	/**
+	 * @return The number of keys with leases, including expired leases that were not removed yet
+	 */
+	public int size() {
+		return leases.size();
+	}
+
+	/**
+	 * Removes the expired leases, so that keys that are not read anymore do not keep their holders.
+	 */
+	public void removeExpired() {
+		final long now = System.currentTimeMillis();
+		synchronized (leases) {
+			for (Iterator<Map<PeerAddress, Long>> iterator = leases.values().iterator(); iterator.hasNext();) {
+				final Map<PeerAddress, Long> holders = iterator.next();
+				removeExpired(holders, now);
+				if (holders.isEmpty()) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	private static void removeExpired(final Map<PeerAddress, Long> holders, final long now) {
+		for (Iterator<Long> iterator = holders.values().iterator(); iterator.hasNext();) {
+			if (iterator.next() <= now) {
+				iterator.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.DigestResult;
+import net.tomp2p.storage.Data;
+
+/**
+ * A client side cache in front of {@link PeerDHT#get(Number160)}. A get for a single entry first looks into this
+ * cache. On a miss, the get asks the responsible peers for a lease. The lease request is an option of the get, older
+ * peers ignore it and reply without a lease. The result is only cached if every peer that replied with data granted
+ * a lease, and it is kept until the shortest lease or the local time to live ends. While a
+ * lease is valid, the responsible peer notifies this peer about every put or remove of the location and domain key,
+ * and the cached entries are removed.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class NearCache {
+
+    private final Map<Number640, Entry> cache;
+    private final long ttlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param maxEntries
+     *            The maximum number of cached gets, the least recently used is evicted first
+     * @param ttlSeconds
+     *            The maximum time a get is cached, even if the lease is longer
+     */
+    public NearCache(final int maxEntries, final int ttlSeconds) {
+        if (maxEntries <= 0 || ttlSeconds <= 0) {
+            throw new IllegalArgumentException("Max entries and TTL need to be larger than 0");
+        }
+        this.ttlMillis = ttlSeconds * 1000L;
+        this.cache = new LinkedHashMap<Number640, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Number640, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Answers the get from the cache, or runs it on the DHT and caches the result.
+     *
+     * @param builder
+     *            The get builder, after its defaults were set
+     * @param dht
+     *            The DHT that runs the get on a miss
+     * @return The future get, which is already completed on a hit
+     */
+    public FutureGet get(final GetBuilder builder, final DistributedHashTable dht) {
+        final Number640 key = cacheKey(builder);
+        if (key == null) {
+            return dht.get(builder);
+        }
+        final Entry entry;
+        synchronized (cache) {
+            final Entry tmp = cache.get(key);
+            if (tmp != null && tmp.expiration <= System.currentTimeMillis()) {
+                cache.remove(key);
+                entry = null;
+            } else {
+                entry = tmp;
+            }
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+            final FutureGet futureGet = new FutureGet(builder);
+            futureGet.receivedData(entry.rawData, entry.rawDigest);
+            return futureGet;
+        }
+        misses.incrementAndGet();
+        // if the entry changes while we wait for the replies, we may miss the notification
+        final long invalidationsBefore = invalidations.get();
+        final long start = System.currentTimeMillis();
+        builder.requestLease(true);
+        final FutureGet futureGet = dht.get(builder);
+        futureGet.addListener(new BaseFutureAdapter<FutureGet>() {
+            @Override
+            public void operationComplete(final FutureGet future) throws Exception {
+                if (!future.isSuccess()) {
+                    return;
+                }
+                final long lease = shortestLease(future.rawData(), future.leases());
+                if (lease <= 0) {
+                    return;
+                }
+                // checked under the same lock as invalidate, otherwise a notification could pass between check and put
+                synchronized (cache) {
+                    if (invalidations.get() != invalidationsBefore) {
+                        return;
+                    }
+                    cache.put(key, new Entry(future.rawData(), future.rawDigest(), start
+                            + Math.min(lease, ttlMillis)));
+                }
+            }
+        });
+        return futureGet;
+    }
+
+    /**
+     * Removes the cached gets of a location and domain key. This is called when a responsible peer notifies a
+     * leaseholder.
+     *
+     * @param locationAndDomainKey
+     *            The location and domain key that changed
+     */
+    public void invalidate(final Number320 locationAndDomainKey) {
+        synchronized (cache) {
+            invalidations.incrementAndGet();
+            for (Iterator<Number640> iterator = cache.keySet().iterator(); iterator.hasNext();) {
+                final Number640 key = iterator.next();
+                if (key.locationAndDomainKey().equals(locationAndDomainKey)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the cached gets of a location key. This is called when this peer changes the location key itself.
+     *
+     * @param locationKey
+     *            The location key that changed
+     */
+    public void invalidate(final Number160 locationKey) {
+        synchronized (cache) {
+            invalidations.incrementAndGet();
+            for (Iterator<Number640> iterator = cache.keySet().iterator(); iterator.hasNext();) {
+                if (iterator.next().locationKey().equals(locationKey)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of gets answered from the cache
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of cacheable gets that were not in the cache
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of cached gets, including the ones with an expired lease that were not removed yet
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * @return The key of a get for a single entry, or null if the get cannot be cached
+     */
+    private static Number640 cacheKey(final GetBuilder builder) {
+        if (builder.isAll() || builder.isRange() || builder.isGetLatest() || builder.isHashRead()
+                || builder.isReturnBloomFilter() || builder.keys() != null || builder.keyBloomFilter() != null
+                || builder.contentBloomFilter() != null || builder.contentKeys() == null
+                || builder.contentKeys().size() != 1) {
+            return null;
+        }
+        return new Number640(builder.locationKey(), builder.domainKey(), builder.contentKeys().iterator().next(),
+                builder.versionKey());
+    }
+
+    private static long shortestLease(final Map<PeerAddress, Map<Number640, Data>> rawData,
+            final Map<PeerAddress, Long> leases) {
+        if (rawData == null || rawData.isEmpty() || leases == null) {
+            return 0;
+        }
+        long shortest = Long.MAX_VALUE;
+        for (PeerAddress peerAddress : rawData.keySet()) {
+            final Long lease = leases.get(peerAddress);
+            if (lease == null) {
+                // without a lease, this peer does not notify us
+                return 0;
+            }
+            shortest = Math.min(shortest, lease);
+        }
+        return shortest;
+    }
+
+    private static final class Entry {
+        private final Map<PeerAddress, Map<Number640, Data>> rawData;
+        private final Map<PeerAddress, DigestResult> rawDigest;
+        private final long expiration;
+
+        private Entry(final Map<PeerAddress, Map<Number640, Data>> rawData,
+                final Map<PeerAddress, DigestResult> rawDigest, final long expiration) {
+            this.rawData = rawData;
+            this.rawDigest = rawDigest;
+            this.expiration = expiration;
+        }
+    }
+}
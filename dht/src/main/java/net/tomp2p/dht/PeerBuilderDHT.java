@@ -1,6 +1,9 @@
 package net.tomp2p.dht;
 
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.Shutdown;
 import net.tomp2p.storage.Storage;
 
 public class PeerBuilderDHT {
@@ -10,6 +13,14 @@ public class PeerBuilderDHT {
 	private DistributedHashTable dht;
 	private StorageLayer storageLayer;
 	private Storage storage;
+	private int storageThreads = 0;
+	private int storageQueueSize = 1000;
+	private int hotKeyThreshold = 0;
+	private int hotKeyCacheSize = 0;
+	private int hotKeyTTLSeconds = 5;
+	private int leaseSeconds = 30;
+	private int nearCacheSize = 0;
+	private int nearCacheTTLSeconds = 60;
 
 	public PeerBuilderDHT(Peer peer) {
 		this.peer = peer;
@@ -56,6 +67,123 @@ public class PeerBuilderDHT {
 
 	}
 
+	public int storageThreads() {
+		return storageThreads;
+	}
+
+	/**
+	 * @param storageThreads
+	 *            The number of threads that handle the storage requests. Requests for the same location key are
+	 *            handled in order by the same thread. Set to 0 to handle the requests on the I/O threads
+	 * @return This class
+	 */
+	public PeerBuilderDHT storageThreads(int storageThreads) {
+		this.storageThreads = storageThreads;
+		return this;
+	}
+
+	public int storageQueueSize() {
+		return storageQueueSize;
+	}
+
+	/**
+	 * @param storageQueueSize
+	 *            The number of storage requests that can wait per thread. If a queue is full, the request is answered
+	 *            with an overload reply
+	 * @return This class
+	 */
+	public PeerBuilderDHT storageQueueSize(int storageQueueSize) {
+		this.storageQueueSize = storageQueueSize;
+		return this;
+	}
+
+	public int hotKeyThreshold() {
+		return hotKeyThreshold;
+	}
+
+	/**
+	 * @param hotKeyThreshold
+	 *            The number of get requests for a location key after which this peer tells the requesters to cache
+	 *            the entries on the lookup path. Set to 0 to not detect hot keys
+	 * @return This class
+	 */
+	public PeerBuilderDHT hotKeyThreshold(int hotKeyThreshold) {
+		this.hotKeyThreshold = hotKeyThreshold;
+		return this;
+	}
+
+	public int hotKeyCacheSize() {
+		return hotKeyCacheSize;
+	}
+
+	/**
+	 * @param hotKeyCacheSize
+	 *            The number of copies of hot entries from other peers that this peer caches. Set to 0 to not cache
+	 *            any copies
+	 * @return This class
+	 */
+	public PeerBuilderDHT hotKeyCacheSize(int hotKeyCacheSize) {
+		this.hotKeyCacheSize = hotKeyCacheSize;
+		return this;
+	}
+
+	public int hotKeyTTLSeconds() {
+		return hotKeyTTLSeconds;
+	}
+
+	/**
+	 * @param hotKeyTTLSeconds
+	 *            The time to live of cached copies, as granted to requesters and as accepted from other peers
+	 * @return This class
+	 */
+	public PeerBuilderDHT hotKeyTTLSeconds(int hotKeyTTLSeconds) {
+		this.hotKeyTTLSeconds = hotKeyTTLSeconds;
+		return this;
+	}
+
+	public int leaseSeconds() {
+		return leaseSeconds;
+	}
+
+	/**
+	 * @param leaseSeconds
+	 *            The duration of the leases that this peer grants to peers with a near cache. Set to 0 to not grant
+	 *            leases, then no other peer caches the entries of this peer
+	 * @return This class
+	 */
+	public PeerBuilderDHT leaseSeconds(int leaseSeconds) {
+		this.leaseSeconds = leaseSeconds;
+		return this;
+	}
+
+	public int nearCacheSize() {
+		return nearCacheSize;
+	}
+
+	/**
+	 * @param nearCacheSize
+	 *            The number of gets that this peer caches in front of get(). Set to 0 to not cache gets
+	 * @return This class
+	 */
+	public PeerBuilderDHT nearCacheSize(int nearCacheSize) {
+		this.nearCacheSize = nearCacheSize;
+		return this;
+	}
+
+	public int nearCacheTTLSeconds() {
+		return nearCacheTTLSeconds;
+	}
+
+	/**
+	 * @param nearCacheTTLSeconds
+	 *            The maximum time a get is cached, even if the lease is longer
+	 * @return This class
+	 */
+	public PeerBuilderDHT nearCacheTTLSeconds(int nearCacheTTLSeconds) {
+		this.nearCacheTTLSeconds = nearCacheTTLSeconds;
+		return this;
+	}
+
 	public PeerDHT start() {
 		if (storage == null) {
 			storage = new StorageMemory();
@@ -64,16 +192,49 @@ public class PeerBuilderDHT {
 			storageLayer = new StorageLayer(storage);
 			storageLayer.start(peer.connectionBean().timer(), storageLayer.storageCheckIntervalMillis());
 		}
+		HotKeyCache hotKeyCache = null;
+		if (hotKeyCacheSize > 0) {
+			hotKeyCache = new HotKeyCache(storageLayer, hotKeyCacheSize, hotKeyTTLSeconds);
+		}
 		if (peer.peerBean().digestStorage() == null) {
 			peer.peerBean().digestStorage(storageLayer);
 		}
+		if (hotKeyCache != null && peer.peerBean().cachedDigestStorage() == null) {
+			peer.peerBean().cachedDigestStorage(hotKeyCache);
+		}
 		if (storageRPC == null) {
 			storageRPC = new StorageRPC(peer.peerBean(), peer.connectionBean(), storageLayer);
+			storageRPC.hotKeyCache(hotKeyCache).hotKeyTTLSeconds(hotKeyTTLSeconds);
+			if (hotKeyThreshold > 0) {
+				storageRPC.hotKeys(new HotKeys(hotKeyThreshold));
+			}
+			if (leaseSeconds > 0) {
+				final Leases leases = new Leases(leaseSeconds);
+				leases.start(peer.connectionBean().timer());
+				storageRPC.leases(leases);
+			}
+			if (storageThreads > 0) {
+				final StorageStage storageStage = new StorageStage(storageThreads, storageQueueSize);
+				storageRPC.storageStage(storageStage);
+				peer.addShutdownListener(new Shutdown() {
+					@Override
+					public BaseFuture shutdown() {
+						storageStage.shutdown();
+						return new FutureDone<Void>().done();
+					}
+				});
+			}
 		}
 		if (dht == null) {
 			dht = new DistributedHashTable(peer.distributedRouting(), storageRPC, peer.directDataRPC());
 		}
 
-		return new PeerDHT(peer, storageLayer, dht, storageRPC);
+		NearCache nearCache = null;
+		if (nearCacheSize > 0) {
+			nearCache = new NearCache(nearCacheSize, nearCacheTTLSeconds);
+			storageRPC.nearCache(nearCache);
+		}
+
+		return new PeerDHT(peer, storageLayer, dht, storageRPC, nearCache);
 	}
 }
@@ -5,6 +5,7 @@ import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.utils.Serializer;
 
 public class PeerDHT {
 
@@ -12,12 +13,15 @@ public class PeerDHT {
 	final private StorageRPC storageRPC;
 	final private DistributedHashTable dht;
 	final private StorageLayer storageLayer;
+	final private NearCache nearCache;
 
-	PeerDHT(Peer peer, StorageLayer storageLayer, DistributedHashTable dht, StorageRPC storageRPC) {
+	PeerDHT(Peer peer, StorageLayer storageLayer, DistributedHashTable dht, StorageRPC storageRPC,
+	        NearCache nearCache) {
 		this.peer = peer;
 		this.storageLayer = storageLayer;
 		this.dht = dht;
 		this.storageRPC = storageRPC;
+		this.nearCache = nearCache;
     }
 
 	public Peer peer() {
@@ -36,6 +40,13 @@ public class PeerDHT {
 		return storageLayer;
 	}
 
+	/**
+	 * @return The near cache in front of get(), or null if this peer does not cache gets
+	 */
+	public NearCache nearCache() {
+		return nearCache;
+	}
+
 	public AddBuilder add(Number160 locationKey) {
 		return new AddBuilder(this, locationKey);
 	}
@@ -97,4 +108,8 @@ public class PeerDHT {
 	public PeerAddress peerAddress() {
 	    return peer.peerAddress();
     }
+
+	public Serializer serializer() {
+	    return peer.peerBean().serializer();
+    }
 }
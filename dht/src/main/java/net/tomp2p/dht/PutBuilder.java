@@ -121,11 +121,11 @@ public class PutBuilder extends DHTBuilder<PutBuilder> {
     }
 
     public PutBuilder object(Object object) throws IOException {
-        return data(new Data(object));
+        return data(encode(object));
     }
 
     public PutBuilder keyObject(Number160 contentKey, Object object) throws IOException {
-        return data(contentKey, new Data(object));
+        return data(contentKey, encode(object));
     }
 
     public Map<Number640, Data> dataMap() {
@@ -199,6 +199,10 @@ public class PutBuilder extends DHTBuilder<PutBuilder> {
             return FUTURE_SHUTDOWN;
         }
         preBuild("put-builder");
+        if (peer.nearCache() != null) {
+            // read your own writes, the notification of the responsible peers may arrive later
+            peer.nearCache().invalidate(locationKey);
+        }
         if (data != null) {
             if (dataMap == null) {
                 dataMap(new HashMap<Number640, Data>(1));
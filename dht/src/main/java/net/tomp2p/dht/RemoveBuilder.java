@@ -149,6 +149,10 @@ public class RemoveBuilder extends DHTBuilder<RemoveBuilder> implements Searchab
             return FUTURE_SHUTDOWN;
         }
         preBuild("remove-builder");
+        if (peer.nearCache() != null) {
+            // read your own writes, the notification of the responsible peers may arrive later
+            peer.nearCache().invalidate(locationKey);
+        }
         if (all) {
             contentKeys = null;
         } else if (contentKeys == null && !all && !isRange()) {
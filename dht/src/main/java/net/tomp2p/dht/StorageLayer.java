@@ -22,11 +22,12 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -93,8 +94,49 @@ public class StorageLayer implements DigestStorage {
 
 	final private Storage backend;
 
+	final private VersionIndex versionIndex;
+
+	final private List<StorageListener> storageListeners = new CopyOnWriteArrayList<StorageListener>();
+
 	public StorageLayer(Storage backend) {
+		this(backend, VersionIndex.DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param backend
+	 *            The storage
+	 * @param maxVersionIndexEntries
+	 *            The max. number of content keys whose versions are kept in memory
+	 */
+	public StorageLayer(Storage backend, int maxVersionIndexEntries) {
 		this.backend = backend;
+		this.versionIndex = new VersionIndex(maxVersionIndexEntries);
+	}
+
+	/**
+	 * Add a storage listener. This is thread-safe
+	 * 
+	 * @param storageListener
+	 *            The listener
+	 */
+	public void addStorageListener(StorageListener storageListener) {
+		storageListeners.add(storageListener);
+	}
+
+	/**
+	 * Remove a storage listener. This is thread-safe
+	 * 
+	 * @param storageListener
+	 *            The listener
+	 */
+	public void removeStorageListener(StorageListener storageListener) {
+		storageListeners.remove(storageListener);
+	}
+
+	private void notifyChanged(Number640 from, Number640 to) {
+		for (StorageListener storageListener : storageListeners) {
+			storageListener.changed(from, to);
+		}
 	}
 
 	public void protection(ProtectionEnable protectionDomainEnable, ProtectionMode protectionDomainMode,
@@ -147,6 +189,7 @@ public class StorageLayer implements DigestStorage {
 
 	public Enum<?> put(final Number640 key, Data newData, PublicKey publicKey, boolean putIfAbsent,
 	        boolean domainProtection) {
+		// the content hash is computed on first use, e.g. by a digest, and kept with the stored data
 		boolean retVal = false;
 		KeyLock<Number480>.RefCounterLock lock = dataLock480.lock(key.locationDomainAndContentKey());
 		try {
@@ -163,20 +206,23 @@ public class StorageLayer implements DigestStorage {
 				return PutStatus.FAILED_NOT_ABSENT;
 			}
 			
-			NavigableMap<Number640, Data> tmp = backend.subMap(key.minVersionKey(), key.maxVersionKey(), -1, true);
-			if (tmp.containsKey(key)) {
-				if (tmp.get(key).isDeleted()) {
-					return PutStatus.DELETED;
-				}
+			final VersionIndex.Versions versions = versionIndex.versions(key.locationDomainAndContentKey(), backend);
+			if (versions.isDeleted(key.versionKey())) {
+				return PutStatus.DELETED;
 			}
-			tmp.put(key, newData);
-			boolean versionFork = getLatestInternal(tmp).size() > 1;
 
 			retVal = backend.put(key, newData);
+			boolean versionFork = false;
 			if (retVal) {
 				long expiration = newData.expirationMillis();
 				// handle timeout
 				backend.addTimeout(key, expiration);
+				versions.put(key.versionKey(), newData);
+				// the backend may have dropped old versions
+				versions.trim(key.locationDomainAndContentKey(), backend);
+				versionFork = versions.heads(true).size() > 1;
+				notifyChanged(new Number640(key.locationDomainAndContentKey(), Number160.ZERO), new Number640(
+				        key.locationDomainAndContentKey(), Number160.MAX_VALUE));
 			}
 
 			if (retVal && versionFork) {
@@ -192,7 +238,8 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public Pair<Data, Enum<?>> remove(Number640 key, PublicKey publicKey, boolean returnData) {
-		KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
+		// the version index is loaded under the 480 lock, so a remove must not run concurrently
+		KeyLock<Number480>.RefCounterLock lock = dataLock480.lock(key.locationDomainAndContentKey());
 		try {
 			if (!canClaimDomain(key.locationAndDomainKey(), publicKey)) {
 				return new Pair<Data, Enum<?>>(null, PutStatus.FAILED_SECURITY);
@@ -204,9 +251,12 @@ public class StorageLayer implements DigestStorage {
 				return new Pair<Data, Enum<?>>(null, PutStatus.NOT_FOUND);
 			}
 			backend.removeTimeout(key);
-			return new Pair<Data, Enum<?>>(backend.remove(key, returnData), PutStatus.OK);
+			final Data removed = backend.remove(key, returnData);
+			versionIndex.remove(key);
+			notifyChanged(key, key);
+			return new Pair<Data, Enum<?>>(removed, PutStatus.OK);
 		} finally {
-			dataLock640.unlock(lock);
+			dataLock480.unlock(lock);
 		}
 	}
 
@@ -241,35 +291,37 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public Map<Number640, Data> getLatestVersion(Number640 key) {
-		KeyLock<Number480>.RefCounterLock lock = dataLock480.lock(key.locationDomainAndContentKey());
+		final Number480 key480 = key.locationDomainAndContentKey();
+		KeyLock<Number480>.RefCounterLock lock = dataLock480.lock(key480);
 		try {
-			NavigableMap<Number640, Data> tmp = backend.subMap(key.minVersionKey(), key.maxVersionKey(), -1, true);
-			removePrepared(tmp);
-			return getLatestInternal(tmp);
+			// only the latest versions are read from the backend
+			Map<Number640, Data> result = new HashMap<Number640, Data>();
+			for (Number160 versionKey : versionIndex.versions(key480, backend).heads(false)) {
+				final Number640 latestKey = new Number640(key480, versionKey);
+				final Data latest = backend.get(latestKey);
+				if (latest != null) {
+					result.put(latestKey, latest);
+				}
+			}
+			return result;
 		} finally {
 			dataLock480.unlock(lock);
 		}
 	}
 
-	private Map<Number640, Data> getLatestInternal(NavigableMap<Number640, Data> tmp) {
-		// remove all tombstones
-		for (Iterator<Number640> it = tmp.keySet().iterator(); it.hasNext();) {
-	    	if (tmp.get(it.next()).isDeleted()) {
-	    		it.remove();
-	    	}
-	    }
-	    // delete all predecessors
-	    Map<Number640, Data> result = new HashMap<Number640, Data>();
-	    while (!tmp.isEmpty()) {
-	    	// first entry is a latest version
-	    	Entry<Number640, Data> latest = tmp.lastEntry();
-	    	// store in results list
-	    	result.put(latest.getKey(), latest.getValue());
-	    	// delete all predecessors of latest entry
-	    	deletePredecessors(latest.getKey(), tmp);
-	    }
-	    return result;
-    }
+	/**
+	 * @param key
+	 *            The location, domain, and content key
+	 * @return The number of versions stored for this key, including tombstones and prepared versions
+	 */
+	public int versionCount(Number480 key) {
+		KeyLock<Number480>.RefCounterLock lock = dataLock480.lock(key);
+		try {
+			return versionIndex.versions(key, backend).size();
+		} finally {
+			dataLock480.unlock(lock);
+		}
+	}
 
 	private void removePrepared(final NavigableMap<Number640, Data> tmp) {
 		final Iterator<Map.Entry<Number640, Data>> iterator = tmp.entrySet().iterator();
@@ -281,22 +333,6 @@ public class StorageLayer implements DigestStorage {
 	    }
     }
 
-	private void deletePredecessors(Number640 key, NavigableMap<Number640, Data> sortedMap) {
-		Data version = sortedMap.remove(key);
-		// check if version has been already deleted
-		if (version == null) {
-			return;
-		}
-		// check if version is initial version
-		if (version.basedOnSet().isEmpty()) {
-			return;
-		}
-		// remove all predecessor versions recursively
-		for (Number160 basedOnKey : version.basedOnSet()) {
-			deletePredecessors(new Number640(key.locationDomainAndContentKey(), basedOnKey), sortedMap);
-		}
-	}
-
 	public NavigableMap<Number640, Data> get() {
 		KeyLock<Storage>.RefCounterLock lock = dataLock.lock(backend);
 		try {
@@ -394,6 +430,8 @@ public class StorageLayer implements DigestStorage {
 				}
 			}
 			SortedMap<Number640, Data> result = backend.remove(from, to, true);
+			versionIndex.invalidate(from, to);
+			notifyChanged(from, to);
 			for (Map.Entry<Number640, Data> entry : result.entrySet()) {
 				Data data = entry.getValue();
 				if (data.publicKey() == null || data.publicKey().equals(publicKey)) {
@@ -426,10 +464,12 @@ public class StorageLayer implements DigestStorage {
 		Collection<Number640> toRemove = backend.subMapTimeout(time);
 		if (toRemove.size() > 0) {
 			for (Number640 key : toRemove) {
-				KeyLock<Number640>.RefCounterLock lock = dataLock640.lock(key);
+				KeyLock<Number480>.RefCounterLock lock = dataLock480.lock(key.locationDomainAndContentKey());
 				try {
 					backend.remove(key, false);
 					backend.removeTimeout(key);
+					versionIndex.remove(key);
+					notifyChanged(key, key);
 				} finally {
 					lock.unlock();
 				}
@@ -697,10 +737,12 @@ public class StorageLayer implements DigestStorage {
 		KeyLock<Number160>.RefCounterLock lock = responsibilityLock.lock(locationKey);
 		try {
 			if (!keepData) {
-				backend.remove(
-						new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO),
-						new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE),
-						false);
+				final Number640 from = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+				final Number640 to = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
+				        Number160.MAX_VALUE);
+				backend.remove(from, to, false);
+				versionIndex.invalidate(from, to);
+				notifyChanged(from, to);
 			}
         	backend.removeResponsibility(locationKey);
         } finally {
@@ -799,6 +841,14 @@ public class StorageLayer implements DigestStorage {
 				// handle timeout
 				backend.addTimeout(key, expiration);
 				found = backend.put(key, data);
+				final VersionIndex.Versions versions = versionIndex.loaded(key.locationDomainAndContentKey());
+				if (found && versions != null) {
+					versions.confirm(key.versionKey());
+				}
+				if (found) {
+					// the entry is visible from now on
+					notifyChanged(key, key);
+				}
 			}
 		} finally {
 			dataLock640.unlock(lock);
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * Gets notified by the {@link StorageLayer} when entries are stored or removed, so that values derived from the
+ * storage can be kept up to date.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public interface StorageListener {
+
+	/**
+	 * Called after entries in a range have been stored, replaced, or removed. This is called while the storage holds
+	 * the lock for the range, so it should return quickly and must not access the storage.
+	 *
+	 * @param from
+	 *            The first key of the range, including
+	 * @param to
+	 *            The last key of the range, including
+	 */
+	void changed(Number640 from, Number640 to);
+}
@@ -88,13 +88,13 @@ public class StorageMemory implements Storage {
         	NavigableMap<Number640, Data> versions = dataMap.subMap(
 				new Number640(key.locationKey(), key.domainKey(), key.contentKey(), Number160.ZERO), true,
 				new Number640(key.locationKey(), key.domainKey(), key.contentKey(), Number160.MAX_VALUE), true);
-        	for (int i = 0; i < versions.size() - maxVersions; i++) {
-        		Iterator<Number640> it = versions.navigableKeySet().iterator();
-        		if (it.hasNext()) {
-        			Number640 toRemove = it.next();
-        			remove(toRemove, false);
-        			removeTimeout(toRemove);
+        	// size() walks the sub map, so count once and then drop the oldest versions
+        	for (int excess = versions.size() - maxVersions; excess > 0; excess--) {
+        		Map.Entry<Number640, Data> entry = versions.pollFirstEntry();
+        		if (entry == null) {
+        			break;
         		}
+        		removeTimeout(entry.getKey());
         	}
     		if (!versions.isEmpty()) {
     			while (versions.firstKey().versionKey().timestamp() + maxVersions  <= versions
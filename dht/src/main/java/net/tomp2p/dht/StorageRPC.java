@@ -20,10 +20,15 @@ import java.io.IOException;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ConnectionBean;
@@ -31,7 +36,10 @@ import net.tomp2p.connection.PeerBean;
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.RequestHandler;
 import net.tomp2p.connection.Responder;
+import net.tomp2p.connection.SignatureFactory;
 import net.tomp2p.dht.StorageLayer.PutStatus;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.message.DataMap;
 import net.tomp2p.message.KeyCollection;
@@ -64,10 +72,18 @@ import org.slf4j.LoggerFactory;
 public class StorageRPC extends DispatchHandler {
     private static final Logger LOG = LoggerFactory.getLogger(StorageRPC.class);
     private static final Random RND = new Random();
+    // a long value in a get request asks for a lease, see NearCache
+    private static final long LEASE_REQUEST = 1L;
 
     private final BloomfilterFactory factory;
     private final StorageLayer storageLayer;
     private ReplicationListener replicationListener = null;
+    private StorageStage storageStage = null;
+    private HotKeys hotKeys = null;
+    private HotKeyCache hotKeyCache = null;
+    private int hotKeyTTLSeconds = 5;
+    private Leases leases = null;
+    private NearCache nearCache = null;
 
     /**
      * Register the store rpc for put, compare put, get, add, and remove.
@@ -84,7 +100,9 @@ public class StorageRPC extends DispatchHandler {
         		RPC.Commands.REMOVE.getNr(), RPC.Commands.DIGEST.getNr(), 
         		RPC.Commands.DIGEST_BLOOMFILTER.getNr(), RPC.Commands.PUT_META.getNr(), 
 				RPC.Commands.DIGEST_META_VALUES.getNr(), RPC.Commands.PUT_CONFIRM.getNr(),
-				RPC.Commands.GET_LATEST.getNr(), RPC.Commands.GET_LATEST_WITH_DIGEST.getNr());
+				RPC.Commands.GET_LATEST.getNr(), RPC.Commands.GET_LATEST_WITH_DIGEST.getNr(),
+				RPC.Commands.GET_HASHES.getNr(), RPC.Commands.PUT_CACHE.getNr(),
+				RPC.Commands.LEASE_INVALIDATE.getNr());
         this.factory = peerBean.bloomfilterFactory();
         this.storageLayer = storageLayer;
     }
@@ -98,6 +116,92 @@ public class StorageRPC extends DispatchHandler {
     	return replicationListener;
     }
 
+    /**
+     * @param storageStage
+     *            The stage that runs the requests outside of the I/O threads, or null to handle them on the I/O
+     *            thread that received them
+     * @return This class
+     */
+    public StorageRPC storageStage(StorageStage storageStage) {
+    	this.storageStage = storageStage;
+    	return this;
+    }
+
+    public StorageStage storageStage() {
+    	return storageStage;
+    }
+
+    /**
+     * @param hotKeys
+     *            The sketch that counts the get requests per location key, or null to not detect hot keys. If a key
+     *            is hot, the reply tells the requester to cache the entries on the lookup path
+     * @return This class
+     */
+    public StorageRPC hotKeys(HotKeys hotKeys) {
+    	this.hotKeys = hotKeys;
+    	return this;
+    }
+
+    public HotKeys hotKeys() {
+    	return hotKeys;
+    }
+
+    /**
+     * @param hotKeyCache
+     *            The cache for copies of hot entries from other peers, or null to reject such copies
+     * @return This class
+     */
+    public StorageRPC hotKeyCache(HotKeyCache hotKeyCache) {
+    	this.hotKeyCache = hotKeyCache;
+    	return this;
+    }
+
+    public HotKeyCache hotKeyCache() {
+    	return hotKeyCache;
+    }
+
+    /**
+     * @param hotKeyTTLSeconds
+     *            The time to live of the copies of hot entries that this peer grants to the requesters
+     * @return This class
+     */
+    public StorageRPC hotKeyTTLSeconds(int hotKeyTTLSeconds) {
+    	this.hotKeyTTLSeconds = hotKeyTTLSeconds;
+    	return this;
+    }
+
+    public int hotKeyTTLSeconds() {
+    	return hotKeyTTLSeconds;
+    }
+
+    /**
+     * @param leases
+     *            The leases granted to peers with a near cache, or null to not grant leases
+     * @return This class
+     */
+    public StorageRPC leases(Leases leases) {
+    	this.leases = leases;
+    	return this;
+    }
+
+    public Leases leases() {
+    	return leases;
+    }
+
+    /**
+     * @param nearCache
+     *            The near cache of this peer, which is invalidated when a responsible peer notifies this peer
+     * @return This class
+     */
+    public StorageRPC nearCache(NearCache nearCache) {
+    	this.nearCache = nearCache;
+    	return this;
+    }
+
+    public NearCache nearCache() {
+    	return nearCache;
+    }
+
     /**
      * Stores data on a remote peer. Overwrites data if the data already exists. This is an RPC.
      * 
@@ -415,6 +519,10 @@ public class StorageRPC extends DispatchHandler {
         }
         
         final Message message = createMessage(remotePeer, command, type);
+        if (getBuilder.isReturnMetaValues()) {
+            // the meta values come without payload, the reply can carry the content hashes instead
+            message.hashes(true);
+        }
 
         if (getBuilder.isSign()) {
             message.publicKeyAndSign(getBuilder.keyPair());
@@ -464,6 +572,28 @@ public class StorageRPC extends DispatchHandler {
 
     public FutureResponse get(final PeerAddress remotePeer, final GetBuilder getBuilder,
             final ChannelCreator channelCreator) {
+        return get(remotePeer, getBuilder, channelCreator, RPC.Commands.GET);
+    }
+
+    /**
+     * Requests the same entries as {@link #get(PeerAddress, GetBuilder, ChannelCreator)}, but the remote peer only
+     * sends back the content hash of each entry and not the data. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to send this request
+     * @param getBuilder
+     *            The builder with the keys to look up
+     * @param channelCreator
+     *            The channel creator
+     * @return The future response with the content hashes in the key map
+     */
+    public FutureResponse getHashes(final PeerAddress remotePeer, final GetBuilder getBuilder,
+            final ChannelCreator channelCreator) {
+        return get(remotePeer, getBuilder, channelCreator, RPC.Commands.GET_HASHES);
+    }
+
+    private FutureResponse get(final PeerAddress remotePeer, final GetBuilder getBuilder,
+            final ChannelCreator channelCreator, final RPC.Commands command) {
     	final Type type;
         if (getBuilder.isAscending() && getBuilder.isBloomFilterAnd()) {
             type = Type.REQUEST_1;
@@ -474,11 +604,15 @@ public class StorageRPC extends DispatchHandler {
         } else {
         	type = Type.REQUEST_4;
         }
-        final Message message = createMessage(remotePeer, RPC.Commands.GET.getNr(), type);
+        final Message message = createMessage(remotePeer, command.getNr(), type);
 
         if (getBuilder.isSign()) {
             message.publicKeyAndSign(getBuilder.keyPair());
         }
+        if (getBuilder.isRequestLease() && command == RPC.Commands.GET) {
+            // older peers ignore the long value and reply without a lease
+            message.longValue(LEASE_REQUEST);
+        }
 
         if (getBuilder.to() != null && getBuilder.from() != null) {
             final Collection<Number640> keys = new ArrayList<Number640>(2);
@@ -545,6 +679,38 @@ public class StorageRPC extends DispatchHandler {
 		}
 	}
 
+    /**
+     * Stores copies of hot entries on a peer along the lookup path. The remote peer keeps the copies in its
+     * {@link HotKeyCache} and not in its storage. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to store the copies
+     * @param dataMap
+     *            The entries as received from the responsible peer
+     * @param ttlSeconds
+     *            The time to live that the responsible peer granted
+     * @param getBuilder
+     *            The builder of the get that found the entries
+     * @param channelCreator
+     *            The channel creator
+     * @return The future response, which is denied if the remote peer does not cache copies
+     */
+    public FutureResponse putCache(final PeerAddress remotePeer, final Map<Number640, Data> dataMap,
+            final int ttlSeconds, final GetBuilder getBuilder, final ChannelCreator channelCreator) {
+        final Message message = createMessage(remotePeer, RPC.Commands.PUT_CACHE.getNr(), Type.REQUEST_1);
+        message.setDataMap(new DataMap(dataMap));
+        message.intValue(ttlSeconds);
+
+        final FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler<FutureResponse> request = new RequestHandler<FutureResponse>(futureResponse,
+                peerBean(), connectionBean(), getBuilder);
+        if (!getBuilder.isForceUDP()) {
+            return request.sendTCP(channelCreator);
+        } else {
+            return request.sendUDP(channelCreator);
+        }
+    }
+
     /**
      * Removes data from a peer. This is an RPC.
      * 
@@ -611,7 +777,7 @@ public class StorageRPC extends DispatchHandler {
 
     @Override
     public void handleResponse(final Message message, PeerConnection peerConnection, final boolean sign,
-            Responder responder) throws Exception {
+            final Responder responder) throws Exception {
 
     	if (!(message.command() == RPC.Commands.ADD.getNr() || message.command() == RPC.Commands.PUT.getNr()
 				|| message.command() == RPC.Commands.GET.getNr()
@@ -622,9 +788,43 @@ public class StorageRPC extends DispatchHandler {
 				|| message.command() == RPC.Commands.PUT_META.getNr()
 				|| message.command() == RPC.Commands.PUT_CONFIRM.getNr()
 				|| message.command() == RPC.Commands.GET_LATEST.getNr()
-				|| message.command() == RPC.Commands.GET_LATEST_WITH_DIGEST.getNr())) {
+				|| message.command() == RPC.Commands.GET_LATEST_WITH_DIGEST.getNr()
+				|| message.command() == RPC.Commands.GET_HASHES.getNr()
+				|| message.command() == RPC.Commands.PUT_CACHE.getNr()
+				|| message.command() == RPC.Commands.LEASE_INVALIDATE.getNr())) {
 			throw new IllegalArgumentException("Message content is wrong " + message.command());
 		}
+        if (message.command() == RPC.Commands.LEASE_INVALIDATE.getNr()) {
+            // fire and forget, the lease ends anyway if this message is lost
+            if (nearCache != null && message.key(0) != null && message.key(1) != null) {
+                nearCache.invalidate(new Number320(message.key(0), message.key(1)));
+            }
+            responder.responseFireAndForget();
+            return;
+        }
+        if (storageStage == null) {
+            handleStorage(message, sign, responder);
+            return;
+        }
+        final boolean accepted = storageStage.execute(locationKeys(message), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleStorage(message, sign, responder);
+                } catch (Throwable t) {
+                    LOG.error("Exception in storage handler", t);
+                    responder.failed(Type.EXCEPTION, t.toString());
+                }
+            }
+        });
+        if (!accepted) {
+            LOG.debug("storage stage is saturated, reply with overload to {}", message);
+            responder.response(createResponseMessage(message, Type.DENIED).overload());
+        }
+    }
+
+    private void handleStorage(final Message message, final boolean sign, final Responder responder)
+            throws IOException {
         final Message responseMessage = createResponseMessage(message, Type.OK);
 
         //switch/case does not work here out of the box, need to convert byte back to enum, not sure if thats worth it.
@@ -635,11 +835,19 @@ public class StorageRPC extends DispatchHandler {
         } else if (message.command() == RPC.Commands.PUT_CONFIRM.getNr()) {
         	handlePutConfirm(message, responseMessage);
         } else if (message.command() == RPC.Commands.GET.getNr()) {
-            handleGet(message, responseMessage);
+            if (message.longAt(0) != null) {
+                // grant before reading, so that a concurrent put notifies the requester
+                grantLease(message, responseMessage);
+            }
+            handleGet(message, responseMessage, false);
+        } else if (message.command() == RPC.Commands.GET_HASHES.getNr()) {
+            handleGet(message, responseMessage, true);
 		} else if (message.command() == RPC.Commands.GET_LATEST.getNr()) {
 			handleGetLatest(message, responseMessage, false);
 		} else if (message.command() == RPC.Commands.GET_LATEST_WITH_DIGEST.getNr()) {
 			handleGetLatest(message, responseMessage, true);
+        } else if (message.command() == RPC.Commands.PUT_CACHE.getNr()) {
+            handlePutCache(message, responseMessage);
         } else if (message.command() == RPC.Commands.DIGEST.getNr() 
         		|| message.command() == RPC.Commands.DIGEST_BLOOMFILTER.getNr()
         		|| message.command() == RPC.Commands.DIGEST_META_VALUES.getNr()) {
@@ -651,13 +859,106 @@ public class StorageRPC extends DispatchHandler {
         }else {
             throw new IllegalArgumentException("Message content is wrong");
         }
+        if (leases != null && isModification(message)) {
+            notifyLeaseholders(message);
+        }
         if (sign) {
             responseMessage.publicKeyAndSign(peerBean().getKeyPair());
         }
         responder.response(responseMessage);
     }
 
-    
+    private void grantLease(final Message message, final Message responseMessage) {
+        if (leases == null || message.key(0) == null || message.key(1) == null) {
+            return;
+        }
+        final long leaseMillis = leases.grant(new Number320(message.key(0), message.key(1)), message.sender());
+        if (leaseMillis > 0) {
+            responseMessage.longValue(leaseMillis);
+        }
+    }
+
+    private static boolean isModification(final Message message) {
+        return message.command() == RPC.Commands.ADD.getNr() || message.command() == RPC.Commands.PUT.getNr()
+                || message.command() == RPC.Commands.PUT_CONFIRM.getNr()
+                || message.command() == RPC.Commands.PUT_META.getNr()
+                || message.command() == RPC.Commands.REMOVE.getNr();
+    }
+
+    /**
+     * Ends the leases of the location and domain keys that the request changes and notifies the leaseholders. If the
+     * exact keys are not known, this errs on the side of notifying too much.
+     */
+    private void notifyLeaseholders(final Message message) {
+        final Set<Number320> changed = new HashSet<Number320>();
+        if (message.key(0) != null && message.key(1) != null) {
+            changed.add(new Number320(message.key(0), message.key(1)));
+        }
+        final DataMap dataMap = message.dataMap(0);
+        if (dataMap != null) {
+            for (Number640 key : dataMap.convertToMap640().keySet()) {
+                changed.add(key.locationAndDomainKey());
+            }
+        }
+        final KeyCollection keyCollection = message.keyCollection(0);
+        if (keyCollection != null && keyCollection.keys() != null) {
+            for (Number640 key : keyCollection.keys()) {
+                changed.add(key.locationAndDomainKey());
+            }
+        }
+        for (final Number320 key : changed) {
+            for (final PeerAddress holder : leases.revoke(key)) {
+                connectionBean().reservation().create(1, 0).addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+                    @Override
+                    public void operationComplete(final FutureChannelCreator future) throws Exception {
+                        if (future.isSuccess()) {
+                            final FutureResponse futureResponse = invalidateLease(holder, key, future
+                                    .channelCreator());
+                            Utils.addReleaseListener(future.channelCreator(), futureResponse);
+                        } else {
+                            LOG.debug("could not notify leaseholder {}: {}", holder, future.failedReason());
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private FutureResponse invalidateLease(final PeerAddress remotePeer, final Number320 locationAndDomainKey,
+            final ChannelCreator channelCreator) {
+        final Message message = createMessage(remotePeer, RPC.Commands.LEASE_INVALIDATE.getNr(), Type.REQUEST_FF_1);
+        message.key(locationAndDomainKey.locationKey());
+        message.key(locationAndDomainKey.domainKey());
+        final FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler<FutureResponse> requestHandler = new RequestHandler<FutureResponse>(futureResponse,
+                peerBean(), connectionBean(), connectionBean().channelServer().channelServerConfiguration());
+        return requestHandler.fireAndForgetUDP(channelCreator);
+    }
+
+    /**
+     * @return The location keys of a storage request, which define the order in the storage stage
+     */
+    private static Collection<Number160> locationKeys(final Message message) {
+        if (message.key(0) != null) {
+            return Collections.singleton(message.key(0));
+        }
+        final Set<Number160> locationKeys = new HashSet<Number160>();
+        final DataMap dataMap = message.dataMap(0);
+        if (dataMap != null && dataMap.size() > 0) {
+            for (Number640 key : dataMap.convertToMap640().keySet()) {
+                locationKeys.add(key.locationKey());
+            }
+            return locationKeys;
+        }
+        final KeyCollection keyCollection = message.keyCollection(0);
+        if (keyCollection != null && keyCollection.keys() != null && !keyCollection.keys().isEmpty()) {
+            for (Number640 key : keyCollection.keys()) {
+                locationKeys.add(key.locationKey());
+            }
+            return locationKeys;
+        }
+        return Collections.singleton(Number160.ZERO);
+    }
 
 	private boolean isDomainProtected(final Message message) {
         boolean protectDomain = message.publicKey(0) != null
@@ -816,7 +1117,7 @@ public class StorageRPC extends DispatchHandler {
         }
     }
 
-    private Message handleGet(final Message message, final Message responseMessage) {
+    private Message handleGet(final Message message, final Message responseMessage, final boolean hashesOnly) {
         final Number160 locationKey = message.key(0);
         LOG.debug("get data with key {} on {}", locationKey, peerBean().serverPeerAddress());
         final Number160 domainKey = message.key(1);
@@ -830,12 +1131,82 @@ public class StorageRPC extends DispatchHandler {
         final boolean isCollection = contentKeys != null && returnNr == null;
         final boolean isBloomFilterAnd = isBloomFilterAnd(message);
 
-        final Map<Number640, Data> result = doGet(locationKey, domainKey, contentKeys, contentBloomFilter,
+        Map<Number640, Data> result = doGet(locationKey, domainKey, contentKeys, contentBloomFilter,
                 versionBloomFilter, limit, ascending, isRange, isCollection, isBloomFilterAnd);
-        responseMessage.setDataMap(new DataMap(result));
+        final boolean hot = hotKeys != null && hotKeys.hit(locationKey);
+        if (result.isEmpty() && hotKeyCache != null && contentBloomFilter == null && versionBloomFilter == null) {
+            // not responsible, but we may have a copy of a hot entry
+            result = cacheGet(locationKey, domainKey, contentKeys, limit, ascending, isRange, isCollection);
+        } else if (hot && !result.isEmpty()) {
+            // the requester caches the entries on the lookup path for this long
+            responseMessage.intValue(hotKeyTTLSeconds);
+        }
+        if (hashesOnly) {
+            // the requester votes with the hashes and gets the data from another peer
+            final NavigableMap<Number640, Collection<Number160>> hashes = new TreeMap<Number640, Collection<Number160>>();
+            for (Map.Entry<Number640, Data> entry : result.entrySet()) {
+                hashes.put(entry.getKey(), Collections.singleton(entry.getValue().hash()));
+            }
+            responseMessage.keyMap640Keys(new KeyMap640Keys(hashes));
+        } else {
+            responseMessage.setDataMap(new DataMap(result));
+        }
         return responseMessage;
     }
 
+    private Map<Number640, Data> cacheGet(final Number160 locationKey, final Number160 domainKey,
+            final KeyCollection contentKeys, final int limit, final boolean ascending, final boolean isRange,
+            final boolean isCollection) {
+        if (isCollection) {
+            return hotKeyCache.get(contentKeys.keys());
+        } else if (isRange) {
+            Iterator<Number640> iterator = contentKeys.keys().iterator();
+            Number640 min = iterator.next();
+            Number640 max = iterator.next();
+            return hotKeyCache.get(min, max, limit, ascending);
+        } else {
+            Number640 min = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
+            Number640 max = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+            return hotKeyCache.get(min, max, limit, ascending);
+        }
+    }
+
+    private void handlePutCache(final Message message, final Message responseMessage) {
+        final Integer ttlSeconds = message.intAt(0);
+        final DataMap dataMap = message.dataMap(0);
+        if (hotKeyCache == null || ttlSeconds == null || dataMap == null) {
+            responseMessage.type(Type.DENIED);
+            return;
+        }
+        final SignatureFactory signatureFactory = connectionBean().channelServer().channelServerConfiguration()
+                .signatureFactory();
+        int cached = 0;
+        for (Map.Entry<Number640, Data> entry : dataMap.convertToMap640().entrySet()) {
+            // we are not responsible, so only copies that the owner of the domain signed are accepted
+            if (HotKeyCache.isOwned(entry.getKey(), entry.getValue())
+                    && verify(entry.getValue(), signatureFactory)
+                    && hotKeyCache.put(entry.getKey(), entry.getValue(), ttlSeconds)) {
+                cached++;
+            } else {
+                LOG.debug("copy of {} not cached", entry.getKey());
+            }
+        }
+        if (cached == 0) {
+            responseMessage.type(Type.DENIED);
+        } else if (cached < dataMap.size()) {
+            responseMessage.type(Type.PARTIALLY_OK);
+        }
+    }
+
+    private static boolean verify(final Data data, final SignatureFactory signatureFactory) {
+        try {
+            return data.verify(signatureFactory);
+        } catch (Exception e) {
+            LOG.debug("cannot verify the signature of a copy", e);
+            return false;
+        }
+    }
+
 	private Map<Number640, Data> doGet(final Number160 locationKey, final Number160 domainKey,
             final KeyCollection contentKeys, final SimpleBloomFilter<Number160> contentBloomFilter,
             final SimpleBloomFilter<Number160> versionBloomFilter, final int limit, final boolean ascending,
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.Collection;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.peers.Number160;
+
+/**
+ * Runs storage requests outside of the I/O threads. Each location key is mapped to one single threaded lane, so that
+ * requests for the same location key are executed in the order they arrived, while requests for other location keys
+ * run in parallel. Each lane has a bounded queue. If the queue of a lane is full, the request is not accepted and the
+ * caller replies with an overload status instead of blocking the I/O thread. A request for several location keys is
+ * pinned to all of their lanes: it runs once it reached the head of each lane, and these lanes wait until it is done.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageStage {
+
+	private final ThreadPoolExecutor[] lanes;
+
+	/**
+	 * @param threads
+	 *            The number of lanes, each with its own thread
+	 * @param queueSize
+	 *            The number of requests that can wait in each lane
+	 */
+	public StorageStage(final int threads, final int queueSize) {
+		if (threads <= 0 || queueSize <= 0) {
+			throw new IllegalArgumentException("Threads and queue size need to be larger than 0");
+		}
+		lanes = new ThreadPoolExecutor[threads];
+		final DefaultThreadFactory threadFactory = new DefaultThreadFactory(ConnectionBean.THREAD_NAME + "storage - ");
+		for (int i = 0; i < threads; i++) {
+			lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+			        queueSize), threadFactory);
+		}
+	}
+
+	/**
+	 * Executes the task in the lane of the location key.
+	 *
+	 * @param locationKey
+	 *            The location key that the task reads or modifies
+	 * @param task
+	 *            The task to run
+	 * @return False if the lane is full or the stage is shutdown, and the task was not accepted
+	 */
+	public boolean execute(final Number160 locationKey, final Runnable task) {
+		try {
+			lanes[lane(locationKey)].execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Executes the task in the lanes of all location keys. The task runs after all tasks that were queued before in any
+	 * of these lanes, and before all tasks that are queued afterwards.
+	 *
+	 * @param locationKeys
+	 *            The location keys that the task reads or modifies
+	 * @param task
+	 *            The task to run
+	 * @return False if one of the lanes is full or the stage is shutdown, and the task was not accepted
+	 */
+	public boolean execute(final Collection<Number160> locationKeys, final Runnable task) {
+		final SortedSet<Integer> laneNrs = new TreeSet<Integer>();
+		for (Number160 locationKey : locationKeys) {
+			laneNrs.add(lane(locationKey));
+		}
+		if (laneNrs.size() <= 1) {
+			return execute(laneNrs.isEmpty() ? Number160.ZERO : locationKeys.iterator().next(), task);
+		}
+		final Pinned pinned = new Pinned(laneNrs.size(), task);
+		// pinned tasks are queued in the same order in all lanes, otherwise two of them could wait for each other
+		synchronized (this) {
+			for (int laneNr : laneNrs) {
+				try {
+					lanes[laneNr].execute(pinned);
+				} catch (RejectedExecutionException e) {
+					pinned.cancel();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of requests that wait in all lanes
+	 */
+	public int queued() {
+		int queued = 0;
+		for (ThreadPoolExecutor lane : lanes) {
+			queued += lane.getQueue().size();
+		}
+		return queued;
+	}
+
+	/**
+	 * Stops the lanes. Requests that are already queued are still executed.
+	 */
+	public void shutdown() {
+		for (ThreadPoolExecutor lane : lanes) {
+			lane.shutdown();
+		}
+	}
+
+	private int lane(final Number160 locationKey) {
+		return (locationKey.hashCode() & Integer.MAX_VALUE) % lanes.length;
+	}
+
+	/**
+	 * A task that is queued in several lanes. The lane that reaches it last runs the task, the other lanes wait for it.
+	 */
+	private static class Pinned implements Runnable {
+		private final AtomicInteger remaining;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final Runnable task;
+		private volatile boolean cancelled = false;
+
+		private Pinned(final int lanes, final Runnable task) {
+			this.remaining = new AtomicInteger(lanes);
+			this.task = task;
+		}
+
+		private void cancel() {
+			cancelled = true;
+			done.countDown();
+		}
+
+		@Override
+		public void run() {
+			if (cancelled) {
+				return;
+			}
+			if (remaining.decrementAndGet() > 0) {
+				try {
+					done.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return;
+			}
+			try {
+				task.run();
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.Storage;
+
+/**
+ * Keeps the version keys of each entry (location, domain, and content key) together with their predecessors and
+ * flags, so that the latest versions and the number of versions are known without copying the version range from the
+ * storage. An entry is loaded from the storage on first access and then kept up to date by the {@link StorageLayer}
+ * on put, putConfirm and remove. Range removals invalidate the affected entries, which are loaded again when needed.
+ * The index is bounded, random entries are evicted once it is full.
+ *
+ * @author Thomas Bocek
+ *
+ */
+class VersionIndex {
+
+	/**
+	 * The default max. number of entries in the index. Evicted entries are loaded again from the storage.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	private final ConcurrentSkipListMap<Number480, Versions> index = new ConcurrentSkipListMap<Number480, Versions>();
+	// the size of a skip list is not a constant time operation
+	private final AtomicInteger size = new AtomicInteger();
+	// increased on every range invalidation, a load that overlaps with one is not cached
+	private final AtomicLong invalidations = new AtomicLong();
+	private final Random random = new Random();
+	private final int maxEntries;
+
+	public VersionIndex() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            The max. number of entries, random entries are evicted if the index grows larger
+	 */
+	public VersionIndex(final int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Returns the versions of an entry. The caller needs to hold the lock of this key, so that no version is added or
+	 * removed while the versions are loaded.
+	 * 
+	 * @param key
+	 *            The location, domain, and content key
+	 * @param backend
+	 *            The storage to load the versions from, if they are not in the index yet
+	 * @return The versions of this entry
+	 */
+	public Versions versions(final Number480 key, final Storage backend) {
+		while (true) {
+			final Versions cached = index.get(key);
+			if (cached != null) {
+				return cached;
+			}
+			final long invalidationsBefore = invalidations.get();
+			final Versions versions = new Versions();
+			final NavigableMap<Number640, Data> tmp = backend.subMap(new Number640(key, Number160.ZERO),
+			        new Number640(key, Number160.MAX_VALUE), -1, true);
+			for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
+				versions.put(entry.getKey().versionKey(), entry.getValue());
+			}
+			final Versions old = index.putIfAbsent(key, versions);
+			if (old != null) {
+				return old;
+			}
+			size.incrementAndGet();
+			if (invalidations.get() == invalidationsBefore) {
+				evict();
+				return versions;
+			}
+			// a range removal may have happened after the backend was read, load again
+			remove(key, versions);
+		}
+	}
+
+	/**
+	 * @param key
+	 *            The location, domain, and content key
+	 * @return The versions of this entry, or null if they are not in the index
+	 */
+	public Versions loaded(final Number480 key) {
+		return index.get(key);
+	}
+
+	/**
+	 * Removes a version if the entry is in the index.
+	 *
+	 * @param key
+	 *            The key of the removed version
+	 */
+	public void remove(final Number640 key) {
+		final Number480 key480 = key.locationDomainAndContentKey();
+		final Versions versions = index.get(key480);
+		if (versions != null && versions.remove(key.versionKey())) {
+			remove(key480, versions);
+		}
+	}
+
+	/**
+	 * Removes all entries in the range from the index. They are loaded again from the storage on the next access.
+	 * This needs to be called after the entries have been removed from the storage.
+	 *
+	 * @param from
+	 *            The first key, inclusive
+	 * @param to
+	 *            The last key, inclusive
+	 */
+	public void invalidate(final Number640 from, final Number640 to) {
+		// increase first, so that a concurrent load either sees it or its entry is removed below
+		invalidations.incrementAndGet();
+		for (Map.Entry<Number480, Versions> entry : index.subMap(from.locationDomainAndContentKey(), true,
+		        to.locationDomainAndContentKey(), true).entrySet()) {
+			remove(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * @return The number of entries in the index
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	private void remove(final Number480 key, final Versions versions) {
+		if (index.remove(key, versions)) {
+			size.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Evicts random entries until the index is within its bound. An evicted entry that is in use is loaded again from
+	 * the storage on the next access, under the lock of its key.
+	 */
+	private void evict() {
+		while (size.get() > maxEntries) {
+			final Map.Entry<Number480, Versions> entry;
+			synchronized (random) {
+				final Map.Entry<Number480, Versions> ceiling = index.ceilingEntry(new Number480(random));
+				entry = ceiling != null ? ceiling : index.firstEntry();
+			}
+			if (entry == null) {
+				return;
+			}
+			remove(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * The versions of one entry. The latest versions (heads) are found by taking the highest version as a head,
+	 * removing its predecessors, and repeating this with the remaining versions. Tombstones are never heads. The heads
+	 * are cached and updated in place if a new version is added on top, otherwise they are computed again from the
+	 * version keys.
+	 */
+	static class Versions {
+
+		private final TreeMap<Number160, Version> versions = new TreeMap<Number160, Version>();
+		// true as long as every version is larger than its predecessors
+		private boolean ordered = true;
+		// cached heads, without and with prepared versions, null if they need to be computed
+		private TreeSet<Number160> heads = null;
+		private TreeSet<Number160> headsWithPrepared = null;
+
+		synchronized void put(final Number160 versionKey, final Data data) {
+			final Version version = new Version(data.basedOnSet(), data.isDeleted(), data.hasPrepareFlag());
+			for (Number160 basedOn : version.basedOn) {
+				if (basedOn.compareTo(versionKey) >= 0) {
+					ordered = false;
+				}
+			}
+			if (versions.put(versionKey, version) != null) {
+				// the overwritten version may have been a head or a predecessor of one
+				heads = null;
+				headsWithPrepared = null;
+				return;
+			}
+			if (version.deleted) {
+				// tombstones are never heads and do not hide their predecessors
+				return;
+			}
+			headsWithPrepared = append(headsWithPrepared, versionKey, version);
+			heads = version.prepared ? heads : append(heads, versionKey, version);
+		}
+
+		/**
+		 * Removes the prepare flag of a version.
+		 */
+		synchronized void confirm(final Number160 versionKey) {
+			final Version version = versions.get(versionKey);
+			if (version == null || !version.prepared) {
+				return;
+			}
+			version.prepared = false;
+			heads = append(heads, versionKey, version);
+		}
+
+		/**
+		 * @return True if no versions are left
+		 */
+		synchronized boolean remove(final Number160 versionKey) {
+			if (versions.remove(versionKey) != null) {
+				heads = null;
+				headsWithPrepared = null;
+			}
+			return versions.isEmpty();
+		}
+
+		/**
+		 * Removes the versions that the storage dropped on its own, e.g., because of a maximum number of versions. The
+		 * storage drops the oldest versions first.
+		 */
+		synchronized void trim(final Number480 key, final Storage backend) {
+			while (!versions.isEmpty() && !backend.contains(new Number640(key, versions.firstKey()))) {
+				versions.pollFirstEntry();
+				heads = null;
+				headsWithPrepared = null;
+			}
+		}
+
+		synchronized boolean isDeleted(final Number160 versionKey) {
+			final Version version = versions.get(versionKey);
+			return version != null && version.deleted;
+		}
+
+		synchronized int size() {
+			return versions.size();
+		}
+
+		/**
+		 * @param withPrepared
+		 *            True if prepared versions are considered
+		 * @return The version keys of the latest versions
+		 */
+		synchronized Set<Number160> heads(final boolean withPrepared) {
+			if (withPrepared) {
+				if (headsWithPrepared == null) {
+					headsWithPrepared = computeHeads(true);
+				}
+				return Collections.unmodifiableSet(new HashSet<Number160>(headsWithPrepared));
+			} else {
+				if (heads == null) {
+					heads = computeHeads(false);
+				}
+				return Collections.unmodifiableSet(new HashSet<Number160>(heads));
+			}
+		}
+
+		/**
+		 * Adds a new version to the heads. If the versions are ordered and the new version is on top, only its direct
+		 * predecessors can be heads that it replaces: any other head would be reachable from a higher version.
+		 *
+		 * @return The new heads, or null if they need to be computed
+		 */
+		private TreeSet<Number160> append(final TreeSet<Number160> current, final Number160 versionKey,
+		        final Version version) {
+			if (current == null || !ordered || (!current.isEmpty() && current.last().compareTo(versionKey) >= 0)) {
+				return null;
+			}
+			current.removeAll(version.basedOn);
+			current.add(versionKey);
+			return current;
+		}
+
+		private TreeSet<Number160> computeHeads(final boolean withPrepared) {
+			final NavigableMap<Number160, Version> tmp = new TreeMap<Number160, Version>();
+			for (Map.Entry<Number160, Version> entry : versions.entrySet()) {
+				if (!entry.getValue().deleted && (withPrepared || !entry.getValue().prepared)) {
+					tmp.put(entry.getKey(), entry.getValue());
+				}
+			}
+			final TreeSet<Number160> result = new TreeSet<Number160>();
+			while (!tmp.isEmpty()) {
+				final Number160 latest = tmp.lastKey();
+				result.add(latest);
+				deletePredecessors(latest, tmp);
+			}
+			return result;
+		}
+
+		private static void deletePredecessors(final Number160 versionKey, final NavigableMap<Number160, Version> tmp) {
+			final Version version = tmp.remove(versionKey);
+			if (version == null) {
+				return;
+			}
+			for (Number160 basedOn : version.basedOn) {
+				deletePredecessors(basedOn, tmp);
+			}
+		}
+	}
+
+	private static class Version {
+		private final Collection<Number160> basedOn;
+		private final boolean deleted;
+		private boolean prepared;
+
+		private Version(final Collection<Number160> basedOn, final boolean deleted, final boolean prepared) {
+			this.basedOn = new ArrayList<Number160>(basedOn);
+			this.deleted = deleted;
+			this.prepared = prepared;
+		}
+	}
+}
@@ -5,32 +5,40 @@ import io.netty.buffer.Unpooled;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Random;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import net.tomp2p.connection.AdmissionControl;
 import net.tomp2p.connection.Bindings;
 import net.tomp2p.connection.ChannelClientConfiguration;
 import net.tomp2p.connection.ChannelServerConficuration;
 import net.tomp2p.connection.PeerException;
 import net.tomp2p.connection.PeerException.AbortCause;
+import net.tomp2p.connection.Ports;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureBootstrap;
@@ -39,12 +47,14 @@ import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FuturePeerConnection;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.message.Buffer;
+import net.tomp2p.message.Message;
 import net.tomp2p.p2p.AutomaticFuture;
 import net.tomp2p.p2p.DefaultBroadcastHandler;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.p2p.PeerBuilder;
 import net.tomp2p.p2p.RequestP2PConfiguration;
 import net.tomp2p.p2p.RoutingConfiguration;
+import net.tomp2p.p2p.VotingSchemeDHT;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number480;
@@ -54,8 +64,10 @@ import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerStatatistic;
 import net.tomp2p.rpc.DigestResult;
 import net.tomp2p.rpc.ObjectDataReply;
+import net.tomp2p.rpc.RPC;
 import net.tomp2p.rpc.RawDataReply;
 import net.tomp2p.storage.Data;
+import net.tomp2p.utils.CompactSerializer;
 import net.tomp2p.utils.Utils;
 
 import org.junit.Assert;
@@ -92,6 +104,325 @@ public class TestDHT {
 
 	}
 
+	/**
+	 * Measures the time to the first successful get after a restart, with and without a peer map snapshot.
+	 */
+	@Test
+	public void testSerializerAfterObject() throws Exception {
+		PeerDHT master = null;
+		try {
+			master = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(4001).start()).start();
+			PutBuilder putBuilder = master.put(Number160.createHash("test")).object("test");
+			try {
+				// the object is already encoded with the default serializer
+				putBuilder.serializer(CompactSerializer.INSTANCE);
+				Assert.fail();
+			} catch (IllegalStateException e) {
+				// expected
+			}
+			putBuilder = master.put(Number160.createHash("test")).serializer(CompactSerializer.INSTANCE).object("test");
+			Assert.assertEquals("test", putBuilder.data().getValue().object(CompactSerializer.INSTANCE));
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testPutOverloaded() throws Exception {
+		PeerDHT overloaded = null;
+		PeerDHT next = null;
+		PeerDHT master = null;
+		try {
+			// the closest peer rejects every put in the dispatcher
+			AdmissionControl admissionControl = new AdmissionControl() {
+				@Override
+				public boolean acquire(final Message message) {
+					return message.command() != RPC.Commands.PUT.getNr() && super.acquire(message);
+				}
+			};
+			ChannelServerConficuration csc = PeerBuilder.createDefaultChannelServerConfiguration()
+			        .ports(new Ports(4001, 4001)).admissionControl(admissionControl);
+			Number160 locationKey = new Number160("0x1000");
+			overloaded = new PeerBuilderDHT(new PeerBuilder(locationKey).channelServerConfiguration(csc).start())
+			        .start();
+			next = new PeerBuilderDHT(new PeerBuilder(new Number160("0x1001")).ports(4002).start()).start();
+			master = new PeerBuilderDHT(new PeerBuilder(new Number160("0x8000")).ports(4003).start()).start();
+			UtilsDHT2.perfectRouting(overloaded, next, master);
+			RequestP2PConfiguration pc = new RequestP2PConfiguration(1, 0, 0);
+			FuturePut futurePut = master.put(locationKey).data(new Data("overload")).requestP2PConfiguration(pc)
+			        .start();
+			futurePut.awaitUninterruptibly();
+			futurePut.futureRequests().awaitUninterruptibly();
+			// no failure is allowed, but the overload reply does not count as one and the next peer is asked
+			Assert.assertEquals(true, futurePut.isSuccess());
+			Assert.assertEquals(1, overloaded.peer().connectionBean().metrics().inbound(RPC.Commands.PUT.getNr())
+			        .responses(Message.Type.DENIED));
+			Number640 key = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+			Assert.assertNull(overloaded.storageLayer().get(key));
+			Assert.assertNotNull(next.storageLayer().get(key));
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+			if (next != null) {
+				next.shutdown().await();
+			}
+			if (overloaded != null) {
+				overloaded.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testWarmRestart() throws Exception {
+		PeerDHT master = null;
+		PeerDHT restarted = null;
+		File snapshot = new File(UtilsDHT2.createTempDirectory(), "peermap");
+		try {
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			Number160 locationKey = Number160.createHash("warm");
+			Assert.assertTrue(master.put(locationKey).data(new Data("restart")).start().awaitUninterruptibly()
+			        .isSuccess());
+
+			Number160 peerId = new Number160(rnd);
+			PeerDHT peer = new PeerBuilderDHT(new PeerBuilder(peerId).ports(5001).peerMapSnapshot(snapshot).start())
+			        .start();
+			peer.peer().bootstrap().peerAddress(master.peerAddress()).start().awaitUninterruptibly();
+			int known = peer.peerBean().peerMap().size();
+			peer.shutdown().awaitUninterruptibly();
+			Assert.assertTrue(snapshot.exists());
+
+			// cold start: bootstrap first
+			long start = System.currentTimeMillis();
+			restarted = new PeerBuilderDHT(new PeerBuilder(peerId).ports(5001).start()).start();
+			restarted.peer().bootstrap().peerAddress(master.peerAddress()).start().awaitUninterruptibly();
+			FutureGet futureGet = restarted.get(locationKey).start().awaitUninterruptibly();
+			Assert.assertTrue(futureGet.isSuccess());
+			long cold = System.currentTimeMillis() - start;
+			restarted.shutdown().awaitUninterruptibly();
+
+			// warm start: route with the peers from the snapshot, no bootstrap
+			start = System.currentTimeMillis();
+			restarted = new PeerBuilderDHT(new PeerBuilder(peerId).ports(5001).peerMapSnapshot(snapshot).start())
+			        .start();
+			Assert.assertEquals(known, restarted.peerBean().peerMap().size());
+			futureGet = restarted.get(locationKey).start().awaitUninterruptibly();
+			Assert.assertTrue(futureGet.isSuccess());
+			Assert.assertEquals("restart", futureGet.data().object());
+			long warm = System.currentTimeMillis() - start;
+			// the times depend on the machine, so they are only printed and not asserted
+			System.err.println("time to first get, cold: " + cold + "ms, warm: " + warm + "ms, restored " + known
+			        + " peers");
+		} finally {
+			if (restarted != null) {
+				restarted.shutdown().awaitUninterruptibly();
+			}
+			if (master != null) {
+				master.shutdown().await();
+			}
+			snapshot.delete();
+			snapshot.getParentFile().delete();
+		}
+	}
+
+	/**
+	 * Requests keys with a zipf distribution and reports how many get requests each peer handled, once without and
+	 * once with caching of hot keys on the lookup path.
+	 */
+	@Test
+	public void testHotKeys() throws Exception {
+		long[] plain = skewedLoad(Integer.MAX_VALUE, 0);
+		long[] cached = skewedLoad(5, 100);
+		System.err.println("without cache, requests per peer: " + Arrays.toString(plain));
+		System.err.println("with cache, requests per peer: " + Arrays.toString(cached));
+		Assert.assertTrue(cached[cached.length - 1] > 0);
+		// the most loaded peer handles a smaller share of the requests
+		Assert.assertTrue(share(cached) < share(plain));
+	}
+
+	private static double share(long[] load) {
+		long sum = 0;
+		for (int i = 0; i < load.length - 1; i++) {
+			sum += load[i];
+		}
+		return sum == 0 ? 0 : load[0] / (double) sum;
+	}
+
+	@Test
+	public void testNearCache() throws Exception {
+		final Random rnd = new Random(42L);
+		PeerDHT master = null;
+		try {
+			PeerDHT[] peers = new PeerDHT[10];
+			Peer masterPeer = new PeerBuilder(new Number160(rnd)).ports(4001).start();
+			peers[0] = new PeerBuilderDHT(masterPeer).start();
+			master = peers[0];
+			for (int i = 1; i < peers.length - 1; i++) {
+				peers[i] = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).masterPeer(masterPeer).start())
+				        .start();
+			}
+			PeerDHT client = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).masterPeer(masterPeer).start())
+			        .nearCacheSize(100).start();
+			peers[peers.length - 1] = client;
+			UtilsDHT2.perfectRouting(peers);
+			Number160 locationKey = Number160.createHash("config");
+			Assert.assertTrue(master.put(locationKey).data(new Data("v1")).start().awaitUninterruptibly().isSuccess());
+
+			// wait for the listener that fills the cache
+			FutureGet futureGet = client.get(locationKey).start().awaitListenersUninterruptibly();
+			Assert.assertEquals("v1", futureGet.data().object());
+			futureGet = client.get(locationKey).start().awaitUninterruptibly();
+			Assert.assertEquals("v1", futureGet.data().object());
+			Assert.assertEquals(1, client.nearCache().misses());
+			Assert.assertEquals(1, client.nearCache().hits());
+
+			// the responsible peers notify the client, which removes the entry
+			Assert.assertTrue(master.put(locationKey).data(new Data("v2")).start().awaitUninterruptibly().isSuccess());
+			for (int i = 0; i < 50 && client.nearCache().size() > 0; i++) {
+				Thread.sleep(100);
+			}
+			Assert.assertEquals(0, client.nearCache().size());
+			futureGet = client.get(locationKey).start().awaitListenersUninterruptibly();
+			Assert.assertEquals("v2", futureGet.data().object());
+			Assert.assertEquals(2, client.nearCache().misses());
+
+			// bypass neither reads nor fills the cache
+			futureGet = client.get(locationKey).bypassNearCache().start().awaitUninterruptibly();
+			Assert.assertEquals("v2", futureGet.data().object());
+			Assert.assertEquals(2, client.nearCache().misses());
+			Assert.assertEquals(1, client.nearCache().hits());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testRemoveHotKey() throws Exception {
+		final Random rnd = new Random(42L);
+		PeerDHT master = null;
+		try {
+			PeerDHT[] peers = new PeerDHT[10];
+			Peer masterPeer = new PeerBuilder(new Number160(rnd)).ports(4001).start();
+			peers[0] = new PeerBuilderDHT(masterPeer).hotKeyCacheSize(10).hotKeyTTLSeconds(60).start();
+			master = peers[0];
+			for (int i = 1; i < peers.length; i++) {
+				peers[i] = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).masterPeer(masterPeer).start())
+				        .hotKeyCacheSize(10).hotKeyTTLSeconds(60).start();
+			}
+			UtilsDHT2.perfectRouting(peers);
+			Number160 locationKey = Number160.createHash("hot");
+			Assert.assertTrue(master.put(locationKey).data(new Data("test")).start().awaitUninterruptibly()
+			        .isSuccess());
+
+			// all peers that are not responsible have a cached copy
+			Number640 key = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+			Set<PeerAddress> replicas = new HashSet<PeerAddress>();
+			PeerDHT requester = null;
+			for (PeerDHT peer : peers) {
+				if (peer.storageLayer().get(key) != null) {
+					replicas.add(peer.peerAddress());
+				} else {
+					Assert.assertTrue(peer.storeRPC().hotKeyCache().put(key, new Data("test"), 60));
+					requester = peer;
+				}
+			}
+			Assert.assertFalse(replicas.isEmpty());
+			Assert.assertNotNull(requester);
+
+			// cached copies are never direct hits for digest and remove
+			FutureDigest futureDigest = requester.digest(locationKey).start().awaitUninterruptibly();
+			Assert.assertEquals(true, futureDigest.isSuccess());
+			Assert.assertTrue(replicas.containsAll(futureDigest.rawDigest().keySet()));
+			FutureRemove futureRemove = requester.remove(locationKey).start().awaitUninterruptibly();
+			Assert.assertEquals(true, futureRemove.isSuccess());
+			for (PeerDHT peer : peers) {
+				Assert.assertNull(peer.storageLayer().get(key));
+			}
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of get requests per peer, sorted from the most loaded peer, and as the last element the
+	 *         number of requests that were answered with cached copies
+	 */
+	private long[] skewedLoad(int hotKeyThreshold, int hotKeyCacheSize) throws Exception {
+		final Random rnd = new Random(42L);
+		final int nrPeers = 50;
+		final int nrKeys = 20;
+		PeerDHT master = null;
+		try {
+			PeerDHT[] peers = new PeerDHT[nrPeers];
+			Peer masterPeer = new PeerBuilder(new Number160(rnd)).ports(4001).start();
+			peers[0] = new PeerBuilderDHT(masterPeer).hotKeyThreshold(hotKeyThreshold)
+			        .hotKeyCacheSize(hotKeyCacheSize).hotKeyTTLSeconds(60).start();
+			master = peers[0];
+			for (int i = 1; i < nrPeers; i++) {
+				Peer peer = new PeerBuilder(new Number160(rnd)).masterPeer(masterPeer).start();
+				peers[i] = new PeerBuilderDHT(peer).hotKeyThreshold(hotKeyThreshold).hotKeyCacheSize(hotKeyCacheSize)
+				        .hotKeyTTLSeconds(60).start();
+			}
+			// each peer only knows a few others, so that lookups take more than one hop
+			for (int i = 0; i < nrPeers; i++) {
+				for (int j = 0; j < 6; j++) {
+					peers[i].peerBean().peerMap()
+					        .peerFound(peers[rnd.nextInt(nrPeers)].peerAddress(), null, null);
+				}
+				peers[i].peerBean().peerMap().peerFound(master.peerAddress(), null, null);
+			}
+			// only entries signed by the owner of the domain are cached on the lookup path
+			KeyPair pair = KeyPairGenerator.getInstance("DSA").generateKeyPair();
+			Number160 domainKey = Utils.makeSHAHash(pair.getPublic().getEncoded());
+			Number160[] keys = new Number160[nrKeys];
+			double[] cumulative = new double[nrKeys];
+			double sum = 0;
+			for (int i = 0; i < nrKeys; i++) {
+				keys[i] = Number160.createHash("hot" + i);
+				Assert.assertTrue(master.put(keys[i]).domainKey(domainKey).data(new Data("value" + i).sign(pair))
+				        .start().awaitUninterruptibly().isSuccess());
+				sum += 1.0 / (i + 1);
+				cumulative[i] = sum;
+			}
+			RoutingConfiguration routingConfiguration = new RoutingConfiguration(1, 5, 10, 20, 2);
+			for (int i = 0; i < 500; i++) {
+				double r = rnd.nextDouble() * sum;
+				int key = 0;
+				while (cumulative[key] < r) {
+					key++;
+				}
+				peers[rnd.nextInt(nrPeers)].get(keys[key]).domainKey(domainKey).routingConfiguration(routingConfiguration)
+				        .start().awaitUninterruptibly();
+			}
+			long[] load = new long[nrPeers + 1];
+			for (int i = 0; i < nrPeers; i++) {
+				load[i] = peers[i].storeRPC().hotKeys().observed();
+				if (peers[i].storeRPC().hotKeyCache() != null) {
+					load[nrPeers] += peers[i].storeRPC().hotKeyCache().served();
+				}
+			}
+			Arrays.sort(load, 0, nrPeers);
+			for (int i = 0; i < nrPeers / 2; i++) {
+				long tmp = load[i];
+				load[i] = load[nrPeers - 1 - i];
+				load[nrPeers - 1 - i] = tmp;
+			}
+			return load;
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
 	@Test
 	public void testPutVersion() throws Exception {
 		final Random rnd = new Random(42L);
@@ -391,6 +722,70 @@ public class TestDHT {
 		}
 	}
 
+	@Test
+	public void testPutGetHashRead() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(1000, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			// do testing
+			RoutingConfiguration rc = new RoutingConfiguration(2, 10, 2);
+			RequestP2PConfiguration pc = new RequestP2PConfiguration(3, 5, 0);
+			Data data = new Data(new byte[44444]);
+			Number160 domainKey = Number160.createHash("test");
+
+			FuturePut fput = peers[444].put(peers[30].peerID()).data(new Number160(5), data)
+			        .domainKey(domainKey).routingConfiguration(rc).requestP2PConfiguration(pc).start();
+			fput.awaitUninterruptibly();
+			fput.futureRequests().awaitUninterruptibly();
+			Assert.assertEquals(true, fput.isSuccess());
+			rc = new RoutingConfiguration(4, 0, 10, 1);
+			pc = new RequestP2PConfiguration(3, 0, 0);
+
+			// one peer sends the data, the others the hashes
+			FutureGet fget = peers[555].get(peers[30].peerID()).domainKey(domainKey).contentKey(new Number160(5))
+			        .hashRead().routingConfiguration(rc).requestP2PConfiguration(pc).start();
+			fget.awaitUninterruptibly();
+			Assert.assertEquals(true, fget.isSuccess());
+			Assert.assertEquals(3, fget.rawData().size());
+			Assert.assertEquals(data, fget.data());
+
+			// the closest peer has different data, it needs to be fetched from another peer
+			TreeSet<PeerAddress> replicas = new TreeSet<PeerAddress>(PeerMap.createComparator(peers[30].peerID()));
+			replicas.addAll(fput.rawResult().keySet());
+			PeerAddress closest = replicas.first();
+			for (PeerDHT peer : peers) {
+				if (peer.peerAddress().equals(closest)) {
+					peer.storageLayer().put(new Number640(peers[30].peerID(), domainKey, new Number160(5),
+					        Number160.ZERO), new Data(new byte[44]), null, false, false);
+				}
+			}
+			fget = peers[555].get(peers[30].peerID()).domainKey(domainKey).contentKey(new Number160(5))
+			        .hashRead().routingConfiguration(rc).requestP2PConfiguration(pc).start();
+			fget.awaitUninterruptibly();
+			Assert.assertEquals(true, fget.isSuccess());
+			Assert.assertEquals(3, fget.rawData().size());
+			Assert.assertEquals(data, fget.data());
+
+			// hashes are voted on by majority, another evaluation scheme gets the data from all peers
+			fget = peers[555].get(peers[30].peerID()).domainKey(domainKey).contentKey(new Number160(5))
+			        .hashRead().evaluationScheme(new VotingSchemeDHT() {
+			        }).routingConfiguration(rc).requestP2PConfiguration(pc).start();
+			fget.awaitUninterruptibly();
+			fget.futureRequests().awaitUninterruptibly();
+			Assert.assertEquals(true, fget.isSuccess());
+			for (FutureResponse futureResponse : fget.futureRequests().completed()) {
+				Assert.assertEquals(RPC.Commands.GET.getNr(), futureResponse.request().command());
+			}
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
 	@Test
 	public void testPutGet3() throws Exception {
 		PeerDHT master = null;
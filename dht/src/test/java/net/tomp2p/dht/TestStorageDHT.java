@@ -3,9 +3,12 @@ package net.tomp2p.dht;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -13,9 +16,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ChannelServerConficuration;
+import net.tomp2p.connection.DSASignatureFactory;
 import net.tomp2p.connection.DefaultConnectionConfiguration;
 import net.tomp2p.dht.StorageLayer.PutStatus;
 import net.tomp2p.futures.FutureChannelCreator;
@@ -32,6 +37,7 @@ import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.NeighborRPC;
 import net.tomp2p.rpc.NeighborRPC.SearchValues;
+import net.tomp2p.rpc.RPC;
 import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.storage.Data;
 import net.tomp2p.utils.Utils;
@@ -1047,4 +1053,253 @@ public class TestStorageDHT {
             }
 		}
 	}
+
+    @Test
+    public void testStorageStage() throws Exception {
+        final Random rnd = new Random(42L);
+        PeerDHT master = null;
+        PeerDHT slave = null;
+        ChannelCreator cc = null;
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            master = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(4001).start()).start();
+            slave = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(4002).start()).storageThreads(1)
+                    .storageQueueSize(1).start();
+            FutureChannelCreator fcc = master.peer().connectionBean().reservation().create(0, 1);
+            fcc.awaitUninterruptibly();
+            cc = fcc.channelCreator();
+
+            PutBuilder pb = master.put(new Number160("0x51")).data(new Data("test"));
+            FutureResponse fr = master.storeRPC().put(slave.peerAddress(), pb, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(true, fr.isSuccess());
+
+            // block the only thread and fill its queue
+            Runnable blocker = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            Assert.assertEquals(true, slave.storeRPC().storageStage().execute(Number160.ONE, blocker));
+            Assert.assertEquals(true, slave.storeRPC().storageStage().execute(Number160.ONE, blocker));
+            Assert.assertEquals(true, master.peerBean().peerMap().contains(slave.peerAddress()));
+            fr = master.storeRPC().put(slave.peerAddress(), pb, cc);
+            // the peer map is updated by the listeners
+            fr.awaitListenersUninterruptibly();
+            Assert.assertEquals(false, fr.isSuccess());
+            Assert.assertEquals(true, fr.isOverload());
+            // older peers decode the reply as a denial
+            Assert.assertEquals(Type.DENIED, fr.responseMessage().type());
+            Assert.assertEquals(Message.OVERLOAD_MARKER, fr.responseMessage().intAt(0).intValue());
+            // the overloaded peer replied, so the requester keeps it for routing
+            Assert.assertEquals(true, master.peerBean().peerMap().contains(slave.peerAddress()));
+
+            latch.countDown();
+            GetBuilder gb = master.get(new Number160("0x51")).domainKey(Number160.ZERO);
+            fr = master.storeRPC().get(slave.peerAddress(), gb, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(true, fr.isSuccess());
+            Assert.assertEquals(1, fr.responseMessage().dataMap(0).size());
+        } finally {
+            latch.countDown();
+            if (cc != null) {
+                cc.shutdown().awaitListenersUninterruptibly();
+            }
+            if (master != null) {
+                master.shutdown().await();
+            }
+            if (slave != null) {
+                slave.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testStorageStagePinned() throws Exception {
+        final StorageStage stage = new StorageStage(2, 10);
+        try {
+            // two location keys in different lanes
+            final Number160 key1 = Number160.ONE;
+            int nr = 2;
+            while ((key1.hashCode() & Integer.MAX_VALUE) % 2 == (new Number160(nr).hashCode() & Integer.MAX_VALUE) % 2) {
+                nr++;
+            }
+            final Number160 key2 = new Number160(nr);
+            final CountDownLatch blocked = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(1);
+            final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+            Assert.assertEquals(true, stage.execute(key1, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }));
+            Assert.assertEquals(true, stage.execute(Arrays.asList(key1, key2), new Runnable() {
+                @Override
+                public void run() {
+                    order.add("both");
+                }
+            }));
+            Assert.assertEquals(true, stage.execute(key2, new Runnable() {
+                @Override
+                public void run() {
+                    order.add("second");
+                    done.countDown();
+                }
+            }));
+            Thread.sleep(100);
+            // the request for both keys waits for the first lane, so the second lane waits too
+            Assert.assertEquals(0, order.size());
+            blocked.countDown();
+            done.await();
+            Assert.assertEquals(Arrays.asList("both", "second"), order);
+        } finally {
+            stage.shutdown();
+        }
+    }
+
+    @Test
+    public void testGetLease() throws Exception {
+        final Random rnd = new Random(42L);
+        PeerDHT master = null;
+        PeerDHT slave = null;
+        ChannelCreator cc = null;
+        try {
+            master = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(4001).start()).start();
+            slave = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(4002).start()).start();
+            FutureChannelCreator fcc = master.peer().connectionBean().reservation().create(0, 1);
+            fcc.awaitUninterruptibly();
+            cc = fcc.channelCreator();
+
+            final Number160 locationKey = new Number160("0x53");
+            PutBuilder pb = master.put(locationKey).data(new Data("test"));
+            FutureResponse fr = master.storeRPC().put(slave.peerAddress(), pb, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(true, fr.isSuccess());
+
+            // the lease is requested with a plain get, which older peers answer without a lease
+            GetBuilder gb = master.get(locationKey).domainKey(Number160.ZERO).requestLease(true);
+            fr = master.storeRPC().get(slave.peerAddress(), gb, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(true, fr.isSuccess());
+            Assert.assertEquals(RPC.Commands.GET.getNr(), fr.request().command());
+            Assert.assertEquals(1, fr.responseMessage().dataMap(0).size());
+            Assert.assertNotNull(fr.responseMessage().longAt(0));
+
+            gb = master.get(locationKey).domainKey(Number160.ZERO);
+            fr = master.storeRPC().get(slave.peerAddress(), gb, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(true, fr.isSuccess());
+            Assert.assertNull(fr.responseMessage().longAt(0));
+        } finally {
+            if (cc != null) {
+                cc.shutdown().awaitListenersUninterruptibly();
+            }
+            if (master != null) {
+                master.shutdown().await();
+            }
+            if (slave != null) {
+                slave.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testHotKeyCache() throws Exception {
+        final Random rnd = new Random(42L);
+        PeerDHT master = null;
+        PeerDHT slave = null;
+        PeerDHT cache = null;
+        ChannelCreator cc = null;
+        try {
+            master = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(4001).start()).start();
+            slave = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(4002).start()).hotKeyThreshold(2)
+                    .hotKeyTTLSeconds(10).start();
+            cache = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(4003).start()).hotKeyCacheSize(10)
+                    .start();
+            FutureChannelCreator fcc = master.peer().connectionBean().reservation().create(0, 1);
+            fcc.awaitUninterruptibly();
+            cc = fcc.channelCreator();
+
+            // only copies signed by the owner of the domain are cached
+            final KeyPair pair = KeyPairGenerator.getInstance("DSA").generateKeyPair();
+            final Number160 domainKey = Utils.makeSHAHash(pair.getPublic().getEncoded());
+            final Number160 locationKey = new Number160("0x52");
+            PutBuilder pb = master.put(locationKey).domainKey(domainKey).data(new Data("test").sign(pair))
+                    .versionKey(Number160.ONE);
+            FutureResponse fr = master.storeRPC().put(slave.peerAddress(), pb, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(true, fr.isSuccess());
+
+            // the second get makes the key hot
+            GetBuilder gb = master.get(locationKey).domainKey(domainKey);
+            fr = master.storeRPC().get(slave.peerAddress(), gb, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertNull(fr.responseMessage().intAt(0));
+            fr = master.storeRPC().get(slave.peerAddress(), gb, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(Integer.valueOf(10), fr.responseMessage().intAt(0));
+
+            // the requester caches the entries on a peer of the lookup path
+            Map<Number640, Data> hot = fr.responseMessage().dataMap(0).dataMap();
+            fr = master.storeRPC().putCache(cache.peerAddress(), hot, 10, gb, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(true, fr.isSuccess());
+            fr = master.storeRPC().get(cache.peerAddress(), gb, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(1, fr.responseMessage().dataMap(0).size());
+            Assert.assertEquals(1, cache.storeRPC().hotKeyCache().served());
+            Assert.assertEquals(0, cache.storageLayer().get().size());
+
+            // a newer version replaces the copy, the older version is not accepted anymore
+            Number640 key1 = hot.keySet().iterator().next();
+            Number640 key2 = new Number640(key1.locationKey(), key1.domainKey(), key1.contentKey(), new Number160(2));
+            HotKeyCache hotKeyCache = cache.storeRPC().hotKeyCache();
+            Assert.assertEquals(true, hotKeyCache.put(key2,
+                    new Data("test2").addBasedOn(Number160.ONE).signNow(pair, new DSASignatureFactory()), 10));
+            Assert.assertEquals(false, hotKeyCache.put(key1, hot.get(key1), 10));
+            Assert.assertEquals(1, hotKeyCache.size());
+
+            // a copy that is not signed by the owner of the domain is rejected
+            final KeyPair other = KeyPairGenerator.getInstance("DSA").generateKeyPair();
+            Number640 key3 = new Number640(key1.locationKey(), key1.domainKey(), key1.contentKey(), new Number160(3));
+            Map<Number640, Data> forged = new HashMap<Number640, Data>();
+            forged.put(key3, new Data("forged").addBasedOn(new Number160(2)).sign(other));
+            fr = master.storeRPC().putCache(cache.peerAddress(), forged, 10, gb, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(Type.DENIED, fr.responseMessage().type());
+            forged.put(key3, new Data("forged").addBasedOn(new Number160(2)));
+            fr = master.storeRPC().putCache(cache.peerAddress(), forged, 10, gb, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(Type.DENIED, fr.responseMessage().type());
+            Assert.assertEquals(1, hotKeyCache.size());
+
+            // a peer without cache rejects copies
+            fr = master.storeRPC().putCache(slave.peerAddress(), hot, 10, gb, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(Type.DENIED, fr.responseMessage().type());
+        } finally {
+            if (cc != null) {
+                cc.shutdown().awaitListenersUninterruptibly();
+            }
+            if (master != null) {
+                master.shutdown().await();
+            }
+            if (slave != null) {
+                slave.shutdown().await();
+            }
+            if (cache != null) {
+                cache.shutdown().await();
+            }
+        }
+    }
 }
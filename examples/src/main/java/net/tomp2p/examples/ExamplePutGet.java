@@ -26,6 +26,7 @@ import net.tomp2p.dht.PeerDHT;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.storage.Data;
+import net.tomp2p.utils.CompactSerializer;
 
 /**
  * This simple example creates 10 nodes, bootstraps to the first and put and get data from those 10 nodes.
@@ -58,6 +59,7 @@ public final class ExamplePutGet {
             master = peers[0];
             Number160 nr = new Number160(RND);
             examplePutGet(peers, nr);
+            examplePutGetCompact(peers);
             examplePutGetConfig(peers, nr);
             exampleGetBlocking(peers, nr);
             exampleGetNonBlocking(peers, nr);
@@ -91,6 +93,25 @@ public final class ExamplePutGet {
         // peer 77 got: "hallo" for the key 0xba419d350dfe8af7aee7bbe10c45c0284f083ce4
     }
 
+    /**
+     * Stores and retrieves content with the compact serializer instead of Java serialization. The serializer can also
+     * be set for all requests of a peer with PeerBuilder.serializer().
+     * 
+     * @param peers The peers in this P2P network
+     * @throws IOException e.
+     * @throws ClassNotFoundException .
+     */
+    private static void examplePutGetCompact(final PeerDHT[] peers) throws IOException, ClassNotFoundException {
+        Number160 nr = new Number160(RND);
+        FuturePut futurePut = peers[PEER_NR_1].put(nr).serializer(CompactSerializer.INSTANCE).object("hallo")
+                .start();
+        futurePut.awaitUninterruptibly();
+        FutureGet futureGet = peers[PEER_NR_2].get(nr).serializer(CompactSerializer.INSTANCE).start();
+        futureGet.awaitUninterruptibly();
+        System.out.println("peer " + PEER_NR_2 + " got: \"" + futureGet.data().object() + "\" for the key " + nr
+                + " with " + futureGet.data().length() + " bytes");
+    }
+
     private static void examplePutGetConfig( PeerDHT[] peers, Number160 nr2 )
         throws IOException, ClassNotFoundException
     {
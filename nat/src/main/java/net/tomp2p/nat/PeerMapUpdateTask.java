@@ -2,21 +2,27 @@ package net.tomp2p.nat;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureBootstrap;
 import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message.Type;
 import net.tomp2p.p2p.builder.BootstrapBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerStatatistic;
 import net.tomp2p.relay.DistributedRelay;
 import net.tomp2p.relay.FutureRelay;
+import net.tomp2p.relay.PeerMapChanges;
 import net.tomp2p.relay.RelayRPC;
 
 import org.slf4j.Logger;
@@ -25,18 +31,28 @@ import org.slf4j.LoggerFactory;
 /**
  * The PeerMapUpdateTask is responsible for periodically sending the unreachable
  * peers PeerMap to its relays. This is important as the relay peers respond to
- * routing requests on behalf of the unreachable peers
+ * routing requests on behalf of the unreachable peers. The full peer map is only
+ * sent once to a relay, afterwards only the changes since the version the relay
+ * acknowledged are sent. A relay that misses a version asks for the full peer
+ * map again.
  * 
  */
 class PeerMapUpdateTask extends TimerTask {
 
 	private static final Logger LOG = LoggerFactory.getLogger(PeerMapUpdateTask.class);
+	private static final int MAX_CHANGES = 1000;
+	// the size limit of a neighbor set
+	private static final int MAX_DELTA = 255;
 
 	final private RelayRPC relayRPC;
 	final private BootstrapBuilder bootstrapBuilder;
 	final private DistributedRelay distributedRelay;
 	final private Collection<PeerAddress> manualRelays;
 	final private int maxFail;
+	final private PeerMapChanges peerMapChanges = new PeerMapChanges(MAX_CHANGES);
+	// the version each relay acknowledged
+	final private Map<Number160, Long> relayVersions = new ConcurrentHashMap<Number160, Long>();
+	final private AtomicLong lastCycleBytes = new AtomicLong();
 
 	/**
 	 * Create a new peer map update task.
@@ -55,6 +71,7 @@ class PeerMapUpdateTask extends TimerTask {
 		this.distributedRelay = distributedRelay;
 		this.manualRelays = manualRelays;
 		this.maxFail = maxFail;
+		peerMapChanges.register(relayRPC.peer().peerBean().peerMap());
 	}
 
 	@Override
@@ -70,25 +87,20 @@ class PeerMapUpdateTask extends TimerTask {
 		fb.addListener(new BaseFutureAdapter<FutureBootstrap>() {
 			public void operationComplete(FutureBootstrap future) throws Exception {
 				if (future.isSuccess()) {
-					List<Map<Number160, PeerStatatistic>> peerMapVerified = relayRPC.peer().peerBean().peerMap()
-					        .peerMapVerified();
 					final Collection<PeerConnection> relays;
 					synchronized (distributedRelay.relayAddresses()) {
 						relays = new ArrayList<PeerConnection>(distributedRelay.relayAddresses());
 					}
-		            for (final PeerConnection pc : relays) {
-		              	final FutureResponse fr = relayRPC.sendPeerMap(pc.remotePeer(), peerMapVerified, pc);
-		               	fr.addListener(new BaseFutureAdapter<BaseFuture>() {
-		               		public void operationComplete(BaseFuture future) throws Exception {
-		               			if (future.isFailed()) {
-		               				LOG.warn("failed to update peer map on relay peer {}: {}", pc.remotePeer(),
-		               						future.failedReason());
-		               			} else {
-		               				LOG.trace("Updated peer map on relay {}", pc.remotePeer());
-		               			}
-		               		}
-		               	});
-		            }
+					final Set<Number160> current = new HashSet<Number160>();
+					long bytes = 0;
+					for (final PeerConnection pc : relays) {
+						current.add(pc.remotePeer().peerId());
+						bytes += updateRelay(pc);
+					}
+					// forget relays we are not connected to anymore
+					relayVersions.keySet().retainAll(current);
+					lastCycleBytes.set(bytes);
+					LOG.debug("sent {} bytes of peer map updates to {} relays", bytes, relays.size());
 				}
 			}
 		});
@@ -96,4 +108,85 @@ class PeerMapUpdateTask extends TimerTask {
 		distributedRelay.setupRelays(futureRelay2, manualRelays, maxFail);
 		distributedRelay.peer().notifyAutomaticFutures(futureRelay2);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Sends the changes since the version the relay acknowledged, or the full
+	 * peer map if the relay has no version or the changes are not available
+	 * anymore.
+	 * 
+	 * @return The number of bytes of peer addresses sent
+	 */
+	private long updateRelay(final PeerConnection pc) {
+		final Long relayVersion = relayVersions.get(pc.remotePeer().peerId());
+		final Map<PeerAddress, Boolean> changes = relayVersion == null ? null : peerMapChanges.since(relayVersion);
+		if (changes == null) {
+			return sendFull(pc);
+		}
+		if (changes.isEmpty()) {
+			LOG.trace("peer map on relay {} is up to date", pc.remotePeer());
+			return 0;
+		}
+		final Collection<PeerAddress> inserted = new ArrayList<PeerAddress>();
+		final Collection<PeerAddress> removed = new ArrayList<PeerAddress>();
+		for (Map.Entry<PeerAddress, Boolean> entry : changes.entrySet()) {
+			(entry.getValue() ? inserted : removed).add(entry.getKey());
+		}
+		if (inserted.size() > MAX_DELTA || removed.size() > MAX_DELTA) {
+			return sendFull(pc);
+		}
+		// changes after this version are sent again next time, applying them twice does not harm
+		final long version = peerMapChanges.version();
+		final FutureResponse fr = relayRPC.sendPeerMapDelta(pc.remotePeer(), inserted, removed, relayVersion,
+		        version, pc);
+		fr.addListener(new BaseFutureAdapter<FutureResponse>() {
+			public void operationComplete(FutureResponse future) throws Exception {
+				if (future.isFailed()) {
+					LOG.warn("failed to update peer map on relay peer {}: {}", pc.remotePeer(),
+					        future.failedReason());
+				} else if (future.responseMessage().type() == Type.NOT_FOUND) {
+					LOG.debug("relay {} missed a version of the peer map", pc.remotePeer());
+					relayVersions.remove(pc.remotePeer().peerId());
+					sendFull(pc);
+				} else {
+					LOG.trace("Updated peer map on relay {} to version {}", pc.remotePeer(), version);
+					relayVersions.put(pc.remotePeer().peerId(), version);
+				}
+			}
+		});
+		return PeerMapChanges.size(inserted) + PeerMapChanges.size(removed);
+	}
+
+	private long sendFull(final PeerConnection pc) {
+		// read the version first, changes that happen while we copy the map are sent again
+		final long version = peerMapChanges.version();
+		List<Map<Number160, PeerStatatistic>> peerMapVerified = relayRPC.peer().peerBean().peerMap()
+		        .peerMapVerified();
+		final FutureResponse fr = relayRPC.sendPeerMap(pc.remotePeer(), peerMapVerified, version, pc);
+		fr.addListener(new BaseFutureAdapter<BaseFuture>() {
+			public void operationComplete(BaseFuture future) throws Exception {
+				if (future.isFailed()) {
+					LOG.warn("failed to update peer map on relay peer {}: {}", pc.remotePeer(),
+					        future.failedReason());
+				} else {
+					LOG.trace("Sent peer map with version {} to relay {}", version, pc.remotePeer());
+					relayVersions.put(pc.remotePeer().peerId(), version);
+				}
+			}
+		});
+		return PeerMapChanges.size(fr.request().neighborsSet(0).neighbors());
+	}
+
+	/**
+	 * @return The number of bytes of peer addresses sent to the relays in the
+	 *         last update
+	 */
+	public long lastCycleBytes() {
+		return lastCycleBytes.get();
+	}
+
+	@Override
+	public boolean cancel() {
+		relayRPC.peer().peerBean().peerMap().removePeerMapChangeListener(peerMapChanges);
+		return super.cancel();
+	}
+}
@@ -0,0 +1,192 @@
+package net.tomp2p.relay;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerMapChangeListener;
+import net.tomp2p.peers.PeerSocketAddress;
+import net.tomp2p.peers.PeerStatatistic;
+
+/**
+ * Records the changes of the verified peer map of an unreachable peer with a version number, so that only the changes
+ * since the last version a relay peer acknowledged need to be sent. The number of recorded changes is limited. If a
+ * relay peer is too far behind, {@link #since(long)} returns null and the full peer map needs to be sent.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class PeerMapChanges implements PeerMapChangeListener {
+
+	private final int maxChanges;
+	private final Deque<Change> changes = new ArrayDeque<Change>();
+	// the last address we recorded for a peer, to detect address changes in updates
+	private final Map<Number160, PeerAddress> recorded = new HashMap<Number160, PeerAddress>();
+	private long version = 0;
+
+	/**
+	 * @param maxChanges
+	 *            The number of changes to keep
+	 */
+	public PeerMapChanges(final int maxChanges) {
+		this.maxChanges = maxChanges;
+	}
+
+	/**
+	 * Listens to the changes of a peer map. The peers that are already in the verified map are not a change, but their
+	 * addresses are recorded, so that their next update is only a change if the address differs.
+	 *
+	 * @param peerMap
+	 *            The peer map of the unreachable peer
+	 * @return This class
+	 */
+	public PeerMapChanges register(final PeerMap peerMap) {
+		// not under our lock, the peer map calls the listeners while holding its own lock
+		peerMap.addPeerMapChangeListener(this);
+		final Collection<PeerAddress> peerAddresses = peerMap.all();
+		synchronized (this) {
+			for (PeerAddress peerAddress : peerAddresses) {
+				// a change that arrived in the meantime is newer
+				if (!recorded.containsKey(peerAddress.peerId())) {
+					recorded.put(peerAddress.peerId(), peerAddress);
+				}
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public void peerInserted(final PeerAddress peerAddress, final boolean verified) {
+		if (verified) {
+			record(peerAddress, true);
+		}
+	}
+
+	@Override
+	public void peerRemoved(final PeerAddress peerAddress, final PeerStatatistic storedPeerAddress) {
+		record(peerAddress, false);
+	}
+
+	@Override
+	public void peerUpdated(final PeerAddress peerAddress, final PeerStatatistic storedPeerAddress) {
+		// called for every message of a verified peer, only a new address is a change
+		final PeerAddress old;
+		synchronized (this) {
+			old = recorded.get(peerAddress.peerId());
+		}
+		if (old == null || !sameAddress(old, peerAddress)) {
+			record(peerAddress, true);
+		}
+	}
+
+	/**
+	 * Compares the fields that are sent for a peer address, the peer ID is the same.
+	 */
+	private static boolean sameAddress(final PeerAddress old, final PeerAddress peerAddress) {
+		if (old == peerAddress) {
+			return true;
+		}
+		if (!old.peerSocketAddress().equals(peerAddress.peerSocketAddress())
+		        || old.isFirewalledTCP() != peerAddress.isFirewalledTCP()
+		        || old.isFirewalledUDP() != peerAddress.isFirewalledUDP()
+		        || old.isRelayed() != peerAddress.isRelayed()) {
+			return false;
+		}
+		final Collection<PeerSocketAddress> oldRelays = old.peerSocketAddresses();
+		final Collection<PeerSocketAddress> relays = peerAddress.peerSocketAddresses();
+		if (oldRelays.size() != relays.size()) {
+			return false;
+		}
+		final Iterator<PeerSocketAddress> iterator = relays.iterator();
+		for (PeerSocketAddress oldRelay : oldRelays) {
+			if (!oldRelay.equals(iterator.next())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private synchronized void record(final PeerAddress peerAddress, final boolean inserted) {
+		if (inserted) {
+			recorded.put(peerAddress.peerId(), peerAddress);
+		} else {
+			recorded.remove(peerAddress.peerId());
+		}
+		changes.addLast(new Change(++version, peerAddress, inserted));
+		while (changes.size() > maxChanges) {
+			changes.removeFirst();
+		}
+	}
+
+	/**
+	 * @return The version of the last change
+	 */
+	public synchronized long version() {
+		return version;
+	}
+
+	/**
+	 * Returns the changes after a version. If a peer changed several times, only its last change is returned.
+	 *
+	 * @param fromVersion
+	 *            The version the relay peer has
+	 * @return The peers that were inserted or updated mapped to true, and the removed peers mapped to false, or null if
+	 *         the changes are not available anymore
+	 */
+	public synchronized Map<PeerAddress, Boolean> since(final long fromVersion) {
+		if (fromVersion > version) {
+			return null;
+		}
+		final long oldest = changes.isEmpty() ? version + 1 : changes.peekFirst().version;
+		if (fromVersion + 1 < oldest) {
+			return null;
+		}
+		final Map<Number160, Change> latest = new LinkedHashMap<Number160, Change>();
+		for (Iterator<Change> iterator = changes.descendingIterator(); iterator.hasNext();) {
+			final Change change = iterator.next();
+			if (change.version <= fromVersion) {
+				break;
+			}
+			if (!latest.containsKey(change.peerAddress.peerId())) {
+				latest.put(change.peerAddress.peerId(), change);
+			}
+		}
+		final Map<PeerAddress, Boolean> result = new LinkedHashMap<PeerAddress, Boolean>(latest.size() * 2);
+		for (Change change : latest.values()) {
+			result.put(change.peerAddress, change.inserted);
+		}
+		return result;
+	}
+
+	/**
+	 * @param peerAddresses
+	 *            The peers to send
+	 * @return The number of bytes the peer addresses need on the wire
+	 */
+	public static int size(final Collection<PeerAddress> peerAddresses) {
+		int size = 0;
+		for (PeerAddress peerAddress : peerAddresses) {
+			size += peerAddress.size();
+		}
+		return size;
+	}
+
+	private static final class Change {
+		private final long version;
+		private final PeerAddress peerAddress;
+		private final boolean inserted;
+
+		private Change(final long version, final PeerAddress peerAddress, final boolean inserted) {
+			this.version = version;
+			this.peerAddress = peerAddress;
+			this.inserted = inserted;
+		}
+	}
+}
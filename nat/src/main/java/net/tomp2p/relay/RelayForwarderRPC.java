@@ -1,5 +1,7 @@
 package net.tomp2p.relay;
 
+import io.netty.buffer.ByteBuf;
+
 import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
@@ -9,9 +11,11 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.PeerException;
+import net.tomp2p.connection.PeerException.AbortCause;
 import net.tomp2p.connection.Responder;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureDone;
@@ -24,6 +28,7 @@ import net.tomp2p.p2p.Peer;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerSocketAddress;
 import net.tomp2p.peers.PeerStatatistic;
 import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.rpc.DispatchHandler;
@@ -48,9 +53,12 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
 
 	// connection to unreachable peer
 	private final PeerConnection peerConnection;
-	private List<Map<Number160, PeerStatatistic>> peerMap = null;
+	private volatile PeerMap peerMap = null;
+	private long peerMapVersion = -1;
 	private volatile PeerAddress unreachablePeer;
 	private final RelayRPC relayRPC;
+	private final RelayPipeline relayPipeline;
+	private final AtomicLong wrapped = new AtomicLong();
 
 	/**
 	 * 
@@ -68,11 +76,14 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
             public void operationComplete(FutureDone<Void> future) throws Exception {
 				peer.peerBean().removePeerStatusListeners(RelayForwarderRPC.this);
 				peer.connectionBean().dispatcher().removeIoHandler(unreachablePeer.peerId());
+				peer.connectionBean().dispatcher().keepFrames(unreachablePeer.peerId(), false);
             }
 		});
 		
 		this.unreachablePeer = peerConnection.remotePeer().changeRelayed(true);
 		this.relayRPC = relayRPC;
+		this.relayPipeline = RelayPipeline.install(peerConnection.channelFuture().channel(), peer.connectionBean()
+		        .timer(), relayRPC.forwardTimeoutMillis());
 		LOG.debug("created forwarder from peer {} to peer {}", peer.peerAddress(), unreachablePeer);
 	}
 	
@@ -105,6 +116,7 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
 				        .registerIoHandler(unreachablePeer.peerId(), this, command.getNr());
 			}
 		}
+		peer.connectionBean().dispatcher().keepFrames(unreachablePeer.peerId(), true);
 		peer.peerBean().addPeerStatusListeners(this);
 	}
 	
@@ -141,10 +153,47 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
 	}
 
 	private void handleRelay(final Message message, final Responder responder, final PeerAddress sender)
+	        throws InvalidKeyException, SignatureException, IOException {
+		message.restoreContentReferences();
+		final ByteBuf frame = message.frame();
+		if (message.isSign() || frame == null) {
+			// the signature covers the message ID that the pipeline replaces,
+			// and without the received bytes we would need to encode again
+			wrapped.incrementAndGet();
+			handleRelayWrapped(message, responder, sender);
+			return;
+		}
+		// Send the received bytes through the open connection to the
+		// unreachable peer, which handles the request with its dispatcher
+		message.frame(null);
+		FutureResponse fr = relayPipeline.forward(message, frame);
+		fr.addListener(new BaseFutureAdapter<FutureResponse>() {
+			public void operationComplete(FutureResponse future) throws Exception {
+				if (future.isSuccess()) {
+					Message responseFromUnreachablePeer = future.responseMessage();
+					responseFromUnreachablePeer.restoreContentReferences();
+					if (responseFromUnreachablePeer.peerSocketAddresses().isEmpty()) {
+						responseFromUnreachablePeer.sender(sender);
+					} else {
+						// the unreachable peer already attached its relays, the
+						// responder would add them a second time
+						responseFromUnreachablePeer.sender(sender.changePeerSocketAddresses(Collections
+						        .<PeerSocketAddress> emptyList()));
+					}
+					responseFromUnreachablePeer.recipient(message.sender());
+					LOG.debug("response from unreachable peer: {}", responseFromUnreachablePeer);
+					responder.response(responseFromUnreachablePeer);
+				} else {
+					responder.failed(Type.USER1, "Relaying message failed: " + future.failedReason());
+				}
+			}
+		});
+	}
+
+	private void handleRelayWrapped(final Message message, final Responder responder, final PeerAddress sender)
 	        throws InvalidKeyException, SignatureException, IOException {
 		// Send message via direct message through the open connection to the
 		// unreachable peer
-		message.restoreContentReferences();
 		final Buffer buf = RelayUtils.encodeMessage(message);
 
 		FutureResponse fr = relayRPC.forwardMessage(peerConnection, buf);
@@ -156,7 +205,14 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
 					Message responseFromUnreachablePeer = RelayUtils.decodeMessage(buffer, message.recipientSocket(),
 					        message.senderSocket());
 					responseFromUnreachablePeer.restoreContentReferences();
-					responseFromUnreachablePeer.sender(sender);
+					if (responseFromUnreachablePeer.peerSocketAddresses().isEmpty()) {
+						responseFromUnreachablePeer.sender(sender);
+					} else {
+						// the unreachable peer already attached its relays, the
+						// responder would add them a second time
+						responseFromUnreachablePeer.sender(sender.changePeerSocketAddresses(Collections
+						        .<PeerSocketAddress> emptyList()));
+					}
 					responseFromUnreachablePeer.recipient(message.sender());
 					LOG.debug("response from unreachable peer: {}", responseFromUnreachablePeer);
 					responder.response(responseFromUnreachablePeer);
@@ -168,6 +224,21 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
 
 	}
 
+	/**
+	 * @return The pipeline that forwards requests to the unreachable peer
+	 */
+	public RelayPipeline relayPipeline() {
+		return relayPipeline;
+	}
+
+	/**
+	 * @return The number of requests that were encoded again and sent in a relay envelope, because they were signed
+	 *         or their received bytes were not kept
+	 */
+	public long wrapped() {
+		return wrapped.get();
+	}
+
 	private void handlePing(Message message, Responder responder, PeerAddress sender) {
 		LOG.debug("peerconnection open? {}", peerConnection.isOpen());
 		Message response = createResponseMessage(message, peerConnection.isOpen() ? Type.OK : Type.EXCEPTION, sender);
@@ -214,13 +285,13 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
         if(peerMap == null) {
             return null;
         } else {
-            return PeerMap.closePeers(unreachablePeer.peerId(), id, NeighborRPC.NEIGHBOR_SIZE, peerMap);
+            return PeerMap.closePeers(unreachablePeer.peerId(), id, NeighborRPC.NEIGHBOR_SIZE, peerMap.peerMapVerified());
         }
     }
 	
 	public Collection<PeerAddress> all() {
 		Collection<PeerStatatistic> result1 = new ArrayList<PeerStatatistic>();
-		for(Map<Number160, PeerStatatistic> map:peerMap) {
+		for(Map<Number160, PeerStatatistic> map:peerMap.peerMapVerified()) {
 			result1.addAll(map.values());
 		}
 		Collection<PeerAddress> result2 = new ArrayList<PeerAddress>();
@@ -230,7 +301,60 @@ public class RelayForwarderRPC extends DispatchHandler implements PeerStatusList
 	    return result2;
     }
 
-	public void setMap(List<Map<Number160, PeerStatatistic>> peerMap) {
-	    this.peerMap = peerMap;
-    }
+	/**
+	 * Sets the peer map of the unreachable peer.
+	 * 
+	 * @param peerMap
+	 *            The peer map of the unreachable peer
+	 * @param version
+	 *            The version of the peer map
+	 */
+	public synchronized void setPeerMap(PeerMap peerMap, long version) {
+		this.peerMap = peerMap;
+		this.peerMapVersion = version;
+	}
+
+	/**
+	 * Applies the changes of the peer map of the unreachable peer, if they are
+	 * based on the version we have or an older one.
+	 * 
+	 * @param inserted
+	 *            The peers that were added or changed their address
+	 * @param removed
+	 *            The peers that were removed
+	 * @param fromVersion
+	 *            The version the changes are based on
+	 * @param toVersion
+	 *            The version after the changes
+	 * @return False if our version is older than the version the changes are
+	 *         based on
+	 */
+	public synchronized boolean applyPeerMapDelta(Collection<PeerAddress> inserted, Collection<PeerAddress> removed,
+	        long fromVersion, long toVersion) {
+		if (peerMap == null || peerMapVersion < fromVersion) {
+			LOG.debug("peer map version {} is older than {}, need full peer map", peerMapVersion, fromVersion);
+			return false;
+		}
+		if (peerMapVersion > toVersion) {
+			// an old update that arrived late, we already have newer changes
+			return true;
+		}
+		// the changes contain the latest state of each peer, so it does not
+		// matter if we have already seen some of them
+		for (PeerAddress peerAddress : removed) {
+			peerMap.peerFailed(peerAddress, new PeerException(AbortCause.SHUTDOWN, "removed by unreachable peer"));
+		}
+		for (PeerAddress peerAddress : inserted) {
+			peerMap.peerFound(peerAddress, null, null);
+		}
+		peerMapVersion = toVersion;
+		return true;
+	}
+
+	/**
+	 * @return The version of the peer map of the unreachable peer, or -1 if we don't have it
+	 */
+	public synchronized long peerMapVersion() {
+		return peerMapVersion;
+	}
 }
@@ -0,0 +1,193 @@
+package net.tomp2p.relay;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+import net.tomp2p.peers.Number160;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forwards requests over the open connection to an unreachable peer without waiting for the previous response. The
+ * requests are written as the relay received them, only the message ID in the header is replaced by an ID of this
+ * pipeline, so that replies can be matched even if two senders use the same ID. The unreachable peer handles the
+ * requests with its dispatcher and replies on the same connection. This handler sits in front of the request handler
+ * of the connection, which is used for the heartbeat and the relay RPCs, and passes all other messages on.
+ * <p>
+ * This only saves encoding the request again. The relay still decodes every request completely to find the
+ * unreachable peer. Replies are decoded and encoded again, since their sender and recipient are rewritten. Signed
+ * requests are not forwarded here, as the new message ID would break the signature. They use the relay envelope, see
+ * {@link RelayForwarderRPC#wrapped()}.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class RelayPipeline extends SimpleChannelInboundHandler<Message> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RelayPipeline.class);
+	private static final String NAME = "relaypipeline";
+	// the message ID follows the version and type, see MessageHeaderCodec
+	private static final int MESSAGE_ID_INDEX = 4;
+
+	private final ConcurrentMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final Channel channel;
+	private final ScheduledExecutorService timer;
+	private final int timeoutMillis;
+
+	private final AtomicLong forwarded = new AtomicLong();
+
+	private RelayPipeline(final Channel channel, final ScheduledExecutorService timer, final int timeoutMillis) {
+		this.channel = channel;
+		this.timer = timer;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Adds the pipeline to the channel to the unreachable peer.
+	 *
+	 * @param channel
+	 *            The open channel to the unreachable peer
+	 * @param timer
+	 *            The timer to fail requests that are not answered
+	 * @param timeoutMillis
+	 *            The time to wait for a reply
+	 * @return The pipeline of this channel
+	 */
+	public static RelayPipeline install(final Channel channel, final ScheduledExecutorService timer,
+	        final int timeoutMillis) {
+		final RelayPipeline relayPipeline = new RelayPipeline(channel, timer, timeoutMillis);
+		final ChannelPipeline pipeline = channel.pipeline();
+		// the request handler is not removed after a reply, so we need to be in front of it
+		if (pipeline.get("handler") != null) {
+			pipeline.addBefore("handler", NAME, relayPipeline);
+		} else if (pipeline.get("dispatcher") != null) {
+			pipeline.addBefore("dispatcher", NAME, relayPipeline);
+		} else {
+			pipeline.addLast(NAME, relayPipeline);
+		}
+		channel.closeFuture().addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				relayPipeline.failAll("relay connection closed");
+			}
+		});
+		return relayPipeline;
+	}
+
+	/**
+	 * Writes the received bytes of a request to the unreachable peer. The message ID in the frame is replaced, so the
+	 * request must not be signed. The reply gets the message ID of the request back.
+	 *
+	 * @param message
+	 *            The decoded request
+	 * @param frame
+	 *            The bytes of the request as they were received, see {@link Message#frame()}. This pipeline releases
+	 *            them.
+	 * @return The future that is done when the unreachable peer replied
+	 */
+	public FutureResponse forward(final Message message, final ByteBuf frame) {
+		final FutureResponse futureResponse = new FutureResponse(message);
+		if (!channel.isActive()) {
+			frame.release();
+			return futureResponse.failed("relay connection closed");
+		}
+		final int relayId = nextId.incrementAndGet();
+		pending.put(relayId, new Pending(futureResponse, message.messageId(), message.sender().peerId()));
+		final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (pending.remove(relayId) != null) {
+					futureResponse.failed("no reply from unreachable peer within " + timeoutMillis + "ms");
+				}
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				timeout.cancel(false);
+			}
+		});
+		frame.setInt(MESSAGE_ID_INDEX, relayId);
+		channel.writeAndFlush(frame).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				if (!future.isSuccess()) {
+					pending.remove(relayId);
+					futureResponse.failed("cannot forward to unreachable peer", future.cause());
+				}
+			}
+		});
+		forwarded.incrementAndGet();
+		return futureResponse;
+	}
+
+	@Override
+	protected void channelRead0(final ChannelHandlerContext ctx, final Message message) throws Exception {
+		if (!message.isRequest()) {
+			final Integer relayId = Integer.valueOf(message.messageId());
+			final Pending request = pending.get(relayId);
+			// replies to the RPCs of the relay peer use their own IDs, they only match by chance
+			if (request != null && request.sender.equals(message.recipient().peerId())
+			        && pending.remove(relayId, request)) {
+				LOG.debug("reply from unreachable peer {}", message);
+				message.messageId(request.messageId);
+				request.futureResponse.response(message);
+				return;
+			}
+		}
+		ctx.fireChannelRead(message);
+	}
+
+	private void failAll(final String reason) {
+		for (Integer relayId : pending.keySet()) {
+			final Pending request = pending.remove(relayId);
+			if (request != null) {
+				request.futureResponse.failed(reason);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of requests that wait for a reply
+	 */
+	public int pendingRequests() {
+		return pending.size();
+	}
+
+	/**
+	 * @return The number of requests forwarded over this connection
+	 */
+	public long forwarded() {
+		return forwarded.get();
+	}
+
+	private static final class Pending {
+		private final FutureResponse futureResponse;
+		private final int messageId;
+		private final Number160 sender;
+
+		private Pending(final FutureResponse futureResponse, final int messageId, final Number160 sender) {
+			this.futureResponse = futureResponse;
+			this.messageId = messageId;
+			this.sender = sender;
+		}
+	}
+}
@@ -60,18 +60,62 @@ public class RelayRPC extends DispatchHandler {
      *            The peer address of the relay peer
      * @param map
      *            The unreachable peer's peer map.
-     * @param fcc
+     * @param version
+     *            The version of the peer map, see {@link PeerMapChanges}
+     * @param peerConnection
+     *            The open connection to the relay peer
      * @return
      */
-    public FutureResponse sendPeerMap(PeerAddress peerAddress, List<Map<Number160, PeerStatatistic>> map, final PeerConnection peerConnection) {
+    public FutureResponse sendPeerMap(PeerAddress peerAddress, List<Map<Number160, PeerStatatistic>> map,
+            long version, final PeerConnection peerConnection) {
         final Message message = createMessage(peerAddress, RPC.Commands.RELAY.getNr(), Type.REQUEST_3);
         message.keepAlive(true);
         // TODO: neighbor size limit is 256, we might have more here
         message.neighborsSet(new NeighborSet(-1, RelayUtils.flatten(map)));
+        message.longValue(version);
         final FutureResponse futureResponse = new FutureResponse(message);
         return sendSingle(peerConnection, futureResponse);
     }
 
+    /**
+     * Send the changes of the peer map of an unreachable peer to a relay peer.
+     * The relay peer applies them only if it has at least the version of the
+     * peer map the changes are based on, otherwise it replies with
+     * {@link Type#NOT_FOUND} and the full peer map needs to be sent.
+     * 
+     * @param peerAddress
+     *            The peer address of the relay peer
+     * @param inserted
+     *            The peers that were added or changed their address
+     * @param removed
+     *            The peers that were removed
+     * @param fromVersion
+     *            The version of the peer map the relay peer has
+     * @param toVersion
+     *            The version of the peer map after the changes
+     * @param peerConnection
+     *            The open connection to the relay peer
+     * @return
+     */
+    public FutureResponse sendPeerMapDelta(PeerAddress peerAddress, Collection<PeerAddress> inserted,
+            Collection<PeerAddress> removed, long fromVersion, long toVersion, final PeerConnection peerConnection) {
+        final Message message = createMessage(peerAddress, RPC.Commands.RELAY.getNr(), Type.REQUEST_4);
+        message.keepAlive(true);
+        message.neighborsSet(new NeighborSet(-1, inserted));
+        message.neighborsSet(new NeighborSet(-1, removed));
+        message.longValue(fromVersion);
+        message.longValue(toVersion);
+        final FutureResponse futureResponse = new FutureResponse(message);
+        return sendSingle(peerConnection, futureResponse);
+    }
+
+    /**
+     * @return The time to wait for the unreachable peer to reply to a forwarded message
+     */
+    public int forwardTimeoutMillis() {
+        return config.idleTCPSeconds() * 1000;
+    }
+
     /**
      * Forward a message through the open peer connection to the unreachable
      * peer.
@@ -155,6 +199,8 @@ public class RelayRPC extends DispatchHandler {
             handlePiggyBackMessage(message, responder);
         } else if (message.type() == Type.REQUEST_3 && message.command() == RPC.Commands.RELAY.getNr()) {
             handleMap(message, responder);
+        } else if (message.type() == Type.REQUEST_4 && message.command() == RPC.Commands.RELAY.getNr()) {
+            handleMapDelta(message, responder);
         } else {
             throw new IllegalArgumentException("Message content is wrong");
         }
@@ -208,11 +254,37 @@ public class RelayRPC extends DispatchHandler {
         Collection<PeerAddress> map = message.neighborsSet(0).neighbors();
         RelayForwarderRPC relayForwarderRPC = RelayForwarderRPC.find(peer, message.sender().peerId());
         if (relayForwarderRPC != null) {
-            relayForwarderRPC.setMap(RelayUtils.unflatten(map, message.sender()));
+            // older peers do not send a version
+            Long version = message.longAt(0);
+            relayForwarderRPC.setPeerMap(RelayUtils.unflattenPeerMap(map, message.sender()),
+                    version == null ? 0 : version);
         } else {
             LOG.error("need to call setup relay first");
         }
         Message response = createResponseMessage(message, Type.OK);
         responder.response(response);
     }
-}
+
+    /**
+     * Applies the changes of the peer map of an unreachable peer. If the
+     * changes do not fit the version on this relay peer, the unreachable peer
+     * is asked for the full peer map.
+     * 
+     * @param message
+     * @param responder
+     */
+    private void handleMapDelta(Message message, Responder responder) {
+        LOG.debug("handle foreign map changes {}", message);
+        RelayForwarderRPC relayForwarderRPC = RelayForwarderRPC.find(peer, message.sender().peerId());
+        final boolean applied;
+        if (relayForwarderRPC != null) {
+            applied = relayForwarderRPC.applyPeerMapDelta(message.neighborsSet(0).neighbors(), message
+                    .neighborsSet(1).neighbors(), message.longAt(0), message.longAt(1));
+        } else {
+            LOG.error("need to call setup relay first");
+            applied = false;
+        }
+        Message response = createResponseMessage(message, applied ? Type.OK : Type.NOT_FOUND);
+        responder.response(response);
+    }
+}
\ No newline at end of file
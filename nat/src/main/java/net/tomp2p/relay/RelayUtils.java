@@ -40,12 +40,16 @@ public class RelayUtils {
 	}
 
 	public static List<Map<Number160, PeerStatatistic>> unflatten(Collection<PeerAddress> map, PeerAddress sender) {
+		return unflattenPeerMap(map, sender).peerMapVerified();
+	}
+
+	public static PeerMap unflattenPeerMap(Collection<PeerAddress> map, PeerAddress sender) {
 		PeerMapConfiguration peerMapConfiguration = new PeerMapConfiguration(sender.peerId());
 		PeerMap peerMap = new PeerMap(peerMapConfiguration);
 		for(PeerAddress peerAddress:map) {
 			peerMap.peerFound(peerAddress, null, null);
 		}
-		return peerMap.peerMapVerified();
+		return peerMap;
 	}
 
 	public static Collection<PeerAddress> flatten(List<Map<Number160, PeerStatatistic>> maps) {
@@ -1,10 +1,14 @@
 package net.tomp2p.relay;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
 import net.tomp2p.connection.PeerConnection;
+import net.tomp2p.connection.PeerException;
+import net.tomp2p.connection.PeerException.AbortCause;
 import net.tomp2p.dht.FuturePut;
 import net.tomp2p.dht.PeerDHT;
 import net.tomp2p.dht.PeerBuilderDHT;
@@ -542,6 +546,121 @@ public class TestRelay {
 	}
     
 
+    /**
+     * Sends direct messages through a relay peer to an unreachable peer, with several requests in flight at the same
+     * time, and prints the throughput.
+     */
+    @Test
+    public void testRelayThroughput() throws Exception {
+        final Random rnd = new Random(42);
+        Peer master = null;
+        Peer unreachablePeer = null;
+        try {
+            Peer[] peers = UtilsNAT.createNodes(3, rnd, 4000);
+            master = peers[0]; // the relay peer
+            UtilsNAT.perfectRouting(peers);
+            for (Peer peer : peers) {
+                new PeerBuilderNAT(peer).start();
+            }
+            unreachablePeer = new PeerBuilder(Number160.createHash(rnd.nextInt())).ports(13337).start();
+            PeerNAT uNat = new PeerBuilderNAT(unreachablePeer).start();
+            FutureRelayNAT fbn = uNat.startRelay(master.peerAddress());
+            fbn.awaitUninterruptibly();
+            Assert.assertTrue(fbn.isSuccess());
+
+            unreachablePeer.objectDataReply(new ObjectDataReply() {
+                public Object reply(PeerAddress sender, Object request) throws Exception {
+                    return ((byte[]) request).length;
+                }
+            });
+            final byte[] payload = new byte[10000];
+            rnd.nextBytes(payload);
+            final int rounds = 10;
+            final int parallel = 20;
+            for (int warmup = 0; warmup < 2; warmup++) {
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < rounds; i++) {
+                    List<FutureDirect> futures = new ArrayList<FutureDirect>(parallel);
+                    for (int j = 0; j < parallel; j++) {
+                        futures.add(peers[1].sendDirect(unreachablePeer.peerAddress()).object(payload).start());
+                    }
+                    for (FutureDirect futureDirect : futures) {
+                        futureDirect.awaitUninterruptibly();
+                        Assert.assertTrue(futureDirect.failedReason(), futureDirect.isSuccess());
+                        Assert.assertEquals(payload.length, futureDirect.object());
+                    }
+                }
+                long millis = Math.max(System.currentTimeMillis() - start, 1);
+                System.err.println("relayed " + (rounds * parallel) + " messages of " + payload.length
+                        + " bytes in " + millis + "ms, " + (rounds * parallel * 1000L / millis) + " messages/s");
+            }
+            // the relay wrote the received bytes and did not encode the requests again
+            RelayForwarderRPC forwarder = RelayForwarderRPC.find(master, unreachablePeer.peerId());
+            Assert.assertTrue(forwarder.relayPipeline().forwarded() > 0);
+            Assert.assertEquals(0, forwarder.wrapped());
+        } finally {
+            if (unreachablePeer != null) {
+                unreachablePeer.shutdown().await();
+            }
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testPeerMapChanges() throws Exception {
+        final Random rnd = new Random(42);
+        PeerMap peerMap = new PeerMap(new PeerMapConfiguration(new Number160(rnd)));
+        // a peer known before the registration is not a change, and neither is its next message
+        PeerAddress known = new PeerAddress(new Number160(rnd), "127.0.0.1", 3999, 3999);
+        peerMap.peerFound(known, null, null);
+        PeerMapChanges peerMapChanges = new PeerMapChanges(5).register(peerMap);
+        peerMap.peerFound(new PeerAddress(known.peerId(), "127.0.0.1", 3999, 3999), null, null);
+        Assert.assertEquals(0, peerMapChanges.version());
+        List<PeerAddress> peerAddresses = new ArrayList<PeerAddress>();
+        for (int i = 0; i < 4; i++) {
+            PeerAddress peerAddress = new PeerAddress(new Number160(rnd), "127.0.0.1", 4000 + i, 4000 + i);
+            peerAddresses.add(peerAddress);
+            peerMap.peerFound(peerAddress, null, null);
+        }
+        Assert.assertEquals(4, peerMapChanges.version());
+        Assert.assertEquals(4, peerMapChanges.since(0).size());
+        Assert.assertTrue(peerMapChanges.since(4).isEmpty());
+        // the same address again is not a change
+        peerMap.peerFound(peerAddresses.get(0), null, null);
+        Assert.assertEquals(4, peerMapChanges.version());
+
+        // the relay has version 4, a new address and a removal follow
+        PeerMap relayPeerMap = RelayUtils.unflattenPeerMap(RelayUtils.flatten(peerMap.peerMapVerified()),
+                new PeerAddress(peerMap.self()));
+        PeerAddress changed = peerAddresses.get(1).changePorts(5000, 5000);
+        peerMap.peerFound(changed, null, null);
+        peerMap.peerFailed(peerAddresses.get(2), new PeerException(AbortCause.SHUTDOWN, "test"));
+        Map<PeerAddress, Boolean> changes = peerMapChanges.since(4);
+        Assert.assertEquals(2, changes.size());
+        Assert.assertTrue(changes.get(changed));
+        Assert.assertFalse(changes.get(peerAddresses.get(2)));
+        Assert.assertEquals(changed.size() + peerAddresses.get(2).size(),
+                PeerMapChanges.size(changes.keySet()));
+        for (Map.Entry<PeerAddress, Boolean> entry : changes.entrySet()) {
+            if (entry.getValue()) {
+                relayPeerMap.peerFound(entry.getKey(), null, null);
+            } else {
+                relayPeerMap.peerFailed(entry.getKey(), new PeerException(AbortCause.SHUTDOWN, "test"));
+            }
+        }
+        Assert.assertEquals(peerMap.all().size(), relayPeerMap.all().size());
+        Assert.assertTrue(relayPeerMap.all().contains(changed));
+        Assert.assertFalse(relayPeerMap.all().contains(peerAddresses.get(2)));
+        Assert.assertEquals(5000, relayPeerMap.find(changed.peerId()).tcpPort());
+
+        // only 5 changes are kept, version 0 is too old now
+        Assert.assertNull(peerMapChanges.since(0));
+        Assert.assertNotNull(peerMapChanges.since(1));
+        Assert.assertNull(peerMapChanges.since(7));
+    }
+
     private Collection<PeerAddress> getNeighbors(Peer peer) {
     	Map<Number160, DispatchHandler> handlers = peer.connectionBean().dispatcher().searchHandler(5);
     	for(Map.Entry<Number160, DispatchHandler> entry:handlers.entrySet()) {
@@ -26,21 +26,16 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.dht.PeerDHT;
-import net.tomp2p.dht.PutBuilder;
-import net.tomp2p.dht.StorageRPC;
 import net.tomp2p.futures.BaseFuture;
-import net.tomp2p.futures.BaseFutureAdapter;
-import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDone;
-import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.p2p.ResponsibilityListener;
 import net.tomp2p.p2p.Shutdown;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.storage.Data;
+import net.tomp2p.synchronization.PeerAntiEntropy;
 import net.tomp2p.synchronization.PeerSync;
-import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,6 +58,7 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
     private int delayMillis = -1;
     private int intervalMillis = -1;
     private boolean rsync = false;
+    private boolean antiEntropy = false;
     private int blockSize = -1;
     private ReplicationSender replicationSender;
     private boolean nRoot = false;
@@ -113,6 +109,24 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
     	return this;
     }
     
+    public boolean isAntiEntropy() {
+    	return antiEntropy;
+    }
+    
+    public IndirectReplication antiEntropy(boolean antiEntropy) {
+    	this.antiEntropy = antiEntropy;
+    	return this;
+    }
+    
+	/**
+	 * Compare the replicas with a Merkle-tree based anti-entropy and only send missing or outdated entries instead of
+	 * all data on every interval. All peers need to have this enabled.
+	 */
+    public IndirectReplication antiEntropy() {
+    	this.antiEntropy = true;
+    	return this;
+    }
+    
     public boolean isNRoot() {
     	return nRoot;
     }
@@ -189,6 +203,19 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
     	return blockSize;
     }
     
+	/**
+	 * Sets the sender that transfers the data to the replicas. The default is a {@link ReplicationPipeline}. Has no
+	 * effect if rsync or anti-entropy is enabled.
+	 */
+    public IndirectReplication replicationSender(ReplicationSender replicationSender) {
+    	this.replicationSender = replicationSender;
+    	return this;
+    }
+    
+    public ReplicationSender replicationSender() {
+    	return replicationSender;
+    }
+    
     public IndirectReplication start() {
     	
     	if (intervalMillis == -1) {
@@ -223,10 +250,12 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
     	}
     	peer.storeRPC().replicationListener(replication);
     	
-		if(rsync) {
+		if(antiEntropy) {
+			replicationSender = new PeerAntiEntropy(peer);
+		} else if(rsync) {
 			replicationSender = new PeerSync(peer, replication, blockSize);
 		} else if (replicationSender == null) {
-			replicationSender = new DefaultReplicationSender(peer);
+			replicationSender = new ReplicationPipeline(peer);
 		}
     	
     	scheduledFuture = peer.peer().connectionBean().timer().scheduleAtFixedRate(
@@ -362,61 +391,4 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
     		scheduledFuture.cancel(false);
     	}
     }
-
-    private static class DefaultReplicationSender implements ReplicationSender {
-        private StorageRPC storageRPC;
-        private PeerDHT peer;
- 
-        private DefaultReplicationSender(PeerDHT peer) {
-            this.peer = peer;
-            this.storageRPC = peer.storeRPC();
-        }
-
-        /**
-         * If an other peer is responsible, we send this peer our data, so that the other peer can take care of this.
-         * 
-         * @param other
-         *            The other peer
-         * @param locationKey
-         *            The location key
-         * @param domainKey
-         *            The domain key
-         * @param dataMapConvert
-         *            The data to store
-         */
-        public FutureDone<Void> sendDirect(final PeerAddress other, final Number160 locationKey, final Map<Number640, Data> dataMap) {
-            final FutureDone<Void> futureDone = new FutureDone<Void>();
-        	FutureChannelCreator futureChannelCreator = peer.peer().connectionBean().reservation().create(0, 1);
-        	Utils.addReleaseListener(futureChannelCreator, futureDone);
-            futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
-                @Override
-                public void operationComplete(final FutureChannelCreator future) throws Exception {
-                    if (future.isSuccess()) {
-                        PutBuilder putBuilder = new PutBuilder(peer, locationKey);
-                        putBuilder.dataMap(dataMap);
-                        FutureResponse futureResponse = storageRPC.put(other, putBuilder,
-                                future.channelCreator());
-                        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
-							@Override
-							public void operationComplete(FutureResponse future)
-									throws Exception {
-								if(future.isSuccess()) {
-									futureDone.done();	
-								} else {
-									futureDone.failed(future);
-								}
-							}
-						});
-                        peer.peer().notifyAutomaticFutures(futureResponse);
-                    } else {
-                    	futureDone.failed(future);
-                        if (LOG.isErrorEnabled()) {
-                            LOG.debug("otherResponsible failed " + future.failedReason());
-                        }
-                    }
-                }
-            });
-            return futureDone;
-        }   
-    }
 }
@@ -0,0 +1,522 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.replication;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.dht.PutBuilder;
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.p2p.Shutdown;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The default replication sender. Instead of a put with its own reservation for every location key and close peer, the
+ * transfers are queued per destination peer and all pending entries for a peer are sent together, split into messages
+ * of at most {@link #maxBatchBytes()}. At most {@link #maxInFlight()} destinations are served in parallel, the sent
+ * bytes are paced to {@link #bytesPerSecond()}, and the pipeline backs off while foreground operations wait for a
+ * reservation. When the peer shuts down, the futures of the queued transfers fail.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class ReplicationPipeline implements ReplicationSender {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ReplicationPipeline.class);
+	static final int DEFAULT_MAX_IN_FLIGHT = 2;
+	static final int DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+	static final int DEFAULT_BACKOFF_MILLIS = 50;
+
+	private final PeerDHT peer;
+
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+	private long bytesPerSecond = -1;
+	private int coalesceMillis = 0;
+	private int backoffMillis = DEFAULT_BACKOFF_MILLIS;
+
+	// guarded by this
+	private final Map<PeerAddress, Batch> pending = new LinkedHashMap<PeerAddress, Batch>();
+	private final Set<PeerAddress> active = new HashSet<PeerAddress>();
+	private int pendingEntries = 0;
+	private int inFlight = 0;
+	private boolean drainScheduled = false;
+	private long nextSendNanos = 0;
+
+	private final long startNanos = System.nanoTime();
+	private final AtomicLong sentMessages = new AtomicLong();
+	private final AtomicLong sentBatches = new AtomicLong();
+	private final AtomicLong sentEntries = new AtomicLong();
+	private final AtomicLong sentBytes = new AtomicLong();
+	private final AtomicLong failedBatches = new AtomicLong();
+	private final AtomicLong deferred = new AtomicLong();
+
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (ReplicationPipeline.this) {
+				drainScheduled = false;
+			}
+			drain();
+		}
+	};
+
+	public ReplicationPipeline(final PeerDHT peer) {
+		this.peer = peer;
+		peer.peer().addShutdownListener(new Shutdown() {
+			@Override
+			public BaseFuture shutdown() {
+				// a scheduled drain does not run anymore, so nobody else completes the queued futures
+				failPending();
+				return new FutureDone<Void>().done();
+			}
+		});
+	}
+
+	public int maxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * @param maxInFlight
+	 *            The number of destination peers that are served in parallel, each uses one TCP permit. Default is 2
+	 * @return This class
+	 */
+	public ReplicationPipeline maxInFlight(final int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("at least one transfer needs to be in flight");
+		}
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+
+	public int maxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	/**
+	 * @param maxBatchBytes
+	 *            The maximum size of the data in one put message, a single larger entry is sent alone. Default is 1MB
+	 * @return This class
+	 */
+	public ReplicationPipeline maxBatchBytes(final int maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+		return this;
+	}
+
+	public long bytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            The bandwidth budget for replication, -1 for no limit. Default is -1
+	 * @return This class
+	 */
+	public ReplicationPipeline bytesPerSecond(final long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		return this;
+	}
+
+	public int coalesceMillis() {
+		return coalesceMillis;
+	}
+
+	/**
+	 * @param coalesceMillis
+	 *            How long to wait for more transfers to the same peer before sending. With 0, all transfers queued in
+	 *            the same replication run are coalesced. Default is 0
+	 * @return This class
+	 */
+	public ReplicationPipeline coalesceMillis(final int coalesceMillis) {
+		this.coalesceMillis = coalesceMillis;
+		return this;
+	}
+
+	public int backoffMillis() {
+		return backoffMillis;
+	}
+
+	/**
+	 * @param backoffMillis
+	 *            How long to wait if foreground operations are waiting for a reservation. Default is 50
+	 * @return This class
+	 */
+	public ReplicationPipeline backoffMillis(final int backoffMillis) {
+		this.backoffMillis = backoffMillis;
+		return this;
+	}
+
+	@Override
+	public FutureDone<Void> sendDirect(final PeerAddress other, final Number160 locationKey,
+	        final Map<Number640, Data> dataMap) {
+		final FutureDone<Void> futureDone = new FutureDone<Void>();
+		if (peer.peer().isShutdown()) {
+			return futureDone.failed("peer is shutting down");
+		}
+		if (dataMap.isEmpty()) {
+			return futureDone.done();
+		}
+		final boolean scheduled;
+		synchronized (this) {
+			Batch batch = pending.get(other);
+			if (batch == null) {
+				batch = new Batch();
+				pending.put(other, batch);
+			}
+			for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+				// a newer version of the same entry replaces the queued one
+				if (batch.dataMap.put(entry.getKey(), entry.getValue()) == null) {
+					pendingEntries++;
+				}
+			}
+			batch.futures.add(futureDone);
+			scheduled = scheduleDrain(coalesceMillis);
+		}
+		if (!scheduled) {
+			// the peer shut down after the check above
+			failPending();
+		}
+		peer.peer().notifyAutomaticFutures(futureDone);
+		return futureDone;
+	}
+
+	/**
+	 * @return The number of destination peers with queued transfers
+	 */
+	public synchronized int queueDepth() {
+		return pending.size();
+	}
+
+	/**
+	 * @return The number of queued entries over all destination peers
+	 */
+	public synchronized int pendingEntries() {
+		return pendingEntries;
+	}
+
+	/**
+	 * @return The number of destination peers that are currently served
+	 */
+	public synchronized int inFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return The number of put messages sent
+	 */
+	public long sentMessages() {
+		return sentMessages.get();
+	}
+
+	/**
+	 * @return The number of batches, i.e., destination peers, that have been served
+	 */
+	public long sentBatches() {
+		return sentBatches.get();
+	}
+
+	/**
+	 * @return The number of entries sent
+	 */
+	public long sentEntries() {
+		return sentEntries.get();
+	}
+
+	/**
+	 * @return The number of data bytes sent
+	 */
+	public long sentBytes() {
+		return sentBytes.get();
+	}
+
+	/**
+	 * @return The number of batches where at least one message failed
+	 */
+	public long failedBatches() {
+		return failedBatches.get();
+	}
+
+	/**
+	 * @return How often the pipeline backed off because foreground operations were waiting
+	 */
+	public long deferred() {
+		return deferred.get();
+	}
+
+	/**
+	 * @return The average number of data bytes sent per second since this pipeline was created
+	 */
+	public double throughput() {
+		final long elapsed = System.nanoTime() - startNanos;
+		return elapsed <= 0 ? 0 : sentBytes.get() * 1000000000d / elapsed;
+	}
+
+	/**
+	 * Starts transfers as long as there are pending destinations and free slots. Backs off if foreground operations
+	 * wait for a reservation or if the bandwidth budget is used up.
+	 */
+	private void drain() {
+		for (;;) {
+			final PeerAddress other;
+			final Batch batch;
+			synchronized (this) {
+				if (pending.isEmpty() || inFlight >= maxInFlight) {
+					return;
+				}
+				if (peer.peer().isShutdown()) {
+					other = null;
+					batch = null;
+				} else if (peer.peer().connectionBean().reservation().pendingRequests() > 0) {
+					deferred.incrementAndGet();
+					if (scheduleDrain(backoffMillis)) {
+						return;
+					}
+					other = null;
+					batch = null;
+				} else if (bytesPerSecond > 0 && nextSendNanos - System.nanoTime() > 0) {
+					if (scheduleDrain((int) Math.max(1,
+					        TimeUnit.NANOSECONDS.toMillis(nextSendNanos - System.nanoTime())))) {
+						return;
+					}
+					other = null;
+					batch = null;
+				} else {
+					final Map.Entry<PeerAddress, Batch> entry = next();
+					if (entry == null) {
+						// all pending destinations are already served, the transfer in flight calls drain again
+						return;
+					}
+					other = entry.getKey();
+					batch = entry.getValue();
+					active.add(other);
+					pendingEntries -= batch.dataMap.size();
+					inFlight++;
+					if (bytesPerSecond > 0) {
+						// pay for the whole batch in advance, the next batch waits for this debt
+						nextSendNanos = Math.max(nextSendNanos, System.nanoTime()) + batch.bytes() * 1000000000L
+						        / bytesPerSecond;
+					}
+				}
+			}
+			if (other == null) {
+				failPending();
+				return;
+			}
+			send(other, batch);
+		}
+	}
+
+	private void send(final PeerAddress other, final Batch batch) {
+		final FutureDone<Void> futureBatch = new FutureDone<Void>();
+		final FutureChannelCreator futureChannelCreator = peer.peer().connectionBean().reservation().create(0, 1);
+		Utils.addReleaseListener(futureChannelCreator, futureBatch);
+		futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+			@Override
+			public void operationComplete(final FutureChannelCreator future) throws Exception {
+				if (future.isSuccess()) {
+					sendChunk(other, batch.chunks(maxBatchBytes).iterator(), future.channelCreator(), futureBatch);
+				} else {
+					futureBatch.failed(future);
+				}
+			}
+		});
+		futureBatch.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+			@Override
+			public void operationComplete(final FutureDone<Void> future) throws Exception {
+				sentBatches.incrementAndGet();
+				if (future.isSuccess()) {
+					batch.done();
+				} else {
+					failedBatches.incrementAndGet();
+					LOG.debug("replication to {} failed {}", other, future.failedReason());
+					batch.failed(future.failedReason());
+				}
+				synchronized (ReplicationPipeline.this) {
+					inFlight--;
+					active.remove(other);
+				}
+				drain();
+			}
+		});
+	}
+
+	/**
+	 * Sends the chunks one after the other. The channel creator has one permit that is free again once the previous
+	 * connection is closed.
+	 */
+	private void sendChunk(final PeerAddress other, final Iterator<Map<Number640, Data>> chunks,
+	        final ChannelCreator channelCreator, final FutureDone<Void> futureBatch) {
+		if (!chunks.hasNext()) {
+			futureBatch.done();
+			return;
+		}
+		final Map<Number640, Data> chunk = chunks.next();
+		// the data map contains the full keys, so entries of different location keys can share one message
+		final PutBuilder putBuilder = new PutBuilder(peer, chunk.keySet().iterator().next().locationKey());
+		putBuilder.dataMap(chunk);
+		final FutureResponse futureResponse = peer.storeRPC().put(other, putBuilder, channelCreator);
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				if (future.isSuccess()) {
+					sentMessages.incrementAndGet();
+					sentEntries.addAndGet(chunk.size());
+					sentBytes.addAndGet(Batch.bytes(chunk));
+					sendChunk(other, chunks, channelCreator, futureBatch);
+				} else {
+					futureBatch.failed(future);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Schedules a drain unless one is already scheduled. Must be called while holding the lock of this pipeline.
+	 * 
+	 * @return False if the peer is shutting down and the drain cannot be scheduled. The caller has to fail the pending
+	 *         transfers with {@link #failPending()} after releasing the lock
+	 */
+	private boolean scheduleDrain(final int delayMillis) {
+		if (peer.peer().isShutdown()) {
+			return false;
+		}
+		if (drainScheduled) {
+			return true;
+		}
+		try {
+			peer.peer().connectionBean().timer().schedule(drainTask, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+		drainScheduled = true;
+		return true;
+	}
+
+	private void failPending() {
+		final List<Batch> batches;
+		synchronized (this) {
+			batches = new ArrayList<Batch>(pending.values());
+			pending.clear();
+			pendingEntries = 0;
+		}
+		for (Batch batch : batches) {
+			batch.failed("peer is shutting down");
+		}
+	}
+
+	/**
+	 * Removes and returns the first destination that is not already served. Entries for a peer in flight stay queued
+	 * until that transfer is done, so that an older version never overtakes a newer one.
+	 */
+	private Map.Entry<PeerAddress, Batch> next() {
+		final Iterator<Map.Entry<PeerAddress, Batch>> iterator = pending.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Map.Entry<PeerAddress, Batch> entry = iterator.next();
+			if (!active.contains(entry.getKey())) {
+				iterator.remove();
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("replication pipeline:");
+		sb.append("queue=").append(queueDepth());
+		sb.append(",entries=").append(pendingEntries());
+		sb.append(",inFlight=").append(inFlight());
+		sb.append(",messages=").append(sentMessages());
+		sb.append(",sent=").append(sentEntries()).append("/").append(sentBytes());
+		sb.append(",failed=").append(failedBatches());
+		sb.append(",deferred=").append(deferred());
+		return sb.toString();
+	}
+
+	/**
+	 * The queued entries for one destination peer and the futures of the callers.
+	 */
+	private static class Batch {
+		private final Map<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+		private final List<FutureDone<Void>> futures = new ArrayList<FutureDone<Void>>(1);
+
+		private long bytes() {
+			return bytes(dataMap);
+		}
+
+		private static long bytes(final Map<Number640, Data> dataMap) {
+			long bytes = 0;
+			for (Data data : dataMap.values()) {
+				bytes += data.length();
+			}
+			return bytes;
+		}
+
+		private List<Map<Number640, Data>> chunks(final int maxBatchBytes) {
+			final List<Map<Number640, Data>> chunks = new ArrayList<Map<Number640, Data>>();
+			Map<Number640, Data> chunk = new TreeMap<Number640, Data>();
+			long size = 0;
+			for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+				final int length = entry.getValue().length();
+				if (!chunk.isEmpty() && size + length > maxBatchBytes) {
+					chunks.add(chunk);
+					chunk = new TreeMap<Number640, Data>();
+					size = 0;
+				}
+				chunk.put(entry.getKey(), entry.getValue());
+				size += length;
+			}
+			chunks.add(chunk);
+			return chunks;
+		}
+
+		private void done() {
+			for (FutureDone<Void> future : futures) {
+				future.done();
+			}
+		}
+
+		private void failed(final String reason) {
+			for (FutureDone<Void> future : futures) {
+				future.failed(reason);
+			}
+		}
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.synchronization;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.dht.DHTBuilder;
+import net.tomp2p.dht.PutBuilder;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.KeyCollection;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.Data;
+import net.tomp2p.synchronization.AntiEntropyUtils.Range;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The builder for the anti-entropy. The root range of all entries is compared first, differing ranges are split into
+ * fanout sub-ranges until a range is small enough to compare the entries one by one. Only the missing or outdated
+ * entries are then stored on the replica. The anti-entropy only pushes, entries that exist only on the replica are
+ * not removed.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class AntiEntropyBuilder extends DHTBuilder<AntiEntropyBuilder> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AntiEntropyBuilder.class);
+	private static final FutureDone<AntiEntropyStat> FUTURE_SHUTDOWN = new FutureDone<AntiEntropyStat>()
+	        .failed("anti-entropy builder - peer is shutting down");
+	static final int DEFAULT_FANOUT = 16;
+	static final int DEFAULT_LEAF_SIZE = 32;
+	static final int DEFAULT_MAX_ROUNDS = 16;
+
+	private final PeerAddress other;
+	private final PeerAntiEntropy peerAntiEntropy;
+
+	private Map<Number640, Data> dataMap;
+	private int fanout = DEFAULT_FANOUT;
+	private int leafSize = DEFAULT_LEAF_SIZE;
+	private int maxRounds = DEFAULT_MAX_ROUNDS;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param peerAntiEntropy
+	 *            The responsible peer that performs the anti-entropy
+	 * @param other
+	 *            The replica peer
+	 * @param locationKey
+	 *            The location key of the entries
+	 */
+	public AntiEntropyBuilder(final PeerAntiEntropy peerAntiEntropy, final PeerAddress other,
+	        final Number160 locationKey) {
+		super(peerAntiEntropy.peerDHT(), locationKey);
+		self(this);
+		this.other = other;
+		this.peerAntiEntropy = peerAntiEntropy;
+	}
+
+	public Map<Number640, Data> dataMap() {
+		return dataMap;
+	}
+
+	public AntiEntropyBuilder dataMap(final Map<Number640, Data> dataMap) {
+		this.dataMap = dataMap;
+		return this;
+	}
+
+	public int fanout() {
+		return fanout;
+	}
+
+	/**
+	 * @param fanout
+	 *            Into how many sub-ranges a differing range is split, default is 16
+	 * @return This class
+	 */
+	public AntiEntropyBuilder fanout(final int fanout) {
+		if (fanout < 2) {
+			throw new IllegalArgumentException("fanout needs to be at least 2");
+		}
+		this.fanout = fanout;
+		return this;
+	}
+
+	public int leafSize() {
+		return leafSize;
+	}
+
+	/**
+	 * @param leafSize
+	 *            Ranges with this number of entries or less are compared entry by entry, default is 32
+	 * @return This class
+	 */
+	public AntiEntropyBuilder leafSize(final int leafSize) {
+		this.leafSize = leafSize;
+		return this;
+	}
+
+	public int maxRounds() {
+		return maxRounds;
+	}
+
+	/**
+	 * @param maxRounds
+	 *            After this number of compare round trips, the remaining differing ranges are sent as a whole,
+	 *            default is 16
+	 * @return This class
+	 */
+	public AntiEntropyBuilder maxRounds(final int maxRounds) {
+		this.maxRounds = maxRounds;
+		return this;
+	}
+
+	public FutureDone<AntiEntropyStat> start() {
+		if (peer.peer().isShutdown()) {
+			return FUTURE_SHUTDOWN;
+		}
+		// the cached leaf hashes belong to the stored entries, they cannot be used for a data map set by the caller
+		final boolean fromStorage = dataMap == null;
+		if (fromStorage) {
+			Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+			Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE);
+			dataMap = peer.storageLayer().get(min, max, -1, true);
+		}
+		final FutureDone<AntiEntropyStat> futureDone = new FutureDone<AntiEntropyStat>();
+		final LeafHashCache.Snapshot snapshot = fromStorage ? peerAntiEntropy.leafHashCache().leaves(locationKey)
+		        : null;
+		final NavigableMap<Number640, Number160> leaves = new TreeMap<Number640, Number160>();
+		long hashed = fromStorage ? snapshot.hashed() : 0;
+		for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+			Number160 leafHash = fromStorage ? snapshot.leaves().get(entry.getKey()) : null;
+			if (leafHash == null) {
+				leafHash = AntiEntropyUtils.leafHash(entry.getKey(), entry.getValue());
+				hashed += AntiEntropyUtils.leafHashSize(entry.getValue());
+			}
+			leaves.put(entry.getKey(), leafHash);
+		}
+		if (leaves.isEmpty()) {
+			return futureDone.done(new AntiEntropyStat(peer.peerID(), other.peerId(), 0, 0, 0, 0, 0, 0, 0, 0));
+		}
+		final Session session = new Session(leaves, hashed, fromStorage ? snapshot.hashSaved() : 0);
+		if (leaves.size() <= leafSize) {
+			session.nextLeaves.putAll(leaves);
+		} else {
+			session.nextRanges.add(new Range(leaves.firstKey(), leaves.lastKey(), AntiEntropyUtils.rangeHash(leaves)));
+		}
+
+		FutureChannelCreator futureChannelCreator = peer.peer().connectionBean().reservation().create(0, 1);
+		Utils.addReleaseListener(futureChannelCreator, futureDone);
+		futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+			@Override
+			public void operationComplete(final FutureChannelCreator future) throws Exception {
+				if (future.isSuccess()) {
+					round(session, future.channelCreator(), futureDone);
+				} else {
+					futureDone.failed(future);
+					LOG.debug("anti-entropy failed {}", future.failedReason());
+				}
+			}
+		});
+		return futureDone;
+	}
+
+	/**
+	 * Sends the pending ranges and leaves and descends into the differing ranges. Each round reuses the same channel
+	 * creator, since the next round is only started once the previous connection is closed.
+	 */
+	private void round(final Session session, final ChannelCreator channelCreator,
+	        final FutureDone<AntiEntropyStat> futureDone) {
+		if (session.nextRanges.isEmpty() && session.nextLeaves.isEmpty()) {
+			transfer(session, channelCreator, futureDone);
+			return;
+		}
+		if (session.rounds >= maxRounds) {
+			LOG.debug("max rounds reached, sending remaining {} ranges and {} entries", session.nextRanges.size(),
+			        session.nextLeaves.size());
+			for (Range range : session.nextRanges) {
+				session.required.addAll(session.leaves.subMap(range.from(), true, range.to(), true).keySet());
+			}
+			session.required.addAll(session.nextLeaves.keySet());
+			transfer(session, channelCreator, futureDone);
+			return;
+		}
+		final List<Range> ranges = session.nextRanges;
+		final NavigableMap<Number640, Number160> leaves = session.nextLeaves;
+		session.nextRanges = new ArrayList<Range>();
+		session.nextLeaves = new TreeMap<Number640, Number160>();
+		session.rounds++;
+		session.dataDigest += AntiEntropyUtils.requestSize(ranges.size(), leaves.size());
+
+		FutureResponse futureResponse = peerAntiEntropy.antiEntropyRPC().compare(other, ranges, leaves,
+		        AntiEntropyBuilder.this, channelCreator);
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				if (future.isFailed()) {
+					futureDone.failed(future);
+					LOG.debug("anti-entropy compare failed {}", future.failedReason());
+					return;
+				}
+				final ByteBuf status = future.responseMessage().buffer(0).buffer();
+				for (Range range : ranges) {
+					final byte rangeStatus = status.readByte();
+					if (rangeStatus == AntiEntropyUtils.RANGE_SAME) {
+						continue;
+					}
+					final NavigableMap<Number640, Number160> sub = session.leaves.subMap(range.from(), true,
+					        range.to(), true);
+					if (rangeStatus == AntiEntropyUtils.RANGE_EMPTY) {
+						session.required.addAll(sub.keySet());
+					} else if (sub.size() <= leafSize) {
+						session.nextLeaves.putAll(sub);
+					} else {
+						session.nextRanges.addAll(AntiEntropyUtils.split(sub, fanout));
+					}
+				}
+				final KeyCollection keyCollection = future.responseMessage().keyCollection(0);
+				if (keyCollection != null) {
+					session.required.addAll(keyCollection.keys());
+				}
+				round(session, channelCreator, futureDone);
+			}
+		});
+	}
+
+	private void transfer(final Session session, final ChannelCreator channelCreator,
+	        final FutureDone<AntiEntropyStat> futureDone) {
+		final Map<Number640, Data> toSend = new TreeMap<Number640, Data>();
+		long dataOrig = 0;
+		long dataCopy = 0;
+		for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+			dataOrig += entry.getValue().length();
+			if (session.required.contains(entry.getKey())) {
+				toSend.put(entry.getKey(), entry.getValue());
+				dataCopy += entry.getValue().length();
+			}
+		}
+		final AntiEntropyStat stat = new AntiEntropyStat(peer.peerID(), other.peerId(), session.rounds,
+		        dataMap.size(), toSend.size(), dataOrig, dataCopy, session.dataDigest, session.hashed,
+		        session.hashSaved);
+		LOG.debug("{}", stat);
+		if (toSend.isEmpty()) {
+			futureDone.done(stat);
+			return;
+		}
+		PutBuilder putBuilder = new PutBuilder(peer, locationKey);
+		putBuilder.dataMap(toSend);
+		FutureResponse futureResponse = peer.storeRPC().put(other, putBuilder, channelCreator);
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				if (future.isSuccess()) {
+					futureDone.done(stat);
+				} else {
+					futureDone.failed(future);
+				}
+			}
+		});
+	}
+
+	/**
+	 * The state of one anti-entropy run.
+	 */
+	private static class Session {
+		private final NavigableMap<Number640, Number160> leaves;
+		private final long hashed;
+		private final long hashSaved;
+		private final Set<Number640> required = new HashSet<Number640>();
+		private List<Range> nextRanges = new ArrayList<Range>();
+		private NavigableMap<Number640, Number160> nextLeaves = new TreeMap<Number640, Number160>();
+		private int rounds = 0;
+		private long dataDigest = 0;
+
+		private Session(final NavigableMap<Number640, Number160> leaves, final long hashed, final long hashSaved) {
+			this.leaves = leaves;
+			this.hashed = hashed;
+			this.hashSaved = hashSaved;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.synchronization;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.PeerBean;
+import net.tomp2p.connection.PeerConnection;
+import net.tomp2p.connection.RequestHandler;
+import net.tomp2p.connection.Responder;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Buffer;
+import net.tomp2p.message.KeyCollection;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.DispatchHandler;
+import net.tomp2p.rpc.RPC;
+import net.tomp2p.synchronization.AntiEntropyUtils.Range;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The RPC for the Merkle-tree based anti-entropy. The responsible peer sends ranges with their hashes and single
+ * entries with their leaf hashes. The replica compares those against its own storage and replies which ranges differ
+ * and which entries are missing or outdated.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class AntiEntropyRPC extends DispatchHandler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AntiEntropyRPC.class);
+
+	public static final byte ANTI_ENTROPY_COMMAND = RPC.Commands.ANTI_ENTROPY.getNr();
+
+	private final LeafHashCache leafHashCache;
+
+	/**
+	 * Constructor that registers this RPC with the message handler.
+	 *
+	 * @param peerBean
+	 *            The peer bean that contains data that is unique for each peer
+	 * @param connectionBean
+	 *            The connection bean that is unique per connection (multiple peers can share a single connection)
+	 * @param leafHashCache
+	 *            The cached hashes of the storage to compare the ranges against
+	 */
+	public AntiEntropyRPC(final PeerBean peerBean, final ConnectionBean connectionBean,
+	        final LeafHashCache leafHashCache) {
+		super(peerBean, connectionBean);
+		register(ANTI_ENTROPY_COMMAND);
+		this.leafHashCache = leafHashCache;
+	}
+
+	/**
+	 * Sends the ranges and leaves to compare to the replica peer. This is an RPC.
+	 *
+	 * @param remotePeer
+	 *            The remote peer to send this request
+	 * @param ranges
+	 *            The ranges with the hashes to compare
+	 * @param leaves
+	 *            The single entries with their leaf hashes to compare
+	 * @param antiEntropyBuilder
+	 *            Used for keeping parameters that are sent
+	 * @param channelCreator
+	 *            The channel creator that creates connections
+	 * @return The future response to keep track of future events
+	 */
+	public FutureResponse compare(final PeerAddress remotePeer, final List<Range> ranges,
+	        final Map<Number640, Number160> leaves, final AntiEntropyBuilder antiEntropyBuilder,
+	        final ChannelCreator channelCreator) {
+		final Message message = createMessage(remotePeer, ANTI_ENTROPY_COMMAND, Type.REQUEST_1);
+		if (antiEntropyBuilder.isSign()) {
+			message.publicKeyAndSign(antiEntropyBuilder.keyPair());
+		}
+		final ByteBuf buf = Unpooled.buffer(AntiEntropyUtils.requestSize(ranges.size(), leaves.size()));
+		AntiEntropyUtils.encodeRequest(ranges, leaves, buf);
+		message.buffer(new Buffer(buf));
+
+		final FutureResponse futureResponse = new FutureResponse(message);
+		final RequestHandler<FutureResponse> requestHandler = new RequestHandler<FutureResponse>(futureResponse,
+		        peerBean(), connectionBean(), antiEntropyBuilder);
+		LOG.debug("Anti-entropy compare sent {}, ranges {}, leaves {}", message, ranges.size(), leaves.size());
+		return requestHandler.sendTCP(channelCreator);
+	}
+
+	@Override
+	public void handleResponse(final Message message, final PeerConnection peerConnection, final boolean sign,
+	        final Responder responder) throws Exception {
+		if (!(message.command() == ANTI_ENTROPY_COMMAND && message.type() == Type.REQUEST_1)) {
+			throw new IllegalArgumentException("Message content is wrong");
+		}
+		final Message responseMessage = createResponseMessage(message, Type.OK);
+		final ByteBuf buf = message.buffer(0).buffer();
+		final List<Range> ranges = AntiEntropyUtils.decodeRanges(buf);
+		final NavigableMap<Number640, Number160> leaves = AntiEntropyUtils.decodeLeaves(buf);
+
+		final ByteBuf reply = Unpooled.buffer(ranges.size());
+		for (Range range : ranges) {
+			final Number160 local = leafHashCache.rangeHash(range.from(), range.to());
+			if (local == null) {
+				reply.writeByte(AntiEntropyUtils.RANGE_EMPTY);
+			} else if (local.equals(range.hash())) {
+				reply.writeByte(AntiEntropyUtils.RANGE_SAME);
+			} else {
+				reply.writeByte(AntiEntropyUtils.RANGE_DIFFERENT);
+			}
+		}
+
+		final List<Number640> required = new ArrayList<Number640>();
+		for (Map.Entry<Number640, Number160> entry : leaves.entrySet()) {
+			final Number160 local = leafHashCache.leafHash(entry.getKey());
+			if (local == null || !local.equals(entry.getValue())) {
+				required.add(entry.getKey());
+			}
+		}
+		LOG.debug("Anti-entropy compare received, {} ranges, {} of {} entries required", ranges.size(),
+		        required.size(), leaves.size());
+		responseMessage.buffer(new Buffer(reply));
+		responseMessage.keyCollection(new KeyCollection(required));
+		responder.response(responseMessage);
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.synchronization;
+
+import net.tomp2p.peers.Number160;
+
+public class AntiEntropyStat {
+
+	final private Number160 fromPeer;
+	final private Number160 toPeer;
+	final private int rounds;
+	final private int entries;
+	final private int entriesCopy;
+	final private long dataOrig;
+	final private long dataCopy;
+	final private long dataDigest;
+	final private long hashed;
+	final private long hashSaved;
+
+	public AntiEntropyStat(Number160 fromPeer, Number160 toPeer, int rounds, int entries, int entriesCopy,
+	        long dataOrig, long dataCopy, long dataDigest, long hashed, long hashSaved) {
+		this.fromPeer = fromPeer;
+		this.toPeer = toPeer;
+		this.rounds = rounds;
+		this.entries = entries;
+		this.entriesCopy = entriesCopy;
+		this.dataOrig = dataOrig;
+		this.dataCopy = dataCopy;
+		this.dataDigest = dataDigest;
+		this.hashed = hashed;
+		this.hashSaved = hashSaved;
+	}
+
+	/**
+	 * @return The number of compare round trips
+	 */
+	public int rounds() {
+		return rounds;
+	}
+
+	/**
+	 * @return The number of entries the responsible peer has
+	 */
+	public int entries() {
+		return entries;
+	}
+
+	/**
+	 * @return The number of entries that were missing or outdated on the replica and have been sent
+	 */
+	public int entriesCopy() {
+		return entriesCopy;
+	}
+
+	/**
+	 * @return The number of bytes a full put of all entries would have sent
+	 */
+	public long dataOrig() {
+		return dataOrig;
+	}
+
+	/**
+	 * @return The number of bytes of the entries that have been sent
+	 */
+	public long dataCopy() {
+		return dataCopy;
+	}
+
+	/**
+	 * @return The number of bytes used for the range and leaf hashes
+	 */
+	public long dataDigest() {
+		return dataDigest;
+	}
+
+	/**
+	 * @return The number of bytes saved compared to a full put, can be negative if nearly everything was sent
+	 */
+	public long dataSaved() {
+		return dataOrig - dataCopy - dataDigest;
+	}
+
+	/**
+	 * @return The number of bytes the responsible peer hashed for the leaf hashes
+	 */
+	public long hashed() {
+		return hashed;
+	}
+
+	/**
+	 * @return The number of bytes the responsible peer did not need to hash, since the leaf hashes were cached
+	 */
+	public long hashSaved() {
+		return hashSaved;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("anti-entropy stats from [");
+		sb.append(fromPeer).append("] to [").append(toPeer).append("]:");
+		sb.append("rounds=").append(rounds);
+		sb.append(",entries=").append(entriesCopy).append("(orig=").append(entries).append(")");
+		sb.append(",send=").append(dataCopy).append("+").append(dataDigest).append("(orig=").append(dataOrig)
+		        .append(")");
+		sb.append(",saved=").append(dataSaved());
+		sb.append(",hashed=").append(hashed).append("(saved=").append(hashSaved).append(")");
+		return sb.toString();
+	}
+}
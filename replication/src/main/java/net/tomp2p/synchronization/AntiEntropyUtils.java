@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.synchronization;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Utils;
+
+/**
+ * Helper methods for the Merkle-tree based anti-entropy. A node in the tree is a range of {@link Number640} keys, its
+ * hash is the XOR of all leaf hashes in that range (same as in {@link net.tomp2p.rpc.DigestInfo}). Since the ranges
+ * are sent explicitly, both peers do not need to agree on a tree shape beforehand, the initiator splits a range
+ * according to its own keys.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class AntiEntropyUtils {
+
+	public static final int NUMBER640_SIZE = 4 * Number160.BYTE_ARRAY_SIZE;
+	public static final int RANGE_SIZE = 2 * NUMBER640_SIZE + Number160.BYTE_ARRAY_SIZE;
+	public static final int LEAF_SIZE = NUMBER640_SIZE + Number160.BYTE_ARRAY_SIZE;
+
+	public static final byte RANGE_SAME = 0;
+	public static final byte RANGE_DIFFERENT = 1;
+	public static final byte RANGE_EMPTY = 2;
+
+	/**
+	 * A range of keys, including from and to, together with the hash of all the leaves in it.
+	 */
+	public static class Range {
+		private final Number640 from;
+		private final Number640 to;
+		private final Number160 hash;
+
+		public Range(Number640 from, Number640 to, Number160 hash) {
+			this.from = from;
+			this.to = to;
+			this.hash = hash;
+		}
+
+		public Number640 from() {
+			return from;
+		}
+
+		public Number640 to() {
+			return to;
+		}
+
+		public Number160 hash() {
+			return hash;
+		}
+	}
+
+	/**
+	 * The hash of a single entry. It covers the key, the content hash and the basedOn set, so that outdated versions
+	 * and modified values are detected.
+	 *
+	 * @param key
+	 *            The key of the entry
+	 * @param data
+	 *            The data of the entry
+	 * @return The leaf hash
+	 */
+	public static Number160 leafHash(Number640 key, Data data) {
+		final byte[] me = new byte[leafHashSize(data)];
+		int offset = writeNumber640(key, me, 0);
+		offset = data.hash().toByteArray(me, offset);
+		// the order of the basedOn set is not guaranteed to be the same on every peer
+		for (Number160 basedOn : new TreeSet<Number160>(data.basedOnSet())) {
+			offset = basedOn.toByteArray(me, offset);
+		}
+		return Utils.makeSHAHash(me);
+	}
+
+	/**
+	 * @param data
+	 *            The data of the entry
+	 * @return The number of bytes that are hashed for the leaf hash of this entry
+	 */
+	public static int leafHashSize(Data data) {
+		return LEAF_SIZE + (data.basedOnSet().size() * Number160.BYTE_ARRAY_SIZE);
+	}
+
+	/**
+	 * Converts a data map into a sorted map of leaf hashes.
+	 *
+	 * @param dataMap
+	 *            The data map
+	 * @return The sorted leaf hashes
+	 */
+	public static NavigableMap<Number640, Number160> leafHashes(Map<Number640, Data> dataMap) {
+		final NavigableMap<Number640, Number160> result = new TreeMap<Number640, Number160>();
+		for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+			result.put(entry.getKey(), leafHash(entry.getKey(), entry.getValue()));
+		}
+		return result;
+	}
+
+	/**
+	 * @param leaves
+	 *            The leaf hashes of a range
+	 * @return The XOR of all leaf hashes
+	 */
+	public static Number160 rangeHash(Map<Number640, Number160> leaves) {
+		Number160 hash = Number160.ZERO;
+		for (Number160 leaf : leaves.values()) {
+			hash = hash.xor(leaf);
+		}
+		return hash;
+	}
+
+	/**
+	 * Splits the leaves into at most fanout ranges with about the same amount of entries.
+	 *
+	 * @param leaves
+	 *            The sorted leaves to split
+	 * @param fanout
+	 *            The max. number of ranges
+	 * @return The ranges covering all the leaves
+	 */
+	public static List<Range> split(NavigableMap<Number640, Number160> leaves, int fanout) {
+		final List<Range> result = new ArrayList<Range>(fanout);
+		final int perRange = (leaves.size() + fanout - 1) / fanout;
+		Number640 from = null;
+		Number640 to = null;
+		Number160 hash = Number160.ZERO;
+		int counter = 0;
+		for (Map.Entry<Number640, Number160> entry : leaves.entrySet()) {
+			if (from == null) {
+				from = entry.getKey();
+			}
+			to = entry.getKey();
+			hash = hash.xor(entry.getValue());
+			if (++counter == perRange) {
+				result.add(new Range(from, to, hash));
+				from = null;
+				hash = Number160.ZERO;
+				counter = 0;
+			}
+		}
+		if (from != null) {
+			result.add(new Range(from, to, hash));
+		}
+		return result;
+	}
+
+	public static void encodeRequest(List<Range> ranges, Map<Number640, Number160> leaves, ByteBuf buf) {
+		buf.writeInt(ranges.size());
+		for (Range range : ranges) {
+			writeNumber640(range.from(), buf);
+			writeNumber640(range.to(), buf);
+			buf.writeBytes(range.hash().toByteArray());
+		}
+		buf.writeInt(leaves.size());
+		for (Map.Entry<Number640, Number160> entry : leaves.entrySet()) {
+			writeNumber640(entry.getKey(), buf);
+			buf.writeBytes(entry.getValue().toByteArray());
+		}
+	}
+
+	public static List<Range> decodeRanges(ByteBuf buf) {
+		final int size = buf.readInt();
+		final List<Range> result = new ArrayList<Range>(size);
+		for (int i = 0; i < size; i++) {
+			Number640 from = readNumber640(buf);
+			Number640 to = readNumber640(buf);
+			result.add(new Range(from, to, readNumber160(buf)));
+		}
+		return result;
+	}
+
+	public static NavigableMap<Number640, Number160> decodeLeaves(ByteBuf buf) {
+		final int size = buf.readInt();
+		final NavigableMap<Number640, Number160> result = new TreeMap<Number640, Number160>();
+		for (int i = 0; i < size; i++) {
+			Number640 key = readNumber640(buf);
+			result.put(key, readNumber160(buf));
+		}
+		return result;
+	}
+
+	public static int requestSize(int ranges, int leaves) {
+		return 8 + (ranges * RANGE_SIZE) + (leaves * LEAF_SIZE);
+	}
+
+	public static void writeNumber640(Number640 key, ByteBuf buf) {
+		buf.writeBytes(key.locationKey().toByteArray());
+		buf.writeBytes(key.domainKey().toByteArray());
+		buf.writeBytes(key.contentKey().toByteArray());
+		buf.writeBytes(key.versionKey().toByteArray());
+	}
+
+	private static int writeNumber640(Number640 key, byte[] me, int offset) {
+		offset = key.locationKey().toByteArray(me, offset);
+		offset = key.domainKey().toByteArray(me, offset);
+		offset = key.contentKey().toByteArray(me, offset);
+		return key.versionKey().toByteArray(me, offset);
+	}
+
+	public static Number640 readNumber640(ByteBuf buf) {
+		Number160 locationKey = readNumber160(buf);
+		Number160 domainKey = readNumber160(buf);
+		Number160 contentKey = readNumber160(buf);
+		Number160 versionKey = readNumber160(buf);
+		return new Number640(locationKey, domainKey, contentKey, versionKey);
+	}
+
+	private static Number160 readNumber160(ByteBuf buf) {
+		byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+		buf.readBytes(me);
+		return new Number160(me);
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.synchronization;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.dht.StorageLayer;
+import net.tomp2p.dht.StorageListener;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+import net.tomp2p.synchronization.AntiEntropyUtils.Range;
+
+/**
+ * Keeps the leaf hashes and the range hashes of the anti-entropy per location key, so that a round does not read and
+ * hash all entries again. A location is loaded from the storage on first access. Afterwards, the storage reports every
+ * put and remove and only the changed keys are read and hashed again, the next time the location is accessed. Range
+ * hashes are kept until a key in the range changes.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class LeafHashCache implements StorageListener {
+
+	private final StorageLayer storageLayer;
+	private final ConcurrentSkipListMap<Number160, Location> cache = new ConcurrentSkipListMap<Number160, Location>();
+	private final AtomicLong hashed = new AtomicLong();
+	private final AtomicLong hashSaved = new AtomicLong();
+
+	/**
+	 * Creates the cache and registers it with the storage layer.
+	 *
+	 * @param storageLayer
+	 *            The storage layer to read the entries from
+	 */
+	public LeafHashCache(final StorageLayer storageLayer) {
+		this.storageLayer = storageLayer;
+		storageLayer.addStorageListener(this);
+	}
+
+	@Override
+	public void changed(final Number640 from, final Number640 to) {
+		// only the range is queued here, the storage is locked
+		for (Location location : cache.subMap(from.locationKey(), true, to.locationKey(), true).values()) {
+			location.dirty.add(new Number640[] { from, to });
+		}
+	}
+
+	/**
+	 * @param locationKey
+	 *            The location key
+	 * @return The current leaf hashes of this location
+	 */
+	public Snapshot leaves(final Number160 locationKey) {
+		return location(locationKey).snapshot();
+	}
+
+	/**
+	 * @param from
+	 *            The first key of the range, including
+	 * @param to
+	 *            The last key of the range, including
+	 * @return The hash of all leaves in this range, or null if there are no entries in this range
+	 */
+	public Number160 rangeHash(final Number640 from, final Number640 to) {
+		if (!from.locationKey().equals(to.locationKey())) {
+			// ranges of the anti-entropy never span more than one location
+			final NavigableMap<Number640, Data> dataMap = storageLayer.get(from, to, -1, true);
+			if (dataMap.isEmpty()) {
+				return null;
+			}
+			for (Data data : dataMap.values()) {
+				hashed.addAndGet(AntiEntropyUtils.leafHashSize(data));
+			}
+			return AntiEntropyUtils.rangeHash(AntiEntropyUtils.leafHashes(dataMap));
+		}
+		return location(from.locationKey()).rangeHash(from, to);
+	}
+
+	/**
+	 * @param key
+	 *            The key of the entry
+	 * @return The leaf hash of the entry, or null if the entry is not stored
+	 */
+	public Number160 leafHash(final Number640 key) {
+		return location(key.locationKey()).leafHash(key);
+	}
+
+	/**
+	 * @return The number of bytes that were hashed for leaf hashes
+	 */
+	public long hashed() {
+		return hashed.get();
+	}
+
+	/**
+	 * @return The number of bytes that a lookup without this cache would have hashed in addition
+	 */
+	public long hashSaved() {
+		return hashSaved.get();
+	}
+
+	private Location location(final Number160 locationKey) {
+		Location location = cache.get(locationKey);
+		if (location == null) {
+			location = new Location(locationKey);
+			final Location old = cache.putIfAbsent(locationKey, location);
+			if (old != null) {
+				location = old;
+			}
+		}
+		return location;
+	}
+
+	private long account(final long wouldHash, final long hashedNow) {
+		final long saved = Math.max(0, wouldHash - hashedNow);
+		hashed.addAndGet(hashedNow);
+		hashSaved.addAndGet(saved);
+		return saved;
+	}
+
+	/**
+	 * The leaf hashes of a location at the time of the lookup.
+	 */
+	public static class Snapshot {
+		private final NavigableMap<Number640, Number160> leaves;
+		private final long hashed;
+		private final long hashSaved;
+
+		private Snapshot(final NavigableMap<Number640, Number160> leaves, final long hashed, final long hashSaved) {
+			this.leaves = leaves;
+			this.hashed = hashed;
+			this.hashSaved = hashSaved;
+		}
+
+		/**
+		 * @return The sorted leaf hashes
+		 */
+		public NavigableMap<Number640, Number160> leaves() {
+			return leaves;
+		}
+
+		/**
+		 * @return The number of bytes that were hashed for this lookup
+		 */
+		public long hashed() {
+			return hashed;
+		}
+
+		/**
+		 * @return The number of bytes that did not need to be hashed for this lookup, since the leaf hashes were
+		 *         cached
+		 */
+		public long hashSaved() {
+			return hashSaved;
+		}
+	}
+
+	/**
+	 * The leaf hashes of one location. The range of a change is queued without locking, the leaves are updated on the
+	 * next access.
+	 */
+	private class Location {
+		private final Number160 locationKey;
+		private final Queue<Number640[]> dirty = new ConcurrentLinkedQueue<Number640[]>();
+		private final NavigableMap<Number640, Number160> leaves = new TreeMap<Number640, Number160>();
+		// the number of bytes that are hashed for a leaf
+		private final NavigableMap<Number640, Integer> sizes = new TreeMap<Number640, Integer>();
+		private final NavigableMap<Number640, Range> ranges = new TreeMap<Number640, Range>();
+		private long size = 0;
+
+		private Location(final Number160 locationKey) {
+			this.locationKey = locationKey;
+			dirty.add(new Number640[] {
+			        new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO),
+			        new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE) });
+		}
+
+		/**
+		 * Reads and hashes the changed ranges again.
+		 * 
+		 * @return The number of bytes hashed
+		 */
+		private long update() {
+			long hashedNow = 0;
+			Number640[] range;
+			while ((range = dirty.poll()) != null) {
+				final Number640 from = range[0].locationKey().equals(locationKey) ? range[0] : new Number640(
+				        locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+				final Number640 to = range[1].locationKey().equals(locationKey) ? range[1] : new Number640(
+				        locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE);
+				// a change after this read is queued again
+				final NavigableMap<Number640, Data> dataMap = storageLayer.get(from, to, -1, true);
+				for (Integer leafHashSize : sizes.subMap(from, true, to, true).values()) {
+					size -= leafHashSize;
+				}
+				sizes.subMap(from, true, to, true).clear();
+				leaves.subMap(from, true, to, true).clear();
+				for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+					final int leafHashSize = AntiEntropyUtils.leafHashSize(entry.getValue());
+					leaves.put(entry.getKey(), AntiEntropyUtils.leafHash(entry.getKey(), entry.getValue()));
+					sizes.put(entry.getKey(), leafHashSize);
+					size += leafHashSize;
+					hashedNow += leafHashSize;
+				}
+				// drop the range hashes that overlap with the changed range
+				final Iterator<Range> iterator = ranges.headMap(to, true).values().iterator();
+				while (iterator.hasNext()) {
+					if (iterator.next().to().compareTo(from) >= 0) {
+						iterator.remove();
+					}
+				}
+			}
+			if (leaves.isEmpty()) {
+				// loaded again on the next access
+				cache.remove(locationKey, this);
+			}
+			return hashedNow;
+		}
+
+		private synchronized Snapshot snapshot() {
+			final long hashedNow = update();
+			final long saved = account(size, hashedNow);
+			return new Snapshot(new TreeMap<Number640, Number160>(leaves), hashedNow, saved);
+		}
+
+		private synchronized Number160 rangeHash(final Number640 from, final Number640 to) {
+			final long hashedNow = update();
+			long wouldHash = 0;
+			for (Integer leafHashSize : sizes.subMap(from, true, to, true).values()) {
+				wouldHash += leafHashSize;
+			}
+			account(wouldHash, hashedNow);
+			final Range range = ranges.get(from);
+			if (range != null && range.to().equals(to)) {
+				return range.hash();
+			}
+			final NavigableMap<Number640, Number160> sub = leaves.subMap(from, true, to, true);
+			if (sub.isEmpty()) {
+				return null;
+			}
+			final Number160 hash = AntiEntropyUtils.rangeHash(sub);
+			ranges.put(from, new Range(from, to, hash));
+			return hash;
+		}
+
+		private synchronized Number160 leafHash(final Number640 key) {
+			final long hashedNow = update();
+			final Integer leafHashSize = sizes.get(key);
+			account(leafHashSize == null ? 0 : leafHashSize, hashedNow);
+			return leaves.get(key);
+		}
+	}
+}
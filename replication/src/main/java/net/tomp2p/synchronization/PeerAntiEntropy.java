@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.synchronization;
+
+import java.util.Map;
+
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.replication.ReplicationSender;
+import net.tomp2p.storage.Data;
+
+/**
+ * Replication sender that uses a Merkle-tree based anti-entropy to only send the entries a replica is missing or has
+ * in an outdated version. Every peer that should answer anti-entropy requests needs to create this class, as it
+ * registers the RPC.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class PeerAntiEntropy implements ReplicationSender {
+
+	private final AntiEntropyRPC antiEntropyRPC;
+	private final LeafHashCache leafHashCache;
+	private final PeerDHT peer;
+
+	public PeerAntiEntropy(final PeerDHT peer) {
+		this.peer = peer;
+		this.leafHashCache = new LeafHashCache(peer.storageLayer());
+		this.antiEntropyRPC = new AntiEntropyRPC(peer.peerBean(), peer.peer().connectionBean(), leafHashCache);
+	}
+
+	public PeerDHT peerDHT() {
+		return peer;
+	}
+
+	public AntiEntropyRPC antiEntropyRPC() {
+		return antiEntropyRPC;
+	}
+
+	public LeafHashCache leafHashCache() {
+		return leafHashCache;
+	}
+
+	public AntiEntropyBuilder antiEntropy(PeerAddress other, Number160 locationKey) {
+		return new AntiEntropyBuilder(this, other, locationKey);
+	}
+
+	@Override
+	public FutureDone<AntiEntropyStat> sendDirect(PeerAddress other, Number160 locationKey,
+	        Map<Number640, Data> dataMap) {
+		FutureDone<AntiEntropyStat> future = antiEntropy(other, locationKey).dataMap(dataMap).start();
+		peer.peer().notifyAutomaticFutures(future);
+		return future;
+	}
+}
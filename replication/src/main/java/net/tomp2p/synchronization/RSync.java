@@ -16,13 +16,17 @@
 
 package net.tomp2p.synchronization;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import net.tomp2p.storage.DataBuffer;
-import net.tomp2p.utils.Utils;
 
 /**
  * Synchronization class is responsible for efficient and optimal
@@ -49,16 +53,34 @@ final public class RSync {
 	 * @throws NoSuchAlgorithmException
 	 */
 	public static List<Checksum> checksums(final byte[] value, final int blockSize) {
-		final int numberOfBlocks = (value.length + blockSize - 1) / blockSize;
+		return checksums(Unpooled.wrappedBuffer(value), blockSize);
+	}
+
+	/**
+	 * It returns an array of weak and strong checksums for the value. The
+	 * buffer is not copied and its reader index is not modified.
+	 * 
+	 * @param value
+	 *            The value, can be a composite buffer
+	 * @param blockSize
+	 *            The block size
+	 * @return The array of checksums
+	 */
+	public static List<Checksum> checksums(final ByteBuf value, final int blockSize) {
+		final int start = value.readerIndex();
+		final int length = value.readableBytes();
+		final int numberOfBlocks = (length + blockSize - 1) / blockSize;
 		final ArrayList<Checksum> checksums = new ArrayList<Checksum>(numberOfBlocks);
 		final RollingChecksum adler = new RollingChecksum();
+		final StrongChecksum md5 = new StrongChecksum();
 
 		for (int i = 0; i < numberOfBlocks; i++) {
-			int remaining = Math.min(blockSize, value.length - (i * blockSize));
-			adler.reset().update(value, i * blockSize, remaining);
+			final int offset = start + (i * blockSize);
+			final int remaining = Math.min(blockSize, length - (i * blockSize));
+			adler.reset().update(value, offset, remaining);
 
 			final int weakChecksum = adler.value();
-			final byte[] strongChecksum = Utils.makeMD5Hash(value, i * blockSize, remaining);
+			final byte[] strongChecksum = md5.digest(value, offset, remaining);
 			checksums.add(new Checksum(weakChecksum, strongChecksum));
 		}
 		return checksums;
@@ -66,27 +88,32 @@ final public class RSync {
 
 	/**
 	 * It checks whether a match is found or not. If it is found returns
-	 * reference otherwise -1.
+	 * reference otherwise -1. The strong checksum is only calculated if the
+	 * weak checksum matches, and only once for all candidates.
 	 * 
 	 * @param wcs
 	 *            The weak checksum of offset
+	 * @param buffer
+	 *            The value
 	 * @param offset
 	 *            The offset
-	 * @param checksums
-	 *            The checksums
+	 * @param length
+	 *            The length of the block at this offset
+	 * @param index
+	 *            The index from weak checksums to blocks
+	 * @param md5
+	 *            The reusable strong checksum
 	 * @return either the reference or -1
 	 */
-	private static int matches(int wcs, byte[] buffer, int offset, int length, List<Checksum> checksums) {
-		int checksumSize = checksums.size();
-		//TODO: hashing might be a better idea, for now it works
-		for (int i = 0; i < checksumSize; i++) {
-			int weakChecksum = checksums.get(i).weakChecksum();
-			if (weakChecksum == wcs) {
-				byte[] md5 = Utils.makeMD5Hash(buffer, offset, length);
-				byte[] strongChecksum = checksums.get(i).strongChecksum();
-				if (Arrays.equals(strongChecksum, md5)) {
-					return i;
-				}
+	private static int matches(final int wcs, final ByteBuf buffer, final int offset, final int length,
+	        final ChecksumIndex index, final StrongChecksum md5) {
+		byte[] strong = null;
+		for (int i = index.first(wcs); i != -1; i = index.next(i)) {
+			if (strong == null) {
+				strong = md5.digest(buffer, offset, length);
+			}
+			if (Arrays.equals(index.strongChecksum(i), strong)) {
+				return i;
 			}
 		}
 		// no match found, content is different
@@ -106,23 +133,45 @@ final public class RSync {
 	 * @return The sequence of instructions
 	 */
 	public static List<Instruction> instructions(byte[] array, List<Checksum> checksums, int blockSize) {
+		return instructions(Unpooled.wrappedBuffer(array), checksums, blockSize);
+	}
+
+	/**
+	 * It returns the sequence of instructions each of which contains either
+	 * reference to a block or literal data. The literals are slices of the
+	 * value, no data is copied and the reader index of the buffer is not
+	 * modified.
+	 * 
+	 * @param value
+	 *            The value at responsible peer, can be a composite buffer
+	 * @param checksums
+	 *            The array of checksums
+	 * @param blockSize
+	 *            The block size
+	 * @return The sequence of instructions
+	 */
+	public static List<Instruction> instructions(final ByteBuf value, final List<Checksum> checksums,
+	        final int blockSize) {
 
 		final List<Instruction> result = new ArrayList<Instruction>(checksums.size());
+		final ChecksumIndex index = new ChecksumIndex(checksums);
+		final StrongChecksum md5 = new StrongChecksum();
 		final RollingChecksum adler = new RollingChecksum();
-		final int length = array.length;
+		final int start = value.readerIndex();
+		final int length = value.readableBytes();
 
 		int offset = 0;
 		int lastRefFound = 0;
 		int remaining = Math.min(blockSize, length - offset);
 
-		adler.update(array, offset, remaining);
+		adler.update(value, start + offset, remaining);
 
 		for (;;) {
 			final int wcs = adler.value();
-			final int reference = matches(wcs, array, offset, remaining, checksums);
+			final int reference = matches(wcs, value, start + offset, remaining, index, md5);
 			if (reference != -1) {
 				if (offset > lastRefFound) {
-					result.add(new Instruction(new DataBuffer(array, lastRefFound, offset - lastRefFound)));
+					result.add(new Instruction(new DataBuffer(value.slice(start + lastRefFound, offset - lastRefFound))));
 				}
 				result.add(new Instruction(reference));
 
@@ -132,18 +181,18 @@ final public class RSync {
 				if (remaining == 0) {
 					break;
 				}
-				adler.reset().update(array, offset, remaining);
+				adler.reset().update(value, start + offset, remaining);
 			} else {
 				offset++;
 				if (blockSize > length - offset) {
 					break;
 				}
-				adler.updateRolling(array);
+				adler.updateRolling(value);
 			}
 		}
 
 		if (length > lastRefFound) {
-			result.add(new Instruction(new DataBuffer(array, lastRefFound, length - lastRefFound)));
+			result.add(new Instruction(new DataBuffer(value.slice(start + lastRefFound, length - lastRefFound))));
 		}
 
 		return result;
@@ -162,20 +211,133 @@ final public class RSync {
 	 * @return The value which is identical to the responsible peer's value
 	 */
 	public static DataBuffer reconstruct(byte[] value, List<Instruction> instructions, int blockSize) {
-		DataBuffer result = new DataBuffer();
+		return reconstruct(Unpooled.wrappedBuffer(value), instructions, blockSize);
+	}
+
+	/**
+	 * It reconstructs the copy of responsible peer's value using instructions
+	 * and the replica's value. The referenced blocks are slices of the value,
+	 * no data is copied.
+	 * 
+	 * @param value
+	 *            The value at replica, can be a composite buffer
+	 * @param instructions
+	 *            The sequence of instructions
+	 * @param blockSize
+	 *            The offset size
+	 * @return The value which is identical to the responsible peer's value
+	 */
+	public static DataBuffer reconstruct(final ByteBuf value, final List<Instruction> instructions,
+	        final int blockSize) {
+		final int start = value.readerIndex();
+		final int length = value.readableBytes();
+		final DataBuffer result = new DataBuffer(instructions.size());
 		for (Instruction instruction : instructions) {
 			int ref = instruction.reference();
 			if (ref != -1) {
 				int offset = blockSize * ref;
-				int remaining = Math.min(blockSize, value.length - offset);
-				result.add(new DataBuffer(value, offset, remaining));
+				int remaining = Math.min(blockSize, length - offset);
+				result.add(new DataBuffer(value.slice(start + offset, remaining)));
 			} else {
 				result.add(instruction.literal());
 			}
 		}
 		return result;
 	}
-	
+
+	/**
+	 * Maps the weak checksums to the blocks with this checksum. This is an open
+	 * hash table with chaining over int arrays, to avoid boxing for every byte
+	 * offset that is looked up.
+	 * 
+	 * @author Thomas Bocek
+	 * 
+	 */
+	private static final class ChecksumIndex {
+		private final List<Checksum> checksums;
+		private final int[] heads;
+		private final int[] next;
+		private final int[] weak;
+		private final int mask;
+
+		private ChecksumIndex(final List<Checksum> checksums) {
+			this.checksums = checksums;
+			final int size = checksums.size();
+			int capacity = 16;
+			while (capacity < size * 2) {
+				capacity <<= 1;
+			}
+			this.mask = capacity - 1;
+			this.heads = new int[capacity];
+			Arrays.fill(heads, -1);
+			this.next = new int[size];
+			this.weak = new int[size];
+			// insert in reverse order, so that the chain starts with the lowest
+			// block, as in the linear search before
+			for (int i = size - 1; i >= 0; i--) {
+				final int wcs = checksums.get(i).weakChecksum();
+				final int bucket = hash(wcs) & mask;
+				weak[i] = wcs;
+				next[i] = heads[bucket];
+				heads[bucket] = i;
+			}
+		}
+
+		private static int hash(final int wcs) {
+			// the lower 16 bit are the Adler a, which is not well distributed
+			return wcs ^ (wcs >>> 16);
+		}
+
+		private int first(final int wcs) {
+			return find(heads[hash(wcs) & mask], wcs);
+		}
+
+		private int next(final int i) {
+			return find(next[i], weak[i]);
+		}
+
+		private int find(int i, final int wcs) {
+			while (i != -1 && weak[i] != wcs) {
+				i = next[i];
+			}
+			return i;
+		}
+
+		private byte[] strongChecksum(final int i) {
+			return checksums.get(i).strongChecksum();
+		}
+	}
+
+	/**
+	 * A reusable MD5 that works directly on the NIO buffers of a ByteBuf, so
+	 * composite buffers do not need to be flattened.
+	 * 
+	 * @author Thomas Bocek
+	 * 
+	 */
+	private static final class StrongChecksum {
+		private final MessageDigest messageDigest;
+
+		private StrongChecksum() {
+			try {
+				messageDigest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private byte[] digest(final ByteBuf buffer, final int offset, final int length) {
+			if (buffer.hasArray()) {
+				messageDigest.update(buffer.array(), buffer.arrayOffset() + offset, length);
+			} else {
+				for (ByteBuffer nioBuffer : buffer.nioBuffers(offset, length)) {
+					messageDigest.update(nioBuffer);
+				}
+			}
+			return messageDigest.digest();
+		}
+	}
+
 	/**
 	 * Variation of Adler as used in Rsync. Inspired by:
 	 * 
@@ -230,6 +392,30 @@ final public class RSync {
 			return this;
 		}
 
+		/**
+		 * Iterates over the buffer and calculates a variation of Adler.
+		 * 
+		 * @param buffer
+		 *            The buffer for the checksum calculation, absolute indices
+		 *            are used
+		 * @param offset
+		 *            The absolute offset of the buffer
+		 * @param length
+		 *            The length of the data to iterate over (the length of the
+		 *            sliding window). Once this is set,
+		 *            {@link #updateRolling(ByteBuf)} will use the same value
+		 * @return this class
+		 */
+		public RollingChecksum update(final ByteBuf buffer, final int offset, final int length) {
+			for (int i = 0; i < length; i++) {
+				a = (a + (buffer.getByte(i + offset) & 0xff)) & 0xffff;
+				b = (b + a) & 0xffff;
+			}
+			this.length = length;
+			this.offset = offset;
+			return this;
+		}
+
 		/**
 		 * @return The calculated checksum
 		 */
@@ -267,5 +453,22 @@ final public class RSync {
 			b = (b - (length * (array[removeIndex] & 0xff)) + a - 1) & 0xffff;
 			return this;
 		}
+
+		/**
+		 * Slide the window of the buffer by 1.
+		 * 
+		 * @param buffer
+		 *            The buffer for the checksum calculation
+		 * @return this class
+		 */
+		public RollingChecksum updateRolling(final ByteBuf buffer) {
+			final int removeIndex = offset;
+			final int addIndex = offset + length;
+			offset++;
+			final int remove = buffer.getByte(removeIndex) & 0xff;
+			a = (a - remove + (buffer.getByte(addIndex) & 0xff)) & 0xffff;
+			b = (b - (length * remove) + a - 1) & 0xffff;
+			return this;
+		}
 	}
 }
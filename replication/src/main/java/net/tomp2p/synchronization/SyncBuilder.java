@@ -256,9 +256,8 @@ public class SyncBuilder extends DHTBuilder<SyncBuilder> {
                         		Number160 hash = SyncUtils.decodeHeader(buffer);
              
                         		List<Checksum> checksums = SyncUtils.decodeChecksums(buffer);
-                        		// TODO: don't copy data, toBytes does a copy!
                         		List<Instruction> instructions = RSync.instructions(
-                                         data2.toBytes(), checksums, blockSize);
+                                         data2.buffer(), checksums, blockSize);
                         		
                         		AlternativeCompositeByteBuf abuf = AlternativeCompositeByteBuf.compBuffer();
                         		
@@ -200,8 +200,7 @@ public class SyncRPC extends DispatchHandler {
                     LOG.debug("no sync required");
                 } else {
                     // get the checksums
-                	// TODO: don't copy data, toBytes does a copy!
-                    List<Checksum> checksums = RSync.checksums(data.toBytes(), blockSize);
+                    List<Checksum> checksums = RSync.checksums(data.buffer(), blockSize);
                     AlternativeCompositeByteBuf abuf = AlternativeCompositeByteBuf.compBuffer();
                     DataBuffer dataBuffer = SyncUtils.encodeChecksum(checksums, entry.getKey().versionKey(), data.hash(), abuf);
                     retVal.put(entry.getKey(), new Data(dataBuffer));
@@ -212,8 +211,7 @@ public class SyncRPC extends DispatchHandler {
             		//TODO: the client could send us his history to figure out what the latest version in this history is
             		Entry<Number640, Data> latest = storageLayer.
             				get(entry.getKey().minVersionKey(), entry.getKey().maxVersionKey(), 1, false).lastEntry();
-            		// TODO: don't copy data, toBytes does a copy!
-            		List<Checksum> checksums = RSync.checksums(latest.getValue().toBytes(), blockSize);
+            		List<Checksum> checksums = RSync.checksums(latest.getValue().buffer(), blockSize);
             		AlternativeCompositeByteBuf abuf = AlternativeCompositeByteBuf.compBuffer();
                     DataBuffer dataBuffer = SyncUtils.encodeChecksum(checksums, latest.getKey().versionKey(), 
                     		latest.getValue().hash(), abuf);
@@ -270,8 +268,7 @@ public class SyncRPC extends DispatchHandler {
                     if (dataOld == null || !dataOld.hash().equals(hash)) {
                         continue;
                     }
-                    // TODO: don't copy data, toBytes does a copy!
-                    DataBuffer reconstructedValue = RSync.reconstruct(dataOld.toBytes(), instructions, blockSize);
+                    DataBuffer reconstructedValue = RSync.reconstruct(dataOld.buffer(), instructions, blockSize);
                     //TODO: domain protection?, make the flags configurable
                     Enum<?> status = storageLayer.put(entry.getKey(), new Data(reconstructedValue), publicKey, false, false);
                     if (status == PutStatus.OK) {
@@ -0,0 +1,140 @@
+package net.tomp2p.replication;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import net.tomp2p.dht.PeerBuilderDHT;
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+import net.tomp2p.synchronization.AntiEntropyStat;
+import net.tomp2p.synchronization.AntiEntropyUtils;
+import net.tomp2p.synchronization.AntiEntropyUtils.Range;
+import net.tomp2p.synchronization.PeerAntiEntropy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AntiEntropyTest {
+
+	private final static Random random = new Random(42);
+
+	@Test
+	public void testSplit() {
+		NavigableMap<Number640, Number160> leaves = new TreeMap<Number640, Number160>();
+		for (int i = 0; i < 100; i++) {
+			leaves.put(new Number640(random), new Number160(random));
+		}
+		List<Range> ranges = AntiEntropyUtils.split(leaves, 16);
+		Assert.assertEquals(15, ranges.size());
+		Number160 hash = Number160.ZERO;
+		int count = 0;
+		for (Range range : ranges) {
+			NavigableMap<Number640, Number160> sub = leaves.subMap(range.from(), true, range.to(), true);
+			Assert.assertEquals(AntiEntropyUtils.rangeHash(sub), range.hash());
+			hash = hash.xor(range.hash());
+			count += sub.size();
+		}
+		Assert.assertEquals(100, count);
+		Assert.assertEquals(AntiEntropyUtils.rangeHash(leaves), hash);
+	}
+
+	@Test
+	public void testLeafHash() {
+		Number640 key = new Number640(random);
+		Data data1 = new Data(new byte[] { 1, 2, 3 });
+		Data data2 = new Data(new byte[] { 1, 2, 3 });
+		Assert.assertEquals(AntiEntropyUtils.leafHash(key, data1), AntiEntropyUtils.leafHash(key, data2));
+		data2.addBasedOn(Number160.ONE);
+		Assert.assertNotEquals(AntiEntropyUtils.leafHash(key, data1), AntiEntropyUtils.leafHash(key, data2));
+		Data data3 = new Data(new byte[] { 1, 2, 4 });
+		Assert.assertNotEquals(AntiEntropyUtils.leafHash(key, data1), AntiEntropyUtils.leafHash(key, data3));
+	}
+
+	@Test
+	public void testAntiEntropy() throws IOException {
+		PeerDHT sender = null;
+		PeerDHT receiver = null;
+		try {
+			sender = new PeerBuilderDHT(new PeerBuilder(new Number160(3)).ports(4003).start()).start();
+			receiver = new PeerBuilderDHT(new PeerBuilder(new Number160(4)).ports(4004).start()).start();
+			final PeerAntiEntropy senderAntiEntropy = new PeerAntiEntropy(sender);
+			new PeerAntiEntropy(receiver);
+
+			final Number160 locationKey = new Number160(500);
+			final int size = 1000;
+			for (int i = 0; i < size; i++) {
+				Number640 key = new Number640(locationKey, Number160.ZERO, new Number160(i), Number160.ZERO);
+				byte[] me = new byte[100];
+				random.nextBytes(me);
+				sender.storageLayer().put(key, new Data(me), null, false, false);
+				// 3 missing and 2 modified entries
+				if (i == 10 || i == 500 || i == 999) {
+					continue;
+				}
+				if (i == 20 || i == 700) {
+					me = new byte[100];
+				}
+				receiver.storageLayer().put(key, new Data(me), null, false, false);
+			}
+
+			FutureDone<AntiEntropyStat> future = senderAntiEntropy.antiEntropy(receiver.peerAddress(), locationKey)
+			        .start().awaitUninterruptibly();
+			Assert.assertTrue(future.isSuccess());
+			AntiEntropyStat stat = future.object();
+			System.err.println(stat);
+			Assert.assertEquals(size, stat.entries());
+			Assert.assertEquals(5, stat.entriesCopy());
+			Assert.assertEquals(500, stat.dataCopy());
+			Assert.assertTrue(stat.dataSaved() > 0);
+
+			for (int i = 0; i < size; i++) {
+				Number640 key = new Number640(locationKey, Number160.ZERO, new Number160(i), Number160.ZERO);
+				Assert.assertEquals(sender.storageLayer().get(key), receiver.storageLayer().get(key));
+			}
+
+			// now everything is in sync, only the root hash is compared
+			future = senderAntiEntropy.antiEntropy(receiver.peerAddress(), locationKey).start()
+			        .awaitUninterruptibly();
+			Assert.assertTrue(future.isSuccess());
+			Assert.assertEquals(1, future.object().rounds());
+			Assert.assertEquals(0, future.object().entriesCopy());
+			// nothing changed, so no leaf is hashed again
+			Assert.assertEquals(0, future.object().hashed());
+			Assert.assertTrue(future.object().hashSaved() > 0);
+
+			// a put on the sender only rehashes the changed entry
+			Number640 key = new Number640(locationKey, Number160.ZERO, new Number160(42), Number160.ZERO);
+			sender.storageLayer().put(key, new Data(new byte[] { 1, 2, 3 }), null, false, false);
+			future = senderAntiEntropy.antiEntropy(receiver.peerAddress(), locationKey).start()
+			        .awaitUninterruptibly();
+			Assert.assertTrue(future.isSuccess());
+			Assert.assertEquals(1, future.object().entriesCopy());
+			Assert.assertEquals(AntiEntropyUtils.LEAF_SIZE, future.object().hashed());
+			Assert.assertEquals(sender.storageLayer().get(key), receiver.storageLayer().get(key));
+
+			// a data map set by the caller is hashed, not taken from the cached leaves of the stored entries
+			Data other = new Data(new byte[] { 4, 5, 6 });
+			NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+			dataMap.put(key, other);
+			future = senderAntiEntropy.antiEntropy(receiver.peerAddress(), locationKey).dataMap(dataMap).start()
+			        .awaitUninterruptibly();
+			Assert.assertTrue(future.isSuccess());
+			Assert.assertEquals(1, future.object().entriesCopy());
+			Assert.assertEquals(other, receiver.storageLayer().get(key));
+		} finally {
+			if (sender != null) {
+				sender.shutdown().awaitUninterruptibly();
+			}
+			if (receiver != null) {
+				receiver.shutdown().awaitUninterruptibly();
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package net.tomp2p.replication;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import net.tomp2p.dht.PeerBuilderDHT;
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReplicationPipelineTest {
+
+	private final static Random random = new Random(42);
+
+	@Test
+	public void testBatching() throws IOException {
+		PeerDHT sender = null;
+		PeerDHT receiver = null;
+		try {
+			sender = new PeerBuilderDHT(new PeerBuilder(new Number160(5)).ports(4005).start()).start();
+			receiver = new PeerBuilderDHT(new PeerBuilder(new Number160(6)).ports(4006).start()).start();
+			// wait long enough so that all transfers are queued
+			ReplicationPipeline pipeline = new ReplicationPipeline(sender).coalesceMillis(500);
+
+			List<FutureDone<Void>> futures = new ArrayList<FutureDone<Void>>();
+			Map<Number640, Data> all = new TreeMap<Number640, Data>();
+			for (int i = 0; i < 10; i++) {
+				Map<Number640, Data> dataMap = dataMap(new Number160(i), 5, 100);
+				all.putAll(dataMap);
+				futures.add(pipeline.sendDirect(receiver.peerAddress(), new Number160(i), dataMap));
+			}
+			Assert.assertEquals(1, pipeline.queueDepth());
+			Assert.assertEquals(50, pipeline.pendingEntries());
+			for (FutureDone<Void> future : futures) {
+				Assert.assertTrue(future.awaitUninterruptibly().isSuccess());
+			}
+			System.err.println(pipeline);
+			// all location keys are sent in a single message
+			Assert.assertEquals(1, pipeline.sentMessages());
+			Assert.assertEquals(1, pipeline.sentBatches());
+			Assert.assertEquals(50, pipeline.sentEntries());
+			Assert.assertEquals(5000, pipeline.sentBytes());
+			Assert.assertEquals(0, pipeline.queueDepth());
+			Assert.assertEquals(0, pipeline.pendingEntries());
+			for (Map.Entry<Number640, Data> entry : all.entrySet()) {
+				Assert.assertEquals(entry.getValue(), receiver.storageLayer().get(entry.getKey()));
+			}
+		} finally {
+			if (sender != null) {
+				sender.shutdown().awaitUninterruptibly();
+			}
+			if (receiver != null) {
+				receiver.shutdown().awaitUninterruptibly();
+			}
+		}
+	}
+
+	@Test
+	public void testSplitAndRateLimit() throws IOException {
+		PeerDHT sender = null;
+		PeerDHT receiver = null;
+		try {
+			sender = new PeerBuilderDHT(new PeerBuilder(new Number160(5)).ports(4005).start()).start();
+			receiver = new PeerBuilderDHT(new PeerBuilder(new Number160(6)).ports(4006).start()).start();
+			ReplicationPipeline pipeline = new ReplicationPipeline(sender).maxBatchBytes(1000).bytesPerSecond(
+			        10000);
+
+			Map<Number640, Data> dataMap = dataMap(new Number160(1), 10, 300);
+			Assert.assertTrue(pipeline.sendDirect(receiver.peerAddress(), new Number160(1), dataMap)
+			        .awaitUninterruptibly().isSuccess());
+			// 3 entries per message
+			Assert.assertEquals(4, pipeline.sentMessages());
+			Assert.assertEquals(10, pipeline.sentEntries());
+
+			// the first batch used the budget of 0.3 seconds, the next one has to wait
+			long start = System.currentTimeMillis();
+			dataMap = dataMap(new Number160(2), 1, 100);
+			Assert.assertTrue(pipeline.sendDirect(receiver.peerAddress(), new Number160(2), dataMap)
+			        .awaitUninterruptibly().isSuccess());
+			Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+			Assert.assertEquals(2, pipeline.sentBatches());
+		} finally {
+			if (sender != null) {
+				sender.shutdown().awaitUninterruptibly();
+			}
+			if (receiver != null) {
+				receiver.shutdown().awaitUninterruptibly();
+			}
+		}
+	}
+
+	@Test
+	public void testShutdown() throws IOException {
+		PeerDHT sender = null;
+		PeerDHT receiver = null;
+		try {
+			sender = new PeerBuilderDHT(new PeerBuilder(new Number160(5)).ports(4005).start()).start();
+			receiver = new PeerBuilderDHT(new PeerBuilder(new Number160(6)).ports(4006).start()).start();
+			// the drain is scheduled long after the shutdown
+			ReplicationPipeline pipeline = new ReplicationPipeline(sender).coalesceMillis(60000);
+			FutureDone<Void> future = pipeline.sendDirect(receiver.peerAddress(), new Number160(1),
+			        dataMap(new Number160(1), 5, 100));
+			Assert.assertEquals(1, pipeline.queueDepth());
+			sender.shutdown().awaitUninterruptibly();
+			sender = null;
+			// the queued transfer fails instead of waiting forever
+			Assert.assertTrue(future.awaitUninterruptibly(10000));
+			Assert.assertTrue(future.isFailed());
+			Assert.assertEquals(0, pipeline.queueDepth());
+			Assert.assertEquals(0, pipeline.pendingEntries());
+		} finally {
+			if (sender != null) {
+				sender.shutdown().awaitUninterruptibly();
+			}
+			if (receiver != null) {
+				receiver.shutdown().awaitUninterruptibly();
+			}
+		}
+	}
+
+	private static Map<Number640, Data> dataMap(Number160 locationKey, int size, int length) {
+		Map<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+		for (int i = 0; i < size; i++) {
+			byte[] me = new byte[length];
+			random.nextBytes(me);
+			dataMap.put(new Number640(locationKey, Number160.ZERO, new Number160(i), Number160.ZERO), new Data(me));
+		}
+		return dataMap;
+	}
+}
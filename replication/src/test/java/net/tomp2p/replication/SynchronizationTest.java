@@ -3,6 +3,9 @@ package net.tomp2p.replication;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
@@ -35,6 +38,7 @@ import net.tomp2p.synchronization.SyncStat;
 import net.tomp2p.utils.Utils;
 
 import org.junit.Assert;
+import org.junit.Ignore;
 import org.junit.Test;
 
 public class SynchronizationTest {
@@ -186,6 +190,67 @@ public class SynchronizationTest {
 		Assert.assertArrayEquals(newValue.getBytes(), reconstructedValue.bytes());
 	}
 
+	@Test
+	public void testCompositeBuffer() {
+		Random rnd = new Random(42);
+		byte[] oldValue = new byte[10000];
+		rnd.nextBytes(oldValue);
+		byte[] newValue = oldValue.clone();
+		newValue[5000] = (byte) (newValue[5000] + 1);
+		// split the old and new value into several components, the result needs to be the same
+		ByteBuf oldBuf = Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(oldValue, 0, 3333),
+		        Unpooled.wrappedBuffer(oldValue, 3333, 10000 - 3333));
+		ByteBuf newBuf = Unpooled.wrappedBuffer(Unpooled.directBuffer().writeBytes(newValue, 0, 7777),
+		        Unpooled.wrappedBuffer(newValue, 7777, 10000 - 7777));
+		List<Checksum> checksums = RSync.checksums(oldBuf, 100);
+		Assert.assertEquals(RSync.checksums(oldValue, 100), checksums);
+		List<Instruction> instructions = RSync.instructions(newBuf, checksums, 100);
+		Assert.assertEquals(RSync.instructions(newValue, checksums, 100), instructions);
+		// 99 references and one literal of 100 bytes
+		Assert.assertEquals(100, instructions.size());
+		DataBuffer reconstructedValue = RSync.reconstruct(oldBuf, instructions, 100);
+		Assert.assertArrayEquals(newValue, reconstructedValue.bytes());
+		Assert.assertEquals(0, oldBuf.readerIndex());
+		Assert.assertEquals(0, newBuf.readerIndex());
+	}
+
+	/**
+	 * Benchmark for values of 1, 16, and 128 MB with small edits. Run with enough heap, e.g., -Xmx2g.
+	 */
+	@Test
+	@Ignore
+	public void testBenchmark() {
+		final int blockSize = 700;
+		for (int mb : new int[] { 1, 16, 128 }) {
+			Random rnd = new Random(42);
+			byte[] oldValue = new byte[mb * 1024 * 1024];
+			rnd.nextBytes(oldValue);
+			byte[] newValue = oldValue.clone();
+			// small edits: modify some bytes at 10 random places
+			for (int i = 0; i < 10; i++) {
+				newValue[rnd.nextInt(newValue.length)]++;
+			}
+			long start = System.currentTimeMillis();
+			List<Checksum> checksums = RSync.checksums(Unpooled.wrappedBuffer(oldValue), blockSize);
+			long checksumTime = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			List<Instruction> instructions = RSync.instructions(Unpooled.wrappedBuffer(newValue), checksums,
+			        blockSize);
+			long instructionTime = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			DataBuffer reconstructedValue = RSync.reconstruct(Unpooled.wrappedBuffer(oldValue), instructions,
+			        blockSize);
+			long reconstructTime = System.currentTimeMillis() - start;
+			Assert.assertArrayEquals(newValue, reconstructedValue.bytes());
+			int literals = 0;
+			for (Instruction instruction : instructions) {
+				literals += instruction.length();
+			}
+			System.out.println(mb + " MB: checksums " + checksumTime + " ms, instructions " + instructionTime
+			        + " ms, reconstruct " + reconstructTime + " ms, literal bytes " + literals);
+		}
+	}
+
 	@Test
 	public void testInfoMessageSAME() throws IOException, InterruptedException {
 
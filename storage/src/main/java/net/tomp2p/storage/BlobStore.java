@@ -0,0 +1,395 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.peers.Number160;
+
+import org.mapdb.DB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the payloads of large values once per content hash, packed into segment files. The header and the
+ * signature of a value, e.g., its TTL, based on keys, or public key, are stored by the {@link DataSerializer} in the
+ * MapDB record of the key, since they can differ for equal payloads. Each blob has a reference count, which is
+ * increased for every key and version that stores it and decreased when they are removed or overwritten. Blobs
+ * without references are collected in the background, and segments that are mostly garbage are compacted by copying
+ * their live blobs to the active segment. Reads map only the range of the blob and do not load it, so the pages are
+ * read when the data is sent.
+ * <p>
+ * The location and reference count of each blob is stored in the MapDB of the {@link StorageDisk}. The
+ * {@link DataSerializer} is restored by MapDB and finds the store by its directory and index name, see
+ * {@link #get(File, String)}. The segments of a store use fixed file names, so only one store can be open in a
+ * directory at a time.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class BlobStore {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BlobStore.class);
+
+	public static final long DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+	private static final String SEGMENT_PREFIX = "blob-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	// record: content hash, length, payload
+	private static final int HEADER_SIZE = Number160.BYTE_ARRAY_SIZE + 4;
+
+	// the stores that are open, by directory
+	private static final ConcurrentMap<File, BlobStore> OPEN = new ConcurrentHashMap<File, BlobStore>();
+
+	// hash -> segment, offset, length, references
+	final private Map<Number160, long[]> blobs;
+	final private Map<Long, FileChannel> segments = new ConcurrentHashMap<Long, FileChannel>();
+	// bytes of a segment that belong to blobs in the index
+	final private Map<Long, Long> liveBytes = new HashMap<Long, Long>();
+
+	final private DB db;
+	final private String name;
+	final private File path;
+	final private long segmentSize;
+	final private ScheduledExecutorService collector;
+
+	// guarded by this
+	private FileChannel active;
+	private long activeId;
+	private boolean closed = false;
+
+	public BlobStore(DB db, String name, File path, long segmentSize, int gcIntervalMillis) throws IOException {
+		this.db = db;
+		this.name = name;
+		this.path = path.getAbsoluteFile();
+		this.segmentSize = segmentSize;
+		this.blobs = db.createTreeMap(name).makeOrGet();
+		final BlobStore other = OPEN.putIfAbsent(this.path, this);
+		if (other != null) {
+			throw new IOException("the blob store " + other.name + " is already open in " + this.path);
+		}
+		try {
+			open();
+		} catch (IOException e) {
+			OPEN.remove(this.path, this);
+			throw e;
+		}
+		collector = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("tomp2p-blob-gc", true));
+		collector.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					gc();
+				} catch (Throwable t) {
+					LOG.error("blob garbage collection failed", t);
+				}
+			}
+		}, gcIntervalMillis, gcIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param path
+	 *            The directory of the blob store
+	 * @param name
+	 *            The name of the index of the blob store, or null to accept any name
+	 * @return The blob store that is open in this directory with this index, or null
+	 */
+	public static BlobStore get(File path, String name) {
+		final BlobStore blobStore = OPEN.get(path.getAbsoluteFile());
+		if (blobStore == null || (name != null && !name.equals(blobStore.name))) {
+			return null;
+		}
+		return blobStore;
+	}
+
+	/**
+	 * @return The name of the index in the MapDB
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * Stores the payload of the value if there is no blob with its content hash yet. This does not change the
+	 * references, so it can be called whenever the value is serialized.
+	 *
+	 * @return The content hash of the value
+	 */
+	public synchronized Number160 store(Data value) throws IOException {
+		final Number160 hash = value.hash();
+		if (!blobs.containsKey(hash)) {
+			final long[] location = write(hash, value.toByteBuffers());
+			blobs.put(hash, new long[] { location[0], location[1], location[2], 0 });
+		}
+		return hash;
+	}
+
+	/**
+	 * Stores the payload of the value if needed and adds a reference to it.
+	 */
+	public synchronized void retain(Data value) throws IOException {
+		final Number160 hash = store(value);
+		final long[] blob = blobs.get(hash);
+		blob[3]++;
+		blobs.put(hash, blob);
+	}
+
+	/**
+	 * Removes a reference. The blob is deleted by the garbage collection once it has no references.
+	 */
+	public synchronized void release(Number160 hash) {
+		final long[] blob = blobs.get(hash);
+		if (blob == null) {
+			return;
+		}
+		blob[3] = Math.max(0, blob[3] - 1);
+		blobs.put(hash, blob);
+	}
+
+	/**
+	 * @return The number of references of a blob, or -1 if there is no blob with this hash
+	 */
+	public synchronized long references(Number160 hash) {
+		final long[] blob = blobs.get(hash);
+		return blob == null ? -1 : blob[3];
+	}
+
+	/**
+	 * Reads a blob. Only the range of the blob is mapped, and a value decoded from the buffer references the mapped
+	 * pages directly, so encoding it for a reply does not copy it.
+	 *
+	 * @return The payload, or null if there is no blob with this hash
+	 */
+	public ByteBuf load(Number160 hash) throws IOException {
+		while (true) {
+			final long[] blob;
+			synchronized (this) {
+				blob = blobs.get(hash);
+			}
+			if (blob == null) {
+				return null;
+			}
+			final FileChannel channel = segments.get(blob[0]);
+			try {
+				if (channel == null) {
+					throw new ClosedChannelException();
+				}
+				final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, blob[1], blob[2]);
+				return Unpooled.wrappedBuffer(buffer);
+			} catch (ClosedChannelException e) {
+				// moved by the garbage collection, try again with the new location
+				synchronized (this) {
+					final long[] moved = blobs.get(hash);
+					if (closed || (moved != null && moved[0] == blob[0])) {
+						throw e;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the blobs without references and compacts the segments where less than half of the bytes are in use.
+	 */
+	public void gc() throws IOException {
+		final List<Long> candidates = new ArrayList<Long>();
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			final List<Number160> unreferenced = new ArrayList<Number160>();
+			for (Map.Entry<Number160, long[]> entry : blobs.entrySet()) {
+				if (entry.getValue()[3] <= 0) {
+					unreferenced.add(entry.getKey());
+				}
+			}
+			for (Number160 hash : unreferenced) {
+				final long[] blob = blobs.remove(hash);
+				addLive(blob[0], -(blob[2] + HEADER_SIZE));
+			}
+			for (Map.Entry<Long, FileChannel> entry : segments.entrySet()) {
+				if (entry.getKey() != activeId) {
+					final Long live = liveBytes.get(entry.getKey());
+					if (live == null || live * 2 < entry.getValue().size()) {
+						candidates.add(entry.getKey());
+					}
+				}
+			}
+			db.commit();
+			LOG.debug("removed {} unreferenced blobs, compact {} segments", unreferenced.size(), candidates.size());
+		}
+		for (Long id : candidates) {
+			compact(id);
+		}
+	}
+
+	private void compact(long id) throws IOException {
+		final List<Number160> hashes = new ArrayList<Number160>();
+		synchronized (this) {
+			for (Map.Entry<Number160, long[]> entry : blobs.entrySet()) {
+				if (entry.getValue()[0] == id) {
+					hashes.add(entry.getKey());
+				}
+			}
+		}
+		for (Number160 hash : hashes) {
+			synchronized (this) {
+				final long[] blob = blobs.get(hash);
+				if (blob == null || blob[0] != id) {
+					continue;
+				}
+				final ByteBuffer buffer = ByteBuffer.allocate((int) blob[2]);
+				readFully(segments.get(id), buffer, blob[1]);
+				buffer.flip();
+				final long[] location = write(hash, new ByteBuffer[] { buffer });
+				blobs.put(hash, new long[] { location[0], location[1], location[2], blob[3] });
+				addLive(id, -(blob[2] + HEADER_SIZE));
+			}
+		}
+		synchronized (this) {
+			db.commit();
+			final FileChannel channel = segments.remove(id);
+			liveBytes.remove(id);
+			channel.close();
+			if (!segmentFile(id).delete()) {
+				LOG.warn("could not delete blob segment {}", id);
+			}
+		}
+	}
+
+	public void close() {
+		collector.shutdownNow();
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			OPEN.remove(path, this);
+			for (FileChannel channel : segments.values()) {
+				try {
+					channel.force(false);
+					channel.close();
+				} catch (IOException e) {
+					LOG.warn("could not close blob segment", e);
+				}
+			}
+			segments.clear();
+		}
+	}
+
+	/**
+	 * Appends a blob to the active segment. Needs to be called while holding the lock.
+	 *
+	 * @return The segment, offset, and length of the blob
+	 */
+	private long[] write(Number160 hash, ByteBuffer[] buffers) throws IOException {
+		if (closed) {
+			throw new IOException("blob store is closed");
+		}
+		long length = 0;
+		for (ByteBuffer buffer : buffers) {
+			length += buffer.remaining();
+		}
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(hash.toByteArray());
+		header.putInt((int) length);
+		header.flip();
+		final long position = active.size();
+		active.position(position);
+		while (header.hasRemaining()) {
+			active.write(header);
+		}
+		long written = 0;
+		while (written < length) {
+			written += active.write(buffers);
+		}
+		final long[] location = new long[] { activeId, position + HEADER_SIZE, length };
+		addLive(activeId, length + HEADER_SIZE);
+		if (active.size() >= segmentSize) {
+			active.force(false);
+			roll(activeId + 1);
+		}
+		return location;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("blob segment ends before the blob");
+			}
+		}
+	}
+
+	private void addLive(long id, long bytes) {
+		final Long live = liveBytes.get(id);
+		liveBytes.put(id, (live == null ? 0 : live) + bytes);
+	}
+
+	private void roll(long nextId) throws IOException {
+		active = new RandomAccessFile(segmentFile(nextId), "rw").getChannel();
+		activeId = nextId;
+		segments.put(nextId, active);
+	}
+
+	private synchronized void open() throws IOException {
+		if (!path.isDirectory() && !path.mkdirs()) {
+			throw new IOException("could not create " + path);
+		}
+		final String[] names = path.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		long last = -1;
+		for (String name : names) {
+			final long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length()
+			        - SEGMENT_SUFFIX.length()));
+			segments.put(id, new RandomAccessFile(segmentFile(id), "rw").getChannel());
+			last = Math.max(last, id);
+		}
+		for (long[] blob : blobs.values()) {
+			addLive(blob[0], blob[2] + HEADER_SIZE);
+		}
+		// always start a new segment, the last one may end with a blob that is not in the index
+		roll(last + 1);
+	}
+
+	private File segmentFile(long id) {
+		return new File(path, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+	}
+}
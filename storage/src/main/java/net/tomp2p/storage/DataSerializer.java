@@ -29,21 +29,36 @@ public class DataSerializer implements Serializer<Data>, Serializable {
     
     final private File path;
     final private SignatureFactory signatureFactory;
+    // null if restored from an older catalog, then any blob store in the directory is used
+    final private String blobStoreName;
     
     public DataSerializer(File path, SignatureFactory signatureFactory) {
+    	this(path, signatureFactory, null);
+    }
+
+    public DataSerializer(File path, SignatureFactory signatureFactory, String blobStoreName) {
     	this.path = path;
     	this.signatureFactory = signatureFactory;
+    	this.blobStoreName = blobStoreName;
     }
 
+	/**
+	 * @return True if the value is stored in the blob store
+	 */
+	public static boolean isBlob(Data value) {
+		return value.length() > MAX_SIZE;
+	}
+
 	@Override
 	public void serialize(DataOutput out, Data value) throws IOException {
-		if (value.length() > MAX_SIZE) {
-			// header, 1 means stored on disk in a file
-			out.writeByte(1);
-			serializeFile(out, value);
+		if (isBlob(value)) {
+			// header, 3 means the payload is in the blob store. 1 is the old format, stored in a file
+			out.writeByte(3);
+			serializeBlob(out, value);
 		} else {
-			// header, 0 means stored on disk with MapDB
-			out.writeByte(0);
+			// header, 2 means stored on disk with MapDB, with the content hash. 0 is the old format without hash
+			out.writeByte(2);
+			out.write(value.hash().toByteArray());
 			serializeMapDB(out, value);
 		}
 	}
@@ -69,43 +84,27 @@ public class DataSerializer implements Serializer<Data>, Serializable {
 	    }
     }
 
-	private void serializeFile(DataOutput out, Data value) throws IOException, FileNotFoundException {
-	    Number160 hash = value.hash();
-	    // store file name
-	    out.write(hash.toByteArray());
-	    // store as external file, create path
-	    RandomAccessFile file = null;
-	    FileChannel rwChannel = null;
-	    try {
-	    	file = new RandomAccessFile(new File(path, hash.toString()), "rw");
-	    	rwChannel = file.getChannel();
-	    	AlternativeCompositeByteBuf acb = AlternativeCompositeByteBuf.compBuffer();
-	    	// store data to disk
-	    	// header first
-	    	value.encodeHeader(acb, signatureFactory);
-	    	rwChannel.write(acb.nioBuffers());
-	    	// next data - no need to copy to another buffer, just take the
-	    	// data from memory
-	    	rwChannel.write(value.toByteBuffers());
-	    	// rest
-	    	try {
-	    		value.encodeDone(acb, signatureFactory);
-	    		rwChannel.write(acb.nioBuffers());
-	    	} catch (InvalidKeyException e) {
-	    		throw new IOException(e);
-	    	} catch (SignatureException e) {
-	    		throw new IOException(e);
-	    	}
-	    } finally {
-
-	    	if (rwChannel != null) {
-	    		rwChannel.close();
-	    	}
-	    	if (file != null) {
-	    		file.close();
-	    	}
-	    }
-    }
+	private void serializeBlob(DataOutput out, Data value) throws IOException {
+		// MapDB serializes the values again if their node changes, the blob is only written the first time
+		final Number160 hash = blobStore().store(value);
+		// store blob name
+		out.write(hash.toByteArray());
+		// the header and the signature can differ for equal payloads, e.g., TTL, prepare flag, or public key
+		AlternativeCompositeByteBuf acb = AlternativeCompositeByteBuf.compBuffer();
+		value.encodeHeader(acb, signatureFactory);
+		out.writeInt(acb.readableBytes());
+		write(out, acb.nioBuffers());
+		acb = AlternativeCompositeByteBuf.compBuffer();
+		try {
+			value.encodeDone(acb, signatureFactory);
+		} catch (InvalidKeyException e) {
+			throw new IOException(e);
+		} catch (SignatureException e) {
+			throw new IOException(e);
+		}
+		out.writeInt(acb.readableBytes());
+		write(out, acb.nioBuffers());
+	}
 
 	private void write(DataOutput out, ByteBuffer[] nioBuffers) throws IOException {
 		final int length = nioBuffers.length; 
@@ -124,8 +123,17 @@ public class DataSerializer implements Serializer<Data>, Serializable {
 	@Override
     public Data deserialize(DataInput in, int available) throws IOException {
 	    int header = in.readByte();
-	    if(header == 1) {
-	    	return deserializeFile(in);
+	    if(header == 3) {
+	    	return deserializeBlob(in);
+	    } else if(header == 1) {
+	    	// older versions stored each value in its own file, named by its content hash
+	    	byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+	    	in.readFully(me);
+	    	return deserializeFile(new Number160(me));
+	    } else if(header == 2) {
+	    	byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+	    	in.readFully(me);
+	    	return deserializeMapDB(in).hash(new Number160(me));
 	    } else if(header == 0) {
 	    	return deserializeMapDB(in);
 	    } else {
@@ -155,22 +163,59 @@ public class DataSerializer implements Serializer<Data>, Serializable {
 	    return data;
     }
 
-	private Data deserializeFile(DataInput in) throws IOException, FileNotFoundException {
+	private Data deserializeBlob(DataInput in) throws IOException {
 	    byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
 	    in.readFully(me);
 	    Number160 hash = new Number160(me);
+	    Data data = Data.decodeHeader(Unpooled.wrappedBuffer(readBytes(in)), signatureFactory);
+	    if (data == null) {
+	    	throw new IOException("header could not be read");
+	    }
+	    ByteBuf payload = blobStore().load(hash);
+	    if (payload == null) {
+	    	throw new IOException("blob " + hash + " is missing");
+	    }
+	    if (!data.decodeBuffer(payload)) {
+	    	throw new IOException("data could not be read");
+	    }
+	    if (!data.decodeDone(Unpooled.wrappedBuffer(readBytes(in)), signatureFactory)) {
+	    	throw new IOException("signature could not be read");
+	    }
+	    return data.hash(hash);
+    }
+
+	private static byte[] readBytes(DataInput in) throws IOException {
+		byte[] me = new byte[in.readInt()];
+		in.readFully(me);
+		return me;
+	}
+
+	private Data deserializeFile(Number160 hash) throws IOException, FileNotFoundException {
 	    RandomAccessFile file = new RandomAccessFile(new File(path, hash.toString()), "r");
-	    FileChannel inChannel = file.getChannel();
-	    MappedByteBuffer buffer = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, inChannel.size());
-	    buffer.load();
-	    ByteBuf buf = Unpooled.wrappedBuffer(buffer);
-	    Data data = Data.decodeHeader(buf, signatureFactory);
-	    data.decodeBuffer(buf);
-	    data.decodeDone(buf, signatureFactory);
-	    file.close();
-	    return data;
+	    try {
+	    	FileChannel inChannel = file.getChannel();
+	    	// the pages are read when the data is used, not here
+	    	MappedByteBuffer buffer = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, inChannel.size());
+	    	ByteBuf buf = Unpooled.wrappedBuffer(buffer);
+	    	Data data = Data.decodeHeader(buf, signatureFactory);
+	    	data.decodeBuffer(buf);
+	    	data.decodeDone(buf, signatureFactory);
+	    	// the file name is the content hash
+	    	return data.hash(hash);
+	    } finally {
+	    	file.close();
+	    }
     }
 
+	private BlobStore blobStore() throws IOException {
+		// this serializer may have been restored by MapDB, so look up the store by its directory and name
+		BlobStore blobStore = BlobStore.get(path, blobStoreName);
+		if (blobStore == null) {
+			throw new IOException("the blob store " + blobStoreName + " is not open in " + path);
+		}
+		return blobStore;
+	}
+
 	@Override
     public int fixedSize() {
 	    return -1;
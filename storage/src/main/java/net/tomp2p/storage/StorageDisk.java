@@ -17,6 +17,8 @@
 package net.tomp2p.storage;
 
 import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -54,13 +56,22 @@ public class StorageDisk implements Storage {
     final private Map<Number160, Set<Number160>> responsibilityMapRev;
     
     final private DB db;
+    final private BlobStore blobStore;
     
     final private int storageCheckIntervalMillis;
     
     //for full control
     public StorageDisk(DB db, Number160 peerId, File path, SignatureFactory signatureFactory, int storageCheckIntervalMillis) {
     	this.db = db;
-    	DataSerializer dataSerializer = new DataSerializer(path, signatureFactory);
+    	final String blobStoreName = "blobPayloads_" + peerId.toString();
+    	try {
+    		// fails if another storage uses the same directory
+    		this.blobStore = new BlobStore(db, blobStoreName, path, BlobStore.DEFAULT_SEGMENT_SIZE,
+    				storageCheckIntervalMillis);
+    	} catch (IOException e) {
+    		throw new IOError(e);
+    	}
+    	DataSerializer dataSerializer = new DataSerializer(path, signatureFactory, blobStoreName);
     	this.dataMap = db.createTreeMap("dataMap_" + peerId.toString()).valueSerializer(dataSerializer).makeOrGet();
     	this.timeoutMap = db.createTreeMap("timeoutMap_" + peerId.toString()).makeOrGet();
     	this.timeoutMapRev = db.createTreeMap("timeoutMapRev_" + peerId.toString()).makeOrGet();
@@ -79,11 +90,24 @@ public class StorageDisk implements Storage {
     
     @Override
     public boolean put(Number640 key, Data value) {
-		dataMap.put(key, value);
+    	if (DataSerializer.isBlob(value)) {
+    		try {
+    			blobStore.retain(value);
+    		} catch (IOException e) {
+    			throw new IOError(e);
+    		}
+    	}
+		release(dataMap.put(key, value));
 		db.commit();
         return true;
     }
     
+    private void release(Data old) {
+    	if (old != null && DataSerializer.isBlob(old)) {
+    		blobStore.release(old.hash());
+    	}
+    }
+    
     @Override
     public Data get(Number640 key) {
 		 return dataMap.get(key);
@@ -103,6 +127,7 @@ public class StorageDisk implements Storage {
     @Override
     public Data remove(Number640 key, boolean returnData) {
     	Data retVal = dataMap.remove(key);
+    	release(retVal);
 		db.commit();
 		return retVal;
     }
@@ -137,6 +162,9 @@ public class StorageDisk implements Storage {
         }
 		
         tmp.clear();
+        for (final Data data : retVal.values()) {
+        	release(data);
+        }
         db.commit();
         return retVal;
     }
@@ -345,6 +373,7 @@ public class StorageDisk implements Storage {
 	// Misc
 	@Override
     public void close() {
+		blobStore.close();
 	    db.close();	    
     }
 	
@@ -380,6 +409,10 @@ public class StorageDisk implements Storage {
         return !other.equals(publicKey);
     }
 
+	BlobStore blobStore() {
+		return blobStore;
+	}
+
 	@Override
     public int storageCheckIntervalMillis() {
 	    return storageCheckIntervalMillis;
@@ -0,0 +1,1039 @@
+/*
+ * Copyright 2014 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import net.tomp2p.connection.SignatureFactory;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.Number640;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage that appends every change to a log of segment files, instead of updating a B-tree in place. The keys are
+ * kept in memory and point to the position of the data in the log, so a get is one positional read. Each record has a
+ * CRC32 checksum. The active segment is closed once it reaches the segment size, and when more than half of the log
+ * is garbage (overwritten, removed, or expired data), all closed segments are compacted in the background into one
+ * segment with the live records. On startup, the segments are replayed in order to rebuild the keys. Only the last
+ * segment is checked completely, as the other segments have been forced to disk before a new one was started. A torn
+ * record at the end of a segment is cut off.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageLog implements Storage {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StorageLog.class);
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String COMPACT_SUFFIX = ".compact";
+
+	// record: length of payload (int), crc32 of type and payload (int), type (byte), payload
+	private static final int HEADER_SIZE = 9;
+	private static final int KEY_SIZE = 4 * Number160.BYTE_ARRAY_SIZE;
+	private static final int TIMEOUT_RECORD_SIZE = HEADER_SIZE + KEY_SIZE + 8;
+	private static final int RESPONSIBILITY_RECORD_SIZE = HEADER_SIZE + 2 * Number160.BYTE_ARRAY_SIZE;
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte TIMEOUT = 3;
+	private static final byte REMOVE_TIMEOUT = 4;
+	private static final byte PROTECT_DOMAIN = 5;
+	private static final byte PROTECT_ENTRY = 6;
+	private static final byte RESPONSIBILITY = 7;
+	private static final byte REMOVE_RESPONSIBILITY = 8;
+	private static final byte REMOVE_RESPONSIBILITIES = 9;
+
+	// Core
+	final private ConcurrentSkipListMap<Number640, Location> index = new ConcurrentSkipListMap<Number640, Location>();
+	// Maintenance
+	final private Map<Number640, Long> timeoutMap = new ConcurrentHashMap<Number640, Long>();
+	final private ConcurrentSkipListMap<Long, Set<Number640>> timeoutMapRev = new ConcurrentSkipListMap<Long, Set<Number640>>();
+	// Protection
+	final private Map<Number320, PublicKey> protectedDomainMap = new ConcurrentHashMap<Number320, PublicKey>();
+	final private Map<Number480, PublicKey> protectedEntryMap = new ConcurrentHashMap<Number480, PublicKey>();
+	// Responsibility
+	final private Map<Number160, Set<Number160>> responsibilityMap = new ConcurrentHashMap<Number160, Set<Number160>>();
+	final private Map<Number160, Set<Number160>> responsibilityMapRev = new ConcurrentHashMap<Number160, Set<Number160>>();
+
+	final private File path;
+	final private SignatureFactory signatureFactory;
+	final private int storageCheckIntervalMillis;
+	final private long segmentSize;
+	final private boolean syncWrites;
+
+	// all segments that can be read, the active segment included
+	final private Map<Long, FileChannel> segments = new ConcurrentHashMap<Long, FileChannel>();
+	final private ExecutorService compactor = Executors.newSingleThreadExecutor(new DefaultThreadFactory(
+	        "tomp2p-storage-compaction", true));
+
+	// only one compaction at a time
+	final private Object compactLock = new Object();
+	// guarded by writeLock
+	final private Object writeLock = new Object();
+	private FileChannel active;
+	private long activeId;
+	private long activeSize;
+	private long totalBytes;
+	private long liveBytes;
+	// the size of the timeout, protection, and responsibility records a compaction would write
+	private long liveMetaBytes;
+	private boolean compacting = false;
+	private boolean closed = false;
+
+	// for full control
+	public StorageLog(File path, SignatureFactory signatureFactory, int storageCheckIntervalMillis,
+	        long segmentSize, boolean syncWrites) throws IOException {
+		this.path = path;
+		this.signatureFactory = signatureFactory;
+		this.storageCheckIntervalMillis = storageCheckIntervalMillis;
+		this.segmentSize = segmentSize;
+		this.syncWrites = syncWrites;
+		recover();
+	}
+
+	// set parameter to a reasonable default
+	public StorageLog(File path, SignatureFactory signatureFactory) throws IOException {
+		this(path, signatureFactory, 60 * 1000, DEFAULT_SEGMENT_SIZE, false);
+	}
+
+	// Core
+	@Override
+	public boolean put(Number640 key, Data value) {
+		final ByteBuf payload = Unpooled.buffer(KEY_SIZE + Number160.BYTE_ARRAY_SIZE + value.length() + 32);
+		writeKey(payload, key);
+		payload.writeBytes(value.hash().toByteArray());
+		encodeData(payload, value);
+		synchronized (writeLock) {
+			final Location location = append(PUT, payload);
+			final Location old = index.put(key, location);
+			liveBytes += location.length - (old == null ? 0 : old.length);
+		}
+		maybeCompact();
+		return true;
+	}
+
+	@Override
+	public Data get(Number640 key) {
+		Location location = index.get(key);
+		while (location != null) {
+			try {
+				return readData(location);
+			} catch (ClosedChannelException e) {
+				// the segment has been compacted in the meantime, the key points to the new segment
+				final Location newLocation = index.get(key);
+				if (newLocation == location) {
+					throw new IllegalStateException("storage is closed", e);
+				}
+				location = newLocation;
+			} catch (IOException e) {
+				throw new IllegalStateException("could not read " + key, e);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean contains(Number640 key) {
+		return index.containsKey(key);
+	}
+
+	@Override
+	public int contains(Number640 from, Number640 to) {
+		return index.subMap(from, true, to, true).size();
+	}
+
+	@Override
+	public Data remove(Number640 key, boolean returnData) {
+		final Data retVal;
+		synchronized (writeLock) {
+			retVal = removeInternal(key, returnData);
+		}
+		maybeCompact();
+		return retVal;
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> remove(Number640 from, Number640 to, boolean returnData) {
+		final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+		synchronized (writeLock) {
+			final List<Number640> keys = new ArrayList<Number640>(index.subMap(from, true, to, true).keySet());
+			for (Number640 key : keys) {
+				final Data data = removeInternal(key, returnData);
+				if (returnData && data != null) {
+					retVal.put(key, data);
+				}
+			}
+		}
+		maybeCompact();
+		return retVal;
+	}
+
+	private Data removeInternal(Number640 key, boolean returnData) {
+		final Location location = index.get(key);
+		if (location == null) {
+			return null;
+		}
+		final Data retVal = returnData ? get(key) : null;
+		final ByteBuf payload = Unpooled.buffer(KEY_SIZE);
+		writeKey(payload, key);
+		append(REMOVE, payload);
+		index.remove(key);
+		liveBytes -= location.length;
+		return retVal;
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> subMap(Number640 from, Number640 to, int limit, boolean ascending) {
+		final NavigableMap<Number640, Location> tmp = index.subMap(from, true, to, true);
+		final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+		final Iterator<Number640> iterator = ascending ? tmp.keySet().iterator() : tmp.descendingKeySet()
+		        .iterator();
+		while (iterator.hasNext() && (limit < 0 || retVal.size() < limit)) {
+			final Number640 key = iterator.next();
+			final Data data = get(key);
+			// may have been removed in the meantime
+			if (data != null) {
+				retVal.put(key, data);
+			}
+		}
+		return retVal;
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> map() {
+		final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+		for (Number640 key : index.keySet()) {
+			final Data data = get(key);
+			if (data != null) {
+				retVal.put(key, data);
+			}
+		}
+		return retVal;
+	}
+
+	// Maintenance
+	@Override
+	public void addTimeout(Number640 key, long expiration) {
+		final ByteBuf payload = Unpooled.buffer(KEY_SIZE + 8);
+		writeKey(payload, key);
+		payload.writeLong(expiration);
+		synchronized (writeLock) {
+			append(TIMEOUT, payload);
+			addTimeoutInternal(key, expiration);
+		}
+	}
+
+	private void addTimeoutInternal(Number640 key, long expiration) {
+		final Long oldExpiration = timeoutMap.put(key, expiration);
+		Set<Number640> timeouts = timeoutMapRev.get(expiration);
+		if (timeouts == null) {
+			timeouts = Collections.newSetFromMap(new ConcurrentHashMap<Number640, Boolean>());
+			timeoutMapRev.put(expiration, timeouts);
+		}
+		timeouts.add(key);
+		if (oldExpiration == null) {
+			liveMetaBytes += TIMEOUT_RECORD_SIZE;
+		} else if (oldExpiration.longValue() != expiration) {
+			removeRevTimeout(key, oldExpiration);
+		}
+	}
+
+	@Override
+	public void removeTimeout(Number640 key) {
+		synchronized (writeLock) {
+			if (!timeoutMap.containsKey(key)) {
+				return;
+			}
+			final ByteBuf payload = Unpooled.buffer(KEY_SIZE);
+			writeKey(payload, key);
+			append(REMOVE_TIMEOUT, payload);
+			removeTimeoutInternal(key);
+		}
+	}
+
+	private void removeTimeoutInternal(Number640 key) {
+		final Long expiration = timeoutMap.remove(key);
+		if (expiration == null) {
+			return;
+		}
+		liveMetaBytes -= TIMEOUT_RECORD_SIZE;
+		removeRevTimeout(key, expiration);
+	}
+
+	private void removeRevTimeout(Number640 key, Long expiration) {
+		final Set<Number640> tmp = timeoutMapRev.get(expiration);
+		if (tmp != null) {
+			tmp.remove(key);
+			if (tmp.isEmpty()) {
+				timeoutMapRev.remove(expiration);
+			}
+		}
+	}
+
+	@Override
+	public Collection<Number640> subMapTimeout(long to) {
+		final SortedMap<Long, Set<Number640>> tmp = timeoutMapRev.subMap(0L, to);
+		final Collection<Number640> toRemove = new ArrayList<Number640>();
+		for (Set<Number640> set : tmp.values()) {
+			toRemove.addAll(set);
+		}
+		return toRemove;
+	}
+
+	@Override
+	public int storageCheckIntervalMillis() {
+		return storageCheckIntervalMillis;
+	}
+
+	// Protection
+	@Override
+	public boolean protectDomain(Number320 key, PublicKey publicKey) {
+		final ByteBuf payload = Unpooled.buffer();
+		payload.writeBytes(key.locationKey().toByteArray());
+		payload.writeBytes(key.domainKey().toByteArray());
+		signatureFactory.encodePublicKey(publicKey, payload);
+		synchronized (writeLock) {
+			final Location location = append(PROTECT_DOMAIN, payload);
+			protectDomainInternal(key, publicKey, location.length);
+		}
+		return true;
+	}
+
+	private void protectDomainInternal(Number320 key, PublicKey publicKey, int recordSize) {
+		final PublicKey old = protectedDomainMap.put(key, publicKey);
+		liveMetaBytes += recordSize - (old == null ? 0 : protectRecordSize(2, old));
+	}
+
+	@Override
+	public boolean isDomainProtectedByOthers(Number320 key, PublicKey publicKey) {
+		final PublicKey other = protectedDomainMap.get(key);
+		if (other == null) {
+			return false;
+		}
+		return !other.equals(publicKey);
+	}
+
+	@Override
+	public boolean protectEntry(Number480 key, PublicKey publicKey) {
+		final ByteBuf payload = Unpooled.buffer();
+		payload.writeBytes(key.locationKey().toByteArray());
+		payload.writeBytes(key.domainKey().toByteArray());
+		payload.writeBytes(key.contentKey().toByteArray());
+		signatureFactory.encodePublicKey(publicKey, payload);
+		synchronized (writeLock) {
+			final Location location = append(PROTECT_ENTRY, payload);
+			protectEntryInternal(key, publicKey, location.length);
+		}
+		return true;
+	}
+
+	private void protectEntryInternal(Number480 key, PublicKey publicKey, int recordSize) {
+		final PublicKey old = protectedEntryMap.put(key, publicKey);
+		liveMetaBytes += recordSize - (old == null ? 0 : protectRecordSize(3, old));
+	}
+
+	/**
+	 * @return The size of the protection record of a public key that a compaction would write
+	 */
+	private int protectRecordSize(int keys, PublicKey publicKey) {
+		final ByteBuf buf = Unpooled.buffer();
+		signatureFactory.encodePublicKey(publicKey, buf);
+		return HEADER_SIZE + (keys * Number160.BYTE_ARRAY_SIZE) + buf.readableBytes();
+	}
+
+	@Override
+	public boolean isEntryProtectedByOthers(Number480 key, PublicKey publicKey) {
+		final PublicKey other = protectedEntryMap.get(key);
+		if (other == null) {
+			return false;
+		}
+		return !other.equals(publicKey);
+	}
+
+	// Responsibility
+	@Override
+	public Collection<Number160> findPeerIDsForResponsibleContent(Number160 locationKey) {
+		return responsibilityMap.get(locationKey);
+	}
+
+	@Override
+	public Collection<Number160> findContentForResponsiblePeerID(Number160 peerID) {
+		return responsibilityMapRev.get(peerID);
+	}
+
+	@Override
+	public boolean updateResponsibilities(Number160 locationKey, Number160 peerId) {
+		synchronized (writeLock) {
+			final Set<Number160> peerIDs = responsibilityMap.get(locationKey);
+			if (peerIDs != null && peerIDs.contains(peerId)) {
+				return false;
+			}
+			final ByteBuf payload = Unpooled.buffer(2 * Number160.BYTE_ARRAY_SIZE);
+			payload.writeBytes(locationKey.toByteArray());
+			payload.writeBytes(peerId.toByteArray());
+			append(RESPONSIBILITY, payload);
+			return updateResponsibilitiesInternal(locationKey, peerId);
+		}
+	}
+
+	private boolean updateResponsibilitiesInternal(Number160 locationKey, Number160 peerId) {
+		Set<Number160> peerIDs = responsibilityMap.get(locationKey);
+		if (peerIDs == null) {
+			peerIDs = Collections.newSetFromMap(new ConcurrentHashMap<Number160, Boolean>());
+			responsibilityMap.put(locationKey, peerIDs);
+		}
+		final boolean isNew = peerIDs.add(peerId);
+		if (isNew) {
+			liveMetaBytes += RESPONSIBILITY_RECORD_SIZE;
+		}
+		Set<Number160> contentIDs = responsibilityMapRev.get(peerId);
+		if (contentIDs == null) {
+			contentIDs = Collections.newSetFromMap(new ConcurrentHashMap<Number160, Boolean>());
+			responsibilityMapRev.put(peerId, contentIDs);
+		}
+		contentIDs.add(locationKey);
+		return isNew;
+	}
+
+	@Override
+	public void removeResponsibility(Number160 locationKey) {
+		synchronized (writeLock) {
+			if (!responsibilityMap.containsKey(locationKey)) {
+				return;
+			}
+			final ByteBuf payload = Unpooled.buffer(Number160.BYTE_ARRAY_SIZE);
+			payload.writeBytes(locationKey.toByteArray());
+			append(REMOVE_RESPONSIBILITIES, payload);
+			removeResponsibilityInternal(locationKey);
+		}
+	}
+
+	private void removeResponsibilityInternal(Number160 locationKey) {
+		final Set<Number160> peerIds = responsibilityMap.remove(locationKey);
+		if (peerIds != null) {
+			liveMetaBytes -= (long) peerIds.size() * RESPONSIBILITY_RECORD_SIZE;
+			for (Number160 peerId : peerIds) {
+				removeRevResponsibility(peerId, locationKey);
+			}
+		}
+	}
+
+	@Override
+	public void removeResponsibility(Number160 locationKey, Number160 peerId) {
+		synchronized (writeLock) {
+			final Set<Number160> peerIds = responsibilityMap.get(locationKey);
+			if (peerIds == null || !peerIds.contains(peerId)) {
+				return;
+			}
+			final ByteBuf payload = Unpooled.buffer(2 * Number160.BYTE_ARRAY_SIZE);
+			payload.writeBytes(locationKey.toByteArray());
+			payload.writeBytes(peerId.toByteArray());
+			append(REMOVE_RESPONSIBILITY, payload);
+			removeResponsibilityInternal(locationKey, peerId);
+		}
+	}
+
+	private void removeResponsibilityInternal(Number160 locationKey, Number160 peerId) {
+		final Set<Number160> peerIds = responsibilityMap.get(locationKey);
+		if (peerIds != null && peerIds.remove(peerId)) {
+			liveMetaBytes -= RESPONSIBILITY_RECORD_SIZE;
+			if (peerIds.isEmpty()) {
+				responsibilityMap.remove(locationKey);
+			}
+			removeRevResponsibility(peerId, locationKey);
+		}
+	}
+
+	private void removeRevResponsibility(Number160 peerId, Number160 locationKey) {
+		final Set<Number160> contentIDs = responsibilityMapRev.get(peerId);
+		if (contentIDs != null) {
+			contentIDs.remove(locationKey);
+			if (contentIDs.isEmpty()) {
+				responsibilityMapRev.remove(peerId);
+			}
+		}
+	}
+
+	// Misc
+	@Override
+	public void close() {
+		compactor.shutdown();
+		try {
+			compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (writeLock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				active.force(false);
+			} catch (IOException e) {
+				LOG.warn("could not force the active segment", e);
+			}
+			for (FileChannel channel : segments.values()) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					LOG.warn("could not close segment", e);
+				}
+			}
+			segments.clear();
+		}
+	}
+
+	/**
+	 * @return The number of bytes of all segments
+	 */
+	public long size() {
+		synchronized (writeLock) {
+			return totalBytes;
+		}
+	}
+
+	/**
+	 * @return The number of bytes in the segments that are not referenced anymore
+	 */
+	public long garbage() {
+		synchronized (writeLock) {
+			return garbageInternal();
+		}
+	}
+
+	private long garbageInternal() {
+		return Math.max(0, totalBytes - liveBytes - liveMetaBytes);
+	}
+
+	/**
+	 * Compacts all segments except the active one into a new segment that contains only the live records. Reads and
+	 * writes continue while the segments are copied: the active segment is closed first and new records are written
+	 * to a new active segment, that is replayed after the compacted segment.
+	 *
+	 * @throws IOException
+	 *             If the compacted segment could not be written
+	 */
+	public void compact() throws IOException {
+		synchronized (compactLock) {
+			compactInternal();
+		}
+	}
+
+	private void compactInternal() throws IOException {
+		final long compactId;
+		final Set<Long> sealed = new HashSet<Long>();
+		final Map<Number640, Location> live;
+		final Map<Number640, Long> timeouts;
+		final Map<Number320, PublicKey> protectedDomains;
+		final Map<Number480, PublicKey> protectedEntries;
+		final Map<Number160, Set<Number160>> responsibilities = new HashMap<Number160, Set<Number160>>();
+		synchronized (writeLock) {
+			if (closed) {
+				return;
+			}
+			// leave a gap for the compacted segment, so that it is replayed before the new active segment
+			compactId = activeId + 1;
+			roll(activeId + 2);
+			for (Long id : segments.keySet()) {
+				if (id < compactId) {
+					sealed.add(id);
+				}
+			}
+			live = new TreeMap<Number640, Location>(index);
+			timeouts = new HashMap<Number640, Long>(timeoutMap);
+			protectedDomains = new HashMap<Number320, PublicKey>(protectedDomainMap);
+			protectedEntries = new HashMap<Number480, PublicKey>(protectedEntryMap);
+			for (Map.Entry<Number160, Set<Number160>> entry : responsibilityMap.entrySet()) {
+				responsibilities.put(entry.getKey(), new HashSet<Number160>(entry.getValue()));
+			}
+		}
+
+		final File tmpFile = new File(path, segmentName(compactId) + COMPACT_SUFFIX);
+		final Map<Number640, Location> moved = new HashMap<Number640, Location>(live.size());
+		final RandomAccessFile file = new RandomAccessFile(tmpFile, "rw");
+		final FileChannel channel = file.getChannel();
+		long position = 0;
+		try {
+			for (Map.Entry<Number640, Location> entry : live.entrySet()) {
+				final Location location = entry.getValue();
+				final ByteBuffer record = readRecord(location);
+				record.rewind();
+				writeFully(channel, record, position);
+				moved.put(entry.getKey(), new Location(compactId, position, location.length));
+				position += location.length;
+			}
+			final ByteBuf meta = Unpooled.buffer();
+			for (Map.Entry<Number640, Long> entry : timeouts.entrySet()) {
+				writeKey(meta, entry.getKey());
+				meta.writeLong(entry.getValue());
+				position += writeFully(channel, record(TIMEOUT, meta), position);
+				meta.clear();
+			}
+			for (Map.Entry<Number320, PublicKey> entry : protectedDomains.entrySet()) {
+				meta.writeBytes(entry.getKey().locationKey().toByteArray());
+				meta.writeBytes(entry.getKey().domainKey().toByteArray());
+				signatureFactory.encodePublicKey(entry.getValue(), meta);
+				position += writeFully(channel, record(PROTECT_DOMAIN, meta), position);
+				meta.clear();
+			}
+			for (Map.Entry<Number480, PublicKey> entry : protectedEntries.entrySet()) {
+				meta.writeBytes(entry.getKey().locationKey().toByteArray());
+				meta.writeBytes(entry.getKey().domainKey().toByteArray());
+				meta.writeBytes(entry.getKey().contentKey().toByteArray());
+				signatureFactory.encodePublicKey(entry.getValue(), meta);
+				position += writeFully(channel, record(PROTECT_ENTRY, meta), position);
+				meta.clear();
+			}
+			for (Map.Entry<Number160, Set<Number160>> entry : responsibilities.entrySet()) {
+				for (Number160 peerId : entry.getValue()) {
+					meta.writeBytes(entry.getKey().toByteArray());
+					meta.writeBytes(peerId.toByteArray());
+					position += writeFully(channel, record(RESPONSIBILITY, meta), position);
+					meta.clear();
+				}
+			}
+			channel.force(true);
+		} finally {
+			channel.close();
+			file.close();
+		}
+		final File segmentFile = new File(path, segmentName(compactId));
+		if (!tmpFile.renameTo(segmentFile)) {
+			tmpFile.delete();
+			throw new IOException("could not rename " + tmpFile);
+		}
+
+		synchronized (writeLock) {
+			if (closed) {
+				// the compacted segment is consistent with the old segments, it is replayed on the next start
+				return;
+			}
+			segments.put(compactId, new RandomAccessFile(segmentFile, "rw").getChannel());
+			for (Map.Entry<Number640, Location> entry : moved.entrySet()) {
+				// only move the keys that have not been overwritten or removed in the meantime
+				if (index.get(entry.getKey()) == live.get(entry.getKey())) {
+					index.put(entry.getKey(), entry.getValue());
+				}
+			}
+			// delete the oldest segment first: if we crash, the remaining segments still replay to the same state
+			final Long[] ids = sealed.toArray(new Long[sealed.size()]);
+			Arrays.sort(ids);
+			for (Long id : ids) {
+				final FileChannel old = segments.remove(id);
+				totalBytes -= old.size();
+				old.close();
+				if (!new File(path, segmentName(id)).delete()) {
+					LOG.warn("could not delete segment {}", id);
+				}
+			}
+			totalBytes += position;
+			LOG.debug("compacted {} segments into {} bytes", ids.length, position);
+		}
+	}
+
+	private void maybeCompact() {
+		synchronized (writeLock) {
+			if (compacting || closed || totalBytes < segmentSize || garbageInternal() * 2 < totalBytes) {
+				return;
+			}
+			compacting = true;
+		}
+		try {
+			compactor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compact();
+					} catch (IOException e) {
+						LOG.error("compaction failed", e);
+					} finally {
+						synchronized (writeLock) {
+							compacting = false;
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// closed in the meantime
+			synchronized (writeLock) {
+				compacting = false;
+			}
+		}
+	}
+
+	// Log
+
+	/**
+	 * Appends a record to the active segment. Needs to be called while holding the write lock.
+	 */
+	private Location append(byte type, ByteBuf payload) {
+		final ByteBuffer record = record(type, payload);
+		final Location location = new Location(activeId, activeSize, record.remaining());
+		try {
+			writeFully(active, record, activeSize);
+			if (syncWrites) {
+				active.force(false);
+			}
+			activeSize += location.length;
+			totalBytes += location.length;
+			if (activeSize >= segmentSize) {
+				roll(activeId + 1);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("could not write to segment " + activeId, e);
+		}
+		return location;
+	}
+
+	private static ByteBuffer record(byte type, ByteBuf payload) {
+		final int length = payload.readableBytes();
+		final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+		record.putInt(length);
+		record.putInt(0);
+		record.put(type);
+		payload.readBytes(record);
+		record.putInt(4, crc(record.array(), 8, length + 1));
+		record.flip();
+		return record;
+	}
+
+	private static int crc(byte[] array, int offset, int length) {
+		final CRC32 crc32 = new CRC32();
+		crc32.update(array, offset, length);
+		return (int) crc32.getValue();
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		final int length = buffer.remaining();
+		int written = 0;
+		while (written < length) {
+			written += channel.write(buffer, position + written);
+		}
+		return length;
+	}
+
+	/**
+	 * Closes the active segment and starts a new one. Needs to be called while holding the write lock.
+	 */
+	private void roll(long nextId) throws IOException {
+		if (active != null) {
+			active.force(false);
+		}
+		active = new RandomAccessFile(new File(path, segmentName(nextId)), "rw").getChannel();
+		activeId = nextId;
+		activeSize = 0;
+		segments.put(nextId, active);
+	}
+
+	/**
+	 * @return The record with the position after the type, checked against its CRC32
+	 */
+	private ByteBuffer readRecord(Location location) throws IOException {
+		final FileChannel channel = segments.get(location.segment);
+		if (channel == null) {
+			throw new ClosedChannelException();
+		}
+		final ByteBuffer record = ByteBuffer.allocate(location.length);
+		while (record.hasRemaining()) {
+			if (channel.read(record, location.offset + record.position()) < 0) {
+				throw new EOFException("segment " + location.segment + " ends before the record");
+			}
+		}
+		final int length = record.getInt(0);
+		if (length + HEADER_SIZE != location.length
+		        || record.getInt(4) != crc(record.array(), 8, location.length - 8)) {
+			throw new IOException("corrupt record in segment " + location.segment + " at " + location.offset);
+		}
+		record.position(HEADER_SIZE);
+		return record;
+	}
+
+	private Data readData(Location location) throws IOException {
+		final ByteBuf buf = Unpooled.wrappedBuffer(readRecord(location));
+		buf.skipBytes(KEY_SIZE);
+		final Number160 hash = readNumber160(buf);
+		final Data data = Data.decodeHeader(buf, signatureFactory);
+		if (data == null || !data.decodeBuffer(buf) || !data.decodeDone(buf, signatureFactory)) {
+			throw new IOException("data could not be read in segment " + location.segment + " at "
+			        + location.offset);
+		}
+		return data.hash(hash);
+	}
+
+	private void encodeData(ByteBuf payload, Data value) {
+		final AlternativeCompositeByteBuf acb = AlternativeCompositeByteBuf.compBuffer();
+		// header first
+		value.encodeHeader(acb, signatureFactory);
+		payload.writeBytes(acb);
+		// next data - no need to copy to another buffer, just take the data from memory
+		for (ByteBuffer buffer : value.toByteBuffers()) {
+			payload.writeBytes(buffer);
+		}
+		// rest
+		try {
+			value.encodeDone(acb, signatureFactory);
+		} catch (InvalidKeyException e) {
+			throw new IllegalStateException(e);
+		} catch (SignatureException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		payload.writeBytes(acb);
+	}
+
+	// Recovery
+
+	private void recover() throws IOException {
+		if (!path.isDirectory() && !path.mkdirs()) {
+			throw new IOException("could not create " + path);
+		}
+		// a compaction that did not finish, the segments it would replace are still there
+		final File[] unfinished = path.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(COMPACT_SUFFIX);
+			}
+		});
+		for (File file : unfinished) {
+			file.delete();
+		}
+		final long[] ids = segmentIds();
+		for (int i = 0; i < ids.length; i++) {
+			final boolean last = i == ids.length - 1;
+			final File file = new File(path, segmentName(ids[i]));
+			final long valid = replay(ids[i], file, last);
+			final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+			if (valid < channel.size()) {
+				LOG.warn("segment {} has a torn or corrupt record at {}, cut off {} bytes", ids[i], valid,
+				        channel.size() - valid);
+				channel.truncate(valid);
+			}
+			segments.put(ids[i], channel);
+			totalBytes += valid;
+			if (last) {
+				active = channel;
+				activeId = ids[i];
+				activeSize = valid;
+			}
+		}
+		synchronized (writeLock) {
+			if (active == null) {
+				roll(0);
+			} else if (activeSize >= segmentSize) {
+				roll(activeId + 1);
+			}
+		}
+		LOG.debug("replayed {} segments with {} entries", ids.length, index.size());
+	}
+
+	private long[] segmentIds() {
+		final String[] names = path.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		final long[] ids = new long[names.length];
+		for (int i = 0; i < names.length; i++) {
+			ids[i] = Long.parseLong(names[i].substring(SEGMENT_PREFIX.length(), names[i].length()
+			        - SEGMENT_SUFFIX.length()));
+		}
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * Reads the records of a segment and applies them. The data of a put is skipped, unless the segment needs to be
+	 * checked.
+	 *
+	 * @return The position after the last valid record
+	 */
+	private long replay(long id, File file, boolean check) throws IOException {
+		final long size = file.length();
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		long position = 0;
+		try {
+			while (position + HEADER_SIZE <= size) {
+				final int length = in.readInt();
+				final int crc = in.readInt();
+				final byte type = in.readByte();
+				if (length < 0 || position + HEADER_SIZE + length > size) {
+					break;
+				}
+				final byte[] payload;
+				if (type == PUT && !check) {
+					payload = new byte[Math.min(length, KEY_SIZE)];
+					in.readFully(payload);
+					skipFully(in, length - payload.length);
+				} else {
+					payload = new byte[length + 1];
+					payload[0] = type;
+					in.readFully(payload, 1, length);
+					if (crc(payload, 0, payload.length) != crc) {
+						break;
+					}
+				}
+				final ByteBuf buf = Unpooled.wrappedBuffer(payload);
+				if (payload.length > length) {
+					buf.skipBytes(1);
+				}
+				try {
+					if (!apply(type, buf, new Location(id, position, HEADER_SIZE + length))) {
+						break;
+					}
+				} catch (IndexOutOfBoundsException e) {
+					// a record that is shorter than its type requires
+					break;
+				}
+				position += HEADER_SIZE + length;
+			}
+		} finally {
+			in.close();
+		}
+		return position;
+	}
+
+	private static void skipFully(DataInputStream in, int length) throws IOException {
+		int skipped = 0;
+		while (skipped < length) {
+			skipped += in.skipBytes(length - skipped);
+		}
+	}
+
+	private boolean apply(byte type, ByteBuf buf, Location location) {
+		switch (type) {
+		case PUT: {
+			final Location old = index.put(readKey(buf), location);
+			liveBytes += location.length - (old == null ? 0 : old.length);
+			return true;
+		}
+		case REMOVE: {
+			final Location old = index.remove(readKey(buf));
+			liveBytes -= old == null ? 0 : old.length;
+			return true;
+		}
+		case TIMEOUT:
+			addTimeoutInternal(readKey(buf), buf.readLong());
+			return true;
+		case REMOVE_TIMEOUT:
+			removeTimeoutInternal(readKey(buf));
+			return true;
+		case PROTECT_DOMAIN:
+			protectDomainInternal(new Number320(readNumber160(buf), readNumber160(buf)),
+			        signatureFactory.decodePublicKey(buf), location.length);
+			return true;
+		case PROTECT_ENTRY:
+			protectEntryInternal(new Number480(readNumber160(buf), readNumber160(buf), readNumber160(buf)),
+			        signatureFactory.decodePublicKey(buf), location.length);
+			return true;
+		case RESPONSIBILITY:
+			updateResponsibilitiesInternal(readNumber160(buf), readNumber160(buf));
+			return true;
+		case REMOVE_RESPONSIBILITY:
+			removeResponsibilityInternal(readNumber160(buf), readNumber160(buf));
+			return true;
+		case REMOVE_RESPONSIBILITIES:
+			removeResponsibilityInternal(readNumber160(buf));
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static void writeKey(ByteBuf buf, Number640 key) {
+		buf.writeBytes(key.locationKey().toByteArray());
+		buf.writeBytes(key.domainKey().toByteArray());
+		buf.writeBytes(key.contentKey().toByteArray());
+		buf.writeBytes(key.versionKey().toByteArray());
+	}
+
+	private static Number640 readKey(ByteBuf buf) {
+		return new Number640(readNumber160(buf), readNumber160(buf), readNumber160(buf), readNumber160(buf));
+	}
+
+	private static Number160 readNumber160(ByteBuf buf) {
+		final byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+		buf.readBytes(me);
+		return new Number160(me);
+	}
+
+	private static String segmentName(long id) {
+		return SEGMENT_PREFIX + id + SEGMENT_SUFFIX;
+	}
+
+	/**
+	 * The position of a record in the log.
+	 */
+	private static final class Location {
+		private final long segment;
+		private final long offset;
+		private final int length;
+
+		private Location(long segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
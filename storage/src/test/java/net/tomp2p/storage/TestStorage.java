@@ -141,6 +141,75 @@ public class TestStorage {
 		Assert.assertEquals(0, result4.size());
 	}
 
+	@Test
+	public void testLatestVersions() throws Exception {
+		Storage storageM = createStorage();
+		testLatestVersions(new StorageLayer(storageM));
+		storageM.close();
+	}
+
+	private void testLatestVersions(StorageLayer storage) throws IOException {
+		final Number640 v1 = new Number640(locationKey, domainKey, content1, new Number160(1));
+		final Number640 v2 = new Number640(locationKey, domainKey, content1, new Number160(2));
+		final Number640 v3 = new Number640(locationKey, domainKey, content1, new Number160(3));
+		final Number640 v4 = new Number640(locationKey, domainKey, content1, new Number160(4));
+		final Number640 v5 = new Number640(locationKey, domainKey, content1, new Number160(5));
+		Assert.assertEquals(PutStatus.OK, storage.put(v1, new Data("v1"), null, false, false));
+		Assert.assertEquals(PutStatus.OK,
+		        storage.put(v2, new Data("v2").addBasedOn(v1.versionKey()), null, false, false));
+		// v3 is based on v1 as well
+		Assert.assertEquals(PutStatus.VERSION_FORK,
+		        storage.put(v3, new Data("v3").addBasedOn(v1.versionKey()), null, false, false));
+		Assert.assertEquals(2, storage.getLatestVersion(v1).size());
+		Assert.assertTrue(storage.getLatestVersion(v1).containsKey(v2));
+		Assert.assertTrue(storage.getLatestVersion(v1).containsKey(v3));
+		// v4 merges the fork
+		Assert.assertEquals(PutStatus.OK, storage.put(v4,
+		        new Data("v4").addBasedOn(v2.versionKey()).addBasedOn(v3.versionKey()), null, false, false));
+		Assert.assertEquals(1, storage.getLatestVersion(v1).size());
+		Assert.assertTrue(storage.getLatestVersion(v1).containsKey(v4));
+		// a prepared version is not visible until confirmed
+		Assert.assertEquals(PutStatus.OK,
+		        storage.put(v5, new Data("v5").addBasedOn(v4.versionKey()).prepareFlag(), null, false, false));
+		Assert.assertTrue(storage.getLatestVersion(v1).containsKey(v4));
+		Assert.assertEquals(PutStatus.OK, storage.putConfirm(null, v5, new Data()));
+		Assert.assertEquals(1, storage.getLatestVersion(v1).size());
+		Assert.assertTrue(storage.getLatestVersion(v1).containsKey(v5));
+		Assert.assertEquals(5, storage.versionCount(v1.locationDomainAndContentKey()));
+		// removing the head makes v4 the latest version again
+		storage.remove(v5, null, false);
+		Assert.assertEquals(1, storage.getLatestVersion(v1).size());
+		Assert.assertTrue(storage.getLatestVersion(v1).containsKey(v4));
+		Assert.assertEquals(4, storage.versionCount(v1.locationDomainAndContentKey()));
+	}
+
+	@Test
+	public void testVersionIndexBound() throws Exception {
+		Storage storageM = createStorage();
+		// only one content key fits into the version index
+		StorageLayer storage = new StorageLayer(storageM, 1);
+		for (int i = 0; i < 10; i++) {
+			Number640 v1 = new Number640(locationKey, domainKey, new Number160(i), new Number160(1));
+			Number640 v2 = new Number640(locationKey, domainKey, new Number160(i), new Number160(2));
+			Assert.assertEquals(PutStatus.OK, storage.put(v1, new Data("v1"), null, false, false));
+			Assert.assertEquals(PutStatus.OK,
+			        storage.put(v2, new Data("v2").addBasedOn(v1.versionKey()), null, false, false));
+		}
+		for (int i = 0; i < 10; i++) {
+			Number640 v2 = new Number640(locationKey, domainKey, new Number160(i), new Number160(2));
+			Assert.assertEquals(2, storage.versionCount(v2.locationDomainAndContentKey()));
+			Assert.assertTrue(storage.getLatestVersion(v2).containsKey(v2));
+		}
+		// a range removal drops the versions, a new version is not a fork
+		Number640 from = new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
+		Number640 to = new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+		storage.removeReturnData(from, to, null);
+		Number640 v3 = new Number640(locationKey, domainKey, new Number160(0), new Number160(3));
+		Assert.assertEquals(PutStatus.OK, storage.put(v3, new Data("v3"), null, false, false));
+		Assert.assertEquals(1, storage.versionCount(v3.locationDomainAndContentKey()));
+		storageM.close();
+	}
+
 	@Test
 	public void testTTL1() throws Exception {
 		Storage storageM = createStorage();
@@ -4,12 +4,17 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 
 import net.tomp2p.connection.DSASignatureFactory;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
 
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Test;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 
@@ -39,4 +44,80 @@ public class TestStorageDisk extends TestStorage {
 		});
 		DIR.delete();
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testBlobs() throws Exception {
+		StorageDisk storage = (StorageDisk) createStorage();
+		Number640 key1 = new Number640(locationKey, Number160.ONE, Number160.ONE, Number160.ZERO);
+		Number640 key2 = new Number640(locationKey, Number160.ONE, Number160.ONE, Number160.ONE);
+		Data data = new Data(new byte[100 * 1024]);
+		// the same value in two versions is stored once
+		storage.put(key1, data);
+		storage.put(key2, new Data(new byte[100 * 1024]));
+		Assert.assertEquals(2, storage.blobStore().references(data.hash()));
+		Assert.assertEquals(data, storage.get(key2));
+		storage.remove(key1, false);
+		storage.blobStore().gc();
+		Assert.assertEquals(1, storage.blobStore().references(data.hash()));
+		Assert.assertEquals(data, storage.get(key2));
+		storage.remove(key2, false);
+		storage.blobStore().gc();
+		Assert.assertEquals(-1, storage.blobStore().references(data.hash()));
+		storage.close();
+	}
+
+	@Test
+	public void testBlobStoreDirectory() throws Exception {
+		StorageDisk storage = (StorageDisk) createStorage();
+		DB db = DBMaker.newMemoryDB().transactionDisable().make();
+		try {
+			// the segments of two stores would overwrite each other
+			new BlobStore(db, "blobPayloads_other", DIR, BlobStore.DEFAULT_SEGMENT_SIZE, 60 * 1000);
+			Assert.fail();
+		} catch (IOException e) {
+			// expected
+		}
+		Assert.assertSame(storage.blobStore(), BlobStore.get(DIR, "blobPayloads_" + locationKey));
+		Assert.assertNull(BlobStore.get(DIR, "blobPayloads_other"));
+		storage.close();
+		Assert.assertNull(BlobStore.get(DIR, "blobPayloads_" + locationKey));
+		db.close();
+	}
+
+	@Test
+	public void testBlobMetadata() throws Exception {
+		StorageDisk storage = (StorageDisk) createStorage();
+		Number640 key1 = new Number640(locationKey, Number160.ONE, Number160.ONE, Number160.ZERO);
+		Number640 key2 = new Number640(locationKey, Number160.ONE, Number160.ONE, Number160.ONE);
+		// a prepared value is confirmed by storing it again without the prepare flag and with a new TTL, as
+		// StorageLayer.putConfirm does
+		Data prepared = new Data(new byte[100 * 1024]).prepareFlag().ttlSeconds(10);
+		storage.put(key1, prepared);
+		Data confirmed = storage.get(key1);
+		Assert.assertTrue(confirmed.hasPrepareFlag());
+		confirmed.prepareFlag(false).ttlSeconds(100);
+		storage.put(key1, confirmed);
+		Data stored = storage.get(key1);
+		Assert.assertFalse(stored.hasPrepareFlag());
+		Assert.assertEquals(100, stored.ttlSeconds());
+		Assert.assertEquals(1, storage.blobStore().references(prepared.hash()));
+
+		// an equal payload with other based on keys, TTL and signer shares the blob, but not the metadata
+		KeyPair keyPair = KeyPairGenerator.getInstance("DSA").generateKeyPair();
+		Data signed = new Data(new byte[100 * 1024]).ttlSeconds(1000).addBasedOn(Number160.ONE)
+		        .protectEntryNow(keyPair, new DSASignatureFactory());
+		storage.put(key2, signed);
+		Assert.assertEquals(2, storage.blobStore().references(prepared.hash()));
+		stored = storage.get(key2);
+		Assert.assertEquals(1000, stored.ttlSeconds());
+		Assert.assertEquals(1, stored.basedOnSet().size());
+		Assert.assertEquals(Number160.ONE, stored.basedOnSet().iterator().next());
+		Assert.assertTrue(stored.isSigned());
+		Assert.assertTrue(stored.verify(keyPair.getPublic(), new DSASignatureFactory()));
+		stored = storage.get(key1);
+		Assert.assertEquals(100, stored.ttlSeconds());
+		Assert.assertTrue(stored.basedOnSet().isEmpty());
+		Assert.assertFalse(stored.isSigned());
+		storage.close();
+	}
+}
@@ -0,0 +1,190 @@
+package net.tomp2p.storage;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.NavigableMap;
+
+import net.tomp2p.connection.DSASignatureFactory;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number640;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+public class TestStorageLog extends TestStorage {
+	private static File DIR;
+
+	public Storage createStorage() throws IOException {
+		return new StorageLog(DIR, new DSASignatureFactory());
+	}
+
+	@Before
+	public void befor() throws IOException {
+		DIR = Files.createTempDirectory("tomp2p").toFile();
+	}
+
+	@After
+	public void after() {
+		delete(DIR);
+	}
+
+	@Test
+	public void testRecovery() throws Exception {
+		StorageLog storage = new StorageLog(DIR, new DSASignatureFactory());
+		for (int i = 0; i < 100; i++) {
+			storage.put(key(i), new Data("test" + i));
+		}
+		storage.remove(key(10), false);
+		storage.addTimeout(key(20), 1234L);
+		storage.updateResponsibilities(Number160.ONE, Number160.MAX_VALUE);
+		storage.close();
+
+		storage = new StorageLog(DIR, new DSASignatureFactory());
+		Assert.assertEquals(99, storage.map().size());
+		Assert.assertNull(storage.get(key(10)));
+		Assert.assertEquals("test42", storage.get(key(42)).object());
+		Assert.assertEquals(key(20), storage.subMapTimeout(2000L).iterator().next());
+		Assert.assertEquals(1, storage.findPeerIDsForResponsibleContent(Number160.ONE).size());
+		storage.close();
+	}
+
+	@Test
+	public void testTornRecord() throws Exception {
+		StorageLog storage = new StorageLog(DIR, new DSASignatureFactory());
+		storage.put(key(1), new Data("test1"));
+		storage.put(key(2), new Data("test2"));
+		storage.close();
+
+		// cut the last record in the middle, as a crash during a write would
+		File segment = DIR.listFiles()[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.setLength(file.length() - 3);
+		file.close();
+
+		storage = new StorageLog(DIR, new DSASignatureFactory());
+		Assert.assertEquals("test1", storage.get(key(1)).object());
+		Assert.assertNull(storage.get(key(2)));
+		// the log continues after the last valid record
+		storage.put(key(3), new Data("test3"));
+		storage.close();
+		storage = new StorageLog(DIR, new DSASignatureFactory());
+		Assert.assertEquals(2, storage.map().size());
+		storage.close();
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		StorageLog storage = new StorageLog(DIR, new DSASignatureFactory(), 60 * 1000, 4 * 1024, false);
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 50; i++) {
+				storage.put(key(i), new Data(new byte[100 + round]));
+			}
+		}
+		storage.compact();
+		Assert.assertEquals(0, storage.garbage());
+		NavigableMap<Number640, Data> map = storage.map();
+		Assert.assertEquals(50, map.size());
+		Assert.assertEquals(109, map.firstEntry().getValue().length());
+		storage.close();
+
+		storage = new StorageLog(DIR, new DSASignatureFactory(), 60 * 1000, 4 * 1024, false);
+		Assert.assertEquals(50, storage.map().size());
+		Assert.assertEquals(109, storage.get(key(7)).length());
+		storage.close();
+	}
+
+	@Test
+	public void testMetaGarbage() throws Exception {
+		KeyPairGenerator gen = KeyPairGenerator.getInstance("DSA");
+		KeyPair pair1 = gen.generateKeyPair();
+		KeyPair pair2 = gen.generateKeyPair();
+		StorageLog storage = new StorageLog(DIR, new DSASignatureFactory());
+		storage.put(key(1), new Data("test1"));
+		storage.addTimeout(key(1), 1234L);
+		storage.protectDomain(new Number320(new Number160(10), new Number160(20)), pair1.getPublic());
+		storage.protectEntry(key(1).locationDomainAndContentKey(), pair1.getPublic());
+		storage.updateResponsibilities(Number160.ONE, Number160.MAX_VALUE);
+		storage.updateResponsibilities(Number160.ONE, Number160.ONE);
+		// all metadata records are live
+		Assert.assertEquals(0, storage.garbage());
+
+		// a new owner replaces the old protection record
+		storage.protectEntry(key(1).locationDomainAndContentKey(), pair2.getPublic());
+		final long garbage = storage.garbage();
+		Assert.assertTrue(garbage > 0);
+		storage.close();
+
+		storage = new StorageLog(DIR, new DSASignatureFactory());
+		Assert.assertEquals(garbage, storage.garbage());
+		storage.compact();
+		Assert.assertEquals(0, storage.garbage());
+		storage.removeResponsibility(Number160.ONE);
+		Assert.assertTrue(storage.garbage() > 0);
+		storage.close();
+	}
+
+	@Ignore
+	@Test
+	public void testBenchmark() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			benchmark("log", new StorageLog(DIR, new DSASignatureFactory()));
+			delete(DIR);
+			DIR.mkdirs();
+			DB db = DBMaker.newFileDB(new File(DIR, "tomp2p")).transactionDisable().closeOnJvmShutdown()
+			        .cacheDisable().make();
+			benchmark("mapdb", new StorageDisk(db, Number160.ONE, DIR, new DSASignatureFactory(), 60 * 1000));
+			delete(DIR);
+			DIR.mkdirs();
+		}
+	}
+
+	private static void benchmark(String name, Storage storage) throws IOException {
+		final int entries = 20000;
+		final byte[] value = new byte[1024];
+		long start = System.nanoTime();
+		for (int i = 0; i < entries; i++) {
+			storage.put(key(i), new Data(value));
+		}
+		long put = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < entries; i++) {
+			storage.get(key(i));
+		}
+		long get = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < entries; i += 100) {
+			storage.subMap(key(i), key(i + 99), -1, true);
+		}
+		long range = System.nanoTime() - start;
+		storage.close();
+		System.err.println(name + ": put " + (entries * 1000000000L / put) + "/s, get "
+		        + (entries * 1000000000L / get) + "/s, range " + (entries * 1000000000L / range) + " entries/s");
+	}
+
+	private static Number640 key(int nr) {
+		return new Number640(new Number160(10), new Number160(20), new Number160(nr), Number160.ZERO);
+	}
+
+	private static void delete(File dir) {
+		dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File pathname) {
+				if (pathname.isFile())
+					pathname.delete();
+				return false;
+			}
+		});
+		dir.delete();
+	}
+}
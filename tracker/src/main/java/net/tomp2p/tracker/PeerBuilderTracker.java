@@ -1,5 +1,6 @@
 package net.tomp2p.tracker;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Random;
@@ -31,6 +32,8 @@ public class PeerBuilderTracker {
 	private int replicationFactor = -1;
 	private int[] maintenanceInterval = null;
 	private Boolean verifyPeersOnTracker;
+	private int maxPeersPerKey = -1;
+	private int maxPeers = -1;
 
 	public PeerBuilderTracker(Peer peer) {
 		this.peer = peer;
@@ -56,10 +59,17 @@ public class PeerBuilderTracker {
 		if(verifyPeersOnTracker == null) {
 			verifyPeersOnTracker = Boolean.TRUE;
 		}
+		if (maxPeersPerKey == -1) {
+			maxPeersPerKey = TrackerStorage.TRACKER_CACHE_SIZE;
+		}
+		if (maxPeers == -1) {
+			maxPeers = TrackerStorage.TRACKER_MAX_PEERS;
+		}
 		
 		final TrackerStorage trackerStorage;
 		if (peerExchangeHandler == null) {
-			trackerStorage = new TrackerStorage(ttl, maintenanceInterval, replicationFactor, peer, verifyPeersOnTracker.booleanValue());
+			trackerStorage = new TrackerStorage(ttl, maintenanceInterval, replicationFactor, peer,
+			        verifyPeersOnTracker.booleanValue(), maxPeersPerKey, maxPeers);
 			peerExchangeHandler = new DefaultPeerExchangeHandler(trackerStorage, peer.peerAddress(), rnd);
 		} else {
 			trackerStorage = peerExchangeHandler.trackerStorage();
@@ -86,6 +96,15 @@ public class PeerBuilderTracker {
 			scheduledFuture = null;
 		}
 
+		// one timer task removes the expired peers of all keys
+		final int expireSec = Math.max(1, ttl / 4);
+		final ScheduledFuture<?> expireFuture = peer.connectionBean().timer().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				trackerStorage.expire();
+			}
+		}, expireSec, expireSec, TimeUnit.SECONDS);
+
 		peer.peerBean().addPeerStatusListeners(trackerStorage);
 		peer.peerBean().peerMap().addPeerMapChangeListener(trackerStorage);
 		peer.peerBean().maintenanceTask().addMaintainable(trackerStorage);
@@ -94,8 +113,8 @@ public class PeerBuilderTracker {
 		DistributedTracker distributedTracker = new DistributedTracker(peer.peerBean(), peer.distributedRouting(),
 		        trackerRPC, trackerStorage);
 
-		final PeerTracker peerTracker = new PeerTracker(peer, scheduledFuture, trackerRPC, trackerStorage,
-		        peerExchange, distributedTracker);
+		final PeerTracker peerTracker = new PeerTracker(peer, scheduledFuture, expireFuture, trackerRPC,
+		        trackerStorage, peerExchange, distributedTracker);
 		peer.addShutdownListener(new Shutdown() {
 			@Override
 			public BaseFuture shutdown() {
@@ -122,6 +141,34 @@ public class PeerBuilderTracker {
 		return this;
 	}
 	
+	public int maxPeersPerKey() {
+		return maxPeersPerKey;
+	}
+
+	/**
+	 * @param maxPeersPerKey
+	 *            The maximum number of peers stored for one key. Peers that do not fit are denied.
+	 * @return This class
+	 */
+	public PeerBuilderTracker maxPeersPerKey(int maxPeersPerKey) {
+		this.maxPeersPerKey = maxPeersPerKey;
+		return this;
+	}
+
+	public int maxPeers() {
+		return maxPeers;
+	}
+
+	/**
+	 * @param maxPeers
+	 *            The maximum number of peers stored for all keys. Peers that do not fit are denied.
+	 * @return This class
+	 */
+	public PeerBuilderTracker maxPeers(int maxPeers) {
+		this.maxPeers = maxPeers;
+		return this;
+	}
+	
 	public ConnectionConfiguration connectionConfiguration() {
 		return connectionConfiguration;
 	}
@@ -176,12 +223,14 @@ public class PeerBuilderTracker {
 				return null;
 			}
 			Number320 key = Utils.pollRandom(keys, rnd);
-			TrackerData trackerData = trackerStorage.peers(key);
+			TrackerData trackerData = trackerStorage.peers(key, TrackerStorage.TRACKER_CACHE_SIZE);
 			if (trackerData == null) {
 				return null;
 			}
-			Collection<PeerStatatistic> peerStatatistics = trackerData.peerAddresses().keySet();
-			if (peerStatatistics == null || peerStatatistics.size() == 0) {
+			// the sample is sent as it is, so take the remote peer from a copy
+			Collection<PeerStatatistic> peerStatatistics = new ArrayList<PeerStatatistic>(trackerData
+			        .peerAddresses().keySet());
+			if (peerStatatistics.size() == 0) {
 				return null;
 			}
 			peerStatatistics.remove(new PeerStatatistic(self));
@@ -11,15 +11,18 @@ public class PeerTracker {
 
 	private final Peer peer;
 	private final ScheduledFuture<?> scheduledFuture;
+	private final ScheduledFuture<?> expireFuture;
 	private final TrackerRPC trackerRPC;
 	private final TrackerStorage trackerStorage;
 	private final PeerExchange peerExchange;
 	private final DistributedTracker distributedTracker;
 
-	public PeerTracker(Peer peer, ScheduledFuture<?> scheduledFuture, TrackerRPC trackerRPC,
-	        TrackerStorage trackerStorage, PeerExchange peerExchange, DistributedTracker distributedTracker) {
+	public PeerTracker(Peer peer, ScheduledFuture<?> scheduledFuture, ScheduledFuture<?> expireFuture,
+	        TrackerRPC trackerRPC, TrackerStorage trackerStorage, PeerExchange peerExchange,
+	        DistributedTracker distributedTracker) {
 		this.peer = peer;
 		this.scheduledFuture = scheduledFuture;
+		this.expireFuture = expireFuture;
 		this.trackerRPC = trackerRPC;
 		this.trackerStorage = trackerStorage;
 		this.peerExchange = peerExchange;
@@ -66,6 +69,9 @@ public class PeerTracker {
 		if (scheduledFuture != null) {
 			scheduledFuture.cancel(false);
 		}
+		if (expireFuture != null) {
+			expireFuture.cancel(false);
+		}
 	}
 
 }
@@ -169,19 +169,15 @@ public class TrackerRPC extends DispatchHandler {
 
 		PublicKey publicKey = message.publicKey(0);
 		//
-		TrackerData meshPeers = trackerStorage.peers(new Number320(locationKey, domainKey));
+		// a random sample of the peers the requester does not know yet
+		TrackerData meshPeers = trackerStorage.peers(new Number320(locationKey, domainKey),
+		        TrackerRPC.MAX_MSG_SIZE_UDP, knownPeers);
 		
 		LOG.debug("found peers on tracker: {}", meshPeers == null ? "null " : meshPeers.peerAddresses());
 
 		boolean couldProvideMoreData = false;
 		if (meshPeers != null) {
-			if (knownPeers != null) {
-				meshPeers = UtilsTracker.disjunction(meshPeers, knownPeers);
-			}
-			int size = meshPeers.size();
-
-			meshPeers = UtilsTracker.limit(meshPeers, TrackerRPC.MAX_MSG_SIZE_UDP);
-			couldProvideMoreData = size > meshPeers.size();
+			couldProvideMoreData = meshPeers.couldProvideMoreData();
 			responseMessage.trackerData(meshPeers);
 		}
 
@@ -6,7 +6,12 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
+import java.util.Random;
 import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.PeerException;
@@ -22,15 +27,23 @@ import net.tomp2p.peers.PeerMapChangeListener;
 import net.tomp2p.peers.PeerStatatistic;
 import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.rpc.DigestInfo;
+import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.storage.Data;
 import net.tomp2p.storage.DigestTracker;
 import net.tomp2p.utils.ConcurrentCacheMap;
 
+/**
+ * Stores the peers that announced themselves on this tracker. Each key has a {@link TrackerSwarm}. The number of peers
+ * per key and the number of peers overall are limited, a peer that does not fit is denied instead of evicting another
+ * peer. Entries expire after the tracker timeout, expired entries are not returned and are removed by
+ * {@link #expire()}, which should be called periodically.
+ */
 public class TrackerStorage implements Maintainable, PeerMapChangeListener, PeerStatusListener, DigestTracker {
 	// Core
 	public static final int TRACKER_CACHE_SIZE = 1000;
-	final private Map<Number320, TrackerData> dataMapUnverified;
-	final private Map<Number320, TrackerData> dataMap;
+	public static final int TRACKER_MAX_PEERS = TRACKER_CACHE_SIZE * TRACKER_CACHE_SIZE;
+	final private ConcurrentMap<Number320, TrackerSwarm> dataMapUnverified = new ConcurrentHashMap<Number320, TrackerSwarm>();
+	final private ConcurrentMap<Number320, TrackerSwarm> dataMap = new ConcurrentHashMap<Number320, TrackerSwarm>();
 	final private boolean verifyPeersOnTracker;
 	private final int[] intervalSeconds;
 	private final ConcurrentCacheMap<Number160, Boolean> peerOffline;
@@ -38,14 +51,21 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 	private final int trackerTimoutSeconds;
 	private final PeerMap peerMap;
 	private final int replicationFactor;
+	private final int maxPeersPerKey;
+	private final int maxPeers;
+	private final AtomicInteger peers = new AtomicInteger();
+	private final Random rnd;
 	//comes later
 	private PeerExchange peerExchange;
 
 	public TrackerStorage(int trackerTimoutSeconds, final int[] intervalSeconds,
 	        int replicationFactor, Peer peer, boolean verifyPeersOnTracker) {
-		dataMapUnverified = new ConcurrentCacheMap<Number320, TrackerData>(trackerTimoutSeconds, TRACKER_CACHE_SIZE,
-		        true);
-		dataMap = new ConcurrentCacheMap<Number320, TrackerData>(trackerTimoutSeconds, TRACKER_CACHE_SIZE, true);
+		this(trackerTimoutSeconds, intervalSeconds, replicationFactor, peer, verifyPeersOnTracker,
+		        TRACKER_CACHE_SIZE, TRACKER_MAX_PEERS);
+	}
+
+	public TrackerStorage(int trackerTimoutSeconds, final int[] intervalSeconds, int replicationFactor, Peer peer,
+	        boolean verifyPeersOnTracker, int maxPeersPerKey, int maxPeers) {
 		peerOffline = new ConcurrentCacheMap<Number160, Boolean>(trackerTimoutSeconds * 5, TRACKER_CACHE_SIZE, false);
 		this.trackerTimoutSeconds = trackerTimoutSeconds;
 		this.intervalSeconds = intervalSeconds;
@@ -53,6 +73,9 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 		this.peerMap = peer.peerBean().peerMap();
 		this.replicationFactor = replicationFactor;
 		this.verifyPeersOnTracker = verifyPeersOnTracker;
+		this.maxPeersPerKey = maxPeersPerKey;
+		this.maxPeers = maxPeers;
+		this.rnd = new Random(peer.peerID().longValue());
 	}
 
 	public boolean put(Number320 key, PeerAddress peerAddress, PublicKey publicKey, Data attachement) {
@@ -64,31 +87,52 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 		if (oldData!=null && oldData.publicKey()!=null && !oldData.publicKey().equals(publicKey)) {
 			return false;
 		}
-		if(attachement == null) {
-			attachement = new Data();
+		if (attachement == null || (attachement.isEmpty() && publicKey == null)) {
+			// no need to store an empty object for each peer
+			attachement = null;
+		} else {
+			// now store
+			attachement.publicKey(publicKey);
 		}
-		// now store
-		attachement.publicKey(publicKey);
-		return add(key, new PeerStatatistic(peerAddress), verifyPeersOnTracker ? dataMapUnverified : dataMap, attachement);
+		return add(key, peerAddress, verifyPeersOnTracker ? dataMapUnverified : dataMap, attachement,
+		        expiration());
+	}
+
+	private long expiration() {
+		return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(trackerTimoutSeconds);
 	}
 
 	private Data findOld(Number320 key, PeerAddress peerAddress) {
-		for (Map.Entry<Number320, TrackerData> entry : dataMapUnverified.entrySet()) {
-			for (Map.Entry<PeerStatatistic, Data> entry2 : entry.getValue().peerAddresses().entrySet()) {
-				if (entry2.getKey().peerAddress().equals(peerAddress)) {
-					return entry2.getValue();
-				}
+		// the peer is most likely stored under this key
+		Data oldData = findOld(dataMapUnverified.get(key), peerAddress);
+		if (oldData == null) {
+			oldData = findOld(dataMap.get(key), peerAddress);
+		}
+		if (oldData != null) {
+			return oldData;
+		}
+		for (TrackerSwarm trackerSwarm : dataMapUnverified.values()) {
+			oldData = findOld(trackerSwarm, peerAddress);
+			if (oldData != null) {
+				return oldData;
 			}
 		}
-		for (Map.Entry<Number320, TrackerData> entry : dataMap.entrySet()) {
-			for (Map.Entry<PeerStatatistic, Data> entry2 : entry.getValue().peerAddresses().entrySet()) {
-				if (entry2.getKey().peerAddress().equals(peerAddress)) {
-					return entry2.getValue();
-				}
+		for (TrackerSwarm trackerSwarm : dataMap.values()) {
+			oldData = findOld(trackerSwarm, peerAddress);
+			if (oldData != null) {
+				return oldData;
 			}
 		}
 		return null;
 	}
+
+	private static Data findOld(TrackerSwarm trackerSwarm, PeerAddress peerAddress) {
+		if (trackerSwarm == null) {
+			return null;
+		}
+		TrackerSwarm.Entry entry = trackerSwarm.get(peerAddress.peerId());
+		return entry == null ? null : entry.attachement();
+	}
 	
 	public PeerExchange peerExchange() {
 		return peerExchange;
@@ -101,10 +145,11 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 
 	@Override
 	public PeerStatatistic nextForMaintenance(Collection<PeerAddress> notInterestedAddresses) {
-		for (Map.Entry<Number320, TrackerData> entry : dataMapUnverified.entrySet()) {
-			for (Map.Entry<PeerStatatistic, Data> entry2 : entry.getValue().peerAddresses().entrySet()) {
-				if (DefaultMaintenance.needMaintenance(entry2.getKey(), intervalSeconds)) {
-					return entry2.getKey();
+		for (TrackerSwarm trackerSwarm : dataMapUnverified.values()) {
+			for (TrackerSwarm.Entry entry : trackerSwarm.entries()) {
+				if (!notInterestedAddresses.contains(entry.peerAddress())
+				        && DefaultMaintenance.needMaintenance(entry.statistic(), intervalSeconds)) {
+					return entry.statistic();
 				}
 			}
 		}
@@ -132,20 +177,20 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 
 	// 0-root replication
 	private void checkCloserRemoved(PeerAddress remotePeer, PeerAddress self) {
-		for (Map.Entry<Number320, TrackerData> entry : dataMap.entrySet()) {
-			NavigableSet<PeerAddress> closePeers = peerMap.closePeers(entry.getKey().locationKey(), replicationFactor);
+		for (Number320 key : dataMap.keySet()) {
+			NavigableSet<PeerAddress> closePeers = peerMap.closePeers(key.locationKey(), replicationFactor);
 			final boolean meClosest;
 			if (closePeers.size() > 1) {
 				meClosest = closePeers.first().equals(self);
 			} else {
 				meClosest = false;
 			}
-			if (meClosest && isInReplicationRange(entry.getKey().locationKey(), remotePeer, replicationFactor)) {
+			if (meClosest && isInReplicationRange(key.locationKey(), remotePeer, replicationFactor)) {
 				List<PeerAddress> tmp = new ArrayList<PeerAddress>();
 				tmp.addAll(closePeers);
 				if (tmp.size() > replicationFactor && peerExchange != null) {
 					PeerAddress nextRemotePeer = tmp.get(replicationFactor - 1);
-					peerExchange.peerExchange(nextRemotePeer, entry.getKey(), entry.getValue());
+					peerExchange.peerExchange(nextRemotePeer, key, peers(key, TRACKER_CACHE_SIZE));
 				}
 			}
 		}
@@ -153,8 +198,8 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 
 	// 0-root replication
 	private void checkCloserFound(PeerAddress remotePeer, PeerAddress self) {
-		for (Map.Entry<Number320, TrackerData> entry : dataMap.entrySet()) {
-			NavigableSet<PeerAddress> closePeers = peerMap.closePeers(entry.getKey().locationKey(), replicationFactor);
+		for (Number320 key : dataMap.keySet()) {
+			NavigableSet<PeerAddress> closePeers = peerMap.closePeers(key.locationKey(), replicationFactor);
 			closePeers.remove(remotePeer);
 			final boolean meClosest;
 			if (closePeers.size() > 1) {
@@ -163,9 +208,9 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 				meClosest = false;
 			}
 
-			if (meClosest && isInReplicationRange(entry.getKey().locationKey(), remotePeer, replicationFactor) && peerExchange != null) {
+			if (meClosest && isInReplicationRange(key.locationKey(), remotePeer, replicationFactor) && peerExchange != null) {
 				// the other is even closer, so send data to that peer
-				peerExchange.peerExchange(remotePeer, entry.getKey(), entry.getValue());
+				peerExchange.peerExchange(remotePeer, key, peers(key, TRACKER_CACHE_SIZE));
 			}
 		}
 	}
@@ -177,64 +222,124 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 		return tmp.headSet(peerAddress).size() < replicationFactor;
 	}
 
-	private boolean add(Number320 key, PeerStatatistic stat, Map<Number320, TrackerData> map, Data attachement) {
-		TrackerData trackerData = map.get(key);
-		if (trackerData == null) {
-			trackerData = new TrackerData(new ConcurrentCacheMap<PeerStatatistic, Data>(trackerTimoutSeconds,
-			        TRACKER_CACHE_SIZE, true));
-			map.put(key, trackerData);
-		}
-		if (trackerData.size() < TRACKER_CACHE_SIZE) {
-			trackerData.put(stat, attachement);
-			return true;
-		} else {
-			return false;
+	private boolean add(Number320 key, PeerAddress peerAddress, ConcurrentMap<Number320, TrackerSwarm> map,
+	        Data attachement, long expires) {
+		return add(key, null, peerAddress, map, attachement, expires);
+	}
+
+	private boolean add(Number320 key, PeerStatatistic statistic, PeerAddress peerAddress,
+	        ConcurrentMap<Number320, TrackerSwarm> map, Data attachement, long expires) {
+		while (true) {
+			TrackerSwarm trackerSwarm = map.get(key);
+			if (trackerSwarm == null) {
+				trackerSwarm = new TrackerSwarm();
+				TrackerSwarm old = map.putIfAbsent(key, trackerSwarm);
+				if (old != null) {
+					trackerSwarm = old;
+				}
+			}
+			synchronized (trackerSwarm) {
+				if (trackerSwarm.isRetired()) {
+					// removed by expire, try again with a new one
+					continue;
+				}
+				if (trackerSwarm.get(peerAddress.peerId()) == null && peers.get() >= maxPeers) {
+					return false;
+				}
+				int added = trackerSwarm.put(statistic, peerAddress, attachement, expires, maxPeersPerKey);
+				if (added > 0) {
+					peers.incrementAndGet();
+				}
+				return added >= 0;
+			}
 		}
 	}
 
-	private boolean remove(Number320 key, PeerStatatistic stat, Map<Number320, TrackerData> map) {
-		TrackerData trackerData = map.get(key);
-		if (trackerData != null) {
-			return trackerData.remove(stat.peerAddress().peerId()) != null;
+	private boolean remove(Number320 key, Number160 peerId, Map<Number320, TrackerSwarm> map) {
+		TrackerSwarm trackerSwarm = map.get(key);
+		if (trackerSwarm != null && trackerSwarm.remove(peerId) != null) {
+			peers.decrementAndGet();
+			return true;
 		}
 		return false;
 	}
 
+	/**
+	 * @param key
+	 *            The location and domain key
+	 * @return A copy of all peers stored under this key
+	 */
 	public TrackerData peers(Number320 key) {
-		return dataMap.get(key);
+		return peers(key, Integer.MAX_VALUE);
 	}
 
-	public Collection<Number320> keys() {
-		return dataMap.keySet();
+	/**
+	 * @param key
+	 *            The location and domain key
+	 * @param size
+	 *            The maximum number of peers to return
+	 * @return A random sample of the peers stored under this key, or null if there are no peers for this key
+	 */
+	public TrackerData peers(Number320 key, int size) {
+		return peers(key, size, null);
 	}
 
-	@Override
-	public boolean peerFailed(PeerAddress remotePeer, PeerException reason) {
-		peerOffline.put(remotePeer.peerId(), Boolean.TRUE);
-		Number320 keyToRemove = null;
-		PeerStatatistic statToRemove = null;
-		for (Map.Entry<Number320, TrackerData> entry : dataMapUnverified.entrySet()) {
-			for (Map.Entry<PeerStatatistic, Data> entry2 : entry.getValue().peerAddresses().entrySet()) {
-				if (entry2.getKey().peerAddress().equals(remotePeer)) {
-					keyToRemove = entry.getKey();
-					statToRemove = entry2.getKey();
-				}
-			}
+	/**
+	 * @param key
+	 *            The location and domain key
+	 * @param size
+	 *            The maximum number of peers to return
+	 * @param knownPeers
+	 *            The peers that should not be returned, or null
+	 * @return A random sample of the peers stored under this key, or null if there are no peers for this key
+	 */
+	public TrackerData peers(Number320 key, int size, SimpleBloomFilter<Number160> knownPeers) {
+		TrackerSwarm trackerSwarm = dataMap.get(key);
+		if (trackerSwarm == null) {
+			return null;
 		}
-		if(keyToRemove !=null) {
-			remove(keyToRemove, statToRemove, dataMapUnverified);
+		synchronized (rnd) {
+			return trackerSwarm.sample(size, knownPeers, System.currentTimeMillis(), rnd);
 		}
-		//
-		for (Map.Entry<Number320, TrackerData> entry : dataMap.entrySet()) {
-			for (Map.Entry<PeerStatatistic, Data> entry2 : entry.getValue().peerAddresses().entrySet()) {
-				if (entry2.getKey().peerAddress().equals(remotePeer)) {
-					keyToRemove = entry.getKey();
-					statToRemove = entry2.getKey();
+	}
+
+	public Collection<Number320> keys() {
+		return new ArrayList<Number320>(dataMap.keySet());
+	}
+
+	/**
+	 * Removes the expired peers and the keys without peers.
+	 * 
+	 * @return The number of removed peers
+	 */
+	public int expire() {
+		final long now = System.currentTimeMillis();
+		return expire(dataMapUnverified, now) + expire(dataMap, now);
+	}
+
+	private int expire(ConcurrentMap<Number320, TrackerSwarm> map, long now) {
+		int removed = 0;
+		for (Map.Entry<Number320, TrackerSwarm> entry : map.entrySet()) {
+			final TrackerSwarm trackerSwarm = entry.getValue();
+			synchronized (trackerSwarm) {
+				removed += trackerSwarm.expire(now);
+				if (trackerSwarm.retireIfEmpty()) {
+					map.remove(entry.getKey(), trackerSwarm);
 				}
 			}
 		}
-		if(keyToRemove !=null) {
-			remove(keyToRemove, statToRemove, dataMap);
+		peers.addAndGet(-removed);
+		return removed;
+	}
+
+	@Override
+	public boolean peerFailed(PeerAddress remotePeer, PeerException reason) {
+		peerOffline.put(remotePeer.peerId(), Boolean.TRUE);
+		for (Number320 key : dataMapUnverified.keySet()) {
+			remove(key, remotePeer.peerId(), dataMapUnverified);
+		}
+		for (Number320 key : dataMap.keySet()) {
+			remove(key, remotePeer.peerId(), dataMap);
 		}
 		return true;
 	}
@@ -244,51 +349,59 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 		boolean firsthand = referrer == null;
 		if (firsthand) {
 			peerOffline.remove(remotePeer.peerId());
-			Number320 keyToRemove = null;
-			PeerStatatistic statToRemove = null;
-			for (Map.Entry<Number320, TrackerData> entry : dataMapUnverified.entrySet()) {
-				for (Map.Entry<PeerStatatistic, Data> entry2 : entry.getValue().peerAddresses().entrySet()) {
-					if (entry2.getKey().peerAddress().equals(remotePeer)) {
-						if (add(entry.getKey(), entry2.getKey(), dataMap, entry2.getValue())) {
-							// only remove from unverified if we could store to
-							// verified
-							keyToRemove = entry.getKey();
-							statToRemove = entry2.getKey();
-							statToRemove.successfullyChecked();
-							// TODO: here we can break to the if statement below
-						}
-					}
+			for (Map.Entry<Number320, TrackerSwarm> entry : dataMapUnverified.entrySet()) {
+				TrackerSwarm.Entry stored = entry.getValue().get(remotePeer.peerId());
+				if (stored == null) {
+					continue;
+				}
+				stored.statistic().successfullyChecked();
+				// only remove from unverified if we could store to verified
+				if (remove(entry.getKey(), remotePeer.peerId(), dataMapUnverified)
+				        && !add(entry.getKey(), stored.statistic(), stored.peerAddress(), dataMap,
+				                stored.attachement(), expiration())) {
+					// keep the statistics, so that the peer is not checked again before its interval is over
+					add(entry.getKey(), stored.statistic(), stored.peerAddress(), dataMapUnverified,
+					        stored.attachement(), stored.expires());
 				}
-			}
-			if (keyToRemove != null && statToRemove != null) {
-				remove(keyToRemove, statToRemove, dataMapUnverified);
 			}
 		}
 		return true;
 	}
 
+	/**
+	 * @return The number of keys with verified peers
+	 */
 	public int size() {
 	    return dataMap.size();
     }
 
+	/**
+	 * @return The number of keys with unverified peers
+	 */
 	public int sizeUnverified() {
 		return dataMapUnverified.size();
     }
 
+	/**
+	 * @return The number of peers stored for all keys
+	 */
+	public int sizePeers() {
+		return peers.get();
+	}
+
 	@Override
     public DigestInfo digest(Number160 locationKey, Number160 domainKey, Number160 contentKey) {
 		Number160 contentDigest = Number160.ZERO;
 		int counter = 0;
-		TrackerData trackerData = dataMap.get(new Number320(locationKey, domainKey));
-		if(trackerData!=null) {
+		TrackerSwarm trackerSwarm = dataMap.get(new Number320(locationKey, domainKey));
+		if(trackerSwarm!=null) {
 			if(contentKey!=null) {
-				Map.Entry<PeerStatatistic, Data> entry = trackerData.get(contentKey);
-				if(entry!=null) {
+				if(trackerSwarm.get(contentKey)!=null) {
 					return new DigestInfo(Number160.ZERO, contentKey, 1);
 				}
 			} else {
-				for(PeerStatatistic peerStatatistic: trackerData.peerAddresses().keySet()) {
-					contentDigest = contentDigest.xor(peerStatatistic.peerAddress().peerId());
+				for(TrackerSwarm.Entry entry: trackerSwarm.entries()) {
+					contentDigest = contentDigest.xor(entry.peerAddress().peerId());
 					counter++;
 				}
 			}
@@ -0,0 +1,240 @@
+package net.tomp2p.tracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.tomp2p.message.TrackerData;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerStatatistic;
+import net.tomp2p.rpc.SimpleBloomFilter;
+import net.tomp2p.storage.Data;
+
+/**
+ * The peers of one tracker key. The entries are kept in an array with an index from peer ID to position, so that
+ * adding, removing and looking up a peer is O(1) and a random sample of k peers can be taken with a partial shuffle in
+ * O(k) without copying the swarm. An entry only stores the peer statistics, the attachement if there is one and the
+ * expiration time. Expired entries are skipped when sampling and removed by {@link #expire(long)}, which is called
+ * periodically from a shared timer.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class TrackerSwarm {
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Map<Number160, Integer> index = new HashMap<Number160, Integer>();
+	private boolean retired = false;
+
+	/**
+	 * Adds a peer or updates its address, attachement and expiration time.
+	 *
+	 * @param peerAddress
+	 *            The peer to add
+	 * @param attachement
+	 *            The attachement or null if there is none
+	 * @param expires
+	 *            The time in milliseconds when the entry expires
+	 * @param capacity
+	 *            The maximum number of peers in this swarm
+	 * @return 1 if the peer was added, 0 if it was updated, -1 if the swarm is full
+	 */
+	public synchronized int put(final PeerAddress peerAddress, final Data attachement, final long expires,
+	        final int capacity) {
+		return put(null, peerAddress, attachement, expires, capacity);
+	}
+
+	/**
+	 * Adds a peer or updates its address, attachement and expiration time. The statistics of a peer that is already
+	 * in this swarm are kept.
+	 *
+	 * @param statistic
+	 *            The statistics of the peer if it was stored before, or null to create new ones
+	 * @param peerAddress
+	 *            The peer to add
+	 * @param attachement
+	 *            The attachement or null if there is none
+	 * @param expires
+	 *            The time in milliseconds when the entry expires
+	 * @param capacity
+	 *            The maximum number of peers in this swarm
+	 * @return 1 if the peer was added, 0 if it was updated, -1 if the swarm is full
+	 */
+	public synchronized int put(final PeerStatatistic statistic, final PeerAddress peerAddress,
+	        final Data attachement, final long expires, final int capacity) {
+		final Data stored = attachement == TrackerData.EMTPY_DATA ? null : attachement;
+		final Integer position = index.get(peerAddress.peerId());
+		if (position != null) {
+			final PeerStatatistic old = entries.get(position).statistic;
+			old.peerAddress(peerAddress);
+			entries.set(position, new Entry(old, stored, expires));
+			return 0;
+		}
+		final Entry entry = new Entry(statistic == null ? new PeerStatatistic(peerAddress) : statistic, stored,
+		        expires);
+		if (entries.size() >= capacity) {
+			return -1;
+		}
+		index.put(peerAddress.peerId(), entries.size());
+		entries.add(entry);
+		return 1;
+	}
+
+	/**
+	 * @param peerId
+	 *            The peer to remove
+	 * @return The removed entry or null if the peer is not in this swarm
+	 */
+	public synchronized Entry remove(final Number160 peerId) {
+		final Integer position = index.remove(peerId);
+		if (position == null) {
+			return null;
+		}
+		// move the last entry into the gap
+		final Entry removed = entries.get(position);
+		final Entry last = entries.remove(entries.size() - 1);
+		if (last != removed) {
+			entries.set(position, last);
+			index.put(last.peerAddress().peerId(), position);
+		}
+		return removed;
+	}
+
+	/**
+	 * @param peerId
+	 *            The peer to look for
+	 * @return The entry of the peer or null if the peer is not in this swarm
+	 */
+	public synchronized Entry get(final Number160 peerId) {
+		final Integer position = index.get(peerId);
+		return position == null ? null : entries.get(position);
+	}
+
+	/**
+	 * Takes a random sample of peers that have not expired. The sample is taken with a partial Fisher-Yates shuffle
+	 * of the entries, so only the entries looked at are touched.
+	 *
+	 * @param size
+	 *            The number of peers to return at most
+	 * @param knownPeers
+	 *            Peers the requester already knows and that are not returned, or null
+	 * @param now
+	 *            The current time in milliseconds
+	 * @param rnd
+	 *            The random generator
+	 * @return The sample, which could provide more data if there are peers left that were not looked at
+	 */
+	public synchronized TrackerData sample(final int size, final SimpleBloomFilter<Number160> knownPeers,
+	        final long now, final Random rnd) {
+		final int n = entries.size();
+		final Map<PeerStatatistic, Data> result = new HashMap<PeerStatatistic, Data>(Math.min(size, n) * 2);
+		int i = 0;
+		for (; i < n && result.size() < size; i++) {
+			swap(i, i + rnd.nextInt(n - i));
+			final Entry entry = entries.get(i);
+			if (entry.expires < now
+			        || (knownPeers != null && knownPeers.contains(entry.peerAddress().peerId()))) {
+				continue;
+			}
+			result.put(new PeerStatatistic(entry.peerAddress()), entry.attachement());
+		}
+		return new TrackerData(result, i < n);
+	}
+
+	private void swap(final int i, final int j) {
+		if (i == j) {
+			return;
+		}
+		final Entry entryI = entries.get(i);
+		final Entry entryJ = entries.get(j);
+		entries.set(i, entryJ);
+		entries.set(j, entryI);
+		index.put(entryJ.peerAddress().peerId(), i);
+		index.put(entryI.peerAddress().peerId(), j);
+	}
+
+	/**
+	 * Removes the expired entries.
+	 *
+	 * @param now
+	 *            The current time in milliseconds
+	 * @return The number of removed entries
+	 */
+	public synchronized int expire(final long now) {
+		int removed = 0;
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			if (entries.get(i).expires < now) {
+				remove(entries.get(i).peerAddress().peerId());
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return A copy of all entries
+	 */
+	public synchronized List<Entry> entries() {
+		return new ArrayList<Entry>(entries);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Marks an empty swarm as removed from the storage, so that no peers are added anymore.
+	 *
+	 * @return True if the swarm was empty and is now retired
+	 */
+	synchronized boolean retireIfEmpty() {
+		if (entries.isEmpty()) {
+			retired = true;
+		}
+		return retired;
+	}
+
+	synchronized boolean isRetired() {
+		return retired;
+	}
+
+	/**
+	 * A peer in the swarm.
+	 */
+	public static final class Entry {
+		private final PeerStatatistic statistic;
+		private final Data attachement;
+		private final long expires;
+
+		private Entry(final PeerStatatistic statistic, final Data attachement, final long expires) {
+			this.statistic = statistic;
+			this.attachement = attachement;
+			this.expires = expires;
+		}
+
+		public PeerAddress peerAddress() {
+			return statistic.peerAddress();
+		}
+
+		/**
+		 * @return The statistics of the peer, which tell the maintenance when the peer was last seen online
+		 */
+		public PeerStatatistic statistic() {
+			return statistic;
+		}
+
+		/**
+		 * @return The attachement, or an empty data object if there is none
+		 */
+		public Data attachement() {
+			return attachement == null ? TrackerData.EMTPY_DATA : attachement;
+		}
+
+		public long expires() {
+			return expires;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package net.tomp2p.tracker;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import net.tomp2p.message.TrackerData;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerStatatistic;
+import net.tomp2p.rpc.SimpleBloomFilter;
+import net.tomp2p.storage.Data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTrackerStorage {
+
+	private static final Number320 KEY1 = new Number320(new Number160(1), Number160.ZERO);
+	private static final Number320 KEY2 = new Number320(new Number160(2), Number160.ZERO);
+
+	@Test
+	public void testCapacity() throws Exception {
+		Peer peer = null;
+		try {
+			peer = new PeerBuilder(new Number160(42)).ports(4001).start();
+			TrackerStorage trackerStorage = new TrackerStorage(60, new int[] { 2 }, 20, peer, false, 10, 15);
+			Random rnd = new Random(42);
+			for (int i = 0; i < 10; i++) {
+				Assert.assertTrue(trackerStorage.put(KEY1, address(rnd), null, null));
+			}
+			PeerAddress peerAddress = address(rnd);
+			// the key is full
+			Assert.assertFalse(trackerStorage.put(KEY1, peerAddress, null, null));
+			for (int i = 0; i < 5; i++) {
+				Assert.assertTrue(trackerStorage.put(KEY2, address(rnd), null, new Data("test")));
+			}
+			// the storage is full
+			Assert.assertFalse(trackerStorage.put(KEY2, peerAddress, null, null));
+			Assert.assertEquals(15, trackerStorage.sizePeers());
+			Assert.assertEquals("test", trackerStorage.peers(KEY2).peerAddresses().values().iterator().next()
+			        .object());
+			// updating a peer is always possible
+			PeerAddress stored = trackerStorage.peers(KEY1, 1).peerAddresses().keySet().iterator().next()
+			        .peerAddress();
+			Assert.assertTrue(trackerStorage.put(KEY1, stored, null, null));
+		} finally {
+			if (peer != null) {
+				peer.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testExpire() throws Exception {
+		Peer peer = null;
+		try {
+			peer = new PeerBuilder(new Number160(42)).ports(4001).start();
+			TrackerStorage trackerStorage = new TrackerStorage(1, new int[] { 2 }, 20, peer, false);
+			Random rnd = new Random(42);
+			for (int i = 0; i < 10; i++) {
+				trackerStorage.put(KEY1, address(rnd), null, null);
+			}
+			Assert.assertEquals(10, trackerStorage.peers(KEY1).size());
+			Thread.sleep(1100);
+			// expired peers are not returned, even if they are still stored
+			Assert.assertEquals(0, trackerStorage.peers(KEY1).size());
+			Assert.assertEquals(10, trackerStorage.expire());
+			Assert.assertEquals(0, trackerStorage.sizePeers());
+			Assert.assertEquals(0, trackerStorage.size());
+			Assert.assertNull(trackerStorage.peers(KEY1));
+			Assert.assertTrue(trackerStorage.put(KEY1, address(rnd), null, null));
+			Assert.assertEquals(1, trackerStorage.size());
+		} finally {
+			if (peer != null) {
+				peer.shutdown().await();
+			}
+		}
+	}
+
+	/**
+	 * A peer that was seen online, but could not be verified because the swarm is full, is not checked again before its
+	 * maintenance interval is over.
+	 */
+	@Test
+	public void testMaintenanceInterval() throws Exception {
+		Peer peer = null;
+		try {
+			peer = new PeerBuilder(new Number160(42)).ports(4001).start();
+			TrackerStorage trackerStorage = new TrackerStorage(60, new int[] { 2 }, 20, peer, true, 1, 10);
+			Random rnd = new Random(42);
+			PeerAddress peerAddress1 = address(rnd);
+			PeerAddress peerAddress2 = address(rnd);
+			Assert.assertTrue(trackerStorage.put(KEY1, peerAddress1, null, null));
+			Assert.assertEquals(peerAddress1, trackerStorage.nextForMaintenance(new HashSet<PeerAddress>())
+			        .peerAddress());
+			trackerStorage.peerFound(peerAddress1, null, null);
+			Assert.assertEquals(1, trackerStorage.peers(KEY1).size());
+			Assert.assertNull(trackerStorage.nextForMaintenance(new HashSet<PeerAddress>()));
+
+			// the verified swarm is full, so the second peer stays unverified
+			Assert.assertTrue(trackerStorage.put(KEY1, peerAddress2, null, null));
+			Assert.assertEquals(peerAddress2, trackerStorage.nextForMaintenance(new HashSet<PeerAddress>())
+			        .peerAddress());
+			trackerStorage.peerFound(peerAddress2, null, null);
+			Assert.assertEquals(1, trackerStorage.sizeUnverified());
+			Assert.assertNull(trackerStorage.nextForMaintenance(new HashSet<PeerAddress>()));
+			Thread.sleep(2100);
+			Assert.assertEquals(peerAddress2, trackerStorage.nextForMaintenance(new HashSet<PeerAddress>())
+			        .peerAddress());
+		} finally {
+			if (peer != null) {
+				peer.shutdown().await();
+			}
+		}
+	}
+
+	/**
+	 * Stores 100'000 peers in one swarm and takes random samples as a tracker get does. The times are printed to
+	 * System.err, they depend on the machine and are not asserted.
+	 */
+	@Test
+	public void testLargeSwarm() throws Exception {
+		Peer peer = null;
+		try {
+			peer = new PeerBuilder(new Number160(42)).ports(4001).start();
+			final int nr = 100000;
+			TrackerStorage trackerStorage = new TrackerStorage(60, new int[] { 2 }, 20, peer, false, nr, nr);
+			Random rnd = new Random(42);
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < nr; i++) {
+				Assert.assertTrue(trackerStorage.put(KEY1, address(rnd), null, null));
+			}
+			System.err.println("stored " + nr + " peers in " + (System.currentTimeMillis() - start) + "ms");
+			Assert.assertEquals(nr, trackerStorage.sizePeers());
+
+			SimpleBloomFilter<Number160> knownPeers = new SimpleBloomFilter<Number160>(0.01, 1000);
+			TrackerData first = trackerStorage.peers(KEY1, TrackerRPC.MAX_MSG_SIZE_UDP);
+			for (PeerStatatistic peerStatatistic : first.peerAddresses().keySet()) {
+				knownPeers.add(peerStatatistic.peerAddress().peerId());
+			}
+			Set<PeerStatatistic> seen = new HashSet<PeerStatatistic>();
+			final int rounds = 10000;
+			start = System.currentTimeMillis();
+			for (int i = 0; i < rounds; i++) {
+				TrackerData trackerData = trackerStorage.peers(KEY1, TrackerRPC.MAX_MSG_SIZE_UDP, knownPeers);
+				Assert.assertEquals(TrackerRPC.MAX_MSG_SIZE_UDP, trackerData.size());
+				Assert.assertTrue(trackerData.couldProvideMoreData());
+				for (PeerStatatistic peerStatatistic : trackerData.peerAddresses().keySet()) {
+					Assert.assertFalse(first.peerAddresses().containsKey(peerStatatistic));
+				}
+				seen.addAll(trackerData.peerAddresses().keySet());
+			}
+			System.err.println(rounds + " samples in " + (System.currentTimeMillis() - start) + "ms, "
+			        + seen.size() + " different peers returned");
+			// 350'000 draws from 100'000 peers should cover most of them
+			Assert.assertTrue(seen.size() > nr / 2);
+		} finally {
+			if (peer != null) {
+				peer.shutdown().await();
+			}
+		}
+	}
+
+	private static PeerAddress address(Random rnd) throws Exception {
+		return new PeerAddress(new Number160(rnd), "127.0.0.1", 5000 + rnd.nextInt(10000),
+		        5000 + rnd.nextInt(10000));
+	}
+}